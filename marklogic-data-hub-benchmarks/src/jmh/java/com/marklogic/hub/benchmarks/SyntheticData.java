@@ -0,0 +1,124 @@
+/*
+ * Copyright 2012-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Synthetic data shaped like what a data hub handles: document URIs, input file paths and customer records. A fixed
+ * seed makes every run of a benchmark process the same data.
+ */
+public class SyntheticData {
+
+    private static final String[] REGIONS = {"north-america", "south-america", "europe", "asia-pacific", "africa"};
+    private static final String[] STATUSES = {"active", "inactive", "pending", "suspended"};
+    private static final String[] CITIES = {"San Carlos", "Portland", "London", "Bangalore", "Sydney", "Nairobi"};
+
+    private final Random random;
+
+    public SyntheticData() {
+        this(42);
+    }
+
+    public SyntheticData(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * @return URIs as a collector returns them: sorted, so that neighbouring URIs share a long prefix
+     */
+    public List<String> uris(int count) {
+        List<String> uris = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String region = REGIONS[i * REGIONS.length / count];
+            uris.add(String.format("/customers/%s/2019/customer-%08d.json", region, i));
+        }
+        return uris;
+    }
+
+    /**
+     * @return absolute paths of files to ingest, some with characters that must be encoded in a URI
+     */
+    public List<String> inputFilePaths(int count) {
+        List<String> paths = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String city = CITIES[random.nextInt(CITIES.length)];
+            paths.add(String.format("/data/input/customers/%s/customer %08d%s.json", city, i, i % 10 == 0 ? " #copy" : ""));
+        }
+        return paths;
+    }
+
+    /**
+     * @return a customer record of about 500 bytes when serialized
+     */
+    public Map<String, Object> customer(int id) {
+        Map<String, Object> address = new LinkedHashMap<>();
+        address.put("street", (100 + random.nextInt(9900)) + " Main Street");
+        address.put("city", CITIES[random.nextInt(CITIES.length)]);
+        address.put("postalCode", String.format("%05d", random.nextInt(100000)));
+        address.put("region", REGIONS[random.nextInt(REGIONS.length)]);
+
+        List<Map<String, Object>> orders = new ArrayList<>();
+        int orderCount = 1 + random.nextInt(5);
+        for (int i = 0; i < orderCount; i++) {
+            Map<String, Object> order = new LinkedHashMap<>();
+            order.put("orderId", "order-" + id + "-" + i);
+            order.put("total", random.nextInt(100000) / 100.0);
+            order.put("items", 1 + random.nextInt(20));
+            order.put("shipped", random.nextBoolean());
+            orders.add(order);
+        }
+
+        Map<String, Object> customer = new LinkedHashMap<>();
+        customer.put("customerId", id);
+        customer.put("firstName", "First" + random.nextInt(1000));
+        customer.put("lastName", "Last" + random.nextInt(10000));
+        customer.put("email", "customer" + id + "@example.org");
+        customer.put("status", STATUSES[random.nextInt(STATUSES.length)]);
+        customer.put("since", String.format("20%02d-%02d-%02d", random.nextInt(20), 1 + random.nextInt(12), 1 + random.nextInt(28)));
+        customer.put("address", address);
+        customer.put("orders", orders);
+        return customer;
+    }
+
+    public List<Map<String, Object>> customers(int count) {
+        List<Map<String, Object>> customers = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            customers.add(customer(i));
+        }
+        return customers;
+    }
+
+    /**
+     * @return options as a flow, step or step definition declares them, with the given key prefix
+     */
+    public Map<String, Object> options(String prefix, int count) {
+        Map<String, Object> options = new LinkedHashMap<>();
+        options.put("sourceQuery", "cts.collectionQuery('" + prefix + "-input')");
+        options.put("collections", new ArrayList<>(Arrays.asList(prefix, prefix + "-output")));
+        options.put("permissions", "data-hub-operator,read,data-hub-operator,update");
+        options.put("outputFormat", "json");
+        for (int i = options.size(); i < count; i++) {
+            options.put(prefix + "Option" + i, i % 3 == 0 ? Boolean.valueOf(random.nextBoolean()) : "value-" + random.nextInt(1000));
+        }
+        return options;
+    }
+}
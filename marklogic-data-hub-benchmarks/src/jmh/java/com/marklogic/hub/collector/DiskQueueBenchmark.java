@@ -0,0 +1,83 @@
+/*
+ * Copyright 2012-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.collector;
+
+import com.marklogic.hub.benchmarks.SyntheticData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fills a queue with the URIs of a collected step and drains it, as a step run does. With the smaller in-memory size
+ * most URIs spill to disk as front-coded blocks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DiskQueueBenchmark {
+
+    @Param({"100000"})
+    public int uriCount;
+
+    @Param({"5000", "100000"})
+    public int maxInMemorySize;
+
+    private List<String> uris;
+    private File tempDir;
+
+    @Setup
+    public void setup() throws IOException {
+        uris = new SyntheticData().uris(uriCount);
+        tempDir = Files.createTempDirectory("disk-queue-benchmark").toFile();
+    }
+
+    @TearDown
+    public void tearDown() {
+        File[] files = tempDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        tempDir.delete();
+    }
+
+    @Benchmark
+    public void fillAndDrain(Blackhole blackhole) {
+        DiskQueue<String> queue = new DiskQueue<>(maxInMemorySize, tempDir);
+        for (String uri : uris) {
+            queue.offer(uri);
+        }
+        String uri;
+        while ((uri = queue.poll()) != null) {
+            blackhole.consume(uri);
+        }
+        queue.clear();
+    }
+}
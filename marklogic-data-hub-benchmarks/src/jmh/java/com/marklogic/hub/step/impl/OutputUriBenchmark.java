@@ -0,0 +1,60 @@
+/*
+ * Copyright 2012-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.step.impl;
+
+import com.marklogic.hub.benchmarks.SyntheticData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.net.URISyntaxException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turns the paths of ingested files into document URIs, as is done for every file an ingestion step reads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class OutputUriBenchmark {
+
+    @Param({"10000"})
+    public int fileCount;
+
+    @Param({"", "^/data/input,'/ingested',.json$,'.customer.json'"})
+    public String outputURIReplacement;
+
+    private List<String> paths;
+
+    @Setup
+    public void setup() {
+        paths = new SyntheticData().inputFilePaths(fileCount);
+    }
+
+    @Benchmark
+    public void generateUris(Blackhole blackhole) throws URISyntaxException {
+        for (String path : paths) {
+            blackhole.consume(WriteStepRunner.generateAndEncodeURI(WriteStepRunner.outputURIReplace(path, outputURIReplacement)));
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2012-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.step.impl;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.marklogic.hub.HubConfig;
+import com.marklogic.hub.benchmarks.SyntheticData;
+import com.marklogic.hub.flow.impl.FlowImpl;
+import com.marklogic.hub.step.StepDefinition;
+import com.marklogic.hub.step.StepRunner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges the options of a step definition, flow, step and run, as is done each time a step is run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class StepOptionsBenchmark {
+
+    @Param({"10", "50"})
+    public int optionCount;
+
+    private QueryStepRunner runner;
+    private Map<String, Object> runOptions;
+
+    @Setup
+    public void setup() {
+        SyntheticData data = new SyntheticData();
+
+        StepDefinition stepDefinition = StepDefinition.create("mapCustomers", StepDefinition.StepDefinitionType.MAPPING);
+        stepDefinition.setOptions(data.options("stepDefinition", optionCount));
+
+        Step step = new Step();
+        step.setName("mapCustomers");
+        step.setOptions(data.options("step", optionCount));
+
+        FlowImpl flow = new FlowImpl();
+        flow.setName("customers");
+        flow.setOptions(new ObjectMapper().valueToTree(data.options("flow", optionCount)));
+        Map<String, Step> steps = new HashMap<>();
+        steps.put("1", step);
+        flow.setSteps(steps);
+
+        runOptions = data.options("run", 5);
+
+        // No client is used to merge options, so the runner doesn't need a real configuration
+        HubConfig hubConfig = (HubConfig) Proxy.newProxyInstance(HubConfig.class.getClassLoader(),
+            new Class<?>[]{HubConfig.class}, (proxy, method, args) -> null);
+        runner = new QueryStepRunner(hubConfig);
+        runner.withFlow(flow);
+        runner.withStep("1");
+        runner.withStepDefinition(stepDefinition);
+    }
+
+    @Benchmark
+    public StepRunner withOptions() {
+        return runner.withOptions(runOptions);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2012-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks which modules of a project have changed, and records the load timestamps of the changed ones, as is done
+ * each time modules are loaded.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class HubModuleManagerBenchmark {
+
+    @Param({"1000"})
+    public int moduleCount;
+
+    @Param({"50"})
+    public int changedModuleCount;
+
+    private File projectDir;
+    private List<File> modules;
+    private HubModuleManager moduleManager;
+
+    @Setup(Level.Trial)
+    public void createModules() throws IOException {
+        projectDir = Files.createTempDirectory("hub-module-manager-benchmark").toFile();
+        modules = new ArrayList<>(moduleCount);
+        for (int i = 0; i < moduleCount; i++) {
+            File module = new File(projectDir, "src/main/ml-modules/root/custom-modules/step" + (i / 50) + "/main" + i + ".sjs");
+            module.getParentFile().mkdirs();
+            Files.write(module.toPath(), ("// module " + i + "\n").getBytes());
+            modules.add(module);
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void loadTimestamps() {
+        File propertiesFile = new File(projectDir, "build/module-timestamps.properties");
+        propertiesFile.delete();
+        moduleManager = new HubModuleManager(propertiesFile.getAbsolutePath());
+        Date loaded = new Date();
+        for (File module : modules) {
+            moduleManager.saveLastLoadedTimestamp(module, loaded);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteModules() throws IOException {
+        Files.walk(projectDir.toPath())
+            .sorted((a, b) -> b.compareTo(a))
+            .forEach(path -> path.toFile().delete());
+    }
+
+    @Benchmark
+    public int findModifiedModules() {
+        int modified = 0;
+        for (File module : modules) {
+            if (moduleManager.hasFileBeenModifiedSinceLastLoaded(module)) {
+                modified++;
+            }
+        }
+        return modified;
+    }
+
+    @Benchmark
+    public void saveLoadedTimestamps() {
+        Date loaded = new Date();
+        for (int i = 0; i < changedModuleCount; i++) {
+            moduleManager.saveLastLoadedTimestamp(modules.get(i), loaded);
+        }
+    }
+}
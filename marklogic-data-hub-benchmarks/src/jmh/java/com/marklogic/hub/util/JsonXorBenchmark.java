@@ -0,0 +1,87 @@
+/*
+ * Copyright 2012-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares two versions of a database configuration, as is done when the configuration in a project is deployed over
+ * the one generated by the hub. The configuration has the given number of range indexes, of which a tenth changed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class JsonXorBenchmark {
+
+    @Param({"20", "500"})
+    public int indexCount;
+
+    private byte[] original;
+    private byte[] changed;
+
+    @Setup
+    public void setup() throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        original = mapper.writeValueAsBytes(databaseConfig(mapper, 0));
+        changed = mapper.writeValueAsBytes(databaseConfig(mapper, indexCount / 10));
+    }
+
+    @Benchmark
+    public JsonNode xor() throws IOException {
+        return JsonXor.xor(new ByteArrayInputStream(original), new ByteArrayInputStream(changed));
+    }
+
+    private ObjectNode databaseConfig(ObjectMapper mapper, int changedIndexes) {
+        ObjectNode config = mapper.createObjectNode();
+        config.put("database-name", "data-hub-FINAL");
+        config.put("triple-index", true);
+        config.put("collection-lexicon", true);
+        config.put("schema-database", "data-hub-final-SCHEMAS");
+        config.put("triggers-database", "data-hub-final-TRIGGERS");
+        ArrayNode indexes = config.putArray("range-element-index");
+        for (int i = 0; i < indexCount; i++) {
+            ObjectNode index = indexes.addObject();
+            index.put("scalar-type", i < changedIndexes ? "dateTime" : "string");
+            index.put("namespace-uri", "");
+            index.put("localname", "property" + i);
+            index.put("collation", "http://marklogic.com/collation/");
+            index.put("range-value-positions", false);
+            index.put("invalid-values", "reject");
+        }
+        ArrayNode paths = config.putArray("path-namespace");
+        for (int i = 0; i < indexCount / 10; i++) {
+            ObjectNode path = paths.addObject();
+            path.put("prefix", "ns" + i);
+            path.put("namespace-uri", "http://example.org/ns" + i);
+        }
+        return config;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2012-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.util.json;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.marklogic.hub.benchmarks.SyntheticData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializes a single record, as is done for each step response and job update, and a batch of records.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class JSONObjectBenchmark {
+
+    @Param({"1", "100"})
+    public int recordCount;
+
+    private Object value;
+
+    @Setup
+    public void setup() {
+        List<Map<String, Object>> customers = new SyntheticData().customers(recordCount);
+        value = recordCount == 1 ? customers.get(0) : customers;
+    }
+
+    @Benchmark
+    public String writeValueAsString() throws JsonProcessingException {
+        return JSONObject.writeValueAsString(value, false);
+    }
+
+    @Benchmark
+    public String writeValueAsPrettyString() throws JsonProcessingException {
+        return JSONObject.writeValueAsString(value);
+    }
+}
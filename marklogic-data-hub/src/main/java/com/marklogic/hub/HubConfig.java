@@ -586,6 +586,54 @@ public interface HubConfig {
      */
     DatabaseClient newFinalClient();
 
+    /**
+     * Gets a shared DatabaseClient for the staging appserver and database. Every caller with the same settings gets
+     * the same client, and so the same connection pool; hand it back with releaseClient rather than releasing it.
+     * @return A cached client that accesses the hub's staging appserver and staging database.
+     */
+    DatabaseClient acquireStagingClient();
+
+    /**
+     * Gets a shared DatabaseClient for the staging appserver and the given database.
+     * @param dbName the name of the database
+     * @return A cached client that accesses the hub's staging appserver and the database passed as param.
+     */
+    DatabaseClient acquireStagingClient(String dbName);
+
+    /**
+     * Gets a shared DatabaseClient for the staging appserver on one host of the cluster, such as the host that owns
+     * the forest a batch of documents was read from.
+     * @param host the host to connect to instead of the configured one
+     * @param dbName the name of the database
+     * @return A cached client that accesses the staging appserver on the given host and the database passed as param.
+     */
+    DatabaseClient acquireStagingClient(String host, String dbName);
+
+    /**
+     * Gets a shared DatabaseClient for the final appserver and database.
+     * @return A cached client that accesses the hub's final appserver and final database.
+     */
+    DatabaseClient acquireFinalClient();
+
+    /**
+     * Gets a shared DatabaseClient for the Job database.
+     * @return A cached client that accesses the hub's job appserver and job database.
+     */
+    DatabaseClient acquireJobDbClient();
+
+    /**
+     * Gets a shared DatabaseClient for the Hub Modules database.
+     * @return A cached client that accesses the hub's modules database through the final appserver.
+     */
+    DatabaseClient acquireModulesDbClient();
+
+    /**
+     * Hands back a client from one of the acquire methods. The client is released once nothing else uses it and it
+     * has been idle for a while; a client that didn't come from an acquire method is released straight away.
+     * @param client the client to release
+     */
+    void releaseClient(DatabaseClient client);
+
     /**
      * Gets information on a datahub configuration
      * @return information on the datahub configuration as a string
@@ -21,6 +21,7 @@ import com.marklogic.hub.HubConfig;
 
 
 import java.util.Map;
+import java.util.function.Consumer;
 
 /**
  * Manages config and client for the collector, as well as runs the collector for the associated entity and flow
@@ -60,4 +61,14 @@ public interface Collector {
      * @return a list of uris as strings in a diskqueue object
      */
     DiskQueue<String> run(String flow, String step, Map<String, Object> options);
+
+    /**
+     * Streams the uris that match the collector code to a consumer as they are read from the server, rather
+     * than collecting all of them before returning
+     * @param flow - name of which flow
+     * @param step - step of the flow
+     * @param options - options Map for running the step
+     * @param uriConsumer - receives each uri on the calling thread; may block to slow down the collector
+     */
+    void run(String flow, String step, Map<String, Object> options, Consumer<String> uriConsumer);
 }
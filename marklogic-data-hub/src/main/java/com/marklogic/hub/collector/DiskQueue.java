@@ -25,7 +25,6 @@
 package com.marklogic.hub.collector;
 
 import java.io.*;
-import java.nio.charset.StandardCharsets;
 import java.security.InvalidParameterException;
 import java.text.MessageFormat;
 import java.util.AbstractQueue;
@@ -43,6 +42,11 @@ import java.util.logging.Logger;
  * reads/writes were happening simultaneously, once anything had spilled to
  * disk.
  *
+ * Elements that spill to disk are written as front-coded blocks (see
+ * {@link FrontCodedBlocks}), so URIs that share a prefix with the one before
+ * them only cost the bytes that differ, both on disk and while a block is
+ * being filled in memory.
+ *
  * @param <E> - A Serializable Class
  */
 public class DiskQueue<E extends Serializable> extends AbstractQueue<String> {
@@ -65,13 +69,14 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<String> {
 
     private File tempDir;
 
-    private BufferedWriter fileOut;
-    private BufferedReader fileIn;
+    // Number of elements per front-coded block in the backing store.
+    private final int blockSize;
 
-    // When moving elements from disk to memory, we don't know whether the memory
-    // queue has space until the offer is rejected. So rather than trying to push
-    // back an element into the file, just cache it in cachedElement.
-    private String cachedElement;
+    private OutputStream fileOut;
+    private InputStream fileIn;
+    private FrontCodedBlocks.Writer blockWriter;
+    private FrontCodedBlocks.Reader blockReader;
+    private boolean backingStoreLogged = false;
     private File fileQueue;
 
     private int nextCount = 0;
@@ -95,6 +100,18 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<String> {
      * @param tempDir Directory where queue temporary files will be written to.
      */
     public DiskQueue(int maxInMemorySize, File tempDir) {
+        this(maxInMemorySize, tempDir, FrontCodedBlocks.DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Construct a disk-backed queue that keeps at most
+     * <code>maxInMemorySize</code> elements in memory.
+     *
+     * @param maxInMemorySize Maximum number of elements to keep in memory.
+     * @param tempDir Directory where queue temporary files will be written to.
+     * @param blockSize Number of elements per front-coded block written to disk.
+     */
+    public DiskQueue(int maxInMemorySize, File tempDir, int blockSize) {
         super();
         if (maxInMemorySize < 1) {
             throw new InvalidParameterException(DiskQueue.class.getSimpleName() + " max in-memory size must be at least one");
@@ -102,6 +119,10 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<String> {
         if (tempDir != null && !(tempDir.exists() && tempDir.isDirectory() && tempDir.canWrite())) {
             throw new InvalidParameterException(DiskQueue.class.getSimpleName() + " temporary directory must exist and be writable");
         }
+        if (blockSize < 1) {
+            throw new InvalidParameterException(DiskQueue.class.getSimpleName() + " block size must be at least one");
+        }
+        this.blockSize = blockSize;
 
         this.tempDir = tempDir;
         memoryQueue = new MemoryQueue<>(maxInMemorySize);
@@ -133,12 +154,19 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<String> {
             return false;
         }
 
+        if (blockWriter != null && blockWriter.getBlocksWritten() > 0) {
+            LOG.log(Level.FINE, "closed backing store {0}, compression ratio {1}",
+                new Object[]{fileQueue.getAbsolutePath(), String.format("%.2f", blockWriter.getCompressionRatio())});
+        }
+
         closeQuietly(fileIn);
         fileIn = null;
-        cachedElement = null;
+        blockReader = null;
 
         closeQuietly(fileOut);
         fileOut = null;
+        blockWriter = null;
+        backingStoreLogged = false;
 
         fileElementCount = 0;
 
@@ -165,15 +193,23 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<String> {
         if (fileQueue == null) {
             fileQueue = File.createTempFile(DiskQueue.class.getSimpleName() + "-backingstore-", null, tempDir);
             fileQueue.deleteOnExit();
-            LOG.log(Level.INFO, "created backing store {0}", fileQueue.getAbsolutePath());
-            fileOut = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fileQueue), StandardCharsets.UTF_8));
+            fileOut = new BufferedOutputStream(new FileOutputStream(fileQueue));
+            blockWriter = new FrontCodedBlocks.Writer(fileOut, blockSize);
 
             // Flush output file, so there's something written when we open the input stream.
             fileOut.flush();
 
-            fileIn = new BufferedReader( new InputStreamReader(
-                new FileInputStream(fileQueue), "UTF8")
-            );
+            fileIn = new BufferedInputStream(new FileInputStream(fileQueue));
+            blockReader = new FrontCodedBlocks.Reader(fileIn);
+        }
+    }
+
+    // The backing store is announced once its first block has been written, so that the compression ratio is known
+    private void logBackingStore() {
+        if (!backingStoreLogged && blockWriter.getBlocksWritten() > 0) {
+            backingStoreLogged = true;
+            LOG.log(Level.INFO, "created backing store {0}, front-coded in blocks of {1}, compression ratio {2}",
+                new Object[]{fileQueue.getAbsolutePath(), blockSize, String.format("%.2f", blockWriter.getCompressionRatio())});
         }
     }
 
@@ -184,7 +220,7 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<String> {
 
     @Override
     public int size() {
-        return memoryQueue.size() + fileElementCount + (cachedElement != null ? 1 : 0);
+        return memoryQueue.size() + fileElementCount;
     }
 
     @Override
@@ -206,9 +242,9 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<String> {
         if (hasFileQueue || offerRejected) {
             try {
                 openFile();
-                fileOut.write(element);
-                fileOut.newLine();
+                blockWriter.write(element);
                 fileElementCount++;
+                logBackingStore();
             } catch (IOException e) {
                 LOG.severe(MessageFormat.format("Error writing to {0} backing store", DiskQueue.class.getSimpleName()));
                 return false;
@@ -244,7 +280,6 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<String> {
     @Override
     public void clear() {
         memoryQueue.clear();
-        cachedElement = null;
         closeFile();
     }
 
@@ -254,34 +289,29 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<String> {
             return;
         }
 
-        // See if we have one saved element from the previous read request
-        if (cachedElement != null && memoryQueue.offer(cachedElement)) {
-            cachedElement = null;
-        }
-
         // Now see if we have anything on disk
         if (fileQueue != null) {
             try {
                 // Since we buffer writes, we need to make sure everything has
-                // been written before we start reading.
+                // been written before we start reading, including a partly filled block.
+                blockWriter.flushBlock();
                 fileOut.flush();
+                logBackingStore();
 
-                int usedCount = 0;
-                while (fileElementCount > 0) {
-                    @SuppressWarnings("unchecked")
-                    String nextFileElement = fileIn.readLine();
+                // Elements that don't fit stay in the reader's current block until the next refill
+                while (fileElementCount > 0 && memoryQueue.size() < memoryQueue.getCapacity()) {
+                    String nextFileElement = blockReader.next();
                     fileElementCount--;
-                    usedCount++;
 
-                    if (!isEmpty(nextFileElement) && !memoryQueue.offer(nextFileElement)) {
-                        //memory queue is full. Cache this entry and jump out
-                        cachedElement = nextFileElement;
-                        memoryIterator = memoryQueue.iterator();
-                        return;
+                    if (!isEmpty(nextFileElement)) {
+                        memoryQueue.offer(nextFileElement);
                     }
                 }
 
                 memoryIterator = memoryQueue.iterator();
+                if (fileElementCount > 0) {
+                    return;
+                }
 
                 // Nothing left in the file, so close/delete it.
                 closeFile();
@@ -301,13 +331,13 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<String> {
             memoryIterator = memoryQueue.iterator();
         }
         public boolean hasNext() {
-            return memoryIterator.hasNext() || fileElementCount > 0 || cachedElement != null;
+            return memoryIterator.hasNext() || fileElementCount > 0;
         }
 
         @SuppressWarnings("unchecked")
         public String next() {
             String next = memoryIterator.next();
-            if (!memoryIterator.hasNext() && (fileElementCount > 0 || cachedElement != null)) {
+            if (!memoryIterator.hasNext() && fileElementCount > 0) {
                 memoryQueue.clear();
                 loadMemoryQueue();
             }
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2012-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.collector;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Front-coded blocks of strings, as used by the disk queues to spill collector URIs.
+ *
+ * URIs returned by a collector usually share long prefixes with the URI before them, such as
+ * /customer/2019/10/... So instead of writing each one in full, a block holds up to blockSize strings, each stored
+ * as the number of leading UTF-8 bytes it shares with the previous string in the block, followed by the bytes that
+ * differ. The first string of every block is stored in full, so a block can be decoded on its own. Larger blocks
+ * compress better; smaller blocks hold fewer decoded strings in memory at a time.
+ *
+ * A block is written as: varint count, varint length of the encoded entries, then for each entry a varint shared
+ * prefix length, a varint suffix length and the suffix bytes.
+ */
+public class FrontCodedBlocks {
+
+    public static final int DEFAULT_BLOCK_SIZE = 64;
+
+    private FrontCodedBlocks() {
+    }
+
+    /**
+     * Buffers strings into blocks and writes each block to an output stream once it is full or flushed.
+     */
+    public static class Writer {
+        private final OutputStream out;
+        private final int blockSize;
+        private final ByteArrayOutputStream block = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream header = new ByteArrayOutputStream(10);
+        private byte[] previous = new byte[0];
+        private int count = 0;
+        private long blocksWritten = 0;
+        private long rawBytes = 0;
+        private long encodedBytes = 0;
+
+        public Writer(OutputStream out, int blockSize) {
+            if (blockSize < 1) {
+                throw new IllegalArgumentException("Block size must be at least one");
+            }
+            this.out = out;
+            this.blockSize = blockSize;
+        }
+
+        public void write(String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            int prefix = count == 0 ? 0 : commonPrefixLength(previous, bytes);
+            writeVarInt(block, prefix);
+            writeVarInt(block, bytes.length - prefix);
+            block.write(bytes, prefix, bytes.length - prefix);
+            previous = bytes;
+            count++;
+            // compared with one line per string, as the queues used to write
+            rawBytes += bytes.length + 1;
+            if (count >= blockSize) {
+                flushBlock();
+            }
+        }
+
+        /**
+         * Writes the current block, even if it is not full.
+         *
+         * @return true if a block was written
+         */
+        public boolean flushBlock() throws IOException {
+            if (count == 0) {
+                return false;
+            }
+            header.reset();
+            writeVarInt(header, count);
+            writeVarInt(header, block.size());
+            header.writeTo(out);
+            block.writeTo(out);
+            encodedBytes += header.size() + block.size();
+            block.reset();
+            count = 0;
+            blocksWritten++;
+            return true;
+        }
+
+        public long getBlocksWritten() {
+            return blocksWritten;
+        }
+
+        /**
+         * @return the size of the strings written so far as plain lines, divided by the size of the blocks written
+         */
+        public double getCompressionRatio() {
+            return encodedBytes == 0 ? 1.0 : (double) rawBytes / encodedBytes;
+        }
+    }
+
+    /**
+     * Reads strings back one block at a time; only the current block is held in memory.
+     */
+    public static class Reader {
+        private final InputStream in;
+        private String[] decoded = new String[0];
+        private byte[] data = new byte[0];
+        private byte[] previous = new byte[64];
+        private int position = 0;
+        private int limit = 0;
+
+        public Reader(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * @return the next string, or null at the end of the stream
+         */
+        public String next() throws IOException {
+            if (position == limit && !readBlock()) {
+                return null;
+            }
+            String value = decoded[position];
+            decoded[position++] = null;
+            return value;
+        }
+
+        private boolean readBlock() throws IOException {
+            int count = readVarInt(in);
+            if (count < 0) {
+                return false;
+            }
+            int length = readVarInt(in);
+            if (length < 0) {
+                throw new EOFException("Truncated front-coded block");
+            }
+            if (data.length < length) {
+                data = new byte[length];
+            }
+            readFully(in, data, length);
+            if (decoded.length < count) {
+                decoded = new String[count];
+            }
+            int offset = 0;
+            int previousLength = 0;
+            int[] cursor = new int[1];
+            for (int i = 0; i < count; i++) {
+                cursor[0] = offset;
+                int prefix = readVarInt(data, cursor);
+                int suffix = readVarInt(data, cursor);
+                offset = cursor[0];
+                int valueLength = prefix + suffix;
+                if (previous.length < valueLength) {
+                    byte[] larger = new byte[Math.max(valueLength, previous.length * 2)];
+                    System.arraycopy(previous, 0, larger, 0, previousLength);
+                    previous = larger;
+                }
+                System.arraycopy(data, offset, previous, prefix, suffix);
+                offset += suffix;
+                previousLength = valueLength;
+                decoded[i] = new String(previous, 0, valueLength, StandardCharsets.UTF_8);
+            }
+            position = 0;
+            limit = count;
+            return true;
+        }
+    }
+
+    static int commonPrefixLength(byte[] a, byte[] b) {
+        int max = Math.min(a.length, b.length);
+        int i = 0;
+        while (i < max && a[i] == b[i]) {
+            i++;
+        }
+        return i;
+    }
+
+    private static void writeVarInt(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(InputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                if (shift == 0) {
+                    return -1;
+                }
+                throw new EOFException("Truncated front-coded block");
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in front-coded block");
+    }
+
+    private static int readVarInt(byte[] data, int[] cursor) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = data[cursor[0]++] & 0xFF;
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in front-coded block");
+    }
+
+    private static void readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int n = in.read(buffer, read, length - read);
+            if (n < 0) {
+                throw new EOFException("Truncated front-coded block");
+            }
+            read += n;
+        }
+    }
+}
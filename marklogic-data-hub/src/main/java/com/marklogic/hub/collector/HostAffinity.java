@@ -0,0 +1,101 @@
+/*
+ * Copyright 2012-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.collector;
+
+import com.marklogic.client.datamovement.Forest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Tracks which host owns each collected URI, so that a step can send every batch to the host whose forests hold
+ * its documents instead of fetching them across the cluster.
+ *
+ * A collector that knows the forest of a URI tags it with the index of the forest's preferred host. The tag is
+ * appended after a NUL character, which cannot occur in a URI, so tagged URIs still flow through DiskQueue and
+ * StreamingUriQueue unchanged and share their prefixes for front coding. Consumers use {@link #uriOf(String)} and
+ * {@link #hostIndexOf(String)} to split a tagged URI back into its parts; untagged URIs are returned as they are.
+ */
+public class HostAffinity {
+
+    private static final char TAG_SEPARATOR = '\u0000';
+
+    private final List<String> hosts;
+    private final Map<String, Integer> hostIndexByForestId = new HashMap<>();
+
+    private HostAffinity(List<String> hosts) {
+        this.hosts = Collections.unmodifiableList(hosts);
+    }
+
+    /**
+     * @param forests the forests of the source database, as returned by the Data Movement SDK's forest configuration
+     */
+    public static HostAffinity fromForests(Forest[] forests) {
+        TreeSet<String> hostNames = new TreeSet<>();
+        for (Forest forest : forests) {
+            hostNames.add(forest.getPreferredHost());
+        }
+        HostAffinity affinity = new HostAffinity(new ArrayList<>(hostNames));
+        for (Forest forest : forests) {
+            affinity.hostIndexByForestId.put(forest.getForestId(), affinity.hosts.indexOf(forest.getPreferredHost()));
+        }
+        return affinity;
+    }
+
+    /**
+     * @return the hosts that own forests of the source database; a tag is an index into this list
+     */
+    public List<String> getHosts() {
+        return hosts;
+    }
+
+    /**
+     * @param uri a URI collected from the given forest
+     * @param forestId the ID of the forest holding the URI
+     * @return the URI tagged with the forest's host, or the URI itself if the forest is unknown
+     */
+    public String tag(String uri, String forestId) {
+        Integer hostIndex = hostIndexByForestId.get(forestId);
+        return hostIndex == null ? uri : uri + TAG_SEPARATOR + hostIndex;
+    }
+
+    /**
+     * @return the URI without its host tag
+     */
+    public static String uriOf(String taggedUri) {
+        int separator = taggedUri.lastIndexOf(TAG_SEPARATOR);
+        return separator < 0 ? taggedUri : taggedUri.substring(0, separator);
+    }
+
+    /**
+     * @return the index of the host that owns the URI, or -1 if the URI is not tagged
+     */
+    public static int hostIndexOf(String taggedUri) {
+        int separator = taggedUri.lastIndexOf(TAG_SEPARATOR);
+        if (separator < 0) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(taggedUri.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
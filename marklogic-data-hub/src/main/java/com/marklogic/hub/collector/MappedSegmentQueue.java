@@ -0,0 +1,496 @@
+/*
+ * Copyright 2012-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.collector;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An unbounded queue of strings for one producer thread and one consumer thread running at the same time, backed by
+ * memory-mapped segment files.
+ *
+ * Each string is written to the current segment as a 4-byte length followed by its UTF-8 bytes, and becomes visible
+ * to the consumer once the segment's committed position moves past it. When a segment is full the producer links a
+ * new one and seals the old; the consumer recycles each segment it has drained so the producer can reuse it, so disk
+ * usage follows the number of unread strings rather than the number ever written.
+ *
+ * {@link #offer(String)} encodes directly into the mapped segment and {@link #poll()} decodes into a reusable
+ * buffer, so neither allocates anything other than the returned string, except when a segment has to be created.
+ * Unlike {@link DiskQueue}, the producer never waits for the consumer and the consumer can start reading as soon as
+ * the first string is written.
+ *
+ * This is deliberately not a {@link java.util.Queue}: reading is destructive and limited to one consumer thread, so
+ * the Collection methods that iterate, such as contains or toString, would drain it.
+ */
+public class MappedSegmentQueue implements Iterable<String>, Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(MappedSegmentQueue.class);
+
+    public static final int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+    private static final int MAX_RECYCLED_SEGMENTS = 4;
+    private static final long PARK_NANOS = 50_000;
+    private static final Unmapper UNMAPPER = Unmapper.find();
+
+    private final File tempDir;
+    private final int segmentSize;
+    private final ArrayBlockingQueue<Segment> recycled = new ArrayBlockingQueue<>(MAX_RECYCLED_SEGMENTS);
+    private final List<Segment> segments = new ArrayList<>();
+
+    // Written only by the producer
+    private Segment writeSegment;
+    private volatile long offeredCount = 0;
+    private volatile boolean completed = false;
+
+    // Written only by the consumer
+    private Segment readSegment;
+    private char[] chars = new char[256];
+    private volatile long polledCount = 0;
+    private boolean iteratorCreated = false;
+
+    private volatile boolean closed = false;
+    // Set while the producer or the consumer is inside the queue, so that close() doesn't unmap a segment in use
+    private volatile boolean producerActive = false;
+    private volatile boolean consumerActive = false;
+
+    public MappedSegmentQueue() {
+        this(null, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param tempDir directory the segment files are created in; null for the default temporary directory
+     * @param segmentSize size in bytes of each segment file; also limits the encoded size of a single string
+     */
+    public MappedSegmentQueue(File tempDir, int segmentSize) {
+        if (segmentSize < 8) {
+            throw new IllegalArgumentException(MappedSegmentQueue.class.getSimpleName() + " segment size must be at least 8 bytes");
+        }
+        this.tempDir = tempDir;
+        this.segmentSize = segmentSize;
+        this.writeSegment = newSegment();
+        this.readSegment = writeSegment;
+    }
+
+    /**
+     * Appends a string. Must only be called from the producer thread.
+     *
+     * @throws IllegalStateException if {@link #complete()} or {@link #close()} has been called
+     * @throws IllegalArgumentException if the string does not fit in a segment
+     */
+    public boolean offer(String element) {
+        if (element == null) {
+            throw new NullPointerException("Element cannot be null for " + MappedSegmentQueue.class.getSimpleName());
+        }
+        producerActive = true;
+        try {
+            if (completed || closed) {
+                throw new IllegalStateException("Cannot add to a " + MappedSegmentQueue.class.getSimpleName() + " that has been completed or closed");
+            }
+            int length = utf8Length(element);
+            int recordSize = 4 + length;
+            if (recordSize > segmentSize) {
+                throw new IllegalArgumentException("Element of " + length + " bytes does not fit in a segment of " + segmentSize + " bytes");
+            }
+            Segment segment = writeSegment;
+            if (segment.writer.remaining() < recordSize) {
+                segment = roll(segment);
+            }
+            ByteBuffer writer = segment.writer;
+            writer.putInt(length);
+            encode(element, writer);
+            segment.committed = writer.position();
+            offeredCount = offeredCount + 1;
+            return true;
+        } finally {
+            producerActive = false;
+        }
+    }
+
+    /**
+     * Removes the next string if one has been written. Must only be called from the consumer thread.
+     *
+     * @return the next string, or null if the consumer has caught up with the producer
+     */
+    public String poll() {
+        return next(true);
+    }
+
+    /**
+     * Returns the next string without removing it. Must only be called from the consumer thread.
+     *
+     * @return the next string, or null if the consumer has caught up with the producer
+     */
+    public String peek() {
+        return next(false);
+    }
+
+    private String next(boolean remove) {
+        consumerActive = true;
+        try {
+            Segment segment = readSegment;
+            while (!closed) {
+                // sealed has to be read before committed; once a segment is sealed its committed position is final
+                boolean sealed = segment.sealed;
+                int committed = segment.committed;
+                ByteBuffer reader = segment.reader;
+                if (reader.position() < committed) {
+                    int position = reader.position();
+                    String element = decode(reader);
+                    if (remove) {
+                        polledCount = polledCount + 1;
+                    } else {
+                        reader.position(position);
+                    }
+                    return element;
+                }
+                if (!sealed) {
+                    return null;
+                }
+                Segment next = segment.next;
+                readSegment = next;
+                recycle(segment);
+                segment = next;
+            }
+            return null;
+        } finally {
+            consumerActive = false;
+        }
+    }
+
+    /**
+     * Removes the next string, waiting for the producer if necessary. Must only be called from the consumer thread.
+     *
+     * @return the next string, or null once the producer has completed and every string has been read, or the queue
+     * has been closed
+     */
+    public String take() {
+        while (true) {
+            String element = poll();
+            if (element != null) {
+                return element;
+            }
+            if (completed) {
+                // Everything written before complete() is visible now
+                return poll();
+            }
+            if (closed) {
+                return null;
+            }
+            LockSupport.parkNanos(PARK_NANOS);
+            if (Thread.currentThread().isInterrupted()) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Signals that the producer has no more strings. Must only be called from the producer thread.
+     */
+    public void complete() {
+        completed = true;
+    }
+
+    public boolean isCompleted() {
+        return completed;
+    }
+
+    /**
+     * @return the number of strings written but not yet read
+     */
+    public int size() {
+        return (int) Math.min(Integer.MAX_VALUE, offeredCount - polledCount);
+    }
+
+    /**
+     * @return the number of segment files created so far, which stays small when the consumer keeps up
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Returns a consuming iterator that blocks like {@link #take()}. Only one iterator may be created.
+     */
+    @Override
+    public Iterator<String> iterator() {
+        if (iteratorCreated) {
+            throw new IllegalStateException(MappedSegmentQueue.class.getSimpleName() + " supports a single consumer");
+        }
+        iteratorCreated = true;
+        return new Iterator<String>() {
+            private String next;
+            private boolean finished = false;
+
+            @Override
+            public boolean hasNext() {
+                if (next == null && !finished) {
+                    next = take();
+                    finished = next == null;
+                }
+                return next != null;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                String element = next;
+                next = null;
+                return element;
+            }
+        };
+    }
+
+    /**
+     * Releases both threads, then unmaps and deletes the segment files. Strings that have not been read are
+     * discarded. May be called from any thread; it waits for a producer or consumer call already in progress to
+     * return before unmapping, since touching an unmapped segment would crash the JVM.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        // Any offer or poll that starts after this point sees closed and leaves the segments alone
+        while (producerActive || consumerActive) {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+        synchronized (this) {
+            for (Segment segment : segments) {
+                unmapAndDelete(segment);
+            }
+            segments.clear();
+        }
+        recycled.clear();
+    }
+
+    private Segment roll(Segment full) {
+        Segment next = recycled.poll();
+        if (next != null) {
+            next.reset();
+        } else {
+            next = newSegment();
+        }
+        full.next = next;
+        full.sealed = true;
+        writeSegment = next;
+        return next;
+    }
+
+    private void recycle(Segment drained) {
+        if (closed || !recycled.offer(drained)) {
+            release(drained);
+        }
+    }
+
+    /**
+     * Called by the consumer with a segment it has drained; the producer has already moved past it, so nothing else
+     * touches it.
+     */
+    private synchronized void release(Segment segment) {
+        if (segments.remove(segment)) {
+            unmapAndDelete(segment);
+        }
+    }
+
+    private void unmapAndDelete(Segment segment) {
+        // A file that is still mapped can't be deleted on Windows, and elsewhere its pages stay in use until the
+        // buffer is garbage collected
+        UNMAPPER.unmap(segment.buffer);
+        try {
+            Files.deleteIfExists(segment.file);
+        } catch (IOException e) {
+            logger.warn("Unable to delete queue segment " + segment.file + ": " + e.getMessage());
+        }
+    }
+
+    private synchronized Segment newSegment() {
+        try {
+            Path file = File.createTempFile(MappedSegmentQueue.class.getSimpleName() + "-segment-", null, tempDir).toPath();
+            file.toFile().deleteOnExit();
+            MappedByteBuffer buffer;
+            try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+                // The mapping stays valid after the channel is closed
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            }
+            Segment segment = new Segment(file, buffer);
+            segments.add(segment);
+            logger.debug("created queue segment " + file);
+            return segment;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to create " + MappedSegmentQueue.class.getSimpleName() + " segment", e);
+        }
+    }
+
+    static int utf8Length(String s) {
+        int length = 0;
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogates are written as '?', as String.getBytes does
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static void encode(String s, ByteBuffer out) {
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                out.put((byte) (0xF0 | (cp >> 18)));
+                out.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                out.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (cp & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                out.put((byte) '?');
+            } else {
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private String decode(ByteBuffer in) {
+        int length = in.getInt();
+        // A UTF-8 string never has more chars than bytes
+        if (chars.length < length) {
+            chars = new char[Math.max(length, chars.length * 2)];
+        }
+        int end = in.position() + length;
+        int count = 0;
+        while (in.position() < end) {
+            int b = in.get() & 0xFF;
+            if (b < 0x80) {
+                chars[count++] = (char) b;
+            } else if (b < 0xE0) {
+                chars[count++] = (char) (((b & 0x1F) << 6) | (in.get() & 0x3F));
+            } else if (b < 0xF0) {
+                chars[count++] = (char) (((b & 0x0F) << 12) | ((in.get() & 0x3F) << 6) | (in.get() & 0x3F));
+            } else {
+                int cp = ((b & 0x07) << 18) | ((in.get() & 0x3F) << 12) | ((in.get() & 0x3F) << 6) | (in.get() & 0x3F);
+                chars[count++] = Character.highSurrogate(cp);
+                chars[count++] = Character.lowSurrogate(cp);
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    private static class Segment {
+        final Path file;
+        final MappedByteBuffer buffer;
+        final ByteBuffer writer;
+        final ByteBuffer reader;
+        volatile int committed = 0;
+        volatile boolean sealed = false;
+        volatile Segment next;
+
+        Segment(Path file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+            this.writer = buffer.duplicate();
+            this.reader = buffer.duplicate();
+        }
+
+        void reset() {
+            writer.clear();
+            reader.clear();
+            committed = 0;
+            sealed = false;
+            next = null;
+        }
+    }
+
+    /**
+     * Releases a mapping straight away instead of when its buffer is garbage collected. Java has no public API for
+     * this, so it uses Unsafe.invokeCleaner on Java 9 and later and the buffer's cleaner on Java 8, and does nothing
+     * if neither is available.
+     */
+    private static class Unmapper {
+        private final Object unsafe;
+        private final Method invokeCleaner;
+
+        private Unmapper(Object unsafe, Method invokeCleaner) {
+            this.unsafe = unsafe;
+            this.invokeCleaner = invokeCleaner;
+        }
+
+        static Unmapper find() {
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                return new Unmapper(theUnsafe.get(null), invokeCleaner);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                // Java 8, where the buffer's own cleaner is used
+                return new Unmapper(null, null);
+            }
+        }
+
+        void unmap(MappedByteBuffer buffer) {
+            try {
+                if (invokeCleaner != null) {
+                    invokeCleaner.invoke(unsafe, buffer);
+                } else {
+                    Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                    cleanerMethod.setAccessible(true);
+                    Object cleaner = cleanerMethod.invoke(buffer);
+                    if (cleaner != null) {
+                        cleaner.getClass().getMethod("clean").invoke(cleaner);
+                    }
+                }
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                logger.debug("Unable to unmap queue segment, so it is released when garbage collected: " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2012-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.collector;
+
+import java.io.File;
+import java.util.AbstractCollection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded hand-off between one producer of URIs (typically the collector reading the response stream of
+ * /v1/internal/hubcollector5) and one consumer (the iterator handed to a QueryBatcher).
+ *
+ * The producer blocks when the buffer is full, which in turn stops reading from the HTTP stream, so a slow
+ * batcher applies backpressure to the collector instead of the URIs piling up in memory. The consumer's
+ * iterator blocks until a URI is available or the producer signals the end of the stream via
+ * {@link #complete()} or {@link #fail(Throwable)}.
+ *
+ * Because the total number of URIs is not known until the producer completes, {@link #size()} returns the
+ * number of URIs collected so far; use {@link #isComplete()} to know whether that number is final.
+ *
+ * A queue created with {@link #spillingToDisk(File)} hands URIs off through a {@link MappedSegmentQueue}
+ * instead. The producer then never blocks, so the collector can finish reading - and release its connection -
+ * while the consumer is still working through the URIs.
+ */
+public class StreamingUriQueue extends AbstractCollection<String> {
+
+    // Compared by identity, so it can never collide with a real URI
+    private static final String END_OF_STREAM = new String("END_OF_STREAM");
+    private static final long OFFER_WAIT_MILLIS = 100;
+
+    private final BlockingQueue<String> buffer;
+    private final MappedSegmentQueue spill;
+    private final AtomicLong collectedCount = new AtomicLong(0);
+    private volatile boolean complete = false;
+    private volatile boolean cancelled = false;
+    private volatile Throwable failure;
+    private volatile boolean iteratorCreated = false;
+
+    /**
+     * @param capacity maximum number of URIs held in memory before the producer blocks
+     */
+    public StreamingUriQueue(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException(StreamingUriQueue.class.getSimpleName() + " capacity must be at least one");
+        }
+        this.buffer = new ArrayBlockingQueue<>(capacity);
+        this.spill = null;
+    }
+
+    private StreamingUriQueue(MappedSegmentQueue spill) {
+        this.buffer = null;
+        this.spill = spill;
+    }
+
+    /**
+     * @param tempDir directory for the queue's segment files; null for the default temporary directory
+     * @return a queue whose producer writes to memory-mapped segment files instead of blocking
+     */
+    public static StreamingUriQueue spillingToDisk(File tempDir) {
+        return new StreamingUriQueue(new MappedSegmentQueue(tempDir, MappedSegmentQueue.DEFAULT_SEGMENT_SIZE));
+    }
+
+    /**
+     * Adds a URI, blocking while the buffer is full.
+     *
+     * @param uri the URI to hand off to the consumer
+     * @return always true
+     * @throws CancellationException if the queue has been cancelled; producers should stop reading their source
+     */
+    @Override
+    public boolean add(String uri) {
+        if (uri == null) {
+            throw new NullPointerException("URI cannot be null");
+        }
+        // Checked first, since cancel() also completes the queue
+        if (cancelled) {
+            throw new CancellationException("URI stream was cancelled");
+        }
+        if (complete) {
+            throw new IllegalStateException("Cannot add to a " + StreamingUriQueue.class.getSimpleName() + " that has been completed");
+        }
+        if (spill != null) {
+            spill.offer(uri);
+        } else {
+            enqueue(uri);
+        }
+        collectedCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Signals that the producer has no more URIs.
+     */
+    public void complete() {
+        if (complete) {
+            return;
+        }
+        complete = true;
+        if (spill != null) {
+            spill.complete();
+            return;
+        }
+        try {
+            enqueue(END_OF_STREAM);
+        } catch (CancellationException ex) {
+            // Consumer has gone away; nothing left to signal
+        }
+    }
+
+    /**
+     * Signals that the producer stopped because of an error. URIs already handed off are still delivered.
+     *
+     * @param t the cause of the failure
+     */
+    public void fail(Throwable t) {
+        this.failure = t;
+        complete();
+    }
+
+    /**
+     * Discards any buffered URIs and releases both the producer and the consumer.
+     */
+    public void cancel() {
+        cancelled = true;
+        complete = true;
+        if (spill != null) {
+            spill.close();
+            return;
+        }
+        buffer.clear();
+        buffer.offer(END_OF_STREAM);
+    }
+
+    /**
+     * @return true once the producer has completed, failed, or the queue was cancelled
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return the error passed to {@link #fail(Throwable)}, or null
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * @return the number of URIs added so far; final once {@link #isComplete()} returns true
+     */
+    public long getCollectedCount() {
+        return collectedCount.get();
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.min(Integer.MAX_VALUE, collectedCount.get());
+    }
+
+    /**
+     * Returns the consuming iterator. URIs are removed as they are returned, so only one iterator may be created.
+     */
+    @Override
+    public Iterator<String> iterator() {
+        if (iteratorCreated) {
+            throw new IllegalStateException(StreamingUriQueue.class.getSimpleName() + " supports a single consumer");
+        }
+        iteratorCreated = true;
+        return new ConsumingIterator();
+    }
+
+    private void enqueue(String element) {
+        try {
+            while (!buffer.offer(element, OFFER_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (cancelled) {
+                    throw new CancellationException("URI stream was cancelled");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while waiting for space in the URI stream");
+        }
+        if (cancelled && element != END_OF_STREAM) {
+            throw new CancellationException("URI stream was cancelled");
+        }
+    }
+
+    private class ConsumingIterator implements Iterator<String> {
+        private String next;
+        private boolean finished = false;
+
+        @Override
+        public boolean hasNext() {
+            if (next != null) {
+                return true;
+            }
+            if (finished) {
+                return false;
+            }
+            if (spill != null) {
+                next = cancelled ? null : spill.take();
+                if (next == null) {
+                    finished = true;
+                    spill.close();
+                }
+                return next != null;
+            }
+            try {
+                String element = buffer.take();
+                if (element == END_OF_STREAM || cancelled) {
+                    finished = true;
+                    return false;
+                }
+                next = element;
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                finished = true;
+                return false;
+            }
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            String element = next;
+            next = null;
+            return element;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2012-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.collector.impl;
+
+import com.marklogic.client.DatabaseClient;
+import com.marklogic.client.DatabaseClientFactory;
+import com.marklogic.client.DatabaseClientFactory.SSLHostnameVerifier;
+import com.marklogic.client.MarkLogicIOException;
+import com.marklogic.rest.util.MgmtResponseErrorHandler;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.ssl.SSLContexts;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.web.client.RestTemplate;
+
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.io.IOException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared, connection-pooled HTTP clients for the URI collectors, which call their REST endpoints with a regular
+ * HTTP client rather than the Java Client API so that the response can be streamed.
+ *
+ * One client is kept per host, port, user and SSL configuration, and its connections are kept alive between
+ * collector runs, so running flows back-to-back does not open a new connection - or do a new TLS handshake - every
+ * time. The pool is owned by HubConfigImpl, which closes it when the application context shuts down.
+ */
+public class CollectorHttpClientPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(CollectorHttpClientPool.class);
+
+    private static final int MAX_CONNECTIONS_PER_ROUTE = 16;
+    private static final int MAX_CONNECTIONS_TOTAL = 64;
+    private static final long IDLE_CONNECTION_TIMEOUT_SECONDS = 30;
+    private static final int VALIDATE_AFTER_INACTIVITY_MILLIS = 2000;
+
+    private final Map<Key, PooledClient> clients = new ConcurrentHashMap<>();
+
+    /**
+     * @param client the client whose host, port and security context the collector connects with
+     * @param username the user the collector runs as
+     * @param password the user's password
+     * @return a RestTemplate backed by the pooled client for this host and user
+     */
+    public RestTemplate getRestTemplate(DatabaseClient client, String username, String password) {
+        DatabaseClientFactory.SecurityContext securityContext = client.getSecurityContext();
+        Key key = new Key(client.getHost(), client.getPort(), username, password,
+            securityContext != null ? securityContext.getSSLContext() : null,
+            securityContext != null ? securityContext.getSSLHostnameVerifier() : null);
+        return clients.computeIfAbsent(key, PooledClient::new).restTemplate;
+    }
+
+    /**
+     * @return the number of distinct clients currently in the pool
+     */
+    public int size() {
+        return clients.size();
+    }
+
+    /**
+     * Closes every pooled client and its connections. The pool can still be used afterwards; new clients are created
+     * as needed.
+     */
+    public void close() {
+        for (Key key : clients.keySet()) {
+            PooledClient pooledClient = clients.remove(key);
+            if (pooledClient != null) {
+                try {
+                    pooledClient.httpClient.close();
+                } catch (IOException e) {
+                    logger.warn("Unable to close collector HTTP client for " + key.host + ":" + key.port + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static class PooledClient {
+        final CloseableHttpClient httpClient;
+        final RestTemplate restTemplate;
+
+        PooledClient(Key key) {
+            BasicCredentialsProvider prov = new BasicCredentialsProvider();
+            prov.setCredentials(
+                new AuthScope(key.host, key.port, AuthScope.ANY_REALM),
+                new UsernamePasswordCredentials(key.username, key.password));
+
+            SSLConnectionSocketFactory sslSocketFactory = new SSLConnectionSocketFactory(
+                key.sslContext != null ? key.sslContext : SSLContexts.createDefault(), newHostnameVerifier(key.verifier));
+            Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", sslSocketFactory)
+                .build();
+
+            PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(registry);
+            connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+            connectionManager.setMaxTotal(MAX_CONNECTIONS_TOTAL);
+            connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MILLIS);
+
+            httpClient = HttpClientBuilder.create()
+                .setDefaultCredentialsProvider(prov)
+                .setConnectionManager(connectionManager)
+                .evictIdleConnections(IDLE_CONNECTION_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .evictExpiredConnections()
+                .build();
+
+            restTemplate = new RestTemplate(new HttpComponentsClientHttpRequestFactory(httpClient));
+            restTemplate.setErrorHandler(new MgmtResponseErrorHandler());
+        }
+    }
+
+    private static HostnameVerifier newHostnameVerifier(SSLHostnameVerifier verifier) {
+        if (verifier == SSLHostnameVerifier.ANY) {
+            return (hostname, session) -> true;
+        } else if (verifier == null || verifier == SSLHostnameVerifier.COMMON || verifier == SSLHostnameVerifier.STRICT) {
+            return SSLConnectionSocketFactory.getDefaultHostnameVerifier();
+        }
+        return new HostnameVerifierAdapter(verifier);
+    }
+
+    private static class Key {
+        final String host;
+        final int port;
+        final String username;
+        final String password;
+        final SSLContext sslContext;
+        final SSLHostnameVerifier verifier;
+
+        Key(String host, int port, String username, String password, SSLContext sslContext, SSLHostnameVerifier verifier) {
+            this.host = host;
+            this.port = port;
+            this.username = username;
+            this.password = password;
+            this.sslContext = sslContext;
+            this.verifier = verifier;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return port == other.port && Objects.equals(host, other.host) && Objects.equals(username, other.username)
+                && Objects.equals(password, other.password) && sslContext == other.sslContext && verifier == other.verifier;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(host, port, username, System.identityHashCode(sslContext), System.identityHashCode(verifier));
+        }
+    }
+
+    /**
+     * Applies a Java Client API hostname verifier to the certificate presented by the server.
+     */
+    private static class HostnameVerifierAdapter implements HostnameVerifier {
+        private final SSLHostnameVerifier verifier;
+
+        HostnameVerifierAdapter(SSLHostnameVerifier verifier) {
+            this.verifier = verifier;
+        }
+
+        @Override
+        public boolean verify(String hostname, SSLSession session) {
+            try {
+                Certificate[] certificates = session.getPeerCertificates();
+                verify(hostname, (X509Certificate) certificates[0]);
+                return true;
+            } catch (SSLException e) {
+                return false;
+            }
+        }
+
+        private void verify(String hostname, X509Certificate cert) throws SSLException {
+            List<String> cnArray = new ArrayList<>();
+            try {
+                LdapName ldapDN = new LdapName(cert.getSubjectX500Principal().getName());
+                for (Rdn rdn : ldapDN.getRdns()) {
+                    Object value = rdn.getValue();
+                    if ("CN".equalsIgnoreCase(rdn.getType()) && value instanceof String) {
+                        cnArray.add((String) value);
+                    }
+                }
+                int type_dnsName = 2;
+                int type_ipAddress = 7;
+                List<String> subjectAltArray = new ArrayList<>();
+                Collection<List<?>> alts = cert.getSubjectAlternativeNames();
+                if (alts != null) {
+                    for (List<?> alt : alts) {
+                        if (alt != null && alt.size() == 2 && alt.get(1) instanceof String) {
+                            Integer type = (Integer) alt.get(0);
+                            if (type == type_dnsName || type == type_ipAddress) {
+                                subjectAltArray.add((String) alt.get(1));
+                            }
+                        }
+                    }
+                }
+                String[] cns = cnArray.toArray(new String[cnArray.size()]);
+                String[] subjectAlts = subjectAltArray.toArray(new String[subjectAltArray.size()]);
+                verifier.verify(hostname, cns, subjectAlts);
+            } catch (CertificateParsingException | InvalidNameException e) {
+                throw new MarkLogicIOException(e);
+            }
+        }
+    }
+}
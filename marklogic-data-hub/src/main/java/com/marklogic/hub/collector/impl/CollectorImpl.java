@@ -17,46 +17,41 @@ package com.marklogic.hub.collector.impl;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.marklogic.client.DatabaseClient;
-import com.marklogic.client.DatabaseClientFactory;
-import com.marklogic.client.DatabaseClientFactory.SSLHostnameVerifier;
-import com.marklogic.client.MarkLogicIOException;
+import com.marklogic.client.datamovement.DataMovementManager;
+import com.marklogic.client.datamovement.Forest;
 import com.marklogic.hub.HubConfig;
 import com.marklogic.hub.collector.DiskQueue;
 import com.marklogic.hub.collector.Collector;
+import com.marklogic.hub.collector.FrontCodedBlocks;
+import com.marklogic.hub.collector.HostAffinity;
 import com.marklogic.hub.flow.Flow;
 import com.marklogic.hub.impl.HubConfigImpl;
-import com.marklogic.rest.util.MgmtResponseErrorHandler;
-import org.apache.http.auth.AuthScope;
-import org.apache.http.auth.UsernamePasswordCredentials;
-import org.apache.http.client.HttpClient;
-import org.apache.http.conn.ssl.X509HostnameVerifier;
-import org.apache.http.impl.client.BasicCredentialsProvider;
-import org.apache.http.impl.client.HttpClientBuilder;
+import com.marklogic.hub.util.metrics.tracer.JaegerConfig;
+import io.opentracing.Scope;
+import io.opentracing.Span;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.MediaType;
-import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.web.client.HttpStatusCodeException;
 import org.springframework.web.client.RequestCallback;
 import org.springframework.web.client.ResponseExtractor;
 import org.springframework.web.client.RestTemplate;
 
-import javax.naming.InvalidNameException;
-import javax.naming.ldap.LdapName;
-import javax.naming.ldap.Rdn;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLException;
-import javax.net.ssl.SSLSession;
-import javax.net.ssl.SSLSocket;
 import java.io.BufferedReader;
-import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.URI;
 import java.net.URLEncoder;
-import java.security.cert.Certificate;
-import java.security.cert.CertificateParsingException;
-import java.security.cert.X509Certificate;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 public class CollectorImpl implements Collector {
     private DatabaseClient client = null;
@@ -65,8 +60,15 @@ public class CollectorImpl implements Collector {
 
     private Flow flow = null;
 
+    private HostAffinity hostAffinity = null;
+
     private static Logger logger = LoggerFactory.getLogger(CollectorImpl.class);
 
+    // Must match the error raised by the hubcollector5 endpoint
+    private static final String FOREST_COLLECTION_UNSUPPORTED = "Collection by forest is not supported";
+    // Number of URIs a forest thread buffers before handing them to the consumer
+    private static final int FOREST_CHUNK_SIZE = 1000;
+
     public CollectorImpl() {}
 
     public CollectorImpl(Flow flow) {
@@ -91,175 +93,254 @@ public class CollectorImpl implements Collector {
         return this.client;
     }
 
+    /**
+     * @param hostAffinity if set, URIs are collected by forest and tagged with the host that owns them
+     */
+    public void setHostAffinity(HostAffinity hostAffinity) {
+        this.hostAffinity = hostAffinity;
+    }
+
 
     @Override
     public DiskQueue<String> run(String flow, String step, Map<String, Object> options) {
-        try {
-            DiskQueue<String> results = new DiskQueue<>(5000);
-
-            // Important design info:
-            // The collector is invoked with a regular http client due to streaming limitations in OkHttp.
-            // https://github.com/marklogic/marklogic-data-hub/issues/632
-            // https://github.com/marklogic/marklogic-data-hub/issues/633
-            //
-
-            RestTemplate template = newRestTemplate(  ((HubConfigImpl) hubConfig).getMlUsername(), ( (HubConfigImpl) hubConfig).getMlPassword());
-            String uriString = String.format(
-                "%s://%s:%d%s?flow-name=%s&database=%s&step=%s",
-                client.getSecurityContext().getSSLContext() != null ? "https" : "http",
-                client.getHost(),
-                client.getPort(),
-                "/v1/internal/hubcollector5",
-
-                URLEncoder.encode(flow, "UTF-8"),
-                URLEncoder.encode(client.getDatabase(), "UTF-8"),
-                URLEncoder.encode(step, "UTF-8")
-            );
-            if (options != null) {
-                ObjectMapper objectMapper = new ObjectMapper();
-                uriString += "&options=" + URLEncoder.encode(objectMapper.writeValueAsString(options), "UTF-8");
-            }
-
-            URI uri = new URI(uriString);
-
-            RequestCallback requestCallback = request -> request.getHeaders()
-                .setAccept(Arrays.asList(MediaType.APPLICATION_OCTET_STREAM, MediaType.ALL));
-
-            // Streams the response instead of loading it all in memory
-            ResponseExtractor<Void> responseExtractor = response -> {
-                BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(response.getBody(), "UTF-8"));
-                String line;
-                while((line = bufferedReader.readLine()) != null) {
-                    results.add(line);
-                }
-                bufferedReader.close();
-                return null;
-            };
+        DiskQueue<String> results = new DiskQueue<>(5000, null, queueBlockSize(options));
+        run(flow, step, options, results::add);
+        return results;
+    }
 
-            template.execute(uri, HttpMethod.GET, requestCallback, responseExtractor);
+    // Number of URIs per front-coded block when the queue spills to disk
+    private static int queueBlockSize(Map<String, Object> options) {
+        if (options != null && options.get("queueBlockSize") != null) {
+            return Integer.parseInt(options.get("queueBlockSize").toString());
+        }
+        return FrontCodedBlocks.DEFAULT_BLOCK_SIZE;
+    }
 
-            return results;
+    /**
+     * Streams the step's URIs to the consumer. With the "collectByForest" option, every forest of the source database
+     * is read on its own request, "collectorThreadCount" at a time (by default, all of them), and the consumer is
+     * handed one forest's URIs at a time so it never sees concurrent calls. If the server can't collect by forest -
+     * for example because the step uses a custom cts.uris or cts.values expression - a single request is made.
+     */
+    @Override
+    public void run(String flow, String step, Map<String, Object> options, Consumer<String> uriConsumer) {
+        // A child of the step's span when the step is traced; its requests carry the span's context to the server
+        Span span = JaegerConfig.buildSpan("collector").withTag("flow", flow).withTag("step", step).start();
+        Throwable error = null;
+        try (Scope ignored = JaegerConfig.activate(span)) {
+            if (options != null && options.get("collectorCache") != null && Boolean.parseBoolean(options.get("collectorCache").toString())) {
+                runCached(flow, step, options, uriConsumer);
+            } else {
+                runUncached(flow, step, options, uriConsumer);
+            }
+        }
+        catch(CancellationException e) {
+            throw e;
         }
         catch(Exception e) {
+            error = e;
             e.printStackTrace();
             throw new RuntimeException(e);
         }
+        finally {
+            JaegerConfig.finish(span, error);
+        }
     }
 
-    private RestTemplate newRestTemplate(String username, String password) {
-        DatabaseClientFactory.SecurityContext securityContext = client.getSecurityContext();
+    /**
+     * With the "collectorCache" option, URIs collected earlier for the same flow, step and options are reused as long
+     * as the source database hasn't changed since; otherwise they are collected and cached as they stream to the
+     * consumer. "collectorCacheMaxBytes" limits the size of the cache.
+     */
+    private void runCached(String flow, String step, Map<String, Object> options, Consumer<String> uriConsumer) throws Exception {
+        List<String> fingerprint = new ArrayList<>();
+        collect(flow, step, options, "&fingerprint-only=true", fingerprint::add);
+        if (fingerprint.size() != 2) {
+            throw new IllegalStateException("Unexpected collector fingerprint: " + fingerprint);
+        }
+        String timestamp = fingerprint.get(0);
+        // Tagged URIs are only valid for the hosts they were tagged with
+        String hosts = hostAffinity != null ? hostAffinity.getHosts().toString() : "";
+        String key = CollectorResultCache.key(flow, step, options, fingerprint.get(1) + hosts);
+
+        long maxBytes = CollectorResultCache.DEFAULT_MAX_BYTES;
+        if (options.get("collectorCacheMaxBytes") != null) {
+            maxBytes = Long.parseLong(options.get("collectorCacheMaxBytes").toString());
+        }
+        CollectorResultCache cache = CollectorResultCache.forProject(hubConfig, maxBytes);
+        if (cache.read(key, timestamp, uriConsumer)) {
+            return;
+        }
+        try (CollectorResultCache.EntryWriter entry = cache.newEntry(key, timestamp)) {
+            runUncached(flow, step, options, entry.andThen(uriConsumer));
+            entry.commit();
+        }
+    }
 
-        BasicCredentialsProvider prov = new BasicCredentialsProvider();
-        prov.setCredentials(
-            new AuthScope(client.getHost(), client.getPort(), AuthScope.ANY_REALM),
-            new UsernamePasswordCredentials(username, password));
+    private void runUncached(String flow, String step, Map<String, Object> options, Consumer<String> uriConsumer) throws Exception {
+        boolean collectByForest = hostAffinity != null ||
+            (options != null && options.get("collectByForest") != null && Boolean.parseBoolean(options.get("collectByForest").toString()));
+        if (collectByForest) {
+            Forest[] forests = readForests();
+            if (forests.length > 1 && collectByForest(flow, step, options, forests, uriConsumer)) {
+                return;
+            }
+        }
+        collect(flow, step, options, null, uriConsumer);
+    }
 
-        HttpClientBuilder httpClientBuilder = HttpClientBuilder.create().setDefaultCredentialsProvider(prov);
+    private Forest[] readForests() {
+        DataMovementManager dataMovementManager = client.newDataMovementManager();
+        try {
+            return dataMovementManager.readForestConfig().listForests();
+        } finally {
+            dataMovementManager.release();
+        }
+    }
 
-        if (securityContext != null) {
-            SSLContext sslContext = securityContext.getSSLContext();
-            if (sslContext != null) {
-                httpClientBuilder.setSslcontext(sslContext);
+    /**
+     * @return false if the server does not support collecting this step by forest and nothing has been collected
+     */
+    private boolean collectByForest(String flow, String step, Map<String, Object> options, Forest[] forests, Consumer<String> uriConsumer) throws Exception {
+        int threadCount = forests.length;
+        if (options != null && options.get("collectorThreadCount") != null) {
+            threadCount = Math.max(1, Math.min(forests.length, Integer.parseInt(options.get("collectorThreadCount").toString())));
+        }
+        logger.info("Collecting URIs from " + forests.length + " forests using " + threadCount + " threads");
+
+        AtomicInteger threadNumber = new AtomicInteger(0);
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount, runnable -> {
+            Thread thread = new Thread(runnable, "collector-forest-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicBoolean stopped = new AtomicBoolean(false);
+        AtomicLong collectedCount = new AtomicLong(0);
+        Object consumerLock = new Object();
+        List<Future<?>> futures = new ArrayList<>();
+        Span collectorSpan = JaegerConfig.activeSpan();
+        try {
+            for (Forest forest : forests) {
+                futures.add(executor.submit(() -> {
+                    List<String> chunk = new ArrayList<>(FOREST_CHUNK_SIZE);
+                    Span forestSpan = JaegerConfig.buildChildSpan("collector.forest", collectorSpan).withTag("forest", forest.getForestName()).start();
+                    Throwable forestError = null;
+                    try (Scope ignored = JaegerConfig.activate(forestSpan)) {
+                        collect(flow, step, options, "&forest-id=" + URLEncoder.encode(forest.getForestId(), "UTF-8"), uri -> {
+                            if (stopped.get()) {
+                                throw new CancellationException("URI collection was stopped because another forest failed");
+                            }
+                            chunk.add(hostAffinity != null ? hostAffinity.tag(uri, forest.getForestId()) : uri);
+                            if (chunk.size() >= FOREST_CHUNK_SIZE) {
+                                handOff(chunk, uriConsumer, consumerLock, collectedCount);
+                            }
+                        });
+                        handOff(chunk, uriConsumer, consumerLock, collectedCount);
+                    } catch (Exception e) {
+                        forestError = e;
+                        stopped.set(true);
+                        throw e;
+                    } finally {
+                        JaegerConfig.finish(forestSpan, forestError);
+                    }
+                    return null;
+                }));
             }
 
-            SSLHostnameVerifier verifier = securityContext.getSSLHostnameVerifier();
-            X509HostnameVerifier hostnameVerifier = null;
-            if (verifier == SSLHostnameVerifier.ANY) {
-                hostnameVerifier = new X509HostnameVerifier() {
-                    @Override
-                    public boolean verify(String paramString, SSLSession paramSSLSession) {
-                        return true;
+            Exception failure = null;
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Exception cause = e.getCause() instanceof Exception ? (Exception) e.getCause() : new RuntimeException(e.getCause());
+                    // Keep the error that stopped the other forests rather than their cancellations
+                    if (failure == null || (failure instanceof CancellationException && !(cause instanceof CancellationException))) {
+                        failure = cause;
                     }
-
-                    @Override
-                    public void verify(String host, SSLSocket ssl) throws IOException {}
-
-                    @Override
-                    public void verify(String host, X509Certificate cert) throws SSLException {}
-
-                    @Override
-                    public void verify(String host, String[] cns, String[] subjectAlts) throws SSLException {}
-                };
-
-            } else if (verifier == SSLHostnameVerifier.COMMON) {
-                hostnameVerifier = null;
-            } else if (verifier == SSLHostnameVerifier.STRICT) {
-                hostnameVerifier = null;
-            } else if (verifier != null) {
-                hostnameVerifier = new HostnameVerifierAdapter(verifier);
+                }
             }
-            httpClientBuilder.setHostnameVerifier(hostnameVerifier);
+            if (failure != null) {
+                if (collectedCount.get() == 0 && isForestCollectionUnsupported(failure)) {
+                    logger.info("Collecting by forest is not supported for this step, so URIs will be collected with a single request");
+                    return false;
+                }
+                throw failure;
+            }
+            return true;
+        } finally {
+            executor.shutdownNow();
         }
-
-        HttpClient client = httpClientBuilder.build();
-
-        RestTemplate rt = new RestTemplate(new HttpComponentsClientHttpRequestFactory(client));
-        rt.setErrorHandler(new MgmtResponseErrorHandler());
-        return rt;
     }
 
-    static private class HostnameVerifierAdapter implements X509HostnameVerifier {
-        private SSLHostnameVerifier verifier;
-
-        protected HostnameVerifierAdapter(SSLHostnameVerifier verifier) {
-          this.verifier = verifier;
+    private static void handOff(List<String> chunk, Consumer<String> uriConsumer, Object consumerLock, AtomicLong collectedCount) {
+        if (chunk.isEmpty()) {
+            return;
         }
-        
-        public void verify(String hostname, X509Certificate cert) throws SSLException {
-          ArrayList<String> cnArray = new ArrayList<>();
-          try {
-            LdapName ldapDN = new LdapName(cert.getSubjectX500Principal().getName());
-            for(Rdn rdn: ldapDN.getRdns()) {
-              Object value = rdn.getValue();
-              if ( "CN".equalsIgnoreCase(rdn.getType()) && value instanceof String ) {
-                cnArray.add((String) value);
-              }
-            }
-            int type_dnsName = 2;
-            int type_ipAddress = 7;
-            ArrayList<String> subjectAltArray = new ArrayList<>();
-            Collection<List<?>> alts = cert.getSubjectAlternativeNames();
-            if ( alts != null ) {
-              for ( List<?> alt : alts ) {
-                if ( alt != null && alt.size() == 2 && alt.get(1) instanceof String ) {
-                  Integer type = (Integer) alt.get(0);
-                  if ( type == type_dnsName || type == type_ipAddress ) {
-                    subjectAltArray.add((String) alt.get(1));
-                  }
-                }
-              }
+        synchronized (consumerLock) {
+            for (String uri : chunk) {
+                uriConsumer.accept(uri);
             }
-            String[] cns = cnArray.toArray(new String[cnArray.size()]);
-            String[] subjectAlts = subjectAltArray.toArray(new String[subjectAltArray.size()]);
-            verifier.verify(hostname, cns, subjectAlts);
-          } catch(CertificateParsingException e) {
-            throw new MarkLogicIOException(e);
-          } catch(InvalidNameException e) {
-            throw new MarkLogicIOException(e);
-          }
         }
+        collectedCount.addAndGet(chunk.size());
+        chunk.clear();
+    }
 
-        @Override
-        public void verify(String hostname, SSLSocket ssl) throws IOException {
-            Certificate[] certificates = ssl.getSession().getPeerCertificates();
-            verify(hostname, (X509Certificate) certificates[0]);             
-        }
+    private static boolean isForestCollectionUnsupported(Exception e) {
+        String message = e instanceof HttpStatusCodeException ? ((HttpStatusCodeException) e).getResponseBodyAsString() : e.getMessage();
+        return message != null && message.contains(FOREST_COLLECTION_UNSUPPORTED);
+    }
 
-        @Override
-        public void verify(String hostname, String[] cns, String[] subjectAlts) throws SSLException {
-            verifier.verify(hostname, cns, subjectAlts);            
+    /**
+     * @param extraParameters appended to the request, such as the forest to collect from
+     */
+    private void collect(String flow, String step, Map<String, Object> options, String extraParameters, Consumer<String> uriConsumer) throws Exception {
+        // Important design info:
+        // The collector is invoked with a regular http client due to streaming limitations in OkHttp.
+        // https://github.com/marklogic/marklogic-data-hub/issues/632
+        // https://github.com/marklogic/marklogic-data-hub/issues/633
+        //
+
+        HubConfigImpl hubConfigImpl = (HubConfigImpl) hubConfig;
+        RestTemplate template = hubConfigImpl.getCollectorHttpClients()
+            .getRestTemplate(client, hubConfigImpl.getMlUsername(), hubConfigImpl.getMlPassword());
+        String uriString = String.format(
+            "%s://%s:%d%s?flow-name=%s&database=%s&step=%s",
+            client.getSecurityContext().getSSLContext() != null ? "https" : "http",
+            client.getHost(),
+            client.getPort(),
+            "/v1/internal/hubcollector5",
+
+            URLEncoder.encode(flow, "UTF-8"),
+            URLEncoder.encode(client.getDatabase(), "UTF-8"),
+            URLEncoder.encode(step, "UTF-8")
+        );
+        if (extraParameters != null) {
+            uriString += extraParameters;
+        }
+        if (options != null) {
+            ObjectMapper objectMapper = new ObjectMapper();
+            uriString += "&options=" + URLEncoder.encode(objectMapper.writeValueAsString(options), "UTF-8");
         }
 
-        @Override
-        public boolean verify(String hostname, SSLSession session) {
-            try {
-              Certificate[] certificates = session.getPeerCertificates();
-              verify(hostname, (X509Certificate) certificates[0]);
-              return true;
-              } 
-            catch(SSLException e) {
-              return false;
+        URI uri = new URI(uriString);
+
+        Map<String, String> traceHeaders = JaegerConfig.traceHeaders(JaegerConfig.activeSpan());
+        RequestCallback requestCallback = request -> {
+            request.getHeaders().setAccept(Arrays.asList(MediaType.APPLICATION_OCTET_STREAM, MediaType.ALL));
+            traceHeaders.forEach(request.getHeaders()::set);
+        };
+
+        // Streams the response instead of loading it all in memory
+        ResponseExtractor<Void> responseExtractor = response -> {
+            BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(response.getBody(), "UTF-8"));
+            String line;
+            while((line = bufferedReader.readLine()) != null) {
+                uriConsumer.accept(line);
             }
-        }
+            bufferedReader.close();
+            return null;
+        };
+
+        template.execute(uri, HttpMethod.GET, requestCallback, responseExtractor);
     }
 }
@@ -0,0 +1,344 @@
+/*
+ * Copyright 2012-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.collector.impl;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.marklogic.hub.HubConfig;
+import com.marklogic.hub.collector.FrontCodedBlocks;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * On-disk cache of collector output, so that rerunning a step against an unchanged source database - or running
+ * several steps with the same source query - doesn't run the same URI query again.
+ *
+ * An entry is keyed by flow, step, the step's options and a fingerprint of the database and URI expression that the
+ * collector endpoint would evaluate. It records the database timestamp it was collected at; once the database has
+ * committed anything newer, the entry no longer matches and is replaced by the next collection. Entries are stored as
+ * front-coded blocks followed by a trailer with the number of URIs and a CRC32 of the blocks, and the least recently
+ * used entries are deleted once the cache grows past its size limit.
+ *
+ * The cache lives under the project's .tmp/collector-cache directory, or under java.io.tmpdir when there is no
+ * project directory.
+ */
+public class CollectorResultCache {
+
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+    private static final String ENTRY_SUFFIX = ".uris";
+    private static final int FORMAT_VERSION = 2;
+    // URI count and CRC32 of the front-coded blocks
+    private static final int TRAILER_BYTES = 16;
+
+    private static final Logger logger = LoggerFactory.getLogger(CollectorResultCache.class);
+
+    private final Path directory;
+    private final long maxBytes;
+
+    public CollectorResultCache(Path directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    public static CollectorResultCache forProject(HubConfig hubConfig, long maxBytes) {
+        String projectDir = null;
+        if (hubConfig != null && hubConfig.getHubProject() != null) {
+            projectDir = hubConfig.getHubProject().getProjectDirString();
+        }
+        Path directory = projectDir != null ?
+            Paths.get(projectDir, ".tmp", "collector-cache") :
+            Paths.get(System.getProperty("java.io.tmpdir"), "data-hub-collector-cache");
+        return new CollectorResultCache(directory, maxBytes);
+    }
+
+    /**
+     * @param options the options sent to the collector endpoint; every one of them is part of the key, so an option
+     *                the server might act on can never be left out of it
+     * @param fingerprint identifies the database and the URI expression the server would evaluate
+     * @return a file-name-safe key; options are compared by value, regardless of the order of their keys
+     */
+    public static String key(String flow, String step, Map<String, Object> options, String fingerprint) {
+        String normalizedOptions;
+        try {
+            normalizedOptions = new ObjectMapper()
+                .configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true)
+                .writeValueAsString(options != null ? options : Collections.emptyMap());
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Unable to serialize collector options: " + e.getMessage(), e);
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String part : new String[]{flow, step, normalizedOptions, fingerprint}) {
+                digest.update(String.valueOf(part).getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            StringBuilder key = new StringBuilder();
+            for (byte b : digest.digest()) {
+                key.append(String.format("%02x", b));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Streams a cached entry to the consumer if there is one for the key and it was collected at the given database
+     * timestamp. An entry collected at an older timestamp is deleted, as is an entry that is truncated or whose
+     * checksum doesn't match; the entry is checked before any URI is passed to the consumer, so the caller can fall
+     * back to the collector whenever this returns false.
+     *
+     * @return true if the entry was found and streamed
+     */
+    public boolean read(String key, String timestamp, Consumer<String> consumer) throws IOException {
+        Path file = entryFile(key);
+        long expectedCount;
+        long bodyBytes;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 64 * 1024))) {
+            if (in.readInt() != FORMAT_VERSION) {
+                in.close();
+                Files.deleteIfExists(file);
+                logger.info("Discarded cached URIs " + file + " because they were written by another version of the cache");
+                return false;
+            }
+            if (!in.readUTF().equals(timestamp)) {
+                in.close();
+                Files.deleteIfExists(file);
+                logger.info("Discarded cached URIs " + file + " because the source database has changed");
+                return false;
+            }
+            bodyBytes = Files.size(file) - headerBytes(timestamp) - TRAILER_BYTES;
+            if (bodyBytes < 0) {
+                throw new IOException("entry is truncated");
+            }
+            CheckedInputStream body = new CheckedInputStream(new BoundedInputStream(in, bodyBytes), new CRC32());
+            // The blocks are only read here to compute their checksum
+            byte[] buffer = new byte[64 * 1024];
+            while (body.read(buffer) >= 0) {
+                continue;
+            }
+            expectedCount = in.readLong();
+            if (in.readLong() != body.getChecksum().getValue()) {
+                throw new IOException("checksum doesn't match");
+            }
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            discard(file, e);
+            return false;
+        }
+
+        // Marks the entry as recently used
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 64 * 1024)) {
+            DataInputStream header = new DataInputStream(in);
+            header.readInt();
+            header.readUTF();
+            FrontCodedBlocks.Reader reader = new FrontCodedBlocks.Reader(new BoundedInputStream(in, bodyBytes));
+            long count = 0;
+            String uri;
+            while ((uri = reader.next()) != null) {
+                consumer.accept(uri);
+                count++;
+            }
+            if (count != expectedCount) {
+                throw new IOException("Read " + count + " cached URIs from " + file + " but expected " + expectedCount);
+            }
+            logger.info("Read " + count + " cached URIs from " + file);
+            return true;
+        } catch (IOException e) {
+            // Only possible if the file changed after it was checked; URIs have already been passed on, so the
+            // collector can't take over, but the entry shouldn't be used again
+            Files.deleteIfExists(file);
+            throw e;
+        }
+    }
+
+    private void discard(Path file, IOException cause) {
+        logger.warn("Discarded cached URIs " + file + " because the entry is unreadable: " + cause.getMessage());
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.warn("Unable to delete cached URIs " + file + ": " + e.getMessage());
+        }
+    }
+
+    private static int headerBytes(String timestamp) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        new DataOutputStream(header).writeUTF(timestamp);
+        return 4 + header.size();
+    }
+
+    /**
+     * Starts a new entry. URIs passed to the returned writer are added to it, and it replaces any existing entry for
+     * the key once committed.
+     */
+    public EntryWriter newEntry(String key, String timestamp) throws IOException {
+        Files.createDirectories(directory);
+        return new EntryWriter(key, timestamp);
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache fits within its size limit.
+     */
+    public void evict() {
+        evict(null);
+    }
+
+    /**
+     * @param keep an entry that is never evicted, such as the one just written
+     */
+    private synchronized void evict(Path keep) {
+        List<Path> entries;
+        try (Stream<Path> files = Files.list(directory)) {
+            entries = files.filter(file -> file.getFileName().toString().endsWith(ENTRY_SUFFIX)).collect(Collectors.toList());
+        } catch (IOException e) {
+            logger.warn("Unable to list collector cache " + directory + ": " + e.getMessage());
+            return;
+        }
+        List<long[]> sizesAndTimes = new ArrayList<>();
+        long totalBytes = 0;
+        for (Path entry : entries) {
+            try {
+                long size = Files.size(entry);
+                sizesAndTimes.add(new long[]{size, Files.getLastModifiedTime(entry).toMillis()});
+                totalBytes += size;
+            } catch (IOException e) {
+                sizesAndTimes.add(new long[]{0, 0});
+            }
+        }
+        List<Integer> oldestFirst = new ArrayList<>();
+        for (int i = 0; i < entries.size(); i++) {
+            oldestFirst.add(i);
+        }
+        oldestFirst.sort(Comparator.comparingLong(i -> sizesAndTimes.get(i)[1]));
+        for (int i : oldestFirst) {
+            if (totalBytes <= maxBytes) {
+                break;
+            }
+            if (entries.get(i).equals(keep)) {
+                continue;
+            }
+            try {
+                Files.deleteIfExists(entries.get(i));
+                totalBytes -= sizesAndTimes.get(i)[0];
+                logger.info("Evicted cached URIs " + entries.get(i));
+            } catch (IOException e) {
+                logger.warn("Unable to evict cached URIs " + entries.get(i) + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private Path entryFile(String key) {
+        return directory.resolve(key + ENTRY_SUFFIX);
+    }
+
+    /**
+     * Writes a new entry to a temporary file; {@link #commit()} moves it into place. Closing a writer that was not
+     * committed discards it, so a failed or stopped collection never leaves a partial entry behind.
+     */
+    public class EntryWriter implements Consumer<String>, Closeable {
+        private final Path target;
+        private final Path tempFile;
+        private final OutputStream out;
+        private final CheckedOutputStream body;
+        private final FrontCodedBlocks.Writer writer;
+        private long count = 0;
+        private boolean committed = false;
+
+        private EntryWriter(String key, String timestamp) throws IOException {
+            this.target = entryFile(key);
+            this.tempFile = directory.resolve(key + "." + UUID.randomUUID() + ".tmp");
+            this.out = new BufferedOutputStream(Files.newOutputStream(tempFile), 64 * 1024);
+            DataOutputStream header = new DataOutputStream(out);
+            header.writeInt(FORMAT_VERSION);
+            header.writeUTF(timestamp);
+            this.body = new CheckedOutputStream(out, new CRC32());
+            this.writer = new FrontCodedBlocks.Writer(body, FrontCodedBlocks.DEFAULT_BLOCK_SIZE);
+        }
+
+        @Override
+        public void accept(String uri) {
+            try {
+                writer.write(uri);
+                count++;
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to write cached URIs to " + tempFile + ": " + e.getMessage(), e);
+            }
+        }
+
+        /**
+         * Moves the entry into place and evicts older entries if the cache is over its size limit.
+         */
+        public void commit() throws IOException {
+            writer.flushBlock();
+            DataOutputStream trailer = new DataOutputStream(out);
+            trailer.writeLong(count);
+            trailer.writeLong(body.getChecksum().getValue());
+            out.close();
+            Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+            logger.info("Cached " + count + " URIs in " + target + ", compression ratio " + String.format("%.2f", writer.getCompressionRatio()));
+            evict(target);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                out.close();
+                Files.deleteIfExists(tempFile);
+            }
+        }
+    }
+}
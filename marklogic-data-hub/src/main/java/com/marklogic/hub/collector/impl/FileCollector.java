@@ -2,24 +2,24 @@ package com.marklogic.hub.collector.impl;
 
 import com.marklogic.hub.HubConfig;
 import com.marklogic.hub.collector.DiskQueue;
-import org.apache.commons.io.FilenameUtils;
 
 import java.io.File;
-import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.*;
-import java.util.stream.Stream;
+import java.util.Arrays;
+import java.util.function.Consumer;
 
 public class FileCollector {
     private String filePath;
     private String inputFormat;
     private HubConfig hubConfig;
-    private Set<String> textExts = new HashSet<>(Arrays.asList("txt"));
-    private Set<String> jsonExts = new HashSet<>(Arrays.asList("json"));
-    private Set<String> csvExts = new HashSet<>(Arrays.asList("txt","csv","tsv","psv"));
-    private Set<String> xmlExts = new HashSet<>(Arrays.asList("xml"));
+    private IngestionManifest manifest;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private static final String[] TEXT_EXTS = {"txt"};
+    private static final String[] JSON_EXTS = {"json"};
+    private static final String[] CSV_EXTS = {"txt","csv","tsv","psv"};
+    private static final String[] XML_EXTS = {"xml"};
 
     public FileCollector(String filePath, String inputFormat) {
         this.filePath = filePath;
@@ -33,44 +33,77 @@ public class FileCollector {
         return hubConfig;
     }
 
-    public DiskQueue<String> run() {
-        DiskQueue<String> results;
-        //Currently the map has inputFormat => file-extension. We can in future use something like Tika to detect format, then
-        // it would map to application/xml etc
-        Map<String, Set<String>> fileFormat = new HashMap<>();
-        fileFormat.put("text", textExts);
-        fileFormat.put("json", jsonExts);
-        fileFormat.put("csv", csvExts);
-        fileFormat.put("xml", xmlExts);
+    /**
+     * @param manifest if set, files that the manifest records as unchanged since the last run are not collected
+     */
+    public void setManifest(IngestionManifest manifest) {
+        this.manifest = manifest;
+    }
 
+    /**
+     * @param parallelism the number of threads used to walk the input directory; defaults to the number of processors
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
 
-        try {
-            results = new DiskQueue<>(10000);
-            Path dirPath = Paths.get(filePath);
-            if(! dirPath.isAbsolute()) {
-                File file = new File(hubConfig.getProjectDir(), dirPath.toString());
-                dirPath = file.toPath().toAbsolutePath();
+    public DiskQueue<String> run() {
+        DiskQueue<String> results = new DiskQueue<>(10000);
+        // The walker calls back from several threads, and DiskQueue is not thread-safe
+        run(path -> {
+            synchronized (results) {
+                results.add(path);
             }
+        });
+        return results;
+    }
 
-            if(!(Files.exists(dirPath)) || !(Files.isDirectory(dirPath))) {
-                throw new RuntimeException("The path doesn't exist or is not a directory");
-            }
-            try (Stream<Path> files = Files.find(dirPath,
-                Integer.MAX_VALUE,
-                (filePath, fileAttr) -> fileAttr.isRegularFile())) {
-                files.forEach(path -> {
-                    File file = path.toFile();
-                    String fileName = FilenameUtils.getExtension(file.getName()).toLowerCase();
-                    if (fileFormat.containsKey(inputFormat.toLowerCase()) && fileFormat.get(inputFormat.toLowerCase()).contains(fileName)) {
-                        results.add(path.toFile().getAbsolutePath());
-                    } else if ("binary".equalsIgnoreCase(inputFormat) && !csvExts.contains(fileName) && !jsonExts.contains(fileName) && !xmlExts.contains(fileName)) {
-                        results.add(path.toFile().getAbsolutePath());
-                    }
-                });
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    /**
+     * Walks the input directory in parallel and passes the absolute path of each matching file to the consumer as
+     * soon as it is found, so ingestion can start before the walk is finished. The consumer is called from several
+     * threads at once.
+     *
+     * @param pathConsumer receives each matching file path
+     */
+    public void run(Consumer<String> pathConsumer) {
+        Path dirPath = Paths.get(filePath);
+        if(! dirPath.isAbsolute()) {
+            File file = new File(hubConfig.getProjectDir(), dirPath.toString());
+            dirPath = file.toPath().toAbsolutePath();
         }
-        return results;
+
+        if(!(Files.exists(dirPath)) || !(Files.isDirectory(dirPath))) {
+            throw new RuntimeException("The path doesn't exist or is not a directory");
+        }
+        final IngestionManifest incrementalManifest = manifest;
+        new ParallelFileWalker(parallelism, newExtensionMatcher(inputFormat)).walk(dirPath,
+            incrementalManifest != null ? incrementalManifest::shouldIngest : null,
+            pathConsumer);
+        if (incrementalManifest != null) {
+            incrementalManifest.walkCompleted();
+        }
+    }
+
+    //Currently inputFormat maps to file extensions. We can in future use something like Tika to detect format, then
+    // it would map to application/xml etc
+    private static ParallelFileWalker.ExtensionMatcher newExtensionMatcher(String inputFormat) {
+        switch (inputFormat.toLowerCase()) {
+            case "text":
+                return ParallelFileWalker.ExtensionMatcher.including(TEXT_EXTS);
+            case "json":
+                return ParallelFileWalker.ExtensionMatcher.including(JSON_EXTS);
+            case "csv":
+                return ParallelFileWalker.ExtensionMatcher.including(CSV_EXTS);
+            case "xml":
+                return ParallelFileWalker.ExtensionMatcher.including(XML_EXTS);
+            case "binary":
+                return ParallelFileWalker.ExtensionMatcher.excluding(concat(CSV_EXTS, JSON_EXTS, XML_EXTS));
+            default:
+                return ParallelFileWalker.ExtensionMatcher.including();
+        }
+    }
+
+    private static String[] concat(String[]... arrays) {
+        return Arrays.stream(arrays).flatMap(Arrays::stream).toArray(String[]::new);
     }
 }
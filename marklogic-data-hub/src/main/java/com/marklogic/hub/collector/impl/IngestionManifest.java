@@ -0,0 +1,308 @@
+/*
+ * Copyright 2012-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.collector.impl;
+
+import com.marklogic.hub.HubConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local record of the files an ingestion step has successfully ingested, used to skip unchanged files on the next
+ * run when the "incremental" option is set.
+ *
+ * A file is unchanged if its size and last-modified time match the manifest. With the "incrementalHash" option, a
+ * file whose size matches but whose last-modified time doesn't is also treated as unchanged if its SHA-256 digest
+ * matches, which covers files that are copied or touched without being edited.
+ *
+ * Files picked up by the collector are held as pending; only {@link #commit(String)} - called once every document
+ * from a file has been written successfully - moves them into the manifest, and {@link #save()} writes the manifest
+ * to disk at the end of the step. Manifests live under the project's .tmp/manifests directory, one per flow and step.
+ *
+ * After a version line, each line of the file is a path, its size, its last-modified time and optionally its digest,
+ * separated by tabs. Backslashes, tabs and line breaks in the path are escaped with a backslash.
+ */
+public class IngestionManifest {
+
+    private static final Logger logger = LoggerFactory.getLogger(IngestionManifest.class);
+
+    private static final String VERSION_LINE = "#ingestion-manifest v2";
+
+    private final Path file;
+    private final boolean useHash;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, Entry> pending = new ConcurrentHashMap<>();
+    // Every file the walk has offered to shouldIngest, so that entries for files that are gone can be dropped
+    private final Set<String> seen = ConcurrentHashMap.newKeySet();
+    private volatile boolean walkCompleted = false;
+    private final AtomicLong skippedCount = new AtomicLong(0);
+
+    public IngestionManifest(Path file, boolean useHash) {
+        this.file = file;
+        this.useHash = useHash;
+    }
+
+    public static IngestionManifest forStep(HubConfig hubConfig, String flowName, String step, boolean useHash) {
+        String projectDir = null;
+        if (hubConfig != null && hubConfig.getHubProject() != null) {
+            projectDir = hubConfig.getHubProject().getProjectDirString();
+        }
+        Path baseDir = projectDir != null ?
+            Paths.get(projectDir, ".tmp", "manifests") :
+            Paths.get(System.getProperty("java.io.tmpdir"), "data-hub-manifests");
+        String name = (flowName + "-" + step).replaceAll("[^A-Za-z0-9._-]", "_");
+        return new IngestionManifest(baseDir.resolve(name + ".manifest"), useHash);
+    }
+
+    /**
+     * Loads the manifest written by the last run, if there is one.
+     *
+     * @return this manifest
+     */
+    public IngestionManifest load() {
+        if (!Files.exists(file)) {
+            return this;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if (!VERSION_LINE.equals(line)) {
+                logger.warn("Ingestion manifest " + file + " has an unknown format; all files will be ingested");
+                return this;
+            }
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t");
+                if (parts.length >= 3) {
+                    entries.put(unescape(parts[0]), new Entry(Long.parseLong(parts[1]), Long.parseLong(parts[2]), parts.length > 3 ? parts[3] : null));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Losing the manifest only means unchanged files are ingested again
+            logger.warn("Unable to read ingestion manifest " + file + "; all files will be ingested: " + e.getMessage());
+            entries.clear();
+        }
+        return this;
+    }
+
+    /**
+     * Decides whether a file found by the collector needs to be ingested. Files that do are held as pending until
+     * they are committed.
+     *
+     * @param path the absolute path of the file
+     * @param attributes the file's attributes, as returned while walking the input directory
+     * @return true if the file has changed, or was not ingested by an earlier run
+     */
+    public boolean shouldIngest(Path path, BasicFileAttributes attributes) {
+        String key = path.toString();
+        seen.add(key);
+        long size = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        Entry previous = entries.get(key);
+        String hash = null;
+        if (previous != null && previous.size == size) {
+            if (previous.lastModified == lastModified) {
+                skippedCount.incrementAndGet();
+                return false;
+            }
+            if (useHash && previous.hash != null) {
+                hash = hash(path);
+                if (previous.hash.equals(hash)) {
+                    // Same content; remember the new timestamp so the digest isn't needed next time
+                    entries.put(key, new Entry(size, lastModified, hash));
+                    skippedCount.incrementAndGet();
+                    return false;
+                }
+            }
+        }
+        if (useHash && hash == null) {
+            hash = hash(path);
+        }
+        pending.put(key, new Entry(size, lastModified, hash));
+        return true;
+    }
+
+    /**
+     * Records a pending file as ingested.
+     *
+     * @param path the absolute path, as passed to {@link #shouldIngest(Path, BasicFileAttributes)}
+     */
+    public void commit(String path) {
+        Entry entry = pending.remove(path);
+        if (entry != null) {
+            entries.put(path, entry);
+        }
+    }
+
+    /**
+     * Called once the walk of the input directory has finished without failing or being stopped, so that every file
+     * still there has been passed to {@link #shouldIngest(Path, BasicFileAttributes)}.
+     */
+    public void walkCompleted() {
+        walkCompleted = true;
+    }
+
+    /**
+     * Writes the manifest, replacing the one from the previous run. Files that are still pending are left out, so
+     * they are ingested again next time. If the walk completed, files it didn't find are left out too, so the
+     * manifest doesn't keep growing as input files are removed or renamed.
+     */
+    public synchronized void save() {
+        if (walkCompleted) {
+            entries.keySet().retainAll(seen);
+        }
+        try {
+            Files.createDirectories(file.getParent());
+            Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+            try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+                writer.write(VERSION_LINE);
+                writer.newLine();
+                for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                    Entry entry = e.getValue();
+                    writer.write(escape(e.getKey()) + "\t" + entry.size + "\t" + entry.lastModified + (entry.hash != null ? "\t" + entry.hash : ""));
+                    writer.newLine();
+                }
+            }
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            logger.warn("Unable to write ingestion manifest " + file + ": " + e.getMessage());
+        }
+    }
+
+    public long getSkippedCount() {
+        return skippedCount.get();
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * @return the number of files the manifest records as ingested
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    static String escape(String path) {
+        StringBuilder escaped = null;
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            String replacement;
+            switch (c) {
+                case '\\':
+                    replacement = "\\\\";
+                    break;
+                case '\t':
+                    replacement = "\\t";
+                    break;
+                case '\n':
+                    replacement = "\\n";
+                    break;
+                case '\r':
+                    replacement = "\\r";
+                    break;
+                default:
+                    replacement = null;
+            }
+            if (replacement != null && escaped == null) {
+                escaped = new StringBuilder(path.length() + 8).append(path, 0, i);
+            }
+            if (escaped != null) {
+                if (replacement != null) {
+                    escaped.append(replacement);
+                } else {
+                    escaped.append(c);
+                }
+            }
+        }
+        return escaped != null ? escaped.toString() : path;
+    }
+
+    static String unescape(String escaped) {
+        if (escaped.indexOf('\\') < 0) {
+            return escaped;
+        }
+        StringBuilder path = new StringBuilder(escaped.length());
+        for (int i = 0; i < escaped.length(); i++) {
+            char c = escaped.charAt(i);
+            if (c != '\\' || i + 1 == escaped.length()) {
+                path.append(c);
+                continue;
+            }
+            char next = escaped.charAt(++i);
+            switch (next) {
+                case 't':
+                    path.append('\t');
+                    break;
+                case 'n':
+                    path.append('\n');
+                    break;
+                case 'r':
+                    path.append('\r');
+                    break;
+                default:
+                    path.append(next);
+            }
+        }
+        return path.toString();
+    }
+
+    private static String hash(Path path) {
+        try (InputStream in = Files.newInputStream(path)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            // Without a digest the file is compared by size and timestamp only
+            return null;
+        }
+    }
+
+    private static class Entry {
+        final long size;
+        final long lastModified;
+        final String hash;
+
+        Entry(long size, long lastModified, String hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+}
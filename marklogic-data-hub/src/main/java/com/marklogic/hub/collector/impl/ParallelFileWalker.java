@@ -0,0 +1,141 @@
+/*
+ * Copyright 2012-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.collector.impl;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+
+/**
+ * Walks a directory tree on a fork/join pool, one task per directory, and hands each matching regular file to a
+ * consumer as soon as it is found. The consumer is called from several threads at once and must be thread-safe.
+ *
+ * Like Files.find, symbolic links are not followed.
+ */
+public class ParallelFileWalker {
+
+    private final ForkJoinPool pool;
+    private final ExtensionMatcher matcher;
+
+    /**
+     * @param parallelism number of threads walking directories
+     * @param matcher decides from a file name whether the file is wanted
+     */
+    public ParallelFileWalker(int parallelism, ExtensionMatcher matcher) {
+        this.pool = new ForkJoinPool(Math.max(1, parallelism));
+        this.matcher = matcher;
+    }
+
+    /**
+     * Walks the tree under root, blocking until every directory has been listed.
+     *
+     * @param root the directory to walk
+     * @param filter applied to each file whose name is accepted by the matcher; may be null
+     * @param consumer receives the absolute path of each accepted file
+     */
+    public void walk(Path root, BiPredicate<Path, BasicFileAttributes> filter, Consumer<String> consumer) {
+        try {
+            pool.invoke(new DirectoryTask(root.toAbsolutePath(), filter, consumer));
+        } catch (UncheckedIOException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private class DirectoryTask extends RecursiveAction {
+        private final Path dir;
+        private final BiPredicate<Path, BasicFileAttributes> filter;
+        private final Consumer<String> consumer;
+
+        DirectoryTask(Path dir, BiPredicate<Path, BasicFileAttributes> filter, Consumer<String> consumer) {
+            this.dir = dir;
+            this.filter = filter;
+            this.consumer = consumer;
+        }
+
+        @Override
+        protected void compute() {
+            List<DirectoryTask> subdirectories = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (attributes.isDirectory()) {
+                        DirectoryTask task = new DirectoryTask(entry, filter, consumer);
+                        task.fork();
+                        subdirectories.add(task);
+                    } else if (attributes.isRegularFile() && matcher.matches(entry.getFileName().toString())
+                        && (filter == null || filter.test(entry, attributes))) {
+                        consumer.accept(entry.toString());
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            for (DirectoryTask task : subdirectories) {
+                task.join();
+            }
+        }
+    }
+
+    /**
+     * Matches file names by extension, with the set of extensions lowercased once up front so that each file costs
+     * a single lookup.
+     */
+    public static class ExtensionMatcher {
+        private final Set<String> extensions;
+        private final boolean exclude;
+
+        private ExtensionMatcher(Set<String> extensions, boolean exclude) {
+            this.extensions = extensions;
+            this.exclude = exclude;
+        }
+
+        public static ExtensionMatcher including(String... extensions) {
+            return new ExtensionMatcher(lowercase(extensions), false);
+        }
+
+        public static ExtensionMatcher excluding(String... extensions) {
+            return new ExtensionMatcher(lowercase(extensions), true);
+        }
+
+        private static Set<String> lowercase(String... extensions) {
+            Set<String> set = new HashSet<>();
+            Arrays.stream(extensions).forEach(ext -> set.add(ext.toLowerCase(Locale.ROOT)));
+            return set;
+        }
+
+        public boolean matches(String fileName) {
+            int dot = fileName.lastIndexOf('.');
+            String extension = dot < 0 ? "" : fileName.substring(dot + 1).toLowerCase(Locale.ROOT);
+            return extensions.contains(extension) != exclude;
+        }
+    }
+}
@@ -38,15 +38,19 @@ public class ClearDHFModulesCommand extends AbstractCommand
     @Override
     public void execute(CommandContext context)
     {
-        DatabaseClient databaseClient = hubConfig.newModulesDbClient();
-        QueryManager queryManager = databaseClient.newQueryManager();
+        DatabaseClient databaseClient = hubConfig.acquireModulesDbClient();
+        try {
+            QueryManager queryManager = databaseClient.newQueryManager();
 
-        // Clear user modules
-        dataHub.clearUserModules();
+            // Clear user modules
+            dataHub.clearUserModules();
 
-        // Clear DHF core modules
-        DeleteQueryDefinition queryDefinition = queryManager.newDeleteDefinition();
-        queryDefinition.setCollections("hub-core-module");
-        queryManager.delete(queryDefinition);
+            // Clear DHF core modules
+            DeleteQueryDefinition queryDefinition = queryManager.newDeleteDefinition();
+            queryDefinition.setCollections("hub-core-module");
+            queryManager.delete(queryDefinition);
+        } finally {
+            hubConfig.releaseClient(databaseClient);
+        }
     }
 }
@@ -43,52 +43,61 @@ public class GenerateFunctionMetadataCommand extends AbstractCommand {
     @Override
     public void execute(CommandContext context) {
         if (versions != null && versions.isVersionCompatibleWithES()) {
-            if (modulesClient == null) {
-                if (hubConfig == null) {
-                    throw new IllegalStateException("Unable to create a DatabaseClient for the modules database because hubConfig is null");
-                }
-                modulesClient = hubConfig.newStagingClient(hubConfig.getDbName(DatabaseKind.MODULES));
+            if (modulesClient != null) {
+                generateFunctionMetadata(modulesClient);
+                return;
+            }
+            if (hubConfig == null) {
+                throw new IllegalStateException("Unable to create a DatabaseClient for the modules database because hubConfig is null");
+            }
+            DatabaseClient client = hubConfig.acquireStagingClient(hubConfig.getDbName(DatabaseKind.MODULES));
+            try {
+                generateFunctionMetadata(client);
+            } finally {
+                hubConfig.releaseClient(client);
             }
+        } else {
+            logger.warn("GenerateFunctionMetadataCommand is not supported on this MarkLogic server version ");
+        }
+    }
 
-            DataMovementManager dataMovementManager = modulesClient.newDataMovementManager();
+    private void generateFunctionMetadata(DatabaseClient modulesClient) {
+        DataMovementManager dataMovementManager = modulesClient.newDataMovementManager();
 
-            StructuredQueryBuilder sb = modulesClient.newQueryManager().newStructuredQueryBuilder();
+        StructuredQueryBuilder sb = modulesClient.newQueryManager().newStructuredQueryBuilder();
 
-            // This transform needs to be the camelcase prefix instead of the ml: prefix since it is run as part of modules load.
-            ServerTransform serverTransform = new ServerTransform("mlGenerateFunctionMetadata");
+        // This transform needs to be the camelcase prefix instead of the ml: prefix since it is run as part of modules load.
+        ServerTransform serverTransform = new ServerTransform("mlGenerateFunctionMetadata");
 
-            ApplyTransformListener transformListener = new ApplyTransformListener()
-                .withTransform(serverTransform)
-                .withApplyResult(ApplyTransformListener.ApplyResult.IGNORE)
-                .onFailure((batch, throwable) -> {
-                    logger.error(throwable.getMessage());
-                    // throw the first exception
-                    if (caughtException == null) {
-                        caughtException = throwable;
-                    }
-                });
+        ApplyTransformListener transformListener = new ApplyTransformListener()
+            .withTransform(serverTransform)
+            .withApplyResult(ApplyTransformListener.ApplyResult.IGNORE)
+            .onFailure((batch, throwable) -> {
+                logger.error(throwable.getMessage());
+                // throw the first exception
+                if (caughtException == null) {
+                    caughtException = throwable;
+                }
+            });
 
-            // Query for uris "/data-hub/5/mapping-functions/" and "/custom-modules/mapping-functions/" which are reserved for mapping functions
-            QueryBatcher queryBatcher = dataMovementManager.newQueryBatcher(
-                new StructuredQueryBuilder().or(sb.directory(true, "/data-hub/5/mapping-functions/"), sb.directory(true, "/custom-modules/mapping-functions/")))
-                .withBatchSize(1)
-                .withThreadCount(4)
-                .onUrisReady(transformListener);
+        // Query for uris "/data-hub/5/mapping-functions/" and "/custom-modules/mapping-functions/" which are reserved for mapping functions
+        QueryBatcher queryBatcher = dataMovementManager.newQueryBatcher(
+            new StructuredQueryBuilder().or(sb.directory(true, "/data-hub/5/mapping-functions/"), sb.directory(true, "/custom-modules/mapping-functions/")))
+            .withBatchSize(1)
+            .withThreadCount(4)
+            .onUrisReady(transformListener);
 
-            dataMovementManager.startJob(queryBatcher);
-            //Stop batcher if transform takes more than 2 minutes.
-            try {
-                queryBatcher.awaitCompletion(2L, TimeUnit.MINUTES);
-            } catch (InterruptedException e) {
-                logger.error("Loading function metadata timed out, took longer than 2 minutes");
-            }
-            dataMovementManager.stopJob(queryBatcher);
+        dataMovementManager.startJob(queryBatcher);
+        //Stop batcher if transform takes more than 2 minutes.
+        try {
+            queryBatcher.awaitCompletion(2L, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            logger.error("Loading function metadata timed out, took longer than 2 minutes");
+        }
+        dataMovementManager.stopJob(queryBatcher);
 
-            if (caughtException != null) {
-                throw new RuntimeException(caughtException);
-            }
-        } else {
-            logger.warn("GenerateFunctionMetadataCommand is not supported on this MarkLogic server version ");
+        if (caughtException != null) {
+            throw new RuntimeException(caughtException);
         }
     }
 }
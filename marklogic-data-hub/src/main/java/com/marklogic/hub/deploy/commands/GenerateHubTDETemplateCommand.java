@@ -125,10 +125,13 @@ public class GenerateHubTDETemplateCommand extends GenerateModelArtifactsCommand
         String xquery = "import module namespace hent = \"http://marklogic.com/data-hub/hub-entities\"\n" +
             "at \"/data-hub/5/impl/hub-entities.xqy\";\n" +
             String.format("hent:get-model(\"%s\")", extractEntityNameFromFilename(f.getName()).get());
-        try (EvalResultIterator resp = hubConfig.newStagingClient().newServerEval().xquery(xquery).eval()) {
+        DatabaseClient stagingClient = hubConfig.acquireStagingClient();
+        try (EvalResultIterator resp = stagingClient.newServerEval().xquery(xquery).eval()) {
             if (resp.hasNext()) {
                 return resp.next().getString();
             }
+        } finally {
+            hubConfig.releaseClient(stagingClient);
         }
         return null;
     }
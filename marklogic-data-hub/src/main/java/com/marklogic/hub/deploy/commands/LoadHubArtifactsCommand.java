@@ -75,8 +75,17 @@ public class LoadHubArtifactsCommand extends AbstractCommand {
 
     @Override
     public void execute(CommandContext context) {
-        DatabaseClient stagingClient = hubConfig.newStagingClient();
-        DatabaseClient finalClient = hubConfig.newFinalClient();
+        DatabaseClient stagingClient = hubConfig.acquireStagingClient();
+        DatabaseClient finalClient = hubConfig.acquireFinalClient();
+        try {
+            loadHubArtifacts(stagingClient, finalClient);
+        } finally {
+            hubConfig.releaseClient(stagingClient);
+            hubConfig.releaseClient(finalClient);
+        }
+    }
+
+    private void loadHubArtifacts(DatabaseClient stagingClient, DatabaseClient finalClient) {
 
         JSONDocumentManager finalDocMgr = finalClient.newJSONDocumentManager();
         JSONDocumentManager stagingDocMgr = stagingClient.newJSONDocumentManager();
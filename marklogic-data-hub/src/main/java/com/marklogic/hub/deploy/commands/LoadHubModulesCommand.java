@@ -58,31 +58,37 @@ public class LoadHubModulesCommand extends AbstractCommand {
         PropertiesModuleManager propsManager = new PropertiesModuleManager(timestampFile);
         propsManager.deletePropertiesFile();
 
-        DatabaseClient modulesClient = hubConfig.newModulesDbClient();
-
-        AssetFileLoader assetFileLoader = new AssetFileLoader(modulesClient);
-        prepareAssetFileLoader(assetFileLoader, context);
-
-        DefaultModulesLoader modulesLoader = new DefaultModulesLoader(assetFileLoader);
-        modulesLoader.addFailureListener((throwable, client) -> {
-            // ensure we throw the first exception
+        DatabaseClient modulesClient = hubConfig.acquireModulesDbClient();
+        DatabaseClient stagingClient = hubConfig.acquireStagingClient();
+        DatabaseClient jobDbClient = hubConfig.acquireJobDbClient();
+        try {
+            AssetFileLoader assetFileLoader = new AssetFileLoader(modulesClient);
+            prepareAssetFileLoader(assetFileLoader, context);
+
+            DefaultModulesLoader modulesLoader = new DefaultModulesLoader(assetFileLoader);
+            modulesLoader.addFailureListener((throwable, client) -> {
+                // ensure we throw the first exception
+                if (caughtException == null) {
+                    caughtException = throwable;
+                }
+            });
+            modulesLoader.setModulesManager(propsManager);
             if (caughtException == null) {
-                caughtException = throwable;
+                modulesLoader.loadModules("classpath*:/ml-modules", new DefaultModulesFinder(), modulesClient);
+                modulesLoader.loadModules("classpath*:/ml-modules-staging", new SearchOptionsFinder(), stagingClient);
             }
-        });
-        modulesLoader.setModulesManager(propsManager);
-        if (caughtException == null) {
-            modulesLoader.loadModules("classpath*:/ml-modules", new DefaultModulesFinder(), modulesClient);
-            modulesLoader.loadModules("classpath*:/ml-modules-staging", new SearchOptionsFinder(), hubConfig.newStagingClient());
-        }
-        if (caughtException == null) {
-            modulesLoader.loadModules("classpath*:/ml-modules-traces", new SearchOptionsFinder(), hubConfig.newJobDbClient());
-        }
-        if (caughtException == null) {
-            modulesLoader.loadModules("classpath*:/ml-modules-jobs", new SearchOptionsFinder(), hubConfig.newJobDbClient());
+            if (caughtException == null) {
+                modulesLoader.loadModules("classpath*:/ml-modules-traces", new SearchOptionsFinder(), jobDbClient);
+            }
+            if (caughtException == null) {
+                modulesLoader.loadModules("classpath*:/ml-modules-jobs", new SearchOptionsFinder(), jobDbClient);
+            }
+        } finally {
+            hubConfig.releaseClient(modulesClient);
+            hubConfig.releaseClient(stagingClient);
+            hubConfig.releaseClient(jobDbClient);
         }
 
-
         if (caughtException != null) {
             throw new RuntimeException(caughtException);
         }
@@ -92,8 +92,17 @@ public class LoadUserArtifactsCommand extends AbstractCommand {
 
     @Override
     public void execute(CommandContext context) {
-        DatabaseClient stagingClient = hubConfig.newStagingClient();
-        DatabaseClient finalClient = hubConfig.newFinalClient();
+        DatabaseClient stagingClient = hubConfig.acquireStagingClient();
+        DatabaseClient finalClient = hubConfig.acquireFinalClient();
+        try {
+            loadUserArtifacts(stagingClient, finalClient);
+        } finally {
+            hubConfig.releaseClient(stagingClient);
+            hubConfig.releaseClient(finalClient);
+        }
+    }
+
+    private void loadUserArtifacts(DatabaseClient stagingClient, DatabaseClient finalClient) {
 
         Path entitiesPath = hubConfig.getHubEntitiesDir();
         Path mappingsPath = hubConfig.getHubMappingsDir();
@@ -106,8 +106,8 @@ public class LoadUserModulesCommand extends LoadModulesCommand {
         return pmm;
     }
 
-    private AssetFileLoader getAssetFileLoader(AppConfig config, PropertiesModuleManager moduleManager) {
-        AssetFileLoader assetFileLoader = new AssetFileLoader(hubConfig.newModulesDbClient(), moduleManager);
+    private AssetFileLoader getAssetFileLoader(AppConfig config, DatabaseClient modulesClient, PropertiesModuleManager moduleManager) {
+        AssetFileLoader assetFileLoader = new AssetFileLoader(modulesClient, moduleManager);
         assetFileLoader.addDocumentFileProcessor(new CacheBusterDocumentFileProcessor());
         // Add file extensions to HubFileFilter.accept() to prevent mappings, entities
         // files being loaded to Modules db
@@ -116,7 +116,7 @@ public class LoadUserModulesCommand extends LoadModulesCommand {
         return assetFileLoader;
     }
 
-    private DefaultModulesLoader getStagingModulesLoader(AppConfig config) {
+    private DefaultModulesLoader getStagingModulesLoader(AppConfig config, DatabaseClient modulesClient) {
         this.threadPoolTaskExecutor = new ThreadPoolTaskExecutor();
         this.threadPoolTaskExecutor.setCorePoolSize(16);
         // 10 minutes should be plenty of time to wait for REST API modules to be loaded
@@ -125,7 +125,7 @@ public class LoadUserModulesCommand extends LoadModulesCommand {
         this.threadPoolTaskExecutor.afterPropertiesSet();
 
         PropertiesModuleManager moduleManager = getModulesManager();
-        AssetFileLoader assetFileLoader = getAssetFileLoader(config, moduleManager);
+        AssetFileLoader assetFileLoader = getAssetFileLoader(config, modulesClient, moduleManager);
 
         DefaultModulesLoader modulesLoader = new DefaultModulesLoader(assetFileLoader);
         modulesLoader.setModulesManager(moduleManager);
@@ -171,19 +171,28 @@ public class LoadUserModulesCommand extends LoadModulesCommand {
 
     @Override
     public void execute(CommandContext context) {
+        DatabaseClient stagingClient = hubConfig.acquireStagingClient();
+        DatabaseClient finalClient = hubConfig.acquireFinalClient();
+        DatabaseClient modulesClient = hubConfig.acquireModulesDbClient();
+        try {
+            loadUserModules(context, stagingClient, finalClient, modulesClient);
+        } finally {
+            hubConfig.releaseClient(stagingClient);
+            hubConfig.releaseClient(finalClient);
+            hubConfig.releaseClient(modulesClient);
+        }
+    }
 
+    private void loadUserModules(CommandContext context, DatabaseClient stagingClient, DatabaseClient finalClient, DatabaseClient modulesClient) {
         AppConfig config = context.getAppConfig();
 
-        DatabaseClient stagingClient = hubConfig.newStagingClient();
-        DatabaseClient finalClient = hubConfig.newFinalClient();
-
         Path userModulesPath = hubConfig.getHubPluginsDir();
         String baseDir = userModulesPath.normalize().toAbsolutePath().toString();
         Path startPath = userModulesPath.resolve("entities");
 
         // load any user files under plugins/* int the modules database.
         // this will ignore REST folders under entities
-        DefaultModulesLoader modulesLoader = getStagingModulesLoader(config);
+        DefaultModulesLoader modulesLoader = getStagingModulesLoader(config, modulesClient);
         setModulesLoader(modulesLoader);
         // Load modules from standard ml-gradle location after 'PropertiesModuleManager'
         // is initialized. This will ensure
@@ -212,7 +221,7 @@ public class LoadUserModulesCommand extends LoadModulesCommand {
 
         try {
             if (startPath.toFile().exists()) {
-                XMLDocumentManager documentManager = hubConfig.newModulesDbClient().newXMLDocumentManager();
+                XMLDocumentManager documentManager = modulesClient.newXMLDocumentManager();
                 DocumentWriteSet documentWriteSet = documentManager.newWriteSet();
                 // Provide default permissions for files written
                 DocumentMetadataHandle meta = new DocumentMetadataHandle();
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2012-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.flow;
+
+import com.marklogic.hub.step.impl.Step;
+
+/**
+ * A change in the status of a running job, as published by {@link RunFlowFuture#getProgress()}. It carries the same
+ * values that are passed to {@link FlowStatusListener#onStatusChanged}.
+ */
+public class FlowProgress {
+
+    private final String jobId;
+    private final Step step;
+    private final String jobStatus;
+    private final int percentComplete;
+    private final long successfulEvents;
+    private final long failedEvents;
+    private final String message;
+
+    public FlowProgress(String jobId, Step step, String jobStatus, int percentComplete, long successfulEvents, long failedEvents, String message) {
+        this.jobId = jobId;
+        this.step = step;
+        this.jobStatus = jobStatus;
+        this.percentComplete = percentComplete;
+        this.successfulEvents = successfulEvents;
+        this.failedEvents = failedEvents;
+        this.message = message;
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    /**
+     * @return the step the status is about, or null once the job has finished without any step running
+     */
+    public Step getStep() {
+        return step;
+    }
+
+    public String getJobStatus() {
+        return jobStatus;
+    }
+
+    /**
+     * @return the percentage of the step that is complete, or -1 if it can't be told yet
+     */
+    public int getPercentComplete() {
+        return percentComplete;
+    }
+
+    public long getSuccessfulEvents() {
+        return successfulEvents;
+    }
+
+    public long getFailedEvents() {
+        return failedEvents;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return jobId + " " + jobStatus + " " + percentComplete + "% (" + successfulEvents + " successful, " + failedEvents + " failed) " + message;
+    }
+}
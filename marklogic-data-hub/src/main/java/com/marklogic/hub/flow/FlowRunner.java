@@ -39,7 +39,11 @@ public interface FlowRunner {
     RunFlowResponse runFlow(String flow, String jobId, Map<String, Object> options);
 
     /**
-     * Runs the flow, with a specific set of steps, with all custom settings
+     * Runs the flow, with a specific set of steps, with all custom settings.
+     *
+     * Setting the "checkpoints" option to true makes each query step record the items it has processed in a local
+     * checkpoint journal. Setting the "resume" option to true reruns the given job, and each query step skips the
+     * items that its journal from the earlier run records as completed. A jobId is required in that case.
      *
      * @param flow the flow to run
      * @param steps the steps in the flow to run
@@ -50,7 +54,11 @@ public interface FlowRunner {
     RunFlowResponse runFlow(String flow, List<String> steps, String jobId, Map<String, Object> options);
 
     /**
-     * Runs the flow, with a specific set of steps, with all custom settings
+     * Runs the flow, with a specific set of steps, with all custom settings.
+     *
+     * Setting the "checkpoints" option to true makes each query step record the items it has processed in a local
+     * checkpoint journal. Setting the "resume" option to true reruns the given job, and each query step skips the
+     * items that its journal from the earlier run records as completed. A jobId is required in that case.
      *
      * @param flow the flow to run
      * @param steps the steps in the flow to run
@@ -78,6 +86,27 @@ public interface FlowRunner {
      */
     RunFlowResponse runFlow(String flow);
 
+    /**
+     * Runs the flow, with a specific set of steps, with all custom settings, without blocking until it has finished.
+     *
+     * @param flow the flow to run
+     * @param steps the steps in the flow to run, or null for all of them
+     * @param jobId the jobid to be used for the flow, or null to generate one
+     * @param options the key/value options to be passed
+     * @param stepConfig the key/value config to override the running of the step
+     * @return a future completed with the response once the job has finished, along with a future for each step
+     * and a publisher of the job's progress
+     */
+    RunFlowFuture runFlowAsync(String flow, List<String> steps, String jobId, Map<String, Object> options, Map<String, Object> stepConfig);
+
+    /**
+     * Runs the entire flow, with full defaults, without blocking until it has finished.
+     *
+     * @param flow the flow to run
+     * @return a future completed with the response once the job has finished
+     */
+    RunFlowFuture runFlowAsync(String flow);
+
     /**
      * Runs the flow.
      *
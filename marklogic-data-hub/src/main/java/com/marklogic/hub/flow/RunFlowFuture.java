@@ -0,0 +1,101 @@
+/*
+ * Copyright 2012-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.flow;
+
+import com.marklogic.hub.step.RunStepResponse;
+import org.reactivestreams.Publisher;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The result of a flow run started by {@link FlowRunner#runFlowAsync}, completed with the job's response once the job
+ * has finished, whatever its status. It completes exceptionally only if the job could not be run to the end, such as
+ * when the flow runner itself fails. Cancelling it stops the job.
+ *
+ * Each step of the run has its own future, completed with the step's response as soon as that step has finished;
+ * the futures of steps that never ran because the job was stopped are cancelled. Dependent stages that aren't async
+ * run on the job's thread, so callbacks that block should use the async variants.
+ */
+public class RunFlowFuture extends CompletableFuture<RunFlowResponse> {
+
+    private final String jobId;
+    private final Map<String, CompletableFuture<RunStepResponse>> stepFutures = new LinkedHashMap<>();
+    private final Publisher<FlowProgress> progress;
+    private final Runnable stopJob;
+
+    /**
+     * @param stepNums the steps that the job will run
+     * @param progress publishes the job's status changes
+     * @param stopJob stops the job when this future is cancelled
+     */
+    public RunFlowFuture(String jobId, List<String> stepNums, Publisher<FlowProgress> progress, Runnable stopJob) {
+        this.jobId = jobId;
+        for (String stepNum : stepNums) {
+            stepFutures.put(stepNum, new CompletableFuture<>());
+        }
+        this.progress = progress;
+        this.stopJob = stopJob;
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    /**
+     * @param stepNum the number of a step in the run
+     * @return the future for the step's response
+     * @throws IllegalArgumentException if the step isn't part of the run
+     */
+    public CompletableFuture<RunStepResponse> getStepFuture(String stepNum) {
+        CompletableFuture<RunStepResponse> stepFuture = stepFutures.get(stepNum);
+        if (stepFuture == null) {
+            throw new IllegalArgumentException("Step " + stepNum + " is not part of job " + jobId);
+        }
+        return stepFuture;
+    }
+
+    /**
+     * @return the futures of all the steps in the run, in the order the steps were given
+     */
+    public Map<String, CompletableFuture<RunStepResponse>> getStepFutures() {
+        return Collections.unmodifiableMap(stepFutures);
+    }
+
+    /**
+     * Publishes each status change of the job, without blocking the job while subscribers catch up. A subscriber
+     * first receives the latest status, and the stream completes once the job has finished.
+     */
+    public Publisher<FlowProgress> getProgress() {
+        return progress;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        if (cancelled) {
+            try {
+                stopJob.run();
+            } catch (RuntimeException e) {
+                // The job finished while it was being cancelled
+            }
+        }
+        return cancelled;
+    }
+}
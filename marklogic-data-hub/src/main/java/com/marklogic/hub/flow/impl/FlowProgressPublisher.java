@@ -0,0 +1,198 @@
+/*
+ * Copyright 2012-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.flow.impl;
+
+import com.marklogic.hub.flow.FlowProgress;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the status changes of one job to any number of subscribers, without ever blocking the job.
+ *
+ * Each subscriber has its own buffer of up to {@link #BUFFER_SIZE} changes that it hasn't requested yet; when a slow
+ * subscriber's buffer is full, its oldest change is dropped, since a later change supersedes it. A new subscriber
+ * first receives the latest change, if there has been one. Signals to a subscriber are delivered on whichever thread
+ * publishes or requests, one at a time.
+ */
+public class FlowProgressPublisher implements Publisher<FlowProgress> {
+
+    public static final int BUFFER_SIZE = 256;
+
+    private final List<ProgressSubscription> subscriptions = new CopyOnWriteArrayList<>();
+    private FlowProgress latest;
+    private boolean done = false;
+    private Throwable failure;
+
+    @Override
+    public void subscribe(Subscriber<? super FlowProgress> subscriber) {
+        Objects.requireNonNull(subscriber, "Subscriber cannot be null");
+        ProgressSubscription subscription = new ProgressSubscription(subscriber);
+        synchronized (this) {
+            if (latest != null) {
+                subscription.enqueue(latest);
+            }
+            if (done) {
+                subscription.terminate(failure);
+            }
+            else {
+                subscriptions.add(subscription);
+            }
+        }
+        subscriber.onSubscribe(subscription);
+        subscription.ready = true;
+        subscription.drain();
+    }
+
+    public void publish(FlowProgress progress) {
+        List<ProgressSubscription> current;
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            latest = progress;
+            current = new ArrayList<>(subscriptions);
+            current.forEach(subscription -> subscription.enqueue(progress));
+        }
+        current.forEach(ProgressSubscription::drain);
+    }
+
+    /**
+     * Completes every subscription once its buffered changes have been delivered.
+     *
+     * @param failure the error to signal instead of completing, or null
+     */
+    public void complete(Throwable failure) {
+        List<ProgressSubscription> current;
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            done = true;
+            this.failure = failure;
+            current = new ArrayList<>(subscriptions);
+            subscriptions.clear();
+            current.forEach(subscription -> subscription.terminate(failure));
+        }
+        current.forEach(ProgressSubscription::drain);
+    }
+
+    int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    private class ProgressSubscription implements Subscription {
+        private final Subscriber<? super FlowProgress> subscriber;
+        private final ArrayDeque<FlowProgress> buffer = new ArrayDeque<>();
+        private final AtomicLong requested = new AtomicLong();
+        // Serializes signals: only the thread that raises it from zero delivers them
+        private final AtomicInteger pendingDrains = new AtomicInteger();
+        private volatile boolean ready = false;
+        private volatile boolean cancelled = false;
+        private volatile boolean terminated = false;
+        private volatile Throwable error;
+        private boolean terminalSignalled = false;
+
+        ProgressSubscription(Subscriber<? super FlowProgress> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        void enqueue(FlowProgress progress) {
+            synchronized (buffer) {
+                if (buffer.size() == BUFFER_SIZE) {
+                    buffer.poll();
+                }
+                buffer.add(progress);
+            }
+        }
+
+        void terminate(Throwable failure) {
+            error = failure;
+            terminated = true;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                // As the Reactive Streams specification requires for a non-positive request
+                terminate(new IllegalArgumentException("Subscribers must request a positive number of changes, not " + n));
+                synchronized (buffer) {
+                    buffer.clear();
+                }
+            }
+            else {
+                requested.getAndUpdate(current -> current + n < 0 ? Long.MAX_VALUE : current + n);
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            subscriptions.remove(this);
+            synchronized (buffer) {
+                buffer.clear();
+            }
+        }
+
+        void drain() {
+            if (!ready || pendingDrains.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                while (!cancelled && !terminalSignalled) {
+                    FlowProgress next = null;
+                    boolean empty;
+                    synchronized (buffer) {
+                        if (requested.get() > 0) {
+                            next = buffer.poll();
+                        }
+                        empty = buffer.isEmpty();
+                    }
+                    if (next != null) {
+                        if (requested.get() != Long.MAX_VALUE) {
+                            requested.decrementAndGet();
+                        }
+                        subscriber.onNext(next);
+                    }
+                    else {
+                        if (terminated && empty) {
+                            terminalSignalled = true;
+                            subscriptions.remove(this);
+                            if (error != null) {
+                                subscriber.onError(error);
+                            }
+                            else {
+                                subscriber.onComplete();
+                            }
+                        }
+                        break;
+                    }
+                }
+                missed = pendingDrains.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+}
@@ -2,18 +2,29 @@ package com.marklogic.hub.flow.impl;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.marklogic.client.DatabaseClient;
 import com.marklogic.hub.FlowManager;
+import com.marklogic.hub.collector.DiskQueue;
+import com.marklogic.hub.collector.StreamingUriQueue;
 import com.marklogic.hub.flow.Flow;
+import com.marklogic.hub.flow.FlowProgress;
 import com.marklogic.hub.flow.FlowRunner;
 import com.marklogic.hub.flow.FlowStatusListener;
+import com.marklogic.hub.flow.RunFlowFuture;
 import com.marklogic.hub.flow.RunFlowResponse;
 import com.marklogic.hub.impl.HubConfigImpl;
 import com.marklogic.hub.job.JobDocManager;
+import com.marklogic.hub.job.JobDocWriter;
 import com.marklogic.hub.job.JobStatus;
 import com.marklogic.hub.step.RunStepResponse;
+import com.marklogic.hub.step.StepBatchCompleteListener;
+import com.marklogic.hub.step.StepDefinition;
 import com.marklogic.hub.step.StepRunner;
 import com.marklogic.hub.step.StepRunnerFactory;
 import com.marklogic.hub.step.impl.Step;
+import com.marklogic.hub.util.metrics.tracer.JaegerConfig;
+import io.opentracing.Scope;
+import io.opentracing.Span;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -21,9 +32,11 @@ import org.springframework.stereotype.Component;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
@@ -39,28 +52,89 @@ public class FlowRunnerImpl implements FlowRunner{
     @Autowired
     private StepRunnerFactory stepRunnerFactory;
 
-    private AtomicBoolean isRunning = new AtomicBoolean(false);
-    private AtomicBoolean isJobCancelled = new AtomicBoolean(false);
-    private AtomicBoolean isJobSuccess = new AtomicBoolean(true);
-    private AtomicBoolean jobStoppedOnError = new AtomicBoolean(false);
     protected final Logger logger = LoggerFactory.getLogger(getClass());
 
-    private String runningJobId;
-    private Step runningStep;
-    private Flow runningFlow;
-
-    private StepRunner stepRunner;
-
-    private final Map<String, Queue<String>> stepsMap = new ConcurrentHashMap<>();
-    private Map<String, Flow> flowMap = new ConcurrentHashMap<>();
+    // Jobs that are queued or running, in the order they were submitted; also used to lock changes to the thread pool
+    private final Map<String, FlowJob> activeJobs = new LinkedHashMap<>();
     private Map<String, RunFlowResponse> flowResp = new ConcurrentHashMap<>();
-    private Queue<String> jobQueue = new ConcurrentLinkedQueue<>();
 
     private List<FlowStatusListener> flowStatusListeners = new ArrayList<>();
 
     private ThreadPoolExecutor threadPool;
     private JobDocManager jobDocManager;
-    private boolean disableJobOutput = false;
+    private DatabaseClient jobDbClient;
+    private int maxConcurrentJobs = 1;
+
+    // Threads that the steps of a job can use at once when they run in parallel: four steps at the default thread count
+    private static final int DEFAULT_STEP_THREAD_BUDGET = 16;
+    private static final long DEFAULT_JOB_DOC_FLUSH_INTERVAL = 1000;
+
+    /**
+     * Holds the state of one job, so that jobs running at the same time don't share any.
+     */
+    private static class FlowJob {
+        final String jobId;
+        final Flow flow;
+        final Queue<String> stepQueue;
+        final RunFlowResponse response;
+        final boolean disableJobOutput;
+        final AtomicBoolean isJobCancelled = new AtomicBoolean(false);
+        final AtomicBoolean isJobSuccess = new AtomicBoolean(true);
+        final AtomicBoolean jobStoppedOnError = new AtomicBoolean(false);
+        final CountDownLatch finished = new CountDownLatch(1);
+        volatile boolean started = false;
+        volatile Step runningStep;
+        final Map<String, StepRunner> stepRunners = new ConcurrentHashMap<>();
+        // Set when steps run as soon as their dependencies have finished, rather than one at a time
+        StepGraph stepGraph;
+        int threadBudget;
+        // Set when each step hands the URIs it has written to the next step instead of the next step collecting them
+        boolean chainSteps;
+        boolean overlapChainedSteps;
+        // How long job document updates may be queued when they are written behind, or -1 to write them straight away
+        long jobDocFlushInterval = -1;
+        final List<Map<String, Object>> timeline = Collections.synchronizedList(new ArrayList<>());
+        final FlowProgressPublisher progress = new FlowProgressPublisher();
+        RunFlowFuture future;
+        // The root span of the job's trace, started when the job starts
+        volatile Span span;
+
+        FlowJob(String jobId, Flow flow, Queue<String> stepQueue, RunFlowResponse response, boolean disableJobOutput) {
+            this.jobId = jobId;
+            this.flow = flow;
+            this.stepQueue = stepQueue;
+            this.response = response;
+            this.disableJobOutput = disableJobOutput;
+        }
+    }
+
+    /**
+     * Sets how many jobs can run at the same time; further jobs are queued and run in the order they were submitted.
+     * Defaults to 1, so that each job runs after the one before it has finished.
+     *
+     * @param maxConcurrentJobs the maximum number of jobs to run at once
+     */
+    public void setMaxConcurrentJobs(int maxConcurrentJobs) {
+        if (maxConcurrentJobs < 1) {
+            throw new IllegalArgumentException("The maximum number of concurrent jobs must be at least 1");
+        }
+        synchronized (activeJobs) {
+            this.maxConcurrentJobs = maxConcurrentJobs;
+            if (threadPool != null && !threadPool.isShutdown()) {
+                if (maxConcurrentJobs > threadPool.getMaximumPoolSize()) {
+                    threadPool.setMaximumPoolSize(maxConcurrentJobs);
+                    threadPool.setCorePoolSize(maxConcurrentJobs);
+                } else {
+                    threadPool.setCorePoolSize(maxConcurrentJobs);
+                    threadPool.setMaximumPoolSize(maxConcurrentJobs);
+                }
+            }
+        }
+    }
+
+    public int getMaxConcurrentJobs() {
+        return maxConcurrentJobs;
+    }
 
     @Override
     public FlowRunner onStatusChanged(FlowStatusListener listener) {
@@ -93,10 +167,24 @@ public class FlowRunnerImpl implements FlowRunner{
     }
 
     public RunFlowResponse runFlow(String flowName, List<String> stepNums, String jobId, Map<String, Object> options, Map<String, Object> stepConfig) {
+        return submitJob(flowName, stepNums, jobId, options, stepConfig).response;
+    }
+
+    public RunFlowFuture runFlowAsync(String flowName) {
+        return runFlowAsync(flowName, null, null, new HashMap<>(), new HashMap<>());
+    }
+
+    public RunFlowFuture runFlowAsync(String flowName, List<String> stepNums, String jobId, Map<String, Object> options, Map<String, Object> stepConfig) {
+        return submitJob(flowName, stepNums, jobId, options, stepConfig).future;
+    }
+
+    private FlowJob submitJob(String flowName, List<String> stepNums, String jobId, Map<String, Object> options, Map<String, Object> stepConfig) {
+        boolean disableJobOutput = false;
         if (options != null && options.containsKey("disableJobOutput")) {
             disableJobOutput = Boolean.parseBoolean(options.get("disableJobOutput").toString());
-        } else {
-            disableJobOutput = false;
+        }
+        if (options != null && options.get("resume") != null && Boolean.parseBoolean(options.get("resume").toString()) && jobId == null) {
+            throw new IllegalArgumentException("A job ID is required when resuming a flow");
         }
 
         Flow flow = flowManager.getFlow(flowName);
@@ -131,203 +219,202 @@ public class FlowRunnerImpl implements FlowRunner{
             jobId = UUID.randomUUID().toString();
         }
         RunFlowResponse response = new RunFlowResponse(jobId);
+        FlowJob job = new FlowJob(jobId, flow, stepsQueue, response, disableJobOutput);
+        job.future = new RunFlowFuture(jobId, new ArrayList<>(stepsQueue), job.progress, () -> stopJob(job.jobId));
+
+        // With the "parallelSteps" option, or when steps declare "dependsOn", each step runs as soon as the steps it
+        // depends on have finished, and "stepThreadBudget" caps the threads used by the steps running at once
+        boolean parallelSteps = options != null && options.get("parallelSteps") != null && Boolean.parseBoolean(options.get("parallelSteps").toString());
+        if (parallelSteps || StepGraph.declaresDependencies(flow, stepNums)) {
+            job.stepGraph = StepGraph.build(flow, new ArrayList<>(stepsQueue), parallelSteps);
+            job.threadBudget = DEFAULT_STEP_THREAD_BUDGET;
+            if (options != null && options.get("stepThreadBudget") != null) {
+                job.threadBudget = Integer.parseInt(options.get("stepThreadBudget").toString());
+                if (job.threadBudget < 1) {
+                    throw new IllegalArgumentException("stepThreadBudget must be at least 1");
+                }
+            }
+        }
 
-        //Put response, steps and flow in maps with jobId as key
-        flowResp.put(jobId, response);
-        stepsMap.put(jobId, stepsQueue);
-        flowMap.put(jobId, flow);
-
-        //add jobId to a queue
-        jobQueue.add(jobId);
-        if(!isRunning.get()){
-            initializeFlow(jobId);
+        // With the "chainSteps" option, a step runs over the URIs written by the step before it rather than running
+        // its collector, and "overlapChainedSteps" starts it as soon as the step before it has written its first batch
+        job.chainSteps = options != null && options.get("chainSteps") != null && Boolean.parseBoolean(options.get("chainSteps").toString());
+        if (job.chainSteps && job.stepGraph != null) {
+            logger.warn("Ignoring chainSteps for job " + jobId + " because its steps don't run one after another");
+            job.chainSteps = false;
+        }
+        job.overlapChainedSteps = job.chainSteps && options.get("overlapChainedSteps") != null &&
+            Boolean.parseBoolean(options.get("overlapChainedSteps").toString());
+
+        // With the "jobDocWriteBehind" option, job document updates are queued and sent together when a step ends or
+        // "jobDocFlushInterval" milliseconds after they were queued; an interval of 0 sends them only when a step ends
+        if (!disableJobOutput && options != null && options.get("jobDocWriteBehind") != null && Boolean.parseBoolean(options.get("jobDocWriteBehind").toString())) {
+            job.jobDocFlushInterval = DEFAULT_JOB_DOC_FLUSH_INTERVAL;
+            if (options.get("jobDocFlushInterval") != null) {
+                job.jobDocFlushInterval = Long.parseLong(options.get("jobDocFlushInterval").toString());
+                if (job.jobDocFlushInterval < 0) {
+                    throw new IllegalArgumentException("jobDocFlushInterval cannot be negative");
+                }
+            }
         }
-        return response;
-    }
 
-    private void initializeFlow(String jobId) {
-        //Reset the states to initial values before starting a flow run
-        isRunning.set(true);
-        isJobSuccess.set(true);
-        isJobCancelled.set(false);
-        jobStoppedOnError.set(false);
-        runningJobId = jobId;
-        runningFlow = flowMap.get(runningJobId);
-        if(jobDocManager == null && !disableJobOutput) {
-            jobDocManager = new JobDocManager(hubConfig.newJobDbClient());
-        }
-        if(threadPool == null || threadPool.isTerminated()) {
-            threadPool = new CustomPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS
-                , new LinkedBlockingQueue<Runnable>());
-        }
-        threadPool.execute(new FlowRunnerTask(runningFlow, runningJobId));
+        synchronized (activeJobs) {
+            if (activeJobs.containsKey(jobId)) {
+                throw new IllegalArgumentException("Job " + jobId + " is already queued or running");
+            }
+            flowResp.put(jobId, response);
+            activeJobs.put(jobId, job);
+            if(!disableJobOutput && jobDocManager == null) {
+                jobDbClient = hubConfig.acquireJobDbClient();
+                jobDocManager = new JobDocManager(jobDbClient);
+            }
+            if(threadPool == null || threadPool.isShutdown()) {
+                threadPool = new CustomPoolExecutor(maxConcurrentJobs, maxConcurrentJobs, 0L, TimeUnit.MILLISECONDS
+                    , new LinkedBlockingQueue<Runnable>());
+            }
+            threadPool.execute(new FlowRunnerTask(job));
+        }
+        return job;
     }
 
-    public void stopJob(String jobId) {
-        synchronized (stepsMap) {
-            if(stepsMap.get(jobId) != null){
-                stepsMap.get(jobId).clear();
-                stepsMap.remove(jobId);
-                isJobCancelled.set(true);
+    /**
+     * Removes a job once it has finished, and shuts the thread pool down once no jobs are left. Then completes the
+     * job's futures and progress, outside the lock, since dependent stages run on this thread.
+     *
+     * @param failure the error that kept the job from running to the end, or null
+     */
+    private void finishJob(FlowJob job, Throwable failure) {
+        JaegerConfig.finish(job.span, failure);
+        if (job.jobDocFlushInterval >= 0) {
+            try {
+                // Sends anything still queued, such as the updates of a job whose runner failed
+                JobDocWriter.shared().unregister(job.jobId);
+            } catch (Exception e) {
+                logger.error(e.getMessage());
+            }
+        }
+        synchronized (activeJobs) {
+            activeJobs.remove(job.jobId);
+            flowResp.remove(job.jobId);
+            job.finished.countDown();
+            if (activeJobs.isEmpty()) {
+                if (threadPool != null) {
+                    threadPool.shutdown();
+                }
+                // Hand the job client back to the cache; the next job to start acquires it again
+                if (jobDbClient != null) {
+                    hubConfig.releaseClient(jobDbClient);
+                    jobDbClient = null;
+                    jobDocManager = null;
+                }
+                activeJobs.notifyAll();
+            }
+        }
+        job.progress.complete(failure);
+        for (CompletableFuture<RunStepResponse> stepFuture : job.future.getStepFutures().values()) {
+            if (failure != null) {
+                stepFuture.completeExceptionally(failure);
             }
             else {
-                throw new RuntimeException("Job not running");
+                // The step never ran because the job was stopped
+                stepFuture.cancel(false);
             }
         }
-        if (jobId.equals(runningJobId)) {
-            if(stepRunner != null){
-                stepRunner.stop();
+        if (failure != null) {
+            job.future.completeExceptionally(failure);
+        }
+        else {
+            job.future.complete(job.response);
+        }
+    }
+
+    /**
+     * Stops a job. A job that is still queued is canceled before any of its steps run.
+     *
+     * @param jobId the id of the job to stop
+     */
+    public void stopJob(String jobId) {
+        FlowJob job;
+        synchronized (activeJobs) {
+            job = activeJobs.get(jobId);
+            if (job == null || (job.stepQueue.isEmpty() && job.isJobCancelled.get())) {
+                throw new RuntimeException("Job not running");
             }
+            job.stepQueue.clear();
+            job.isJobCancelled.set(true);
         }
+        job.stepRunners.values().forEach(StepRunner::stop);
     }
 
     private class FlowRunnerTask implements Runnable {
-        private String jobId;
-        private Flow flow;
-        private Queue<String> stepQueue;
+        private final FlowJob job;
 
-        public Queue<String> getStepQueue() {
-            return stepQueue;
-        }
-
-        FlowRunnerTask(Flow flow, String jobId) {
-            this.jobId = jobId;
-            this.flow = flow;
+        public FlowJob getJob() {
+            return job;
         }
 
-        FlowRunnerTask(Flow flow, String jobId, Queue<String> stepQueue) {
-            this.jobId = jobId;
-            this.flow = flow;
-            this.stepQueue = stepQueue;
+        FlowRunnerTask(FlowJob job) {
+            this.job = job;
         }
 
         @Override
         public void run() {
-            RunFlowResponse resp = flowResp.get(runningJobId);
-            resp.setFlowName(runningFlow.getName());
-            stepQueue = stepsMap.get(jobId);
+            // Each job is a trace, with a child span for each step
+            job.span = JaegerConfig.buildSpan("flow")
+                .withTag("flow", job.flow.getName())
+                .withTag("jobId", job.jobId)
+                .start();
+            try (Scope ignored = JaegerConfig.activate(job.span)) {
+                runJob();
+            }
+        }
+
+        private void runJob() {
+            final String jobId = job.jobId;
+            final Flow flow = job.flow;
+            job.started = true;
+            if (job.jobDocFlushInterval >= 0) {
+                JobDocWriter.shared().register(jobId, job.jobDocFlushInterval);
+            }
+            RunFlowResponse resp = job.response;
+            resp.setFlowName(flow.getName());
+            Queue<String> stepQueue = job.stepQueue;
 
             Map<String, RunStepResponse> stepOutputs = new HashMap<>();
-            String stepNum = null;
 
             final long[] currSuccessfulEvents = {0};
             final long[] currFailedEvents = {0};
             final int[] currPercentComplete = {0};
-            while (! stepQueue.isEmpty()) {
-                stepNum = stepQueue.poll();
-                runningStep = runningFlow.getSteps().get(stepNum);
-                Map<String, Object> optsMap ;
-                if(flow.getOverrideOptions() != null) {
-                    optsMap = new HashMap<>(flow.getOverrideOptions());
-                }
-                else {
-                    optsMap = new HashMap<>();
-                }
-
-                AtomicLong errorCount = new AtomicLong();
-                AtomicLong successCount = new AtomicLong();
-                /*  If an exception occurs in step execution, we don't want the thread to die and affect other step execution.
-                    If an exception occurs, the exception message is written to job output
-                 */
-                RunStepResponse stepResp = null;
-                //Initializing stepBatchSize to default flow batch size
-
-                try {
-                    stepRunner = stepRunnerFactory.getStepRunner(runningFlow, stepNum)
-                        .withJobId(jobId)
-                        .withOptions(optsMap)
-                        .onItemComplete((jobID, itemID) -> {
-                            successCount.incrementAndGet();
-                        })
-                        .onItemFailed((jobId, itemId)-> {
-                            errorCount.incrementAndGet();
-                            if(flow.isStopOnError()){
-                                jobStoppedOnError.set(true);
-                                stopJob(jobId);
-                            }
-                        })
-                        .onStatusChanged((jobId, percentComplete, jobStatus, successfulEvents, failedEvents, message) ->{
-                            flowStatusListeners.forEach((FlowStatusListener listener) -> {
-                                currSuccessfulEvents[0] = successfulEvents;
-                                currFailedEvents[0] = failedEvents;
-                                currPercentComplete[0] = percentComplete;
-                                listener.onStatusChanged(jobId, runningStep, jobStatus, percentComplete, successfulEvents, failedEvents, runningStep.getName() + " : " + message);
-                            });
-                        });
-                    //If step doc doesn't have batchnum and thread count specified, fallback to flow's values.
-                    Map<String,Step> steps = runningFlow.getSteps();
-                    Step step = steps.get(stepNum);
-
-                    //If property values are overriden in UI, use those values over any other.
-                    if(flow.getOverrideStepConfig() != null) {
-                        stepRunner.withStepConfig(flow.getOverrideStepConfig());
-                    }
-
-                    stepResp = stepRunner.run();
-                    stepRunner.awaitCompletion();
-                }
-                catch (Exception e) {
-                    stepResp = RunStepResponse.withFlow(flow).withStep(stepNum);
-                    stepResp.withJobId(runningJobId);
-                    if(stepRunner != null){
-                        stepResp.setCounts(successCount.get() + errorCount.get(), successCount.get(), errorCount.get(), (long) Math.ceil((double) successCount.get() / stepRunner.getBatchSize()), (long) Math.ceil((double) errorCount.get() / stepRunner.getBatchSize()));
-                    }
-                    else {
-                        stepResp.setCounts(0, 0, 0, 0, 0);
-                    }
-
-                    StringWriter errors = new StringWriter();
-                    e.printStackTrace(new PrintWriter(errors));
-                    stepResp.withStepOutput(errors.toString());
-                    stepResp.withSuccess(false);
-                    if(successCount.get() > 0) {
-                        stepResp.withStatus(JobStatus.COMPLETED_WITH_ERRORS_PREFIX + stepNum);
-                    }
-                    else{
-                        stepResp.withStatus(JobStatus.FAILED_PREFIX + stepNum);
-                    }
-                    if (!disableJobOutput) {
-                        try {
-                            jobDocManager.postJobs(jobId, JobStatus.FAILED_PREFIX + stepNum, stepNum, null, stepResp);
-                        } catch (Exception ex) {
-                            logger.error(ex.getMessage());
-                        }
-                    }
-                    RunStepResponse finalStepResp = stepResp;
-                    try {
-                        flowStatusListeners.forEach((FlowStatusListener listener) -> {
-                            listener.onStatusChanged(jobId, runningStep, JobStatus.FAILED.toString(), currPercentComplete[0], currSuccessfulEvents[0], currFailedEvents[0],
-                                runningStep.getName() + " " + Arrays.toString(finalStepResp.stepOutput.toArray()));
-                        });
-                    } catch (Exception ex) {
-                        logger.error(ex.getMessage());
-                    }
-                    if(runningFlow.isStopOnError()) {
-                        jobStoppedOnError.set(true);
-                        stopJob(runningJobId);
-                    }
-                }
-                finally {
-                    stepOutputs.put(stepNum, stepResp);
-                    if(! stepResp.isSuccess()) {
-                        isJobSuccess.set(false);
+            if (job.chainSteps) {
+                runChainedSteps(stepOutputs, currSuccessfulEvents, currFailedEvents, currPercentComplete);
+            }
+            else if (job.stepGraph == null) {
+                while (! stepQueue.isEmpty()) {
+                    String stepNum = stepQueue.poll();
+                    if (stepNum == null) {
+                        // The job was stopped between the check and the poll
+                        break;
                     }
+                    stepOutputs.put(stepNum, runStep(stepNum, null, null, null, currSuccessfulEvents, currFailedEvents, currPercentComplete));
                 }
             }
+            else {
+                runStepGraph(stepOutputs, currSuccessfulEvents, currFailedEvents, currPercentComplete);
+            }
 
             resp.setStepResponses(stepOutputs);
 
             final JobStatus jobStatus;
             //Update status of job
-            if (isJobCancelled.get()) {
-                if(runningFlow.isStopOnError() && jobStoppedOnError.get()){
+            if (job.isJobCancelled.get()) {
+                if(flow.isStopOnError() && job.jobStoppedOnError.get()){
                     jobStatus = JobStatus.STOP_ON_ERROR;
                 }
                 else {
                     jobStatus = JobStatus.CANCELED;
                 }
             }
-            else if (!isJobSuccess.get()) {
+            else if (!job.isJobSuccess.get()) {
                     Collection<RunStepResponse> stepResps = stepOutputs.values();
                     long failedStepCount = stepResps.stream().filter((stepResp)-> stepResp.getStatus()
                         .contains(JobStatus.FAILED_PREFIX)).collect(Collectors.counting());
@@ -342,9 +429,15 @@ public class FlowRunnerImpl implements FlowRunner{
                 jobStatus = JobStatus.FINISHED;
             }
             resp.setJobStatus(jobStatus.toString());
+            job.span.setTag("status", jobStatus.toString());
             try {
-                if (!disableJobOutput) {
-                    jobDocManager.updateJobStatus(jobId, jobStatus);
+                if (!job.disableJobOutput) {
+                    if (job.stepGraph != null) {
+                        jobDocManager.updateJobStatus(jobId, jobStatus, new ArrayList<>(job.timeline));
+                    }
+                    else {
+                        jobDocManager.updateJobStatus(jobId, jobStatus);
+                    }
                 }
             }
             catch (Exception e) {
@@ -352,8 +445,9 @@ public class FlowRunnerImpl implements FlowRunner{
             }
             finally {
                 JsonNode jobNode = null;
-                if (!disableJobOutput) {
+                if (!job.disableJobOutput) {
                     try {
+                        // When updates are written behind, this sends the job's final status and returns the document
                         jobNode = jobDocManager.getJobDocument(jobId);
                     } catch (Exception e) {
                         logger.error(e.getMessage());
@@ -374,10 +468,10 @@ public class FlowRunnerImpl implements FlowRunner{
                     }
                 }
 
-                if (!isJobSuccess.get()) {
+                if (!job.isJobSuccess.get()) {
                     try {
                         flowStatusListeners.forEach((FlowStatusListener listener) -> {
-                            listener.onStatusChanged(jobId, runningStep, jobStatus.toString(), currPercentComplete[0], currSuccessfulEvents[0], currFailedEvents[0], JobStatus.FAILED.toString());
+                            listener.onStatusChanged(jobId, job.runningStep, jobStatus.toString(), currPercentComplete[0], currSuccessfulEvents[0], currFailedEvents[0], JobStatus.FAILED.toString());
                         });
                     } catch (Exception ex) {
                         logger.error(ex.getMessage());
@@ -385,28 +479,345 @@ public class FlowRunnerImpl implements FlowRunner{
                 } else {
                     try {
                         flowStatusListeners.forEach((FlowStatusListener listener) -> {
-                            listener.onStatusChanged(jobId, runningStep, jobStatus.toString(), currPercentComplete[0], currSuccessfulEvents[0], currFailedEvents[0], JobStatus.FINISHED.toString());
+                            listener.onStatusChanged(jobId, job.runningStep, jobStatus.toString(), currPercentComplete[0], currSuccessfulEvents[0], currFailedEvents[0], JobStatus.FINISHED.toString());
                         });
                     } catch (Exception ex) {
                         logger.error(ex.getMessage());
                     }
                 }
 
-                jobQueue.remove();
-                stepsMap.remove(jobId);
-                flowMap.remove(jobId);
-                flowResp.remove(runningJobId);
-                if (!jobQueue.isEmpty()) {
-                    initializeFlow((String) jobQueue.peek());
-                } else {
-                    isRunning.set(false);
-                    threadPool.shutdownNow();
-                    runningFlow = null;
+                job.progress.publish(new FlowProgress(jobId, job.runningStep, jobStatus.toString(), currPercentComplete[0], currSuccessfulEvents[0], currFailedEvents[0],
+                    job.isJobSuccess.get() ? JobStatus.FINISHED.toString() : JobStatus.FAILED.toString()));
+                finishJob(job, null);
+            }
+        }
+
+        /**
+         * Runs each step once the steps it depends on have finished, so that independent steps run at the same time.
+         * While it runs, a step holds as many permits from the job's thread budget as it has threads.
+         */
+        private void runStepGraph(Map<String, RunStepResponse> stepOutputs, long[] currSuccessfulEvents, long[] currFailedEvents, int[] currPercentComplete) {
+            StepGraph graph = job.stepGraph;
+            Semaphore threadBudget = new Semaphore(job.threadBudget, true);
+            AtomicInteger threadNumber = new AtomicInteger(0);
+            ExecutorService stepPool = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "flow-" + job.jobId + "-step-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            CompletionService<String> completionService = new ExecutorCompletionService<>(stepPool);
+            Map<String, RunStepResponse> results = new ConcurrentHashMap<>();
+            Set<String> finished = new HashSet<>();
+            int running = 0;
+            try {
+                while (true) {
+                    for (String stepNum : graph.getSteps()) {
+                        // Removing the step from the queue claims it; a stopped job has an empty queue
+                        if (graph.isReady(stepNum, finished) && job.stepQueue.remove(stepNum)) {
+                            completionService.submit(() -> {
+                                results.put(stepNum, runStep(stepNum, threadBudget, null, null, currSuccessfulEvents, currFailedEvents, currPercentComplete));
+                                return stepNum;
+                            });
+                            running++;
+                        }
+                    }
+                    if (running == 0) {
+                        break;
+                    }
+                    String stepNum = completionService.take().get();
+                    running--;
+                    finished.add(stepNum);
+                    stepOutputs.put(stepNum, results.get(stepNum));
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while running the steps of job " + job.jobId, e);
+            }
+            catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+            finally {
+                stepPool.shutdown();
+            }
+        }
+
+        /**
+         * Runs the steps one after another, each over the URIs that the step before it wrote; only the first step runs
+         * its collector, and ingestion steps still read their files. When steps overlap, the step before keeps running
+         * on its own thread while the next one processes its URIs as they arrive.
+         */
+        private void runChainedSteps(Map<String, RunStepResponse> stepOutputs, long[] currSuccessfulEvents, long[] currFailedEvents, int[] currPercentComplete) {
+            Map<String, Future<RunStepResponse>> results = new LinkedHashMap<>();
+            AtomicInteger threadNumber = new AtomicInteger(0);
+            ExecutorService stepPool = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "flow-" + job.jobId + "-step-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            Collection<String> inputUris = null;
+            try {
+                while (! job.stepQueue.isEmpty()) {
+                    String stepNum = job.stepQueue.poll();
+                    if (stepNum == null) {
+                        break;
+                    }
+                    String nextStepNum = job.stepQueue.peek();
+                    // Ingestion steps read files rather than URIs, so nothing is handed to them
+                    StepHandoff handoff = nextStepNum != null && !StepDefinition.StepDefinitionType.INGESTION.equals(job.flow.getStep(nextStepNum).getStepDefinitionType()) ?
+                        new StepHandoff(job.overlapChainedSteps) : null;
+                    final Collection<String> stepInput = inputUris;
+                    Callable<RunStepResponse> task = () -> {
+                        try {
+                            return runStep(stepNum, null, stepInput, handoff, currSuccessfulEvents, currFailedEvents, currPercentComplete);
+                        } finally {
+                            if (handoff != null) {
+                                handoff.finish(job.isJobCancelled.get());
+                            }
+                        }
+                    };
+                    if (handoff != null && job.overlapChainedSteps) {
+                        results.put(stepNum, stepPool.submit(task));
+                    }
+                    else {
+                        FutureTask<RunStepResponse> future = new FutureTask<>(task);
+                        future.run();
+                        results.put(stepNum, future);
+                    }
+                    inputUris = handoff != null ? handoff.getUris() : null;
+                }
+                for (Map.Entry<String, Future<RunStepResponse>> result : results.entrySet()) {
+                    stepOutputs.put(result.getKey(), result.getValue().get());
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while running the steps of job " + job.jobId, e);
+            }
+            catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+            finally {
+                stepPool.shutdown();
+            }
+        }
+
+        /**
+         * Runs a single step and waits for it to finish. A step that fails is recorded in its response, and only
+         * stops the job if the flow stops on error.
+         *
+         * @param threadBudget the permits to hold while the step runs, or null when steps run one at a time
+         * @param inputUris the URIs to run the step over instead of running its collector, or null
+         * @param handoff receives the URIs the step has written, for the next step to run over, or null
+         */
+        private RunStepResponse runStep(String stepNum, Semaphore threadBudget, Collection<String> inputUris, StepHandoff handoff,
+                                        long[] currSuccessfulEvents, long[] currFailedEvents, int[] currPercentComplete) {
+            final String jobId = job.jobId;
+            final Flow flow = job.flow;
+            final Step step = flow.getSteps().get(stepNum);
+            job.runningStep = step;
+            Map<String, Object> optsMap ;
+            if(flow.getOverrideOptions() != null) {
+                optsMap = new HashMap<>(flow.getOverrideOptions());
+            }
+            else {
+                optsMap = new HashMap<>();
+            }
+
+            AtomicLong errorCount = new AtomicLong();
+            AtomicLong successCount = new AtomicLong();
+            /*  If an exception occurs in step execution, we don't want the thread to die and affect other step execution.
+                If an exception occurs, the exception message is written to job output
+             */
+            RunStepResponse stepResp = null;
+            Map<String, Object> timelineEntry = new LinkedHashMap<>();
+            if (threadBudget != null) {
+                timelineEntry.put("step", stepNum);
+                timelineEntry.put("name", step.getName());
+                timelineEntry.put("dependsOn", new ArrayList<>(job.stepGraph.getDependencies(stepNum)));
+                timelineEntry.put("readyTime", Instant.now().toString());
+            }
+            StepRunner stepRunner = null;
+            Span stepSpan = null;
+            Throwable stepError = null;
+            //Initializing stepBatchSize to default flow batch size
+
+            try {
+                stepRunner = stepRunnerFactory.getStepRunner(flow, stepNum)
+                    .withJobId(jobId)
+                    .withOptions(optsMap)
+                    .onBatchComplete((jobID, completedItems, successfulCount, failedCount) -> {
+                        successCount.addAndGet(successfulCount);
+                    })
+                    .onBatchFailed((jobID, failedItems, failedCount)-> {
+                        errorCount.addAndGet(failedCount);
+                        if(flow.isStopOnError()){
+                            job.jobStoppedOnError.set(true);
+                            stopJob(jobID);
+                        }
+                    })
+                    .onStatusChanged((jobID, percentComplete, jobStatus, successfulEvents, failedEvents, message) ->{
+                        flowStatusListeners.forEach((FlowStatusListener listener) -> {
+                            currSuccessfulEvents[0] = successfulEvents;
+                            currFailedEvents[0] = failedEvents;
+                            currPercentComplete[0] = percentComplete;
+                            listener.onStatusChanged(jobID, step, jobStatus, percentComplete, successfulEvents, failedEvents, step.getName() + " : " + message);
+                        });
+                        job.progress.publish(new FlowProgress(jobID, step, jobStatus, percentComplete, successfulEvents, failedEvents, step.getName() + " : " + message));
+                    });
+                if (handoff != null) {
+                    stepRunner.onBatchComplete(handoff);
+                }
+                job.stepRunners.put(stepNum, stepRunner);
+                if (job.isJobCancelled.get()) {
+                    // Stopped while the step runner was being built, before it could be stopped
+                    stepRunner.stop();
+                }
+
+                //If property values are overriden in UI, use those values over any other.
+                if(flow.getOverrideStepConfig() != null) {
+                    stepRunner.withStepConfig(flow.getOverrideStepConfig());
+                }
+
+                int permits = 0;
+                if (threadBudget != null) {
+                    // A step with more threads than the whole budget runs on its own
+                    permits = Math.max(1, Math.min(job.threadBudget, stepRunner.getThreadCount()));
+                    long waitStart = System.currentTimeMillis();
+                    threadBudget.acquire(permits);
+                    timelineEntry.put("threads", permits);
+                    timelineEntry.put("waitedForThreadsMs", System.currentTimeMillis() - waitStart);
+                }
+                timelineEntry.put("startTime", Instant.now().toString());
+                // Steps that run in parallel run on other threads, so the job's span is named as the parent
+                stepSpan = JaegerConfig.buildChildSpan("step", job.span)
+                    .withTag("step", stepNum)
+                    .withTag("stepName", step.getName())
+                    .start();
+                try (Scope ignored = JaegerConfig.activate(stepSpan)) {
+                    stepResp = inputUris != null ? stepRunner.run(inputUris) : stepRunner.run();
+                    stepRunner.awaitCompletion();
+                } finally {
+                    if (permits > 0) {
+                        threadBudget.release(permits);
+                    }
+                }
+            }
+            catch (Exception e) {
+                stepError = e;
+                stepResp = RunStepResponse.withFlow(flow).withStep(stepNum);
+                stepResp.withJobId(jobId);
+                if(stepRunner != null){
+                    stepResp.setCounts(successCount.get() + errorCount.get(), successCount.get(), errorCount.get(), (long) Math.ceil((double) successCount.get() / stepRunner.getBatchSize()), (long) Math.ceil((double) errorCount.get() / stepRunner.getBatchSize()));
+                }
+                else {
+                    stepResp.setCounts(0, 0, 0, 0, 0);
+                }
+
+                StringWriter errors = new StringWriter();
+                e.printStackTrace(new PrintWriter(errors));
+                stepResp.withStepOutput(errors.toString());
+                stepResp.withSuccess(false);
+                if(successCount.get() > 0) {
+                    stepResp.withStatus(JobStatus.COMPLETED_WITH_ERRORS_PREFIX + stepNum);
+                }
+                else{
+                    stepResp.withStatus(JobStatus.FAILED_PREFIX + stepNum);
+                }
+                if (!job.disableJobOutput) {
+                    try {
+                        jobDocManager.postJobs(jobId, JobStatus.FAILED_PREFIX + stepNum, stepNum, null, stepResp);
+                    } catch (Exception ex) {
+                        logger.error(ex.getMessage());
+                    }
+                }
+                RunStepResponse finalStepResp = stepResp;
+                try {
+                    flowStatusListeners.forEach((FlowStatusListener listener) -> {
+                        listener.onStatusChanged(jobId, step, JobStatus.FAILED.toString(), currPercentComplete[0], currSuccessfulEvents[0], currFailedEvents[0],
+                            step.getName() + " " + Arrays.toString(finalStepResp.stepOutput.toArray()));
+                    });
+                } catch (Exception ex) {
+                    logger.error(ex.getMessage());
+                }
+                job.progress.publish(new FlowProgress(jobId, step, JobStatus.FAILED.toString(), currPercentComplete[0], currSuccessfulEvents[0], currFailedEvents[0],
+                    step.getName() + " " + Arrays.toString(finalStepResp.stepOutput.toArray())));
+                if(flow.isStopOnError()) {
+                    job.jobStoppedOnError.set(true);
+                    try {
+                        stopJob(jobId);
+                    } catch (RuntimeException ex) {
+                        // Already stopped by a failed batch
+                    }
+                }
+            }
+            finally {
+                job.stepRunners.remove(stepNum);
+                if(! stepResp.isSuccess()) {
+                    job.isJobSuccess.set(false);
+                }
+                if (stepSpan != null) {
+                    stepSpan.setTag("status", stepResp.getStatus());
+                }
+                JaegerConfig.finish(stepSpan, stepError);
+            }
+            if (threadBudget != null) {
+                timelineEntry.putIfAbsent("startTime", timelineEntry.get("readyTime"));
+                timelineEntry.put("endTime", Instant.now().toString());
+                timelineEntry.put("status", stepResp.getStatus());
+                job.timeline.add(timelineEntry);
+            }
+            job.future.getStepFuture(stepNum).complete(stepResp);
+            return stepResp;
+        }
+    }
+
+    /**
+     * Collects the URIs that a step has written, for the next step to run over. When steps overlap, the URIs are
+     * streamed to the next step as they arrive; otherwise they are queued, spilling to disk, until the step finishes.
+     */
+    private static class StepHandoff implements StepBatchCompleteListener {
+        private final Collection<String> uris;
+
+        StepHandoff(boolean stream) {
+            this.uris = stream ? StreamingUriQueue.spillingToDisk(null) : new DiskQueue<>(5000);
+        }
+
+        Collection<String> getUris() {
+            return uris;
+        }
+
+        @Override
+        public synchronized void processBatchCompletion(String jobId, String[] completedItems, long successfulCount, long failedCount) {
+            if (uris instanceof StreamingUriQueue && ((StreamingUriQueue) uris).isComplete()) {
+                return;
+            }
+            for (String uri : completedItems) {
+                // An ingestion batch includes an event without a URI
+                if (uri != null) {
+                    uris.add(uri);
+                }
+            }
+        }
+
+        /**
+         * Ends the stream of URIs once the step has finished; if the job was stopped, the next step gets none.
+         */
+        synchronized void finish(boolean cancelled) {
+            if (uris instanceof StreamingUriQueue) {
+                if (cancelled) {
+                    ((StreamingUriQueue) uris).cancel();
+                }
+                else {
+                    ((StreamingUriQueue) uris).complete();
                 }
             }
         }
     }
 
+    /**
+     * Blocks until every queued and running job has finished.
+     */
     public void awaitCompletion() {
         try {
             awaitCompletion(Long.MAX_VALUE, TimeUnit.DAYS);
@@ -417,9 +828,33 @@ public class FlowRunnerImpl implements FlowRunner{
     }
 
     public void awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException {
-        if (threadPool != null) {
-            threadPool.awaitTermination(timeout, unit);
+        long deadline = System.nanoTime() + Math.min(unit.toNanos(timeout), Long.MAX_VALUE / 2);
+        synchronized (activeJobs) {
+            while (!activeJobs.isEmpty()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return;
+                }
+                TimeUnit.NANOSECONDS.timedWait(activeJobs, remaining);
+            }
+        }
+    }
+
+    /**
+     * Blocks until the given job has finished; returns immediately if it isn't queued or running.
+     *
+     * @param jobId the id of the job to wait for
+     * @param timeout the maximum time to wait
+     * @param unit the time unit of the timeout argument
+     * @return false if the job was still running when the timeout elapsed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitCompletion(String jobId, long timeout, TimeUnit unit) throws InterruptedException {
+        FlowJob job;
+        synchronized (activeJobs) {
+            job = activeJobs.get(jobId);
         }
+        return job == null || job.finished.await(timeout, unit);
     }
 
     class CustomPoolExecutor extends ThreadPoolExecutor {
@@ -445,20 +880,17 @@ public class FlowRunnerImpl implements FlowRunner{
             }
             if (t != null) {
                 logger.error(t.getMessage());
-                //Run the next queued flow if stop-on-error is set or if the step queue is empty
-                if(((FlowRunnerTask)r).getStepQueue().isEmpty() || runningFlow.isStopOnError()) {
-                    jobQueue.remove();
-                    if (!jobQueue.isEmpty()) {
-                        initializeFlow((String) jobQueue.peek());
-                    } else {
-                        isRunning.set(false);
-                        threadPool.shutdownNow();
-                    }
+                FlowJob job = ((FlowRunnerTask) r).getJob();
+                //Finish the job if stop-on-error is set or if the step queue is empty
+                if(job.stepQueue.isEmpty() || job.flow.isStopOnError()) {
+                    finishJob(job, t);
                 }
                 //Run the next step
                 else {
-                    if(!(threadPool != null && threadPool.isTerminating())) {
-                        threadPool.execute(new FlowRunnerTask(runningFlow, runningJobId,((FlowRunnerTask)r).getStepQueue()));
+                    synchronized (activeJobs) {
+                        if (!isShutdown()) {
+                            execute(new FlowRunnerTask(job));
+                        }
                     }
                 }
             }
@@ -468,24 +900,62 @@ public class FlowRunnerImpl implements FlowRunner{
     //These methods are used by UI.
 
     public List<String> getQueuedJobIdsFromFlow(String flowName) {
-        return flowMap
-            .entrySet()
-            .stream()
-            .filter(entry -> flowName.equals(entry.getValue().getName()))
-            .map(Map.Entry::getKey)
-            .collect(Collectors.toList());
+        synchronized (activeJobs) {
+            return activeJobs
+                .values()
+                .stream()
+                .filter(job -> flowName.equals(job.flow.getName()))
+                .map(job -> job.jobId)
+                .collect(Collectors.toList());
+        }
     }
 
     public RunFlowResponse getJobResponseById(String jobId) {
         return flowResp.get(jobId);
     }
 
+    /**
+     * @return true if any job is queued or running
+     */
     public boolean isJobRunning() {
-        return isRunning.get();
+        synchronized (activeJobs) {
+            return !activeJobs.isEmpty();
+        }
     }
 
+    public boolean isJobRunning(String jobId) {
+        synchronized (activeJobs) {
+            return activeJobs.containsKey(jobId);
+        }
+    }
+
+    /**
+     * @return the ids of the jobs whose steps have started running, in the order they were submitted
+     */
+    public List<String> getRunningJobIds() {
+        synchronized (activeJobs) {
+            return activeJobs.values().stream().filter(job -> job.started).map(job -> job.jobId).collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * @return the key of the step that the earliest running job is on
+     */
     public String getRunningStepKey() {
-        return runningFlow.getSteps().entrySet()
+        FlowJob job = earliestRunningJob();
+        return job != null ? getRunningStepKey(job.jobId) : "";
+    }
+
+    public String getRunningStepKey(String jobId) {
+        FlowJob job;
+        synchronized (activeJobs) {
+            job = activeJobs.get(jobId);
+        }
+        if (job == null) {
+            return "";
+        }
+        Step runningStep = job.runningStep;
+        return job.flow.getSteps().entrySet()
             .stream()
             .filter(entry -> Objects.equals(entry.getValue(), runningStep))
             .map(Map.Entry::getKey)
@@ -493,7 +963,17 @@ public class FlowRunnerImpl implements FlowRunner{
 
     }
 
+    /**
+     * @return the flow of the earliest running job, or null if no job is running
+     */
     public Flow getRunningFlow() {
-        return this.runningFlow;
+        FlowJob job = earliestRunningJob();
+        return job != null ? job.flow : null;
+    }
+
+    private FlowJob earliestRunningJob() {
+        synchronized (activeJobs) {
+            return activeJobs.values().stream().filter(job -> job.started).findFirst().orElse(null);
+        }
     }
 }
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2012-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.flow.impl;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.marklogic.hub.flow.Flow;
+import com.marklogic.hub.step.StepDefinition;
+import com.marklogic.hub.step.impl.Step;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The dependencies between the steps of a flow run, used to run independent steps at the same time.
+ *
+ * A step that declares "dependsOn" waits for exactly those steps (ignoring any that aren't part of the run). When
+ * dependencies are inferred, a step without "dependsOn" waits for every earlier step it might conflict with: one
+ * whose output it might read, that might read its output, or that might write the same documents. A step reads the
+ * collections named in a sourceQuery made only of cts.collectionQuery, and writes its "collections" option plus its
+ * own name; ingestion steps read files rather than a database, and custom and mastering steps may write anything.
+ * Whenever the databases or collections can't be told apart from the options, the steps are
+ * assumed to conflict, so inference never runs two steps together unless it is clearly safe. Without inference,
+ * such a step waits for every earlier step, as it would when steps run one at a time.
+ */
+public class StepGraph {
+
+    private static final Pattern COLLECTION_QUERY = Pattern.compile("^\\s*cts\\.collectionQuery\\((.*)\\)\\s*$", Pattern.DOTALL);
+    private static final Pattern STRING_LITERAL = Pattern.compile("'([^']*)'|\"([^\"]*)\"");
+    private static final Pattern LITERAL_LIST = Pattern.compile("^\\s*\\[?\\s*(('[^']*'|\"[^\"]*\")\\s*,?\\s*)+\\]?\\s*$");
+
+    private final List<String> steps;
+    private final Map<String, Set<String>> dependencies = new LinkedHashMap<>();
+
+    private StepGraph(List<String> steps) {
+        this.steps = Collections.unmodifiableList(new ArrayList<>(steps));
+    }
+
+    /**
+     * @param flow the flow being run, with any run options applied as override options
+     * @param stepNums the steps to run, in the order they would run one at a time
+     * @param inferDependencies whether to infer the dependencies of steps that don't declare any
+     * @throws IllegalArgumentException if the declared dependencies form a cycle
+     */
+    public static StepGraph build(Flow flow, List<String> stepNums, boolean inferDependencies) {
+        StepGraph graph = new StepGraph(stepNums);
+        Map<String, Access> accessByStep = new HashMap<>();
+        for (String stepNum : stepNums) {
+            accessByStep.put(stepNum, Access.of(flow, flow.getStep(stepNum)));
+        }
+        for (int i = 0; i < stepNums.size(); i++) {
+            String stepNum = stepNums.get(i);
+            Step step = flow.getStep(stepNum);
+            Set<String> stepDependencies = new LinkedHashSet<>();
+            if (step.getDependsOn() != null) {
+                for (String dependency : step.getDependsOn()) {
+                    if (stepNums.contains(dependency) && !dependency.equals(stepNum)) {
+                        stepDependencies.add(dependency);
+                    }
+                }
+            } else {
+                for (String earlier : stepNums.subList(0, i)) {
+                    if (!inferDependencies || accessByStep.get(stepNum).conflictsWith(accessByStep.get(earlier))) {
+                        stepDependencies.add(earlier);
+                    }
+                }
+            }
+            graph.dependencies.put(stepNum, stepDependencies);
+        }
+        graph.checkForCycles();
+        return graph;
+    }
+
+    /**
+     * @return true if any of the steps declares "dependsOn"
+     */
+    public static boolean declaresDependencies(Flow flow, List<String> stepNums) {
+        return stepNums.stream().anyMatch(stepNum -> flow.getStep(stepNum).getDependsOn() != null);
+    }
+
+    public List<String> getSteps() {
+        return steps;
+    }
+
+    public Set<String> getDependencies(String stepNum) {
+        return Collections.unmodifiableSet(dependencies.get(stepNum));
+    }
+
+    /**
+     * @param finished the steps that have finished
+     * @return true if the step's dependencies have all finished
+     */
+    public boolean isReady(String stepNum, Set<String> finished) {
+        return finished.containsAll(dependencies.get(stepNum));
+    }
+
+    private void checkForCycles() {
+        Set<String> finished = new HashSet<>();
+        boolean progress = true;
+        while (progress && finished.size() < steps.size()) {
+            progress = false;
+            for (String stepNum : steps) {
+                if (!finished.contains(stepNum) && isReady(stepNum, finished)) {
+                    finished.add(stepNum);
+                    progress = true;
+                }
+            }
+        }
+        if (finished.size() < steps.size()) {
+            List<String> blocked = new ArrayList<>(steps);
+            blocked.removeAll(finished);
+            throw new IllegalArgumentException("The dependencies of steps " + blocked + " form a cycle");
+        }
+    }
+
+    /**
+     * What a step reads and writes, as far as can be told from its options; a null database or collection set means
+     * it is unknown.
+     */
+    private static class Access {
+        boolean readsDatabase;
+        String sourceDatabase;
+        Set<String> sourceCollections;
+        String targetDatabase;
+        Set<String> targetCollections;
+
+        static Access of(Flow flow, Step step) {
+            Access access = new Access();
+            Map<String, Object> options = new HashMap<>();
+            if (step.getOptions() != null) {
+                options.putAll(step.getOptions());
+            }
+            if (flow.getOverrideOptions() != null) {
+                options.putAll(flow.getOverrideOptions());
+            }
+            access.readsDatabase = !StepDefinition.StepDefinitionType.INGESTION.equals(step.getStepDefinitionType());
+            access.sourceDatabase = text(options.get("sourceDatabase"));
+            access.sourceCollections = collectionsQueried(text(options.get("sourceQuery")));
+            access.targetDatabase = text(options.get("targetDatabase"));
+            Set<String> collections = new HashSet<>();
+            if (step.getName() != null) {
+                collections.add(step.getName());
+            }
+            Object targetCollections = options.get("collections");
+            if (targetCollections instanceof JsonNode && ((JsonNode) targetCollections).isArray()) {
+                ((JsonNode) targetCollections).forEach(collection -> collections.add(collection.asText()));
+            } else if (targetCollections instanceof Collection) {
+                ((Collection<?>) targetCollections).forEach(collection -> collections.add(String.valueOf(collection)));
+            }
+            // Custom steps can write anything, and mastering steps also archive and re-collect the documents they
+            // match, which may be in the source database
+            StepDefinition.StepDefinitionType type = step.getStepDefinitionType();
+            boolean mastering = StepDefinition.StepDefinitionType.MASTERING.equals(type);
+            access.targetCollections = StepDefinition.StepDefinitionType.CUSTOM.equals(type) || mastering ? null : collections;
+            if (mastering && (access.sourceDatabase == null || !access.sourceDatabase.equals(access.targetDatabase))) {
+                access.targetDatabase = null;
+            }
+            return access;
+        }
+
+        boolean conflictsWith(Access other) {
+            return reads(other) || other.reads(this) || writesSameDocumentsAs(other);
+        }
+
+        /**
+         * @return true if both steps might write the same documents, in which case the last one to write wins
+         */
+        private boolean writesSameDocumentsAs(Access other) {
+            if (targetDatabase != null && other.targetDatabase != null && !targetDatabase.equals(other.targetDatabase)) {
+                return false;
+            }
+            return targetCollections == null || other.targetCollections == null ||
+                !Collections.disjoint(targetCollections, other.targetCollections);
+        }
+
+        /**
+         * @return true if this step might read documents written by the other step
+         */
+        private boolean reads(Access writer) {
+            if (!readsDatabase) {
+                return false;
+            }
+            if (sourceDatabase != null && writer.targetDatabase != null && !sourceDatabase.equals(writer.targetDatabase)) {
+                return false;
+            }
+            return sourceCollections == null || writer.targetCollections == null ||
+                !Collections.disjoint(sourceCollections, writer.targetCollections);
+        }
+
+        private static String text(Object value) {
+            if (value == null) {
+                return null;
+            }
+            if (value instanceof JsonNode) {
+                return ((JsonNode) value).isValueNode() ? ((JsonNode) value).asText() : null;
+            }
+            return value.toString();
+        }
+    }
+
+    /**
+     * @return the collections matched by a query made only of a cts.collectionQuery of string literals, or null
+     */
+    static Set<String> collectionsQueried(String sourceQuery) {
+        if (sourceQuery == null) {
+            return null;
+        }
+        Matcher matcher = COLLECTION_QUERY.matcher(sourceQuery);
+        if (!matcher.matches() || !LITERAL_LIST.matcher(matcher.group(1)).matches()) {
+            return null;
+        }
+        Set<String> collections = new HashSet<>();
+        Matcher literal = STRING_LITERAL.matcher(matcher.group(1));
+        while (literal.find()) {
+            collections.add(literal.group(1) != null ? literal.group(1) : literal.group(2));
+        }
+        return collections;
+    }
+}
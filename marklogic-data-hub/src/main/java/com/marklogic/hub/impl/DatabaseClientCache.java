@@ -0,0 +1,266 @@
+/*
+ * Copyright 2012-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.impl;
+
+import com.marklogic.client.DatabaseClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Reference-counted cache of DatabaseClients, so that everything asking for a client with the same settings shares one
+ * connection pool instead of building its own.
+ *
+ * Each {@link #acquire(Object, Supplier)} of a key returns the same client and adds a reference to it; each
+ * {@link #release(DatabaseClient)} removes one. A client with no references left is released once it has been idle
+ * for the idle timeout, unless it is acquired again first. A client that is never released stays cached, which is
+ * what a long-lived component holding on to its client wants. Callers must not call release() on a cached client
+ * themselves, since that would close the pool for everyone sharing it.
+ *
+ * Clients still cached when the JVM exits are released by a single shutdown hook shared by every cache.
+ */
+public class DatabaseClientCache {
+
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final Logger logger = LoggerFactory.getLogger(DatabaseClientCache.class);
+
+    // Guarded by itself
+    private static final Set<DatabaseClientCache> caches = Collections.newSetFromMap(new WeakHashMap<>());
+    private static ScheduledExecutorService evictor;
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(DatabaseClientCache::releaseAllCaches, "database-client-cache-shutdown"));
+    }
+
+    private final long idleTimeoutNanos;
+    private final LongSupplier nanoTime;
+
+    // Guarded by this
+    private final Map<Object, Entry> entries = new HashMap<>();
+    private final Map<DatabaseClient, Entry> entriesByClient = new IdentityHashMap<>();
+    // Clients this cache has already released, so that a holder handing one back late doesn't release it again
+    private final Set<DatabaseClient> releasedClients = Collections.newSetFromMap(new WeakHashMap<>());
+    private long createdClients;
+    private long evictedClients;
+
+    public DatabaseClientCache() {
+        this(DEFAULT_IDLE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param idleTimeoutMillis how long a client with no references is kept; 0 releases it as soon as its last
+     *                          reference is released
+     */
+    public DatabaseClientCache(long idleTimeoutMillis) {
+        this(idleTimeoutMillis, System::nanoTime);
+    }
+
+    DatabaseClientCache(long idleTimeoutMillis, LongSupplier nanoTime) {
+        if (idleTimeoutMillis < 0) {
+            throw new IllegalArgumentException("The idle timeout cannot be negative");
+        }
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.nanoTime = nanoTime;
+        synchronized (caches) {
+            caches.add(this);
+        }
+    }
+
+    /**
+     * @param key identifies the client's settings; keys are compared with equals
+     * @param factory creates the client if none is cached for the key
+     * @return the cached client for the key, with a reference added to it
+     */
+    public synchronized DatabaseClient acquire(Object key, Supplier<DatabaseClient> factory) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry(key, factory.get());
+            entries.put(key, entry);
+            entriesByClient.put(entry.client, entry);
+            createdClients++;
+        }
+        entry.references++;
+        entry.idleSince = -1;
+        return entry.client;
+    }
+
+    /**
+     * Removes a reference to a client. A client that didn't come from this cache is released straight away, so that
+     * callers can hand back any client they were given; one that the cache has already released, for example by
+     * {@link #clear()} while it was still referenced, is ignored.
+     */
+    public void release(DatabaseClient client) {
+        if (client == null) {
+            return;
+        }
+        boolean evictNow = false;
+        synchronized (this) {
+            Entry entry = entriesByClient.get(client);
+            if (entry == null) {
+                evictNow = !releasedClients.contains(client);
+            } else if (entry.references > 0 && --entry.references == 0) {
+                entry.idleSince = nanoTime.getAsLong();
+                if (idleTimeoutNanos == 0) {
+                    remove(entry);
+                    evictNow = true;
+                } else {
+                    scheduleEviction(idleTimeoutNanos);
+                }
+            }
+        }
+        if (evictNow) {
+            client.release();
+        }
+    }
+
+    /**
+     * Releases every client that has had no references for at least the idle timeout.
+     *
+     * @return the number of clients released
+     */
+    public int evictIdle() {
+        List<DatabaseClient> evicted = new ArrayList<>();
+        synchronized (this) {
+            long now = nanoTime.getAsLong();
+            for (Entry entry : new ArrayList<>(entries.values())) {
+                if (entry.references == 0 && now - entry.idleSince >= idleTimeoutNanos) {
+                    remove(entry);
+                    evicted.add(entry.client);
+                }
+            }
+        }
+        releaseClients(evicted);
+        return evicted.size();
+    }
+
+    /**
+     * Releases every cached client, whether or not it is still referenced.
+     */
+    public void clear() {
+        List<DatabaseClient> evicted;
+        synchronized (this) {
+            evicted = new ArrayList<>(entriesByClient.keySet());
+            evictedClients += evicted.size();
+            releasedClients.addAll(evicted);
+            entries.clear();
+            entriesByClient.clear();
+        }
+        releaseClients(evicted);
+    }
+
+    /**
+     * @return the number of clients currently cached
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the number of references to the client, or 0 if it isn't cached
+     */
+    public synchronized int getReferenceCount(DatabaseClient client) {
+        Entry entry = entriesByClient.get(client);
+        return entry == null ? 0 : entry.references;
+    }
+
+    /**
+     * @return the number of clients created so far; comparing it with the number of acquires shows how much the
+     * cache is saving
+     */
+    public synchronized long getCreatedClients() {
+        return createdClients;
+    }
+
+    public synchronized long getEvictedClients() {
+        return evictedClients;
+    }
+
+    private void remove(Entry entry) {
+        entries.remove(entry.key);
+        entriesByClient.remove(entry.client);
+        releasedClients.add(entry.client);
+        evictedClients++;
+    }
+
+    private void scheduleEviction(long delayNanos) {
+        evictor().schedule(() -> {
+            try {
+                evictIdle();
+            } catch (Exception e) {
+                logger.warn("Unable to release idle database clients: " + e.getMessage());
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private static void releaseClients(List<DatabaseClient> clients) {
+        for (DatabaseClient client : clients) {
+            try {
+                client.release();
+            } catch (Exception e) {
+                logger.warn("Unable to release database client: " + e.getMessage());
+            }
+        }
+    }
+
+    private static ScheduledExecutorService evictor() {
+        synchronized (caches) {
+            if (evictor == null) {
+                evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "database-client-cache-evictor");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            return evictor;
+        }
+    }
+
+    private static void releaseAllCaches() {
+        List<DatabaseClientCache> all;
+        synchronized (caches) {
+            all = new ArrayList<>(caches);
+        }
+        for (DatabaseClientCache cache : all) {
+            cache.clear();
+        }
+    }
+
+    private static class Entry {
+        final Object key;
+        final DatabaseClient client;
+        int references;
+        long idleSince = -1;
+
+        Entry(Object key, DatabaseClient client) {
+            this.key = key;
+            this.client = client;
+        }
+    }
+}
@@ -343,21 +343,21 @@ public class FlowManagerImpl extends LoggingObject implements FlowManager {
         if (logger.isInfoEnabled()) {
             logger.info(format("Deleting documents in directory '%s' in staging database", directory));
         }
-        DatabaseClient stagingClient = hubConfig.newStagingClient();
+        DatabaseClient stagingClient = hubConfig.acquireStagingClient();
         try {
             stagingClient.newServerEval().javascript(query).evalAs(String.class);
         } finally {
-            stagingClient.release();
+            hubConfig.releaseClient(stagingClient);
         }
 
         if (logger.isInfoEnabled()) {
             logger.info(format("Deleting documents in directory '%s' in final database", directory));
         }
-        DatabaseClient finalClient = hubConfig.newFinalClient();
+        DatabaseClient finalClient = hubConfig.acquireFinalClient();
         try {
             finalClient.newServerEval().javascript(query).evalAs(String.class);
         } finally {
-            finalClient.release();
+            hubConfig.releaseClient(finalClient);
         }
     }
 
@@ -29,6 +29,7 @@ import com.marklogic.client.ext.modulesloader.ssl.SimpleX509TrustManager;
 import com.marklogic.hub.DatabaseKind;
 import com.marklogic.hub.HubConfig;
 import com.marklogic.hub.HubProject;
+import com.marklogic.hub.collector.impl.CollectorHttpClientPool;
 import com.marklogic.hub.error.DataHubConfigurationException;
 import com.marklogic.hub.error.DataHubProjectException;
 import com.marklogic.hub.error.InvalidDBOperationError;
@@ -50,6 +51,7 @@ import org.springframework.context.annotation.PropertySource;
 import org.springframework.core.env.Environment;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.X509TrustManager;
 import java.io.File;
@@ -58,6 +60,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -183,6 +186,12 @@ public class HubConfigImpl implements HubConfig {
 
     private ObjectMapper objmapper;
 
+    // shared by every collector run against this configuration; see shutdown
+    private final CollectorHttpClientPool collectorHttpClients = new CollectorHttpClientPool();
+
+    // shared by everything that acquires a client from this configuration; see shutdown
+    private final DatabaseClientCache clientCache = new DatabaseClientCache();
+
     // By default, DHF uses gradle-local.properties for your local environment.
     private String envString = "local";
 
@@ -843,6 +852,37 @@ public class HubConfigImpl implements HubConfig {
         return mlPassword;
     }
 
+    /**
+     * @return the pooled HTTP clients that URI collectors use to stream from MarkLogic
+     */
+    @JsonIgnore
+    public CollectorHttpClientPool getCollectorHttpClients() {
+        return collectorHttpClients;
+    }
+
+    /**
+     * @return the cache of DatabaseClients behind the acquire methods
+     */
+    @JsonIgnore
+    public DatabaseClientCache getClientCache() {
+        return clientCache;
+    }
+
+    /**
+     * Releases the DatabaseClients cached by the acquire methods, including ones still in use, and then closes the
+     * pooled collector HTTP clients and their connections. Called when the application context shuts down;
+     * applications that create a HubConfigImpl themselves should call it when they are done with it. A shutdown hook
+     * releases the cached clients of any HubConfigImpl still around at exit.
+     */
+    @PreDestroy
+    public void shutdown() {
+        try {
+            clientCache.clear();
+        } finally {
+            collectorHttpClients.close();
+        }
+    }
+
     public void setHost(String host) {
         this.host = host;
     }
@@ -1510,7 +1550,10 @@ public class HubConfigImpl implements HubConfig {
     }
 
     public DatabaseClient newStagingClient(String dbName) {
-        AppConfig appConfig = getAppConfig();
+        return newDatabaseClient(stagingClientConfig(dbName));
+    }
+
+    private DatabaseClientConfig stagingClientConfig(String dbName) {
         String stgHost = stagingGatewayHost != null ? stagingGatewayHost : host;
         Integer stgPort = stagingGatewayPort != null && stagingGatewayPort > 0 ? stagingGatewayPort : stagingPort;
         DatabaseClientConfig config = new DatabaseClientConfig(stgHost, stgPort, getMlUsername(), getMlPassword());
@@ -1525,7 +1568,7 @@ public class HubConfigImpl implements HubConfig {
         if (isHostLoadBalancer) {
             config.setConnectionType(DatabaseClient.ConnectionType.GATEWAY);
         }
-        return appConfig.getConfiguredDatabaseClientFactory().newDatabaseClient(config);
+        return config;
     }
 
     @Override
@@ -1537,7 +1580,10 @@ public class HubConfigImpl implements HubConfig {
 
     @Override
     public DatabaseClient newFinalClient() {
-        AppConfig appConfig = getAppConfig();
+        return newDatabaseClient(finalClientConfig());
+    }
+
+    private DatabaseClientConfig finalClientConfig() {
         String fnlHost = finalGatewayHost != null ? finalGatewayHost : host;
         Integer fnlPort = finalGatewayPort != null && finalGatewayPort > 0 ? finalGatewayPort : finalPort;
         DatabaseClientConfig config = new DatabaseClientConfig(fnlHost, fnlPort, getMlUsername(), getMlPassword());
@@ -1552,11 +1598,14 @@ public class HubConfigImpl implements HubConfig {
         if (isHostLoadBalancer) {
             config.setConnectionType(DatabaseClient.ConnectionType.GATEWAY);
         }
-        return appConfig.getConfiguredDatabaseClientFactory().newDatabaseClient(config);
+        return config;
     }
 
     public DatabaseClient newJobDbClient() {
-        AppConfig appConfig = getAppConfig();
+        return newDatabaseClient(jobDbClientConfig());
+    }
+
+    private DatabaseClientConfig jobDbClientConfig() {
         String jbHost = jobGatewayHost != null ? jobGatewayHost : host;
         Integer jbPort = jobGatewayPort != null && jobGatewayPort > 0 ? jobGatewayPort : jobPort;
         DatabaseClientConfig config = new DatabaseClientConfig(jbHost, jbPort, mlUsername, mlPassword);
@@ -1571,7 +1620,7 @@ public class HubConfigImpl implements HubConfig {
         if (isHostLoadBalancer) {
             config.setConnectionType(DatabaseClient.ConnectionType.GATEWAY);
         }
-        return appConfig.getConfiguredDatabaseClientFactory().newDatabaseClient(config);
+        return config;
     }
 
     public DatabaseClient newTraceDbClient() {
@@ -1579,6 +1628,10 @@ public class HubConfigImpl implements HubConfig {
     }
 
     public DatabaseClient newModulesDbClient() {
+        return newDatabaseClient(modulesDbClientConfig());
+    }
+
+    private DatabaseClientConfig modulesDbClientConfig() {
         AppConfig appConfig = getAppConfig();
         // this has to be finalPort because final is a stock REST API.
         // staging will not be; but its rewriter isn't loaded yet.
@@ -1596,7 +1649,60 @@ public class HubConfigImpl implements HubConfig {
         if (isHostLoadBalancer) {
             config.setConnectionType(DatabaseClient.ConnectionType.GATEWAY);
         }
-        return appConfig.getConfiguredDatabaseClientFactory().newDatabaseClient(config);
+        return config;
+    }
+
+    private DatabaseClient newDatabaseClient(DatabaseClientConfig config) {
+        return getAppConfig().getConfiguredDatabaseClientFactory().newDatabaseClient(config);
+    }
+
+    @Override
+    public DatabaseClient acquireStagingClient() {
+        return acquireStagingClient(stagingDbName);
+    }
+
+    @Override
+    public DatabaseClient acquireStagingClient(String dbName) {
+        return acquireClient(DatabaseKind.STAGING, stagingClientConfig(dbName));
+    }
+
+    @Override
+    public DatabaseClient acquireStagingClient(String host, String dbName) {
+        DatabaseClientConfig config = stagingClientConfig(dbName);
+        config.setHost(host);
+        return acquireClient(DatabaseKind.STAGING, config);
+    }
+
+    @Override
+    public DatabaseClient acquireFinalClient() {
+        return acquireClient(DatabaseKind.FINAL, finalClientConfig());
+    }
+
+    @Override
+    public DatabaseClient acquireJobDbClient() {
+        return acquireClient(DatabaseKind.JOB, jobDbClientConfig());
+    }
+
+    @Override
+    public DatabaseClient acquireModulesDbClient() {
+        return acquireClient(DatabaseKind.MODULES, modulesDbClientConfig());
+    }
+
+    @Override
+    public void releaseClient(DatabaseClient client) {
+        clientCache.release(client);
+    }
+
+    /**
+     * Clients are shared by everything that would connect the same way, so the key covers the connection as well as
+     * the credentials and SSL settings; the SSL objects are compared by identity.
+     */
+    private DatabaseClient acquireClient(DatabaseKind kind, DatabaseClientConfig config) {
+        List<Object> key = Arrays.asList(kind, config.getHost(), config.getPort(), config.getDatabase(),
+            config.getUsername(), config.getPassword(), config.getSecurityContextType(), config.getSslContext(),
+            config.getSslHostnameVerifier(), config.getCertFile(), config.getCertPassword(), config.getExternalName(),
+            config.getTrustManager(), config.getConnectionType());
+        return clientCache.acquire(key, () -> newDatabaseClient(config));
     }
 
     @JsonIgnore
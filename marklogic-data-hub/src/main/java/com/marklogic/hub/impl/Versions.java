@@ -91,7 +91,11 @@ public class Versions extends ResourceManager {
     }
 
     public void setupClient() {
-        this.stagingClient = hubConfig.newStagingClient();
+        // setupClient runs again whenever the project is refreshed, so hand back the previous lease first
+        if (this.stagingClient != null) {
+            hubConfig.releaseClient(this.stagingClient);
+        }
+        this.stagingClient = hubConfig.acquireStagingClient();
         this.stagingClient.init(NAME, this);
     }
 
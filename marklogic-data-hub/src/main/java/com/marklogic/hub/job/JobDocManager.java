@@ -2,49 +2,134 @@ package com.marklogic.hub.job;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.marklogic.client.DatabaseClient;
 import com.marklogic.client.extensions.ResourceManager;
 import com.marklogic.client.extensions.ResourceServices;
 import com.marklogic.client.io.Format;
 import com.marklogic.client.io.JacksonHandle;
 import com.marklogic.client.io.StringHandle;
+import com.marklogic.client.io.marker.AbstractWriteHandle;
 import com.marklogic.client.util.RequestParameters;
 import com.marklogic.hub.step.RunStepResponse;
 import com.marklogic.hub.util.json.JSONObject;
+import com.marklogic.hub.util.metrics.tracer.JaegerConfig;
 import org.apache.commons.lang3.StringUtils;
 
+import java.time.Instant;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Reads and writes job documents through the ml:jobs endpoint. The updates of a job that is registered with the shared
+ * {@link JobDocWriter} are written behind, so that a step only waits on the jobs database once it ends.
+ */
 public class JobDocManager extends ResourceManager {
     private static final String NAME = "ml:jobs";
+    private static final ObjectMapper mapper = new ObjectMapper().disable(SerializationFeature.FAIL_ON_EMPTY_BEANS);
+
+    private final JobDocWriter writer;
+    private final AtomicLong requestCount = new AtomicLong();
 
     public JobDocManager(DatabaseClient client) {
+        this(client, JobDocWriter.shared());
+    }
+
+    public JobDocManager(DatabaseClient client, JobDocWriter writer) {
         super();
+        this.writer = writer;
         client.init(NAME, this);
     }
 
+    /**
+     * @return true if the job's updates are written behind instead of straight away
+     */
+    public boolean isWriteBehind(String jobId) {
+        return writer.isRegistered(jobId);
+    }
+
+    /**
+     * @return the number of requests this manager has sent to the jobs database
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
     public void updateJobStatus(String jobId, JobStatus status) {
+        if (isWriteBehind(jobId)) {
+            writer.submit(jobId, null, "job", newUpdate(status.toString()), this::postUpdates);
+            return;
+        }
+        requestCount.incrementAndGet();
         RequestParameters params = new RequestParameters();
         params.add("jobid", jobId);
         params.add("status", status.toString());
-        getServices().post(params, new StringHandle("{}").withFormat(Format.JSON));
+        post("jobDoc.updateJobStatus", params, new StringHandle("{}").withFormat(Format.JSON));
+    }
+
+    /**
+     * Updates the job status and records when each step of the job ran, for jobs whose steps run in parallel.
+     *
+     * @param jobId the id of the job
+     * @param status the new status of the job
+     * @param timeline one entry per step, with its dependencies, start and end times and the threads it held
+     */
+    public void updateJobStatus(String jobId, JobStatus status, List<Map<String, Object>> timeline) {
+        if (isWriteBehind(jobId)) {
+            ObjectNode update = newUpdate(status.toString());
+            update.set("timeline", mapper.valueToTree(timeline));
+            writer.submit(jobId, null, "job", update, this::postUpdates);
+            return;
+        }
+        requestCount.incrementAndGet();
+        RequestParameters params = new RequestParameters();
+        params.add("jobid", jobId);
+        params.add("status", status.toString());
+        try {
+            params.add("timeline", JSONObject.writeValueAsString(timeline, false));
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+        post("jobDoc.updateJobStatus", params, new StringHandle("{}").withFormat(Format.JSON));
     }
 
     //Called when step execution starts/ completes
     public JsonNode postJobs(String jobId, String status, String step, String lastCompleted, RunStepResponse stepResponse) {
+        if (isWriteBehind(jobId)) {
+            ObjectNode update = newUpdate(status);
+            update.put("step", step);
+            if (lastCompleted != null) {
+                update.put("lastCompleted", lastCompleted);
+            }
+            // A step starts once and ends once, and the end is sent straight away along with anything still queued
+            String phase = phaseOf(status);
+            update.put("phase", phase);
+            if ("start".equals(phase)) {
+                writer.submit(jobId, null, "start:" + step, update, this::postUpdates);
+                return null;
+            }
+            update.set("stepResponse", mapper.valueToTree(stepResponse));
+            writer.submit(jobId, null, "end:" + step, update, this::postUpdates);
+            return writer.flush(jobId);
+        }
+        requestCount.incrementAndGet();
         RequestParameters params = new RequestParameters();
         params.put("jobid", jobId);
         params.put("status", status);
         params.put("step", step);
         params.put("lastCompleted", lastCompleted);
+        params.put("phase", phaseOf(status));
         try {
-            params.put("stepResponse", JSONObject.writeValueAsString(stepResponse));
+            params.put("stepResponse", JSONObject.writeValueAsString(stepResponse, false));
         } catch (JsonProcessingException e) {
             throw new RuntimeException(e);
         }
         ResourceServices.ServiceResultIterator resultItr = null;
         try {
-            resultItr = this.getServices().post(params, new StringHandle("{}").withFormat(Format.JSON));
+            resultItr = post("jobDoc.postJobs", params, new StringHandle("{}").withFormat(Format.JSON));
         } catch (Exception e) {
             throw new RuntimeException("Unable to update the job document");
         }
@@ -56,11 +141,17 @@ public class JobDocManager extends ResourceManager {
     }
 
     public void createJob(String jobId, String flow) {
+        if (isWriteBehind(jobId)) {
+            // The document is created by the first request that sends the job's updates
+            writer.submit(jobId, flow, null, null, this::postUpdates);
+            return;
+        }
+        requestCount.incrementAndGet();
         RequestParameters params = new RequestParameters();
         params.put("jobid", jobId);
         params.put("flow-name", flow);
         try {
-            this.getServices().post(params, new StringHandle("{}").withFormat(Format.JSON));
+            post("jobDoc.createJob", params, new StringHandle("{}").withFormat(Format.JSON));
         } catch (Exception e) {
             throw new RuntimeException("Unable to create the job document");
         }
@@ -71,6 +162,13 @@ public class JobDocManager extends ResourceManager {
     }
 
     public JsonNode getJobDocument(String jobId, String flowName) {
+        if (isWriteBehind(jobId)) {
+            // Sending the queued updates returns the document, so it doesn't need to be read again
+            JsonNode jobDoc = writer.flush(jobId);
+            if (jobDoc != null) {
+                return jobDoc;
+            }
+        }
         RequestParameters params = new RequestParameters();
         if (StringUtils.isNotEmpty(flowName)) {
             params.add("flow-name", flowName);
@@ -109,10 +207,59 @@ public class JobDocManager extends ResourceManager {
      * @return
      */
     private JsonNode getJobDocuments(RequestParameters params) {
-        ResourceServices.ServiceResultIterator iter = this.getServices().get(params);
+        requestCount.incrementAndGet();
+        ResourceServices.ServiceResultIterator iter = JaegerConfig.traceChild("jobDoc.get", JaegerConfig.activeSpan(), () -> this.getServices().get(params));
         if (iter == null || !iter.hasNext()) {
             return null;
         }
         return iter.next().getContent(new JacksonHandle()).get();
     }
+
+    /**
+     * Sends a job's queued updates in the request body, creating its document first if it doesn't exist yet.
+     */
+    private JsonNode postUpdates(String jobId, String flowName, List<ObjectNode> updates) {
+        requestCount.incrementAndGet();
+        ObjectNode body = mapper.createObjectNode();
+        body.put("jobid", jobId);
+        if (flowName != null) {
+            body.put("flow-name", flowName);
+        }
+        body.putArray("updates").addAll(updates);
+        ResourceServices.ServiceResultIterator resultItr;
+        try {
+            resultItr = post("jobDoc.postUpdates", new RequestParameters(), new JacksonHandle(body));
+        } catch (Exception e) {
+            throw new RuntimeException("Unable to update the job document: " + e.getMessage(), e);
+        }
+        if (resultItr == null || !resultItr.hasNext()) {
+            return null;
+        }
+        return resultItr.next().getContent(new JacksonHandle()).get();
+    }
+
+    /**
+     * Posts to the jobs endpoint in a child span of the active span, if there is one, such as the span of the step
+     * whose progress is being recorded.
+     */
+    private ResourceServices.ServiceResultIterator post(String operationName, RequestParameters params, AbstractWriteHandle input) {
+        return JaegerConfig.traceChild(operationName, JaegerConfig.activeSpan(), () -> this.getServices().post(params, input));
+    }
+
+    /**
+     * @return "start" for the update made when a step starts, otherwise "end"; sent with the update so that the
+     * endpoint doesn't have to guess from the job document, which may already have a response for a resumed or
+     * re-run step
+     */
+    private static String phaseOf(String status) {
+        return status.startsWith(JobStatus.RUNNING_PREFIX) ? "start" : "end";
+    }
+
+    private static ObjectNode newUpdate(String status) {
+        ObjectNode update = mapper.createObjectNode();
+        update.put("status", status);
+        // When the update was made, rather than when it was sent
+        update.put("time", Instant.now().toString());
+        return update;
+    }
 }
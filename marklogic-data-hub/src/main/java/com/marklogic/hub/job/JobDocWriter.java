@@ -0,0 +1,236 @@
+package com.marklogic.hub.job;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind queue for job document updates, so that a step run doesn't wait on the jobs database for every status
+ * change.
+ *
+ * Only jobs that have been registered are written behind; {@link JobDocManager} writes the updates of any other job
+ * straight away. The updates of a registered job are queued and sent together in one request body once a step ends,
+ * the job document is read, or the job's flush interval has passed since the oldest queued update. Queued updates are
+ * coalesced by key: a newer update for the same key - such as the job's own status, or the start or end of a step -
+ * replaces the older one, and updates are sent in the order of their latest change.
+ *
+ * Updates are queued per job across all JobDocManager instances, since a flow runner and its step runners each have
+ * their own, and requests for the same job are always sent one at a time in the order their updates were queued.
+ */
+public class JobDocWriter {
+
+    /**
+     * Sends the queued updates of a job to the jobs database in one request.
+     */
+    public interface Sender {
+        /**
+         * @param flowName the flow to create the job document for if it doesn't exist yet, or null
+         * @return the job document after the updates
+         */
+        JsonNode send(String jobId, String flowName, List<ObjectNode> updates);
+    }
+
+    private static final JobDocWriter SHARED = new JobDocWriter();
+    private static final int SEND_LOCK_STRIPES = 16;
+
+    private static final Logger logger = LoggerFactory.getLogger(JobDocWriter.class);
+
+    // Guarded by this
+    private final Map<String, Long> flushIntervals = new HashMap<>();
+    private final Map<String, PendingUpdates> pending = new HashMap<>();
+    private ScheduledExecutorService scheduler;
+
+    private final Object[] sendLocks = new Object[SEND_LOCK_STRIPES];
+    private final AtomicLong submittedUpdates = new AtomicLong();
+    private final AtomicLong coalescedUpdates = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+
+    public JobDocWriter() {
+        for (int i = 0; i < sendLocks.length; i++) {
+            sendLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * @return the writer used by every JobDocManager
+     */
+    public static JobDocWriter shared() {
+        return SHARED;
+    }
+
+    /**
+     * Starts writing the job's updates behind.
+     *
+     * @param flushIntervalMillis how long an update may stay queued; 0 queues updates until a step ends or the job
+     *                            document is read, so that each step makes a single request
+     */
+    public synchronized void register(String jobId, long flushIntervalMillis) {
+        if (flushIntervalMillis < 0) {
+            throw new IllegalArgumentException("The job document flush interval cannot be negative");
+        }
+        flushIntervals.put(jobId, flushIntervalMillis);
+    }
+
+    public synchronized boolean isRegistered(String jobId) {
+        return jobId != null && flushIntervals.containsKey(jobId);
+    }
+
+    /**
+     * Sends any updates still queued for the job, and stops writing its updates behind.
+     *
+     * @return the job document if there were updates to send, otherwise null
+     */
+    public JsonNode unregister(String jobId) {
+        try {
+            return flush(jobId);
+        } finally {
+            synchronized (this) {
+                flushIntervals.remove(jobId);
+                // Updates that failed to send are dropped; the failure has been thrown to the caller
+                PendingUpdates updates = pending.remove(jobId);
+                if (updates != null && updates.scheduledFlush != null) {
+                    updates.scheduledFlush.cancel(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Queues an update for the job.
+     *
+     * @param flowName the flow of the job, so that its document can be created if needed; may be null
+     * @param key identifies what the update is about; it replaces any queued update with the same key
+     * @param update the update, or null to only make sure that the job document exists
+     * @param sender sends this and any other queued updates of the job
+     */
+    public void submit(String jobId, String flowName, String key, ObjectNode update, Sender sender) {
+        synchronized (this) {
+            PendingUpdates updates = pending.computeIfAbsent(jobId, id -> new PendingUpdates());
+            if (flowName != null) {
+                updates.flowName = flowName;
+            }
+            updates.sender = sender;
+            if (update != null) {
+                submittedUpdates.incrementAndGet();
+                if (updates.updates.remove(key) != null) {
+                    coalescedUpdates.incrementAndGet();
+                }
+                updates.updates.put(key, update);
+            }
+            long flushInterval = flushIntervals.getOrDefault(jobId, 0L);
+            if (flushInterval > 0 && updates.scheduledFlush == null) {
+                updates.scheduledFlush = scheduler().schedule(() -> flushInBackground(jobId), flushInterval, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Sends the updates queued for the job, waiting for any request for the job that is already being sent.
+     *
+     * @return the job document if there were updates to send, otherwise null
+     * @throws RuntimeException if the updates couldn't be sent; they are queued again, behind any newer update with
+     * the same key, so that the next flush retries them
+     */
+    public JsonNode flush(String jobId) {
+        synchronized (sendLocks[Math.floorMod(jobId.hashCode(), sendLocks.length)]) {
+            PendingUpdates updates;
+            synchronized (this) {
+                updates = pending.remove(jobId);
+            }
+            if (updates == null) {
+                return null;
+            }
+            if (updates.scheduledFlush != null) {
+                updates.scheduledFlush.cancel(false);
+            }
+            requests.incrementAndGet();
+            try {
+                return updates.sender.send(jobId, updates.flowName, new ArrayList<>(updates.updates.values()));
+            } catch (RuntimeException e) {
+                requeue(jobId, updates);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Puts back updates that failed to send. Updates queued since then are newer, so they replace failed updates
+     * with the same key and keep their place after the others; the flow name is kept so that the next request can
+     * still create the job document.
+     */
+    private synchronized void requeue(String jobId, PendingUpdates failed) {
+        failed.scheduledFlush = null;
+        PendingUpdates newer = pending.put(jobId, failed);
+        if (newer != null) {
+            for (Map.Entry<String, ObjectNode> update : newer.updates.entrySet()) {
+                failed.updates.remove(update.getKey());
+                failed.updates.put(update.getKey(), update.getValue());
+            }
+            if (newer.flowName != null) {
+                failed.flowName = newer.flowName;
+            }
+            failed.sender = newer.sender;
+            failed.scheduledFlush = newer.scheduledFlush;
+        }
+    }
+
+    private void flushInBackground(String jobId) {
+        try {
+            flush(jobId);
+        } catch (Exception e) {
+            // The step's final update reports the outcome, so a failed progress update is only logged
+            logger.warn("Unable to update the document of job " + jobId + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the number of updates queued so far
+     */
+    public long getSubmittedUpdates() {
+        return submittedUpdates.get();
+    }
+
+    /**
+     * @return the number of queued updates that were replaced by a newer one before being sent
+     */
+    public long getCoalescedUpdates() {
+        return coalescedUpdates.get();
+    }
+
+    /**
+     * @return the number of requests sent
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    private synchronized ScheduledExecutorService scheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "job-doc-writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return scheduler;
+    }
+
+    private static class PendingUpdates {
+        final LinkedHashMap<String, ObjectNode> updates = new LinkedHashMap<>();
+        String flowName;
+        Sender sender;
+        ScheduledFuture<?> scheduledFlush;
+    }
+}
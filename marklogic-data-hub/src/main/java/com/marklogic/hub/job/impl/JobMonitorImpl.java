@@ -49,7 +49,11 @@ public class JobMonitorImpl implements JobMonitor {
     private Batches batches;
 
     public void setupClient() {
-        this.client = hubConfig.newJobDbClient();
+        // setupClient runs again whenever the project is refreshed, so hand back the previous lease first
+        if (this.client != null) {
+            hubConfig.releaseClient(this.client);
+        }
+        this.client = hubConfig.acquireJobDbClient();
         this.jobDocManager = new JobDocManager(client);
         batches = new Batches(client);
     }
@@ -28,6 +28,10 @@ public class ResponseHolder {
     public List<String> failedItems;
     public List<JsonNode> errors;
     public List<JsonNode> documents;
+    // Time the server reported spending on the batch, and the sizes of the request and response; -1 when unknown
+    public double serverElapsedMillis = -1;
+    public long requestBytes = -1;
+    public long responseBytes = -1;
 
     public String toString() {
         int completedSize = completedItems != null ? completedItems.size() : 0;
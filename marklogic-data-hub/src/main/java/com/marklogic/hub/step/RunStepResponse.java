@@ -20,6 +20,7 @@ import com.marklogic.hub.error.DataHubConfigurationException;
 import com.marklogic.hub.flow.Flow;
 import com.marklogic.hub.job.JobStatus;
 import com.marklogic.hub.step.impl.Step;
+import com.marklogic.hub.step.metrics.StepMetricsSummary;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -44,6 +45,14 @@ public class RunStepResponse {
     private long failedBatches = 0;
     private boolean success = false;
 
+    // Batch size and thread count in effect when the step finished; differ from the step config under adaptive batching
+    private int batchSize = 0;
+    private int threadCount = 0;
+    // Files that incremental ingestion found unchanged since the last successful run
+    private long skippedFiles = 0;
+    // Latency, payload and throughput distributions over the step's batches
+    private StepMetricsSummary metrics;
+
     public void setStepStartTime(String stepStartTime) {
         this.stepStartTime = stepStartTime;
     }
@@ -127,6 +136,22 @@ public class RunStepResponse {
         return this;
     }
 
+    public RunStepResponse withSkippedFiles(long skippedFiles) {
+        this.skippedFiles = skippedFiles;
+        return this;
+    }
+
+    public RunStepResponse withBatchSettings(int batchSize, int threadCount) {
+        this.batchSize = batchSize;
+        this.threadCount = threadCount;
+        return this;
+    }
+
+    public RunStepResponse withMetrics(StepMetricsSummary metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
     @JsonIgnore
     public String getJobId() {
         return jobId;
@@ -166,6 +191,22 @@ public class RunStepResponse {
         return failedBatches;
     }
 
+    public long getSkippedFiles() {
+        return skippedFiles;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    public StepMetricsSummary getMetrics() {
+        return metrics;
+    }
+
     public String getStepName() {
         return stepName;
     }
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2012-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.step;
+
+/**
+ * Listener for a batch of items being processed by a step. Unlike {@link StepItemCompleteListener}, it is called once
+ * per batch rather than once per item, so steps with millions of items don't pay for a call per item.
+ */
+public interface StepBatchCompleteListener {
+    /**
+     * Called once a batch has been processed, whether or not any of its items failed
+     * @param jobId - the id of the job as a string
+     * @param completedItems - the ids of the items that completed successfully; when none failed, this is the whole
+     *                       batch. Listeners must not modify the array
+     * @param successfulCount - the number of items in the batch that completed successfully
+     * @param failedCount - the number of items in the batch that failed
+     */
+    void processBatchCompletion(String jobId, String[] completedItems, long successfulCount, long failedCount);
+}
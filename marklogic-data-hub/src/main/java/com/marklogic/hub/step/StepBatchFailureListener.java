@@ -0,0 +1,30 @@
+/*
+ * Copyright 2012-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.step;
+
+/**
+ * Listener for items in a batch failing. Unlike {@link StepItemFailureListener}, it is called once per batch that
+ * contains failures rather than once per item.
+ */
+public interface StepBatchFailureListener {
+    /**
+     * Called when one or more items in a batch fail
+     * @param jobId - the id of the job as a string
+     * @param failedItems - the ids of the items that failed; listeners must not modify the array
+     * @param failedCount - the number of items that failed
+     */
+    void processBatchFailure(String jobId, String[] failedItems, long failedCount);
+}
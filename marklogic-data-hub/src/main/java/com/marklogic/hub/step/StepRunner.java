@@ -73,6 +73,14 @@ public interface StepRunner {
      */
     StepRunner withSourceClient(DatabaseClient sourceClient);
 
+    /**
+     * Sets the database to read from for building the envelope. Unlike a client passed to withSourceClient, the step
+     * runner acquires the client for this database from the hub config when it runs and releases it when it ends.
+     * @param sourceDatabase - the name of the source database
+     * @return the step runner object
+     */
+    StepRunner withSourceDatabase(String sourceDatabase);
+
     /**
      * Sets the database where flow output data will be persisted to
      * @param destinationDatabase - the name of the destination database
@@ -116,6 +124,21 @@ public interface StepRunner {
      */
     StepRunner onItemFailed(StepItemFailureListener listener);
 
+    /**
+     * Sets a listener on each batch of items completing. Prefer this to {@link #onItemComplete(StepItemCompleteListener)}
+     * when the listener does not need to be called for every item
+     * @param listener the listener object to set
+     * @return the step runner object
+     */
+    StepRunner onBatchComplete(StepBatchCompleteListener listener);
+
+    /**
+     * Sets a listener on each batch of items that contains failures
+     * @param listener the listener for the failures in the flow
+     * @return the step runner object
+     */
+    StepRunner onBatchFailed(StepBatchFailureListener listener);
+
     /**
      * Sets the status change listener on the flowrunner object
      * @param listener - the listener for when the status changes
@@ -173,4 +196,10 @@ public interface StepRunner {
      */
      int getBatchSize();
 
+    /**
+     * Returns the thread count
+     * @return thread count for step runner
+     */
+     int getThreadCount();
+
 }
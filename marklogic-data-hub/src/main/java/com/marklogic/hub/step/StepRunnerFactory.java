@@ -26,7 +26,8 @@ public class StepRunnerFactory {
     private String sourceDatabase;
     private String targetDatabase;
 
-    public StepRunner getStepRunner(Flow flow, String stepNum)  {
+    // Synchronized because the flow runner can build step runners for several jobs at once
+    public synchronized StepRunner getStepRunner(Flow flow, String stepNum)  {
         Map<String, Step> steps = flow.getSteps();
         Step step = steps.get(stepNum);
         StepDefinition stepDef = stepDefMgr.getStepDefinition(step.getStepDefinitionName(), step.getStepDefinitionType());
@@ -76,7 +77,7 @@ public class StepRunnerFactory {
         else {
             sourceDatabase = hubConfig.getDbName(DatabaseKind.STAGING);
         }
-        stepRunner.withSourceClient(hubConfig.newStagingClient(sourceDatabase));
+        stepRunner.withSourceDatabase(sourceDatabase);
 
         if(step.getOptions().get("targetDatabase") != null) {
             targetDatabase = ((TextNode)step.getOptions().get("targetDatabase")).asText();
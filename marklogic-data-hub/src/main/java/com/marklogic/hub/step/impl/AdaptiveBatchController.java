@@ -0,0 +1,180 @@
+/*
+ * Copyright 2012-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.step.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Tunes the batch size and the number of concurrent requests of a running step based on observed batch latency
+ * and error rate.
+ *
+ * Enabled by setting the "adaptiveBatching" option to true. The configured batchSize and threadCount of the step
+ * are the starting point; the batch size may then move between a tenth and four times the configured value, and
+ * the number of concurrent requests between one and twice the configured thread count. Batch size moves
+ * proportionally towards "targetBatchLatencyMillis" (default 2000); concurrency is increased by one while batches
+ * are under target and free of errors, and halved when errors occur or latency exceeds twice the target.
+ *
+ * Runners size their batcher for the upper limits and call {@link #acquire()}/{@link #release()} around each
+ * request, so the effective concurrency can change without rebuilding the batcher.
+ */
+public class AdaptiveBatchController {
+
+    public static final String ADAPTIVE_BATCHING_OPTION = "adaptiveBatching";
+    public static final String TARGET_LATENCY_OPTION = "targetBatchLatencyMillis";
+
+    static final long DEFAULT_TARGET_LATENCY_MILLIS = 2000;
+    static final int WINDOW_SIZE = 5;
+    static final double MAX_ERROR_RATE = 0.05;
+
+    private static final Logger logger = LoggerFactory.getLogger(AdaptiveBatchController.class);
+
+    private final long targetLatencyMillis;
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    private final int maxThreadCount;
+
+    private volatile int batchSize;
+    private volatile int threadCount;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition permitAvailable = lock.newCondition();
+    private int inFlight = 0;
+
+    public AdaptiveBatchController(int batchSize, int threadCount, long targetLatencyMillis) {
+        this.batchSize = Math.max(1, batchSize);
+        this.threadCount = Math.max(1, threadCount);
+        this.targetLatencyMillis = targetLatencyMillis > 0 ? targetLatencyMillis : DEFAULT_TARGET_LATENCY_MILLIS;
+        this.minBatchSize = Math.max(1, this.batchSize / 10);
+        this.maxBatchSize = this.batchSize * 4;
+        this.maxThreadCount = this.threadCount * 2;
+    }
+
+    /**
+     * @return a controller if adaptive batching is enabled in the given options, otherwise null
+     */
+    public static AdaptiveBatchController fromOptions(Map<String, Object> options, int batchSize, int threadCount) {
+        if (options == null || !Boolean.parseBoolean(String.valueOf(options.get(ADAPTIVE_BATCHING_OPTION)))) {
+            return null;
+        }
+        long target = DEFAULT_TARGET_LATENCY_MILLIS;
+        Object value = options.get(TARGET_LATENCY_OPTION);
+        if (value != null) {
+            try {
+                target = Long.parseLong(value.toString());
+            } catch (NumberFormatException ex) {
+                logger.warn("Ignoring invalid " + TARGET_LATENCY_OPTION + " value: " + value);
+            }
+        }
+        return new AdaptiveBatchController(batchSize, threadCount, target);
+    }
+
+    /**
+     * Blocks until fewer than the current thread count of requests are in flight.
+     */
+    public void acquire() throws InterruptedException {
+        lock.lock();
+        try {
+            while (inFlight >= threadCount) {
+                permitAvailable.await();
+            }
+            inFlight++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void release() {
+        lock.lock();
+        try {
+            if (inFlight > 0) {
+                inFlight--;
+            }
+            permitAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adjusts batch size and concurrency once a full window of batches has been recorded in the given metrics.
+     */
+    public void onBatchComplete(StepMetrics stepMetrics) {
+        if (stepMetrics.getWindowBatchCount() < WINDOW_SIZE) {
+            return;
+        }
+        StepMetrics.BatchWindow window = stepMetrics.drainBatchWindow();
+        if (window.getBatchCount() == 0) {
+            // Another thread drained the window first
+            return;
+        }
+        adjust(window.getAverageLatencyMillis(), window.getErrorRate());
+    }
+
+    void adjust(double averageLatencyMillis, double errorRate) {
+        lock.lock();
+        try {
+            int previousBatchSize = batchSize;
+            int previousThreadCount = threadCount;
+            if (errorRate > MAX_ERROR_RATE) {
+                batchSize = clamp(batchSize / 2, minBatchSize, maxBatchSize);
+                threadCount = Math.max(1, threadCount / 2);
+            } else {
+                double factor = averageLatencyMillis <= 0 ? 1.25 : targetLatencyMillis / averageLatencyMillis;
+                factor = Math.max(0.5, Math.min(1.25, factor));
+                batchSize = clamp((int) Math.round(batchSize * factor), minBatchSize, maxBatchSize);
+                if (averageLatencyMillis > targetLatencyMillis * 2) {
+                    threadCount = Math.max(1, threadCount / 2);
+                } else if (averageLatencyMillis < targetLatencyMillis) {
+                    threadCount = Math.min(maxThreadCount, threadCount + 1);
+                }
+            }
+            if (threadCount > previousThreadCount) {
+                permitAvailable.signalAll();
+            }
+            if (logger.isDebugEnabled() && (batchSize != previousBatchSize || threadCount != previousThreadCount)) {
+                logger.debug(String.format("Adaptive batching: average latency %.0fms, error rate %.3f; batch size %d -> %d, thread count %d -> %d",
+                    averageLatencyMillis, errorRate, previousBatchSize, batchSize, previousThreadCount, threadCount));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public int getMaxThreadCount() {
+        return maxThreadCount;
+    }
+}
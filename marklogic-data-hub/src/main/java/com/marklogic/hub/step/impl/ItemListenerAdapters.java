@@ -0,0 +1,47 @@
+/*
+ * Copyright 2012-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.step.impl;
+
+import com.marklogic.hub.step.StepBatchCompleteListener;
+import com.marklogic.hub.step.StepBatchFailureListener;
+import com.marklogic.hub.step.StepItemCompleteListener;
+import com.marklogic.hub.step.StepItemFailureListener;
+
+/**
+ * Adapts the per-item listeners to the batch listeners that the step runners call, so runners only have one kind of
+ * listener to notify.
+ */
+class ItemListenerAdapters {
+
+    private ItemListenerAdapters() {
+    }
+
+    static StepBatchCompleteListener forItemComplete(StepItemCompleteListener listener) {
+        return (jobId, completedItems, successfulCount, failedCount) -> {
+            for (String item : completedItems) {
+                listener.processCompletion(jobId, item);
+            }
+        };
+    }
+
+    static StepBatchFailureListener forItemFailure(StepItemFailureListener listener) {
+        return (jobId, failedItems, failedCount) -> {
+            for (String item : failedItems) {
+                listener.processFailure(jobId, item);
+            }
+        };
+    }
+}
@@ -22,26 +22,38 @@ import com.marklogic.client.DatabaseClient;
 import com.marklogic.client.datamovement.*;
 import com.marklogic.client.extensions.ResourceManager;
 import com.marklogic.client.extensions.ResourceServices;
+import com.marklogic.client.io.BytesHandle;
 import com.marklogic.client.io.Format;
-import com.marklogic.client.io.StringHandle;
+import com.marklogic.client.io.InputStreamHandle;
 import com.marklogic.client.util.RequestParameters;
 import com.marklogic.hub.DatabaseKind;
 import com.marklogic.hub.HubConfig;
-import com.marklogic.hub.collector.Collector;
 import com.marklogic.hub.collector.DiskQueue;
+import com.marklogic.hub.collector.HostAffinity;
+import com.marklogic.hub.collector.StreamingUriQueue;
 import com.marklogic.hub.collector.impl.CollectorImpl;
 import com.marklogic.hub.error.DataHubConfigurationException;
 import com.marklogic.hub.flow.Flow;
 import com.marklogic.hub.job.JobDocManager;
 import com.marklogic.hub.job.JobStatus;
 import com.marklogic.hub.step.*;
-import com.marklogic.hub.util.json.JSONObject;
+import com.marklogic.hub.step.metrics.StepMetricsId;
+import com.marklogic.hub.step.metrics.StepMetricsRegistries;
+import com.marklogic.hub.util.metrics.tracer.BatchSampler;
+import com.marklogic.hub.util.metrics.tracer.JaegerConfig;
+import io.opentracing.Scope;
+import io.opentracing.Span;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -51,22 +63,39 @@ import java.util.stream.Collectors;
 public class QueryStepRunner implements StepRunner {
 
     private static final int MAX_ERROR_MESSAGES = 10;
+    // While the collector is still streaming, the total is unknown, so progress is reported every N batches instead
+    private static final int STREAMING_PROGRESS_BATCH_INTERVAL = 10;
+    // Not configured for pretty printing, so request bodies stay compact
+    private static final ObjectMapper COMPACT_MAPPER = new ObjectMapper();
     private Flow flow;
     private int batchSize;
     private int threadCount;
     private DatabaseClient stagingClient;
+    private String sourceDatabase;
     private String destinationDatabase;
     private Map<String, Object> options;
     private int previousPercentComplete;
     private boolean stopOnFailure = false;
     private String jobId;
     private boolean isFullOutput = false;
+    private boolean streamingCollector = false;
+    private int streamingBufferSize = 0;
+    private boolean streamingSpillToDisk = false;
+    private boolean hostAffinityEnabled = false;
+    private HostAffinity hostAffinity = null;
+    private StreamingUriQueue streamingUris = null;
+    private AdaptiveBatchController adaptiveController = null;
+    private boolean resume = false;
+    private boolean checkpoints = false;
+    private StepCheckpointJournal.CompletedUris completedUris = null;
     protected final Logger logger = LoggerFactory.getLogger(getClass());
 
     private String step = "1";
 
-    private List<StepItemCompleteListener> stepItemCompleteListeners = new ArrayList<>();
-    private List<StepItemFailureListener> stepItemFailureListeners = new ArrayList<>();
+    private List<StepBatchCompleteListener> stepBatchCompleteListeners = new ArrayList<>();
+    private List<StepBatchFailureListener> stepBatchFailureListeners = new ArrayList<>();
+    // Per-item listeners expect exactly the URIs the server processed, which rules out counts-only responses
+    private boolean itemListenersRegistered = false;
     private List<StepStatusListener> stepStatusListeners = new ArrayList<>();
     private List<StepFinishedListener> stepFinishedListeners = new ArrayList<>();
     private Map<String, Object> stepConfig = new HashMap<>();
@@ -75,12 +104,13 @@ public class QueryStepRunner implements StepRunner {
     private DataMovementManager dataMovementManager = null;
     private QueryBatcher queryBatcher = null;
     private JobDocManager jobDocManager;
+    // Clients this runner acquired from the hub config; they are handed back when the step ends
+    private final List<DatabaseClient> acquiredClients = new ArrayList<>();
     private AtomicBoolean isStopped = new AtomicBoolean(false) ;
     private StepDefinition stepDef;
 
     public QueryStepRunner(HubConfig hubConfig) {
         this.hubConfig = hubConfig;
-        this.stagingClient = hubConfig.newStagingClient();
         this.destinationDatabase = hubConfig.getDbName(DatabaseKind.FINAL);
     }
 
@@ -119,6 +149,14 @@ public class QueryStepRunner implements StepRunner {
     @Override
     public StepRunner withSourceClient(DatabaseClient stagingClient) {
         this.stagingClient = stagingClient;
+        this.sourceDatabase = null;
+        return this;
+    }
+
+    @Override
+    public StepRunner withSourceDatabase(String sourceDatabase) {
+        this.sourceDatabase = sourceDatabase;
+        this.stagingClient = null;
         return this;
     }
 
@@ -172,13 +210,25 @@ public class QueryStepRunner implements StepRunner {
 
     @Override
     public StepRunner onItemComplete(StepItemCompleteListener listener) {
-        this.stepItemCompleteListeners.add(listener);
-        return this;
+        this.itemListenersRegistered = true;
+        return onBatchComplete(ItemListenerAdapters.forItemComplete(listener));
     }
 
     @Override
     public StepRunner onItemFailed(StepItemFailureListener listener) {
-        this.stepItemFailureListeners.add(listener);
+        this.itemListenersRegistered = true;
+        return onBatchFailed(ItemListenerAdapters.forItemFailure(listener));
+    }
+
+    @Override
+    public StepRunner onBatchComplete(StepBatchCompleteListener listener) {
+        this.stepBatchCompleteListeners.add(listener);
+        return this;
+    }
+
+    @Override
+    public StepRunner onBatchFailed(StepBatchFailureListener listener) {
+        this.stepBatchFailureListeners.add(listener);
         return this;
     }
 
@@ -216,13 +266,11 @@ public class QueryStepRunner implements StepRunner {
         }
     }
 
-    @Override
-    public RunStepResponse run() {
-        boolean disableJobOutput = false;
-        if (options != null && options.containsKey("disableJobOutput")) {
-            disableJobOutput = Boolean.parseBoolean(options.get("disableJobOutput").toString());
-        }
-        runningThread = null;
+    /**
+     * Applies the step config and the options that tune this runner; called before the step runs, whichever way its
+     * URIs are provided.
+     */
+    private void loadStepRunnerParameters() {
         if(stepConfig.get("batchSize") != null){
             this.batchSize = (int) stepConfig.get("batchSize");
         }
@@ -232,68 +280,142 @@ public class QueryStepRunner implements StepRunner {
         if(stepConfig.get("stopOnFailure") != null){
             this.withStopOnFailure(Boolean.parseBoolean(stepConfig.get("stopOnFailure").toString()));
         }
-        RunStepResponse runStepResponse = StepRunnerUtil.createStepResponse(flow, step, jobId);
         if (options == null) {
             options = new HashMap<>();
         } else {
             if (options.get("fullOutput") != null) {
                 isFullOutput = Boolean.parseBoolean(options.get("fullOutput").toString());
             }
+            if (options.get("streamingCollector") != null) {
+                streamingCollector = Boolean.parseBoolean(options.get("streamingCollector").toString());
+            }
+            if (options.get("streamingBufferSize") != null) {
+                streamingBufferSize = Integer.parseInt(options.get("streamingBufferSize").toString());
+            }
+            if (options.get("streamingSpillToDisk") != null) {
+                streamingSpillToDisk = Boolean.parseBoolean(options.get("streamingSpillToDisk").toString());
+            }
+            if (options.get("hostAffinity") != null) {
+                hostAffinityEnabled = Boolean.parseBoolean(options.get("hostAffinity").toString());
+            }
+            if (options.get("resume") != null) {
+                resume = Boolean.parseBoolean(options.get("resume").toString());
+            }
+            if (options.get("checkpoints") != null) {
+                checkpoints = Boolean.parseBoolean(options.get("checkpoints").toString());
+            }
         }
         if(options.get("sourceDatabase") != null) {
-            this.stagingClient = hubConfig.newStagingClient(StepRunnerUtil.objectToString(options.get("sourceDatabase")));
+            this.stagingClient = acquireClient(hubConfig.acquireStagingClient(StepRunnerUtil.objectToString(options.get("sourceDatabase"))));
+        }
+        else if (sourceDatabase != null) {
+            this.stagingClient = acquireClient(hubConfig.acquireStagingClient(sourceDatabase));
+        }
+        else if (stagingClient == null) {
+            this.stagingClient = acquireClient(hubConfig.acquireStagingClient());
         }
         if(options.get("targetDatabase") != null) {
             this.destinationDatabase = StepRunnerUtil.objectToString(options.get("targetDatabase"));
         }
         options.put("flow", this.flow.getName());
+    }
+
+    @Override
+    public RunStepResponse run() {
+        boolean disableJobOutput = false;
+        if (options != null && options.containsKey("disableJobOutput")) {
+            disableJobOutput = Boolean.parseBoolean(options.get("disableJobOutput").toString());
+        }
+        runningThread = null;
+        loadStepRunnerParameters();
+        RunStepResponse runStepResponse = StepRunnerUtil.createStepResponse(flow, step, jobId);
         Collection<String> uris = null;
         //If current step is the first run step job output isn't disabled, a job doc is created
         if (!disableJobOutput) {
-            jobDocManager = new JobDocManager(hubConfig.newJobDbClient());
+            jobDocManager = new JobDocManager(acquireClient(hubConfig.acquireJobDbClient()));
             StepRunnerUtil.initializeStepRun(jobDocManager, runStepResponse, flow, step, jobId);
         } else {
             jobDocManager = null;
         }
 
         try {
-            uris = runCollector();
+            completedUris = null;
+            hostAffinity = null;
+            if (resume) {
+                StepCheckpointJournal journal = StepCheckpointJournal.forStep(hubConfig, runStepResponse.getJobId(), flow.getName(), step);
+                if (journal.exists()) {
+                    completedUris = journal.loadCompleted();
+                    logger.info("Resuming step " + step + " of job " + runStepResponse.getJobId() + "; skipping " + completedUris.size() + " items already completed according to " + journal.getFile());
+                } else {
+                    logger.warn("No checkpoint journal found at " + journal.getFile() + "; step " + step + " will process every item");
+                }
+            }
+            uris = streamingCollector ? runStreamingCollector() : runCollector();
         } catch (Exception e) {
             runStepResponse.setCounts(0,0, 0, 0, 0)
                 .withStatus(JobStatus.FAILED_PREFIX + step);
             StringWriter errors = new StringWriter();
             e.printStackTrace(new PrintWriter(errors));
             runStepResponse.withStepOutput(errors.toString());
-            if (!disableJobOutput) {
-                JsonNode jobDoc = null;
-                jobDoc = jobDocManager.postJobs(jobId, JobStatus.FAILED_PREFIX + step, step, null, runStepResponse);
-                try {
-                    return StepRunnerUtil.getResponse(jobDoc, step);
-                } catch (Exception ignored) {
+            try {
+                if (!disableJobOutput) {
+                    JsonNode jobDoc = null;
+                    jobDoc = jobDocManager.postJobs(jobId, JobStatus.FAILED_PREFIX + step, step, null, runStepResponse);
+                    try {
+                        return StepRunnerUtil.getResponse(jobDoc, step);
+                    } catch (Exception ignored) {
+                    }
                 }
+                return runStepResponse;
+            } finally {
+                releaseClients();
             }
-            return runStepResponse;
         }
+        // When resuming, the collector has already left out the completed URIs, and the step was initialized above
         return this.runHarmonizer(runStepResponse,uris);
     }
 
     @Override
     public void stop() {
         isStopped.set(true);
+        if (streamingUris != null) {
+            streamingUris.cancel();
+        }
         if(queryBatcher != null) {
             dataMovementManager.stopJob(queryBatcher);
         }
     }
 
+    /**
+     * Runs the step over the given URIs instead of running its collector, such as the URIs that the step before it in a
+     * chained flow has written. The collection may still be growing when this is called, as long as its iterator blocks
+     * until more URIs arrive or the collection is complete, as a {@link StreamingUriQueue}'s does.
+     */
     @Override
     public RunStepResponse run(Collection uris) {
+        loadStepRunnerParameters();
+        return runSuppliedUris(uris);
+    }
+
+    private RunStepResponse runSuppliedUris(Collection uris) {
         runningThread = null;
+        if (uris instanceof StreamingUriQueue) {
+            // So that stopping the step also stops waiting for URIs that haven't arrived yet
+            streamingUris = (StreamingUriQueue) uris;
+        }
         RunStepResponse runStepResponse = StepRunnerUtil.createStepResponse(flow, step, jobId);
-        try {
-            StepRunnerUtil.initializeStepRun(jobDocManager, runStepResponse, flow, step, jobId);
+        boolean disableJobOutput = options != null && options.get("disableJobOutput") != null &&
+            Boolean.parseBoolean(options.get("disableJobOutput").toString());
+        if (jobDocManager == null && !disableJobOutput) {
+            jobDocManager = new JobDocManager(acquireClient(hubConfig.acquireJobDbClient()));
         }
-        catch (Exception e){
-            throw e;
+        if (jobDocManager != null) {
+            try {
+                StepRunnerUtil.initializeStepRun(jobDocManager, runStepResponse, flow, step, jobId);
+            }
+            catch (Exception e){
+                throw e;
+            }
         }
         return this.runHarmonizer(runStepResponse,uris);
     }
@@ -303,10 +425,16 @@ public class QueryStepRunner implements StepRunner {
         return this.batchSize;
     }
 
+    @Override
+    public int getThreadCount(){
+        return this.threadCount;
+    }
+
     private Collection<String> runCollector() throws Exception {
-        Collector c = new CollectorImpl(this.flow);
+        CollectorImpl c = new CollectorImpl(this.flow);
         c.setHubConfig(hubConfig);
         c.setClient(stagingClient);
+        configureHostAffinity(c);
 
         stepStatusListeners.forEach((StepStatusListener listener) -> {
             listener.onStatusChange(this.jobId, 0, JobStatus.RUNNING_PREFIX + step, 0, 0,  "running collector");
@@ -315,7 +443,7 @@ public class QueryStepRunner implements StepRunner {
         final DiskQueue<String> uris ;
         try {
             if(! isStopped.get()) {
-                uris = c.run(this.flow.getName(), step, options);
+                uris = completedUris != null ? remainingUris(c.run(this.flow.getName(), step, options)) : c.run(this.flow.getName(), step, options);
             }
             else {
                 uris = null;
@@ -327,6 +455,176 @@ public class QueryStepRunner implements StepRunner {
         return uris;
     }
 
+    /**
+     * With the "hostAffinity" option, the collector reads each forest separately and tags every URI with the host
+     * that owns it, so that batches can be sent to that host. This is skipped when the hosts are behind a load
+     * balancer, since they can't be reached directly.
+     */
+    private void configureHostAffinity(CollectorImpl collector) {
+        if (!hostAffinityEnabled) {
+            return;
+        }
+        if (Boolean.TRUE.equals(hubConfig.getIsHostLoadBalancer())) {
+            logger.warn("The hostAffinity option is ignored because the hosts are behind a load balancer");
+            return;
+        }
+        DataMovementManager forestConfigManager = stagingClient.newDataMovementManager();
+        try {
+            Forest[] forests = forestConfigManager.readForestConfig().listForests();
+            if (forests.length > 1) {
+                hostAffinity = HostAffinity.fromForests(forests);
+                collector.setHostAffinity(hostAffinity);
+                logger.info("Routing batches to the hosts that own their documents: " + hostAffinity.getHosts());
+            }
+        } finally {
+            forestConfigManager.release();
+        }
+    }
+
+    /**
+     * Splits a batch into the requests sent to ml:runFlow. With host affinity, the URIs are grouped by the host that
+     * owns them and each group goes to a client for that host; the collector hands over URIs a forest at a time, so
+     * most batches belong to a single host. URIs without a host go to the client the batcher chose.
+     */
+    private List<BatchRequest> planRequests(QueryBatch batch, int requestSize, Map<Integer, DatabaseClient> hostClients) {
+        List<BatchRequest> requests = new ArrayList<>();
+        if (hostAffinity == null) {
+            BatchRequest.split(batch.getClient(), batch.getItems(), requestSize, requests);
+            return requests;
+        }
+        Map<Integer, List<String>> urisByHost = new LinkedHashMap<>();
+        for (String item : batch.getItems()) {
+            urisByHost.computeIfAbsent(HostAffinity.hostIndexOf(item), index -> new ArrayList<>()).add(HostAffinity.uriOf(item));
+        }
+        for (Map.Entry<Integer, List<String>> entry : urisByHost.entrySet()) {
+            DatabaseClient client = entry.getKey() < 0 ? batch.getClient() :
+                hostClients.computeIfAbsent(entry.getKey(), index ->
+                    acquireClient(hubConfig.acquireStagingClient(hostAffinity.getHosts().get(index), stagingClient.getDatabase())));
+            BatchRequest.split(client, entry.getValue().toArray(new String[0]), requestSize, requests);
+        }
+        return requests;
+    }
+
+    private static class BatchRequest {
+        final DatabaseClient client;
+        final String[] items;
+
+        BatchRequest(DatabaseClient client, String[] items) {
+            this.client = client;
+            this.items = items;
+        }
+
+        static void split(DatabaseClient client, String[] items, int requestSize, List<BatchRequest> requests) {
+            if (requestSize >= items.length) {
+                requests.add(new BatchRequest(client, items));
+                return;
+            }
+            for (int offset = 0; offset < items.length; offset += requestSize) {
+                requests.add(new BatchRequest(client, Arrays.copyOfRange(items, offset, Math.min(items.length, offset + requestSize))));
+            }
+        }
+    }
+
+    /**
+     * @return the collected URIs that the checkpoint journal does not record as completed
+     */
+    private DiskQueue<String> remainingUris(DiskQueue<String> collected) {
+        DiskQueue<String> remaining = new DiskQueue<>(5000);
+        for (String uri : collected) {
+            if (!completedUris.contains(HostAffinity.uriOf(uri))) {
+                remaining.add(uri);
+            }
+        }
+        return remaining;
+    }
+
+    /**
+     * Starts the collector on its own thread and returns immediately with a queue that the QueryBatcher can
+     * consume while URIs are still arriving. The queue is bounded, so the collector stops reading from the
+     * server whenever the batcher falls behind.
+     */
+    private Collection<String> runStreamingCollector() {
+        CollectorImpl c = new CollectorImpl(this.flow);
+        c.setHubConfig(hubConfig);
+        c.setClient(stagingClient);
+        configureHostAffinity(c);
+
+        stepStatusListeners.forEach((StepStatusListener listener) -> {
+            listener.onStatusChange(this.jobId, 0, JobStatus.RUNNING_PREFIX + step, 0, 0,  "running collector");
+        });
+
+        if (isStopped.get()) {
+            return null;
+        }
+
+        int capacity = streamingBufferSize > 0 ? streamingBufferSize : Math.max(batchSize * threadCount * 4, batchSize);
+        // Spilling lets the collector finish reading from the server even when the batcher is far behind
+        final StreamingUriQueue queue = streamingSpillToDisk ? StreamingUriQueue.spillingToDisk(null) : new StreamingUriQueue(capacity);
+        final Map<String, Object> collectorOptions = new HashMap<>(options);
+        final StepCheckpointJournal.CompletedUris alreadyCompleted = completedUris;
+        final Span stepSpan = JaegerConfig.activeSpan();
+        Thread collectorThread = new Thread(JaegerConfig.withActiveSpan(stepSpan, () -> {
+            try {
+                c.run(this.flow.getName(), step, collectorOptions, uri -> {
+                    if (alreadyCompleted == null || !alreadyCompleted.contains(HostAffinity.uriOf(uri))) {
+                        queue.add(uri);
+                    }
+                });
+                queue.complete();
+            } catch (CancellationException e) {
+                logger.info("Collector stopped because the step run was stopped");
+            } catch (Exception e) {
+                logger.error("Collector failed after streaming " + queue.getCollectedCount() + " items: " + e.getMessage());
+                queue.fail(e);
+            }
+        }), "collector-" + flow.getName() + "-" + step);
+        collectorThread.setDaemon(true);
+        streamingUris = queue;
+        collectorThread.start();
+        return queue;
+    }
+
+    /**
+     * @return the percentage of batches processed, or -1 if the collector is still streaming and the total is unknown
+     */
+    private int calculatePercentComplete(StepMetrics stepMetrics, Collection uris, long knownUriCount, boolean countEvents) {
+        long uriCount = knownUriCount;
+        if (uris instanceof StreamingUriQueue) {
+            StreamingUriQueue queue = (StreamingUriQueue) uris;
+            if (!queue.isComplete()) {
+                return -1;
+            }
+            uriCount = queue.getCollectedCount();
+        }
+        if (countEvents) {
+            // Adaptive mode splits batches into requests of varying size, so progress is measured in items
+            long processed = stepMetrics.getSuccessfulEventsCount() + stepMetrics.getFailedEventsCount();
+            return uriCount == 0 ? 100 : (int) ((processed / (double) uriCount) * 100.0);
+        }
+        double batchCount = Math.ceil((double) uriCount / (double) batchSize);
+        return (int) (((double) stepMetrics.getSuccessfulBatchesCount() / batchCount) * 100.0);
+    }
+
+    /**
+     * In counts-only mode the server returns only the failed URIs, so the completed ones are the rest of the batch.
+     */
+    private static String[] completedItemsOf(String[] items, ResponseHolder response) {
+        if (response.completedItems != null) {
+            return response.completedItems.toArray(new String[0]);
+        }
+        if (response.failedItems == null || response.failedItems.isEmpty()) {
+            return items;
+        }
+        Set<String> failed = new HashSet<>(response.failedItems);
+        List<String> completed = new ArrayList<>(items.length);
+        for (String item : items) {
+            if (!failed.contains(item)) {
+                completed.add(item);
+            }
+        }
+        return completed.toArray(new String[0]);
+    }
+
     private RunStepResponse runHarmonizer(RunStepResponse runStepResponse, Collection uris) {
         StepMetrics stepMetrics = new StepMetrics();
 
@@ -334,23 +632,39 @@ public class QueryStepRunner implements StepRunner {
             listener.onStatusChange(runStepResponse.getJobId(), 0, JobStatus.RUNNING_PREFIX + step, 0,0, "starting step execution");
         });
 
-        if (uris == null || uris.size() == 0) {
+        // For a streaming collector, hasNext() blocks until the first URI arrives or the collector finishes
+        final Iterator<String> uriIterator = uris != null ? uris.iterator() : null;
+        if (uriIterator == null || !uriIterator.hasNext()) {
             JsonNode jobDoc = null;
+            final Throwable streamingFailure = uris instanceof StreamingUriQueue ? ((StreamingUriQueue) uris).getFailure() : null;
             final String stepStatus;
             if(isStopped.get()) {
                 stepStatus = JobStatus.CANCELED_PREFIX + step;
             }
+            else if (streamingFailure != null) {
+                stepStatus = JobStatus.FAILED_PREFIX + step;
+            }
             else {
                 stepStatus = JobStatus.COMPLETED_PREFIX + step;
             }
 
             stepStatusListeners.forEach((StepStatusListener listener) -> {
                 listener.onStatusChange(runStepResponse.getJobId(), 100, stepStatus, 0, 0,
-                    (stepStatus.contains(JobStatus.COMPLETED_PREFIX) ? "collector returned 0 items" : "job was stopped"));
+                    (stepStatus.contains(JobStatus.COMPLETED_PREFIX) ? "collector returned 0 items" :
+                        streamingFailure != null ? "collector failed" : "job was stopped"));
             });
             stepFinishedListeners.forEach((StepFinishedListener::onStepFinished));
             runStepResponse.setCounts(0,0,0,0,0);
             runStepResponse.withStatus(stepStatus);
+            if (completedUris != null && stepStatus.contains(JobStatus.COMPLETED_PREFIX)) {
+                // A resumed step with nothing left to do has no further use for its journal
+                StepCheckpointJournal.forStep(hubConfig, runStepResponse.getJobId(), flow.getName(), step).delete();
+            }
+            if (streamingFailure != null) {
+                StringWriter errors = new StringWriter();
+                streamingFailure.printStackTrace(new PrintWriter(errors));
+                runStepResponse.withStepOutput(errors.toString());
+            }
 
             try {
                 jobDoc = jobDocManager.postJobs(jobId, stepStatus, step, stepStatus.contains(JobStatus.COMPLETED_PREFIX) ? step : null, runStepResponse);
@@ -358,6 +672,9 @@ public class QueryStepRunner implements StepRunner {
             catch (Exception e) {
                 throw e;
             }
+            finally {
+                releaseClients();
+            }
             try {
                 return StepRunnerUtil.getResponse(jobDoc, step);
             }
@@ -371,30 +688,92 @@ public class QueryStepRunner implements StepRunner {
 
         dataMovementManager = stagingClient.newDataMovementManager();
 
-        double batchCount = Math.ceil((double) uris.size() / (double) batchSize);
+        // DiskQueue shrinks as it is iterated, so capture its size before the batcher starts reading it
+        final long knownUriCount = uris.size();
+
+        // When nothing needs the completed URIs or the written documents, ask the server for counts and failures only
+        final boolean countsOnly = !itemListenersRegistered && !isFullOutput;
+
+        // Records which URIs were processed so that the step can be resumed via the "resume" option; only kept when
+        // asked for with the "checkpoints" option, or when the step is already being resumed
+        final StepCheckpointJournal journal = !(checkpoints || resume) ? null :
+            StepCheckpointJournal.forStep(hubConfig, runStepResponse.getJobId(), flow.getName(), step);
 
         HashMap<String, JobTicket> ticketWrapper = new HashMap<>();
 
         ConcurrentHashMap<DatabaseClient, FlowResource> databaseClientMap = new ConcurrentHashMap<>();
+        // Clients for the hosts that own the collected URIs, when the "hostAffinity" option is set
+        ConcurrentHashMap<Integer, DatabaseClient> hostClients = new ConcurrentHashMap<>();
         Map<String,Object> fullResponse = new HashMap<>();
-        ObjectMapper mapper = new ObjectMapper();
-        queryBatcher = dataMovementManager.newQueryBatcher(uris.iterator())
-            .withBatchSize(batchSize)
-            .withThreadCount(threadCount)
+        // The options are the same for every batch, so they are serialized once per step run
+        final String serializedOptions;
+        try {
+            serializedOptions = COMPACT_MAPPER.writeValueAsString(options);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+        // In adaptive mode the batcher is sized for the upper limits, and the controller decides how many URIs
+        // are sent per request and how many requests may be in flight at once
+        adaptiveController = AdaptiveBatchController.fromOptions(options, batchSize, threadCount);
+        final AdaptiveBatchController controller = adaptiveController;
+        if (controller != null) {
+            stepMetrics.enableBatchWindow();
+        }
+        // Batches run on the batcher's threads, so their spans name the step's span as their parent
+        final Span stepSpan = JaegerConfig.activeSpan();
+        final BatchSampler batchSampler = BatchSampler.fromOptions(options);
+        queryBatcher = dataMovementManager.newQueryBatcher(uriIterator)
+            .withBatchSize(controller != null ? controller.getMaxBatchSize() : batchSize)
+            .withThreadCount(controller != null ? controller.getMaxThreadCount() : threadCount)
             .withJobId(runStepResponse.getJobId())
             .onUrisReady((QueryBatch batch) -> {
-                try {
+              int requestSize = controller != null ? controller.getBatchSize() : batch.getItems().length;
+              for (BatchRequest request : planRequests(batch, requestSize, hostClients)) {
+                final String[] items = request.items;
+                long requestStart = System.nanoTime();
+                // A sampled batch's span is active while it runs, so that its request carries the span's context
+                final Span batchSpan = batchSampler.sample() ?
+                    JaegerConfig.buildChildSpan("batch", stepSpan).withTag("step", step).withTag("items", items.length).start() : null;
+                Throwable batchError = null;
+                try (Scope ignored = batchSpan != null ? JaegerConfig.activate(batchSpan) : null) {
                     FlowResource flowResource;
-                    Map<String,Object> optsMap = new HashMap<>(options);
-                    if (databaseClientMap.containsKey(batch.getClient())) {
-                        flowResource = databaseClientMap.get(batch.getClient());
+                    if (databaseClientMap.containsKey(request.client)) {
+                        flowResource = databaseClientMap.get(request.client);
                     } else {
-                        flowResource = new FlowResource(batch.getClient(), destinationDatabase, flow);
-                        databaseClientMap.put(batch.getClient(), flowResource);
+                        flowResource = new FlowResource(request.client, destinationDatabase, flow);
+                        databaseClientMap.put(request.client, flowResource);
+                    }
+                    ResponseHolder response;
+                    if (controller != null) {
+                        controller.acquire();
+                    }
+                    requestStart = System.nanoTime();
+                    stepMetrics.batchStarted();
+                    try {
+                        response = flowResource.run(runStepResponse.getJobId(), step, serializedOptions, items, countsOnly);
+                    } finally {
+                        stepMetrics.batchFinished();
+                        if (controller != null) {
+                            controller.release();
+                        }
+                    }
+                    stepMetrics.recordBatch(System.nanoTime() - requestStart, response.totalCount, response.errorCount);
+                    if (batchSpan != null) {
+                        batchSpan.setTag("failedItems", response.errorCount);
+                    }
+                    stepMetrics.recordPayload(response.requestBytes, response.responseBytes);
+                    if (response.serverElapsedMillis >= 0) {
+                        stepMetrics.recordServerTime(Math.round(response.serverElapsedMillis * 1_000_000));
+                    }
+                    final String[] completedItems = (journal != null || !stepBatchCompleteListeners.isEmpty()) ?
+                        completedItemsOf(items, response) : null;
+                    if (journal != null) {
+                        journal.recordCompleted(Arrays.asList(completedItems));
+                        journal.recordFailed(response.failedItems);
+                    }
+                    if (controller != null) {
+                        controller.onBatchComplete(stepMetrics);
                     }
-                    optsMap.put("uris", batch.getItems());
-
-                    ResponseHolder response = flowResource.run(runStepResponse.getJobId(), step, optsMap);
                     stepMetrics.getFailedEvents().addAndGet(response.errorCount);
                     stepMetrics.getSuccessfulEvents().addAndGet(response.totalCount - response.errorCount);
                     if (response.errors != null) {
@@ -425,30 +804,37 @@ public class QueryStepRunner implements StepRunner {
                         stepMetrics.getFailedBatches().addAndGet(1);
                     }
 
-                    int percentComplete = (int) (((double) stepMetrics.getSuccessfulBatchesCount() / batchCount) * 100.0);
+                    int percentComplete = calculatePercentComplete(stepMetrics, uris, knownUriCount, controller != null);
 
-                    if (percentComplete != previousPercentComplete && (percentComplete % 5 == 0)) {
+                    if (percentComplete < 0) {
+                        long processedBatches = stepMetrics.getSuccessfulBatchesCount() + stepMetrics.getFailedBatchesCount();
+                        if (processedBatches % STREAMING_PROGRESS_BATCH_INTERVAL == 0) {
+                            String message = "collector has returned " + uris.size() + " items so far";
+                            stepStatusListeners.forEach((StepStatusListener listener) -> {
+                                listener.onStatusChange(runStepResponse.getJobId(), previousPercentComplete, JobStatus.RUNNING_PREFIX + step, stepMetrics.getSuccessfulEventsCount(), stepMetrics.getFailedEventsCount(), message);
+                            });
+                        }
+                    }
+                    else if (percentComplete != previousPercentComplete && (percentComplete % 5 == 0)) {
                         previousPercentComplete = percentComplete;
                         stepStatusListeners.forEach((StepStatusListener listener) -> {
                             listener.onStatusChange(runStepResponse.getJobId(), percentComplete, JobStatus.RUNNING_PREFIX + step, stepMetrics.getSuccessfulEventsCount(), stepMetrics.getFailedEventsCount(), "");
                         });
                     }
 
-                    if (stepItemCompleteListeners.size() > 0) {
-                        response.completedItems.forEach((String item) -> {
-                            stepItemCompleteListeners.forEach((StepItemCompleteListener listener) -> {
-                                listener.processCompletion(runStepResponse.getJobId(), item);
-                            });
-                        });
-                    }
+                    JaegerConfig.traceChild("listeners", batchSpan, () -> {
+                        for (StepBatchCompleteListener listener : stepBatchCompleteListeners) {
+                            listener.processBatchCompletion(runStepResponse.getJobId(), completedItems, response.totalCount - response.errorCount, response.errorCount);
+                        }
 
-                    if (stepItemFailureListeners.size() > 0) {
-                        response.failedItems.forEach((String item) -> {
-                            stepItemFailureListeners.forEach((StepItemFailureListener listener) -> {
-                                listener.processFailure(runStepResponse.getJobId(), item);
-                            });
-                        });
-                    }
+                        if (response.errorCount > 0 && !stepBatchFailureListeners.isEmpty()) {
+                            String[] failedItems = response.failedItems != null ? response.failedItems.toArray(new String[0]) : new String[0];
+                            for (StepBatchFailureListener listener : stepBatchFailureListeners) {
+                                listener.processBatchFailure(runStepResponse.getJobId(), failedItems, response.errorCount);
+                            }
+                        }
+                        return null;
+                    });
 
                     if (stopOnFailure && response.errorCount > 0) {
                         JobTicket jobTicket = ticketWrapper.get("jobTicket");
@@ -457,30 +843,67 @@ public class QueryStepRunner implements StepRunner {
                         }
                     }
                 } catch (Exception e) {
+                    batchError = e;
+                    if (e instanceof InterruptedException) {
+                        Thread.currentThread().interrupt();
+                    }
+                    stepMetrics.recordBatch(System.nanoTime() - requestStart, items.length, items.length);
+                    if (journal != null) {
+                        journal.recordFailed(items);
+                    }
+                    if (controller != null) {
+                        controller.onBatchComplete(stepMetrics);
+                    }
                     if (errorMessages.size() < MAX_ERROR_MESSAGES) {
                         errorMessages.add(e.toString());
                     }
+                } finally {
+                    JaegerConfig.finish(batchSpan, batchError);
                 }
+              }
             })
             .onQueryFailure((QueryBatchException failure) -> {
                 stepMetrics.getFailedBatches().addAndGet(1);
                 stepMetrics.getFailedEvents().addAndGet(batchSize);
             });
 
+        final StepMetricsId metricsId = new StepMetricsId(flow.getName(), step, flow.getStep(step).getName(), runStepResponse.getJobId());
+        StepMetricsRegistries.register(metricsId, stepMetrics);
+
         if(! isStopped.get()) {
-            JobTicket jobTicket = dataMovementManager.startJob(queryBatcher);
-            ticketWrapper.put("jobTicket", jobTicket);
+            try {
+                JobTicket jobTicket = dataMovementManager.startJob(queryBatcher);
+                ticketWrapper.put("jobTicket", jobTicket);
+            } catch (RuntimeException e) {
+                StepMetricsRegistries.unregister(metricsId);
+                releaseClients();
+                throw e;
+            }
         }
 
-        runningThread = new Thread(() -> {
+        // Job document writes made while finishing the step belong to the step's trace
+        final Runnable finishStep = () -> {
             queryBatcher.awaitCompletion();
+            stepMetrics.markFinished();
+            StepMetricsRegistries.unregister(metricsId);
+
+            long totalUriCount = knownUriCount;
+            boolean collectorFailed = false;
+            if (uris instanceof StreamingUriQueue) {
+                StreamingUriQueue queue = (StreamingUriQueue) uris;
+                totalUriCount = queue.getCollectedCount();
+                if (queue.getFailure() != null) {
+                    collectorFailed = true;
+                    errorMessages.add(0, "Collector failed after returning " + totalUriCount + " items: " + queue.getFailure().getMessage());
+                }
+            }
 
             String stepStatus;
             if (stepMetrics.getFailedEventsCount() > 0 && stopOnFailure) {
                 stepStatus = JobStatus.STOP_ON_ERROR_PREFIX + step;
             } else if( isStopped.get()){
                 stepStatus = JobStatus.CANCELED_PREFIX + step;
-            } else if (stepMetrics.getFailedEventsCount() > 0 && stepMetrics.getSuccessfulEventsCount() > 0) {
+            } else if ((stepMetrics.getFailedEventsCount() > 0 || collectorFailed) && stepMetrics.getSuccessfulEventsCount() > 0) {
                 stepStatus = JobStatus.COMPLETED_WITH_ERRORS_PREFIX + step;
             } else if (stepMetrics.getFailedEventsCount() == 0 && stepMetrics.getSuccessfulEventsCount() > 0)  {
                 stepStatus = JobStatus.COMPLETED_PREFIX + step;
@@ -496,7 +919,23 @@ public class QueryStepRunner implements StepRunner {
 
             dataMovementManager.stopJob(queryBatcher);
 
-            runStepResponse.setCounts(uris.size(),stepMetrics.getSuccessfulEventsCount(), stepMetrics.getFailedEventsCount(), stepMetrics.getSuccessfulBatchesCount(), stepMetrics.getFailedBatchesCount());
+            if (journal != null) {
+                // Nothing is left to resume once every item has completed
+                if ((JobStatus.COMPLETED_PREFIX + step).equalsIgnoreCase(stepStatus)) {
+                    journal.delete();
+                } else {
+                    journal.close();
+                    logger.info("Step " + step + " did not complete; rerun with the resume option and job ID " + runStepResponse.getJobId() + " to process only the remaining items");
+                }
+            }
+
+            runStepResponse.setCounts(totalUriCount,stepMetrics.getSuccessfulEventsCount(), stepMetrics.getFailedEventsCount(), stepMetrics.getSuccessfulBatchesCount(), stepMetrics.getFailedBatchesCount());
+            if (controller != null) {
+                runStepResponse.withBatchSettings(controller.getBatchSize(), controller.getThreadCount());
+            } else {
+                runStepResponse.withBatchSettings(batchSize, threadCount);
+            }
+            runStepResponse.withMetrics(stepMetrics.summarize(runStepResponse.getJobId()));
             runStepResponse.withStatus(stepStatus);
             if (errorMessages.size() > 0) {
                 runStepResponse.withStepOutput(errorMessages);
@@ -507,6 +946,7 @@ public class QueryStepRunner implements StepRunner {
             JsonNode jobDoc = null;
             try {
                 jobDoc = jobDocManager.postJobs(jobId, stepStatus, step, (JobStatus.COMPLETED_PREFIX + step).equalsIgnoreCase(stepStatus) ? step : null, runStepResponse);
+                logger.debug("Step " + step + " of job " + jobId + " made " + jobDocManager.getRequestCount() + " requests to the jobs database");
             }
             catch (Exception e) {
                 logger.error(e.getMessage());
@@ -522,12 +962,43 @@ public class QueryStepRunner implements StepRunner {
                     logger.error(ex.getMessage());
                 }
             }
-        });
+        };
+        runningThread = new Thread(JaegerConfig.withActiveSpan(stepSpan, () -> {
+            try {
+                finishStep.run();
+            } finally {
+                releaseClients();
+            }
+        }));
 
         runningThread.start();
         return runStepResponse;
     }
 
+    private DatabaseClient acquireClient(DatabaseClient client) {
+        synchronized (acquiredClients) {
+            acquiredClients.add(client);
+        }
+        return client;
+    }
+
+    /**
+     * Hands the clients acquired for this run back to the hub config. The job document updates of the step have been
+     * sent by now, so its job client is no longer needed either.
+     */
+    private void releaseClients() {
+        synchronized (acquiredClients) {
+            for (DatabaseClient client : acquiredClients) {
+                if (client == stagingClient) {
+                    stagingClient = null;
+                }
+                hubConfig.releaseClient(client);
+            }
+            acquiredClients.clear();
+            jobDocManager = null;
+        }
+    }
+
     class FlowResource extends ResourceManager {
 
         private DatabaseClient srcClient;
@@ -543,41 +1014,103 @@ public class QueryStepRunner implements StepRunner {
         }
 
 
-        public ResponseHolder run(String jobId, String step, Map<String, Object> options) {
+        /**
+         * Runs the step against a batch of URIs using version 2 of the ml:runFlow call, which reads the step
+         * options and the URIs from a compact JSON body instead of from URL-encoded query parameters.
+         *
+         * @param jobId the job the batch belongs to
+         * @param step the step number
+         * @param serializedOptions the step options as a JSON object string, serialized once per step run
+         * @param uris the URIs in the batch
+         * @param countsOnly if true, the server omits the completed URIs and written documents from its response
+         * @return the response from the server
+         */
+        public ResponseHolder run(String jobId, String step, String serializedOptions, String[] uris, boolean countsOnly) {
             ResponseHolder resp;
 
-                RequestParameters params = new RequestParameters();
-                params.add("flow-name", flow.getName());
-                params.put("step", step);
-                params.put("job-id", jobId);
-                params.put("target-database", targetDatabase);
-                if (options != null) {
-                    try {
-                        params.put("options", JSONObject.writeValueAsString(options));
-                    } catch (JsonProcessingException e) {
-                        throw new RuntimeException(e);
+            RequestParameters params = new RequestParameters();
+            params.add("flow-name", flow.getName());
+            params.put("step", step);
+            params.put("job-id", jobId);
+            params.put("target-database", targetDatabase);
+            params.put("api-version", "2");
+            if (countsOnly) {
+                params.put("response-mode", "counts");
+            }
+
+            byte[] body;
+            try {
+                body = buildRequestBody(serializedOptions, uris).getBytes(StandardCharsets.UTF_8);
+            } catch (JsonProcessingException e) {
+                throw new RuntimeException(e);
+            }
+            ResourceServices.ServiceResultIterator resultItr = this.getServices().post(params, new BytesHandle(body).withFormat(Format.JSON));
+            try {
+                if (resultItr == null || !resultItr.hasNext()) {
+                    resp = new ResponseHolder();
+                } else {
+                    ResourceServices.ServiceResult res = resultItr.next();
+                    try (CountingInputStream content = new CountingInputStream(res.getContent(new InputStreamHandle()).get())) {
+                        resp = RunFlowResponseReader.read(content, !countsOnly, isFullOutput);
+                        resp.responseBytes = content.count;
                     }
                 }
-                ResourceServices.ServiceResultIterator resultItr = this.getServices().post(params, new StringHandle("{}").withFormat(Format.JSON));
-                try {
-                    if (resultItr == null || !resultItr.hasNext()) {
-                        resp = new ResponseHolder();
-                    } else {
-                        ResourceServices.ServiceResult res = resultItr.next();
-                        StringHandle handle = new StringHandle();
-                        ObjectMapper objectMapper = new ObjectMapper();
-                        resp = objectMapper.readValue(res.getContent(handle).get(), ResponseHolder.class);
-                    }
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    if (resultItr != null) {
-                        resultItr.close();
-                    }
+                resp.requestBytes = body.length;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            } finally {
+                if (resultItr != null) {
+                    resultItr.close();
                 }
+            }
 
             return resp;
         }
 
+        private String buildRequestBody(String serializedOptions, String[] uris) throws JsonProcessingException {
+            String serializedUris = COMPACT_MAPPER.writeValueAsString(uris);
+            return new StringBuilder(serializedOptions.length() + serializedUris.length() + 24)
+                .append("{\"options\":").append(serializedOptions)
+                .append(",\"uris\":").append(serializedUris)
+                .append('}')
+                .toString();
+        }
+
+    }
+
+    /**
+     * Counts the bytes read from a response, so that its size is known without buffering it.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
     }
 }
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2012-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.step.impl;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.marklogic.hub.step.ResponseHolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the response of a single ml:runFlow batch directly from the response stream into a ResponseHolder.
+ *
+ * Parsing is done token by token, so arrays the caller doesn't need - completedItems when no one is listening
+ * for completed items, documents when fullOutput is off - are skipped without being materialized. The
+ * ObjectReader used for the errors and documents subtrees is thread-safe and shared by every batch.
+ */
+public class RunFlowResponseReader {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final JsonFactory JSON_FACTORY = MAPPER.getFactory();
+    private static final ObjectReader NODE_READER = MAPPER.readerFor(JsonNode.class);
+
+    private RunFlowResponseReader() {
+    }
+
+    /**
+     * @param in the response body; it is read to the end but not closed
+     * @param includeCompletedItems whether to build the list of completed URIs
+     * @param includeDocuments whether to build the list of written documents
+     */
+    public static ResponseHolder read(InputStream in, boolean includeCompletedItems, boolean includeDocuments) throws IOException {
+        ResponseHolder holder = new ResponseHolder();
+        try (JsonParser parser = JSON_FACTORY.createParser(in)) {
+            parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+            JsonToken token = parser.nextToken();
+            if (token == null) {
+                return holder;
+            }
+            if (token != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "Expected ml:runFlow response to be a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                switch (field) {
+                    case "jobId":
+                        holder.jobId = parser.getValueAsString();
+                        break;
+                    case "totalCount":
+                        holder.totalCount = parser.getValueAsLong();
+                        break;
+                    case "errorCount":
+                        holder.errorCount = parser.getValueAsLong();
+                        break;
+                    case "serverElapsedMillis":
+                        holder.serverElapsedMillis = parser.getValueAsDouble(-1);
+                        break;
+                    case "completedItems":
+                        if (includeCompletedItems) {
+                            holder.completedItems = readStrings(parser);
+                        } else {
+                            parser.skipChildren();
+                        }
+                        break;
+                    case "failedItems":
+                        holder.failedItems = readStrings(parser);
+                        break;
+                    case "errors":
+                        holder.errors = readNodes(parser);
+                        break;
+                    case "documents":
+                        if (includeDocuments) {
+                            holder.documents = readNodes(parser);
+                        } else {
+                            parser.skipChildren();
+                        }
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+        }
+        return holder;
+    }
+
+    private static List<String> readStrings(JsonParser parser) throws IOException {
+        if (parser.getCurrentToken() != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return null;
+        }
+        List<String> values = new ArrayList<>();
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            values.add(parser.getValueAsString());
+        }
+        return values;
+    }
+
+    private static List<JsonNode> readNodes(JsonParser parser) throws IOException {
+        if (parser.getCurrentToken() != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return null;
+        }
+        List<JsonNode> values = new ArrayList<>();
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            values.add(NODE_READER.readValue(parser));
+        }
+        return values;
+    }
+}
@@ -24,6 +24,7 @@ import com.marklogic.hub.step.StepDefinition;
 import com.marklogic.hub.util.json.JSONObject;
 import org.apache.commons.lang3.StringUtils;
 
+import java.util.List;
 import java.util.Map;
 
 public class Step {
@@ -40,6 +41,10 @@ public class Step {
     @JsonInclude(JsonInclude.Include.NON_NULL)
     private JsonNode fileLocations;
 
+    // Numbers of the steps in the flow that must finish before this one starts, when steps run in parallel
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private List<String> dependsOn;
+
     public String getName() {
         return name;
     }
@@ -120,6 +125,14 @@ public class Step {
         this.fileLocations = fileLocations;
     }
 
+    public List<String> getDependsOn() {
+        return dependsOn;
+    }
+
+    public void setDependsOn(List<String> dependsOn) {
+        this.dependsOn = dependsOn;
+    }
+
     public static Step deserialize(JsonNode json) {
         Step step = new Step();
 
@@ -138,6 +151,9 @@ public class Step {
         step.setBatchSize(jsonObject.getInt("batchSize"));
         step.setThreadCount(jsonObject.getInt("threadCount"));
         step.setFileLocations(jsonObject.getNode("fileLocations"));
+        if (jsonObject.isExist("dependsOn")) {
+            step.setDependsOn(jsonObject.getArrayString("dependsOn", false));
+        }
         return step;
     }
 
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2012-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.step.impl;
+
+import com.marklogic.hub.HubConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.stream.Stream;
+
+/**
+ * Append-only local record of the URIs a step has processed for a given job, so that a step that failed or was
+ * stopped part way through can be resumed without reprocessing everything the collector returns.
+ *
+ * Each line is either "C" (completed) or "F" (failed), a tab, and a URI. Lines are flushed once per batch, so at most
+ * the batches in flight are lost if the process dies; those are simply processed again on resume. A URI that failed
+ * in one run and completed in a later one counts as completed.
+ *
+ * Journals live under the project's .tmp/checkpoints directory, or under java.io.tmpdir when there is no project
+ * directory, and are keyed by job ID, flow name and step number.
+ */
+public class StepCheckpointJournal implements Closeable {
+
+    private static final String COMPLETED = "C";
+    private static final String FAILED = "F";
+
+    private static final Logger logger = LoggerFactory.getLogger(StepCheckpointJournal.class);
+
+    private final Path file;
+    private Writer writer;
+
+    public StepCheckpointJournal(Path file) {
+        this.file = file;
+    }
+
+    public static StepCheckpointJournal forStep(HubConfig hubConfig, String jobId, String flowName, String step) {
+        String projectDir = null;
+        if (hubConfig != null && hubConfig.getHubProject() != null) {
+            projectDir = hubConfig.getHubProject().getProjectDirString();
+        }
+        Path baseDir = projectDir != null ?
+            Paths.get(projectDir, ".tmp", "checkpoints") :
+            Paths.get(System.getProperty("java.io.tmpdir"), "data-hub-checkpoints");
+        return new StepCheckpointJournal(baseDir.resolve(sanitize(jobId)).resolve(sanitize(flowName) + "-" + sanitize(step) + ".journal"));
+    }
+
+    private static String sanitize(String value) {
+        return String.valueOf(value).replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public boolean exists() {
+        return Files.exists(file);
+    }
+
+    public synchronized void recordCompleted(Collection<String> uris) {
+        append(COMPLETED, uris);
+    }
+
+    public synchronized void recordFailed(Collection<String> uris) {
+        append(FAILED, uris);
+    }
+
+    public synchronized void recordFailed(String[] uris) {
+        append(FAILED, Arrays.asList(uris));
+    }
+
+    private void append(String marker, Collection<String> uris) {
+        if (uris == null || uris.isEmpty()) {
+            return;
+        }
+        try {
+            if (writer == null) {
+                Files.createDirectories(file.getParent());
+                writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            for (String uri : uris) {
+                writer.write(marker);
+                writer.write('\t');
+                writer.write(uri);
+                writer.write('\n');
+            }
+            writer.flush();
+        } catch (IOException e) {
+            // A journal that can't be written only costs the ability to resume, so the step keeps running
+            logger.warn("Unable to write checkpoint journal " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the journal and returns the URIs recorded as completed.
+     *
+     * URIs are held as 64-bit fingerprints rather than strings so that a journal of tens of millions of URIs
+     * stays small in memory. The chance of two URIs sharing a fingerprint is negligible at that scale.
+     */
+    public CompletedUris loadCompleted() throws IOException {
+        long[] fingerprints = new long[1024];
+        int count = 0;
+        if (Files.exists(file)) {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith(COMPLETED + "\t")) {
+                        if (count == fingerprints.length) {
+                            fingerprints = Arrays.copyOf(fingerprints, count * 2);
+                        }
+                        fingerprints[count++] = fingerprint(line, 2);
+                    }
+                }
+            }
+        }
+        return new CompletedUris(fingerprints, count);
+    }
+
+    /**
+     * Deletes the journal; called once a step has completed without errors and there is nothing left to resume.
+     */
+    public synchronized void delete() {
+        close();
+        try {
+            Files.deleteIfExists(file);
+            Path jobDir = file.getParent();
+            if (jobDir != null && Files.isDirectory(jobDir)) {
+                try (Stream<Path> entries = Files.list(jobDir)) {
+                    if (!entries.findAny().isPresent()) {
+                        Files.deleteIfExists(jobDir);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to delete checkpoint journal " + file + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                logger.warn("Unable to close checkpoint journal " + file + ": " + e.getMessage());
+            }
+            writer = null;
+        }
+    }
+
+    // 64-bit FNV-1a over the characters of value, starting at offset
+    static long fingerprint(String value, int offset) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = offset; i < value.length(); i++) {
+            char c = value.charAt(i);
+            hash ^= (c & 0xff);
+            hash *= 0x100000001b3L;
+            hash ^= (c >>> 8);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    public static class CompletedUris {
+        private final long[] sortedFingerprints;
+
+        CompletedUris(long[] fingerprints, int count) {
+            long[] sorted = Arrays.copyOf(fingerprints, count);
+            Arrays.sort(sorted);
+            // A URI may be journaled more than once if its batch was retried
+            int distinct = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                if (i == 0 || sorted[i] != sorted[distinct - 1]) {
+                    sorted[distinct++] = sorted[i];
+                }
+            }
+            this.sortedFingerprints = Arrays.copyOf(sorted, distinct);
+        }
+
+        public boolean contains(String uri) {
+            return Arrays.binarySearch(sortedFingerprints, fingerprint(uri, 0)) >= 0;
+        }
+
+        public int size() {
+            return sortedFingerprints.length;
+        }
+    }
+}
@@ -15,6 +15,11 @@
  */
 package com.marklogic.hub.step.impl;
 
+import com.marklogic.hub.step.metrics.Histogram;
+import com.marklogic.hub.step.metrics.StepMetricsSummary;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class StepMetrics {
@@ -23,6 +28,24 @@ public class StepMetrics {
     AtomicLong successfulBatches = new AtomicLong(0);
     AtomicLong failedBatches = new AtomicLong(0);
 
+    // Distributions over every batch of the step, for its summary and for metrics registries
+    private final long startNanos = System.nanoTime();
+    private volatile long finishNanos = 0;
+    private final Histogram requestLatencyMicros = new Histogram();
+    private final Histogram serverTimeMicros = new Histogram();
+    private final Histogram requestBytes = new Histogram();
+    private final Histogram responseBytes = new Histogram();
+    private final Histogram batchDocsPerSecond = new Histogram();
+    private final AtomicInteger inFlightBatches = new AtomicInteger();
+    private final AtomicInteger maxInFlightBatches = new AtomicInteger();
+
+    // Per-batch observations since the window was last drained; only kept for an AdaptiveBatchController
+    private volatile boolean batchWindowEnabled = false;
+    private long windowBatches = 0;
+    private long windowLatencyNanos = 0;
+    private long windowItems = 0;
+    private long windowFailedItems = 0;
+
     public AtomicLong getSuccessfulEvents() {
         return successfulEvents;
     }
@@ -55,4 +78,176 @@ public class StepMetrics {
     public long getFailedBatchesCount() {
         return failedBatches.get();
     }
+
+    /**
+     * Records the latency and outcome of a single batch.
+     *
+     * @param latencyNanos time taken to process the batch
+     * @param itemCount number of items in the batch
+     * @param failedItemCount number of those items that failed
+     */
+    public void recordBatch(long latencyNanos, long itemCount, long failedItemCount) {
+        requestLatencyMicros.record(TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+        if (latencyNanos > 0) {
+            batchDocsPerSecond.record(Math.round(itemCount * 1_000_000_000.0 / latencyNanos));
+        }
+        if (batchWindowEnabled) {
+            synchronized (this) {
+                windowBatches++;
+                windowLatencyNanos += latencyNanos;
+                windowItems += itemCount;
+                windowFailedItems += failedItemCount;
+            }
+        }
+    }
+
+    /**
+     * Starts keeping the window of recent batches that {@link #drainBatchWindow()} returns. Only runners with an
+     * AdaptiveBatchController need it, so batches of other steps are recorded without taking a lock.
+     */
+    public void enableBatchWindow() {
+        batchWindowEnabled = true;
+    }
+
+    /**
+     * @param serverNanos the time the server reported spending on a batch
+     */
+    public void recordServerTime(long serverNanos) {
+        serverTimeMicros.record(TimeUnit.NANOSECONDS.toMicros(serverNanos));
+    }
+
+    /**
+     * @param requestBytes the size of a batch request, or a negative number if unknown
+     * @param responseBytes the size of its response, or a negative number if unknown
+     */
+    public void recordPayload(long requestBytes, long responseBytes) {
+        if (requestBytes >= 0) {
+            this.requestBytes.record(requestBytes);
+        }
+        if (responseBytes >= 0) {
+            this.responseBytes.record(responseBytes);
+        }
+    }
+
+    /**
+     * Call before sending a batch, and {@link #batchFinished()} once it has returned or failed.
+     */
+    public void batchStarted() {
+        int inFlight = inFlightBatches.incrementAndGet();
+        maxInFlightBatches.accumulateAndGet(inFlight, Math::max);
+    }
+
+    public void batchFinished() {
+        inFlightBatches.decrementAndGet();
+    }
+
+    /**
+     * Stops the clock used for the step's overall throughput.
+     */
+    public void markFinished() {
+        if (finishNanos == 0) {
+            finishNanos = System.nanoTime();
+        }
+    }
+
+    public int getInFlightBatches() {
+        return inFlightBatches.get();
+    }
+
+    public int getMaxInFlightBatches() {
+        return maxInFlightBatches.get();
+    }
+
+    /**
+     * @return the items processed per second since the step started, until it finished
+     */
+    public double getDocsPerSecond() {
+        long elapsedNanos = (finishNanos != 0 ? finishNanos : System.nanoTime()) - startNanos;
+        long items = getSuccessfulEventsCount() + getFailedEventsCount();
+        return elapsedNanos <= 0 ? 0 : items * 1_000_000_000.0 / elapsedNanos;
+    }
+
+    public Histogram getRequestLatencyMicros() {
+        return requestLatencyMicros;
+    }
+
+    public Histogram getServerTimeMicros() {
+        return serverTimeMicros;
+    }
+
+    public Histogram getRequestBytes() {
+        return requestBytes;
+    }
+
+    public Histogram getResponseBytes() {
+        return responseBytes;
+    }
+
+    public Histogram getBatchDocsPerSecond() {
+        return batchDocsPerSecond;
+    }
+
+    /**
+     * @param jobId the job the step ran in; kept in the summary rather than as a label of the scraped metrics
+     */
+    public StepMetricsSummary summarize(String jobId) {
+        StepMetricsSummary summary = new StepMetricsSummary();
+        summary.setJobId(jobId);
+        summary.setBatchCount(requestLatencyMicros.getCount());
+        summary.setDocsPerSecond(getDocsPerSecond());
+        summary.setMaxInFlightBatches(getMaxInFlightBatches());
+        summary.setRequestLatencyMillis(StepMetricsSummary.Distribution.of(requestLatencyMicros, 1000));
+        summary.setServerTimeMillis(StepMetricsSummary.Distribution.of(serverTimeMicros, 1000));
+        summary.setRequestBytes(StepMetricsSummary.Distribution.of(requestBytes, 1));
+        summary.setResponseBytes(StepMetricsSummary.Distribution.of(responseBytes, 1));
+        summary.setBatchDocsPerSecond(StepMetricsSummary.Distribution.of(batchDocsPerSecond, 1));
+        return summary;
+    }
+
+    /**
+     * @return the number of batches recorded since the window was last drained
+     */
+    public synchronized long getWindowBatchCount() {
+        return windowBatches;
+    }
+
+    /**
+     * Returns the batches recorded since the last call and starts a new window.
+     *
+     * @return a snapshot of the window
+     */
+    public synchronized BatchWindow drainBatchWindow() {
+        BatchWindow window = new BatchWindow(windowBatches, windowLatencyNanos, windowItems, windowFailedItems);
+        windowBatches = 0;
+        windowLatencyNanos = 0;
+        windowItems = 0;
+        windowFailedItems = 0;
+        return window;
+    }
+
+    public static class BatchWindow {
+        private final long batchCount;
+        private final long totalLatencyNanos;
+        private final long itemCount;
+        private final long failedItemCount;
+
+        BatchWindow(long batchCount, long totalLatencyNanos, long itemCount, long failedItemCount) {
+            this.batchCount = batchCount;
+            this.totalLatencyNanos = totalLatencyNanos;
+            this.itemCount = itemCount;
+            this.failedItemCount = failedItemCount;
+        }
+
+        public long getBatchCount() {
+            return batchCount;
+        }
+
+        public double getAverageLatencyMillis() {
+            return batchCount == 0 ? 0 : (totalLatencyNanos / (double) batchCount) / 1_000_000.0;
+        }
+
+        public double getErrorRate() {
+            return itemCount == 0 ? 0 : failedItemCount / (double) itemCount;
+        }
+    }
 }
@@ -44,9 +44,15 @@ public class StepRunnerUtil {
     }
 
     protected static void initializeStepRun(JobDocManager jobDocManager, RunStepResponse runStepResponse, Flow flow, String step, String jobId) {
-        JsonNode json = jobDocManager.getJobDocument(jobId);
-        if (json == null) {
-            jobDocManager.createJob(jobId,flow.getName());
+        if (jobDocManager.isWriteBehind(jobId)) {
+            // Queued with the step's start, and only created by the server if it doesn't exist yet
+            jobDocManager.createJob(jobId, flow.getName());
+        }
+        else {
+            JsonNode json = jobDocManager.getJobDocument(jobId);
+            if (json == null) {
+                jobDocManager.createJob(jobId,flow.getName());
+            }
         }
 
         try {
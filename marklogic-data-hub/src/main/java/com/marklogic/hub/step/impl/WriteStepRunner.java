@@ -29,17 +29,26 @@ import com.marklogic.client.io.DocumentMetadataHandle;
 import com.marklogic.client.io.Format;
 import com.marklogic.client.io.InputStreamHandle;
 import com.marklogic.client.io.JacksonHandle;
+import com.marklogic.client.io.marker.AbstractWriteHandle;
 import com.marklogic.hub.DatabaseKind;
 import com.marklogic.hub.HubConfig;
 import com.marklogic.hub.collector.DiskQueue;
+import com.marklogic.hub.collector.StreamingUriQueue;
 import com.marklogic.hub.collector.impl.FileCollector;
+import com.marklogic.hub.collector.impl.IngestionManifest;
 import com.marklogic.hub.error.DataHubConfigurationException;
 import com.marklogic.hub.flow.Flow;
 import com.marklogic.hub.impl.HubConfigImpl;
 import com.marklogic.hub.job.JobDocManager;
 import com.marklogic.hub.job.JobStatus;
 import com.marklogic.hub.step.*;
+import com.marklogic.hub.step.metrics.StepMetricsId;
+import com.marklogic.hub.step.metrics.StepMetricsRegistries;
 import com.marklogic.hub.util.json.JSONObject;
+import com.marklogic.hub.util.metrics.tracer.BatchSampler;
+import com.marklogic.hub.util.metrics.tracer.JaegerConfig;
+import io.opentracing.Span;
+import io.opentracing.Tracer;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -52,9 +61,15 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Stream;
 
 public class WriteStepRunner implements StepRunner {
@@ -66,8 +81,14 @@ public class WriteStepRunner implements StepRunner {
     private DatabaseClient stagingClient;
     private String destinationDatabase;
     private int previousPercentComplete;
-    protected long csvFilesProcessed;
-    private String currentCsvFile;
+    protected volatile long csvFilesProcessed;
+    private int readerThreadCount = 1;
+    private boolean streamingCollector = false;
+    private int scanThreadCount = 0;
+    private StreamingUriQueue streamingUris = null;
+    private IngestionManifest manifest = null;
+    // In incremental mode, maps each document URI not yet confirmed by the WriteBatcher to the file it came from
+    private final Map<String, FileProgress> pendingFilesByUri = new ConcurrentHashMap<>();
     private Map<String, Object> options;
     private boolean stopOnFailure = false;
     private String jobId;
@@ -76,8 +97,8 @@ public class WriteStepRunner implements StepRunner {
 
     private String step = "1";
     private static final SimpleDateFormat DATE_TIME_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
-    private List<StepItemCompleteListener> stepItemCompleteListeners = new ArrayList<>();
-    private List<StepItemFailureListener> stepItemFailureListeners = new ArrayList<>();
+    private List<StepBatchCompleteListener> stepBatchCompleteListeners = new ArrayList<>();
+    private List<StepBatchFailureListener> stepBatchFailureListeners = new ArrayList<>();
     private List<StepStatusListener> stepStatusListeners = new ArrayList<>();
     private List<StepFinishedListener> stepFinishedListeners = new ArrayList<>();
 
@@ -85,8 +106,15 @@ public class WriteStepRunner implements StepRunner {
     private Thread runningThread = null;
     private DataMovementManager dataMovementManager = null;
     private WriteBatcher writeBatcher = null;
+    private AdaptiveBatchController adaptiveController = null;
+    private final AtomicInteger documentsSinceFlush = new AtomicInteger(0);
+    // Permits taken by adaptive flushes, by the URI of the document that triggered each flush; the batch that
+    // carries that document gives its permit back
+    private final ConcurrentHashMap<String, Integer> flushPermitsByUri = new ConcurrentHashMap<>();
     private String inputFilePath = null;
     private JobDocManager jobDocManager;
+    // Clients this runner acquired from the hub config; they are handed back when the step ends
+    private final List<DatabaseClient> acquiredClients = new ArrayList<>();
     private String outputCollections;
     private String outputPermissions;
     private String outputFormat;
@@ -100,7 +128,6 @@ public class WriteStepRunner implements StepRunner {
 
     public WriteStepRunner(HubConfig hubConfig) {
         this.hubConfig = hubConfig;
-        this.stagingClient = hubConfig.newStagingClient();
         this.destinationDatabase = hubConfig.getDbName(DatabaseKind.STAGING);
     }
 
@@ -142,11 +169,17 @@ public class WriteStepRunner implements StepRunner {
         return this;
     }
 
+    @Override
+    public StepRunner withSourceDatabase(String sourceDatabase) {
+        //no op for WriteStepRunner
+        return this;
+    }
+
     @Override
     public StepRunner withDestinationDatabase(String destinationDatabase) {
         this.destinationDatabase = destinationDatabase;
-        //will work only for final db in addition to staging db as it has flow/step artifacts
-        this.stagingClient = hubConfig.newStagingClient(this.destinationDatabase);
+        //will work only for final db in addition to staging db as it has flow/step artifacts; acquired when the step runs
+        this.stagingClient = null;
         return this;
     }
 
@@ -194,13 +227,23 @@ public class WriteStepRunner implements StepRunner {
 
     @Override
     public StepRunner onItemComplete(StepItemCompleteListener listener) {
-        this.stepItemCompleteListeners.add(listener);
-        return this;
+        return onBatchComplete(ItemListenerAdapters.forItemComplete(listener));
     }
 
     @Override
     public StepRunner onItemFailed(StepItemFailureListener listener) {
-        this.stepItemFailureListeners.add(listener);
+        return onBatchFailed(ItemListenerAdapters.forItemFailure(listener));
+    }
+
+    @Override
+    public StepRunner onBatchComplete(StepBatchCompleteListener listener) {
+        this.stepBatchCompleteListeners.add(listener);
+        return this;
+    }
+
+    @Override
+    public StepRunner onBatchFailed(StepBatchFailureListener listener) {
+        this.stepBatchFailureListeners.add(listener);
         return this;
     }
 
@@ -243,6 +286,11 @@ public class WriteStepRunner implements StepRunner {
         return this.batchSize;
     }
 
+    @Override
+    public int getThreadCount(){
+        return this.threadCount;
+    }
+
     @Override
     public RunStepResponse run() {
         boolean disableJobOutput = false;
@@ -260,12 +308,15 @@ public class WriteStepRunner implements StepRunner {
         Collection<String> uris = null;
         //If current step is the first run step job output isn't disabled, a job doc is created
         if (!disableJobOutput) {
-            jobDocManager = new JobDocManager(hubConfig.newJobDbClient());
+            jobDocManager = new JobDocManager(acquireClient(hubConfig.acquireJobDbClient()));
             StepRunnerUtil.initializeStepRun(jobDocManager, runStepResponse, flow, step, jobId);
         } else {
             jobDocManager = null;
         }
 
+        manifest = null;
+        streamingUris = null;
+        pendingFilesByUri.clear();
         try {
             uris = runFileCollector();
         } catch (Exception e) {
@@ -274,21 +325,25 @@ public class WriteStepRunner implements StepRunner {
             StringWriter errors = new StringWriter();
             e.printStackTrace(new PrintWriter(errors));
             runStepResponse.withStepOutput(errors.toString());
-            if (!disableJobOutput) {
-                JsonNode jobDoc = null;
-                try {
-                    jobDoc = jobDocManager.postJobs(jobId, JobStatus.FAILED_PREFIX + step, step, null, runStepResponse);
-                }
-                catch (Exception ex) {
-                    throw ex;
-                }
-                //If not able to read the step resp from the job doc, send the in-memory resp without start/end time
-                try {
-                    return StepRunnerUtil.getResponse(jobDoc, step);
+            try {
+                if (!disableJobOutput) {
+                    JsonNode jobDoc = null;
+                    try {
+                        jobDoc = jobDocManager.postJobs(jobId, JobStatus.FAILED_PREFIX + step, step, null, runStepResponse);
+                    }
+                    catch (Exception ex) {
+                        throw ex;
+                    }
+                    //If not able to read the step resp from the job doc, send the in-memory resp without start/end time
+                    try {
+                        return StepRunnerUtil.getResponse(jobDoc, step);
+                    }
+                    catch (Exception ignored) {}
                 }
-                catch (Exception ignored) {}
+                return runStepResponse;
+            } finally {
+                releaseClients();
             }
-            return runStepResponse;
         }
         return this.runIngester(runStepResponse,uris);
     }
@@ -309,6 +364,9 @@ public class WriteStepRunner implements StepRunner {
     @Override
     public void stop() {
         isStopped.set(true);
+        if (streamingUris != null) {
+            streamingUris.cancel();
+        }
         if(writeBatcher != null) {
             dataMovementManager.stopJob(writeBatcher);
         }
@@ -390,6 +448,16 @@ public class WriteStepRunner implements StepRunner {
             this.withStopOnFailure(Boolean.parseBoolean(stepConfig.get("stopOnFailure").toString()));
         }
 
+        if (options.get("readerThreadCount") != null) {
+            this.readerThreadCount = Math.max(1, Integer.parseInt(options.get("readerThreadCount").toString()));
+        }
+        if (options.get("streamingCollector") != null) {
+            this.streamingCollector = Boolean.parseBoolean(options.get("streamingCollector").toString());
+        }
+        if (options.get("scanThreadCount") != null) {
+            this.scanThreadCount = Math.max(1, Integer.parseInt(options.get("scanThreadCount").toString()));
+        }
+
         if (inputFilePath == null || inputFileType == null) {
             throw new RuntimeException("File path and type cannot be empty");
         }
@@ -398,10 +466,21 @@ public class WriteStepRunner implements StepRunner {
     private Collection<String> runFileCollector() throws Exception {
         FileCollector c = new FileCollector(inputFilePath, inputFileType);
         c.setHubConfig(hubConfig);
+        if (scanThreadCount > 0) {
+            c.setParallelism(scanThreadCount);
+        }
+        if (options.get("incremental") != null && Boolean.parseBoolean(options.get("incremental").toString())) {
+            boolean useHash = options.get("incrementalHash") != null && Boolean.parseBoolean(options.get("incrementalHash").toString());
+            manifest = IngestionManifest.forStep(hubConfig, flow.getName(), step, useHash).load();
+            c.setManifest(manifest);
+        }
 
         stepStatusListeners.forEach((StepStatusListener listener) -> {
             listener.onStatusChange(this.jobId, 0, JobStatus.RUNNING_PREFIX + step, 0, 0,  "fetching files");
         });
+        if (streamingCollector) {
+            return isStopped.get() ? null : runStreamingFileCollector(c);
+        }
         final DiskQueue<String> uris ;
         try {
             if(!isStopped.get()) {
@@ -417,29 +496,69 @@ public class WriteStepRunner implements StepRunner {
         return uris;
     }
 
+    /**
+     * Walks the input directory on its own thread and returns immediately with a queue that files can be read from
+     * while the walk is still going. The queue is bounded, so the walk pauses whenever the readers fall behind.
+     */
+    private Collection<String> runStreamingFileCollector(FileCollector c) {
+        final StreamingUriQueue queue = new StreamingUriQueue(Math.max(batchSize * threadCount * 4, batchSize));
+        Thread collectorThread = new Thread(() -> {
+            try {
+                c.run(queue::add);
+                queue.complete();
+            } catch (CancellationException e) {
+                logger.info("File collector stopped because the step run was stopped");
+            } catch (Exception e) {
+                logger.error("File collector failed after finding " + queue.getCollectedCount() + " files: " + e.getMessage());
+                queue.fail(e);
+            }
+        }, "file-collector-" + flow.getName() + "-" + step);
+        collectorThread.setDaemon(true);
+        streamingUris = queue;
+        collectorThread.start();
+        return queue;
+    }
+
     private RunStepResponse runIngester(RunStepResponse runStepResponse, Collection<String> uris) {
         StepMetrics stepMetrics = new StepMetrics();
         stepStatusListeners.forEach((StepStatusListener listener) -> {
             listener.onStatusChange(runStepResponse.getJobId(), 0, JobStatus.RUNNING_PREFIX + step, 0, 0, "starting step execution");
         });
 
-        if (uris == null || uris.size() == 0 ) {
+        // DiskQueue shrinks as it is iterated, so its size has to be read before the iterator is created
+        double uriSize = uris != null ? uris.size() : 0;
+        // For a streaming collector, hasNext() blocks until the first file is found or the walk finishes
+        final Iterator<String> uriIterator = uris != null ? uris.iterator() : null;
+        if (uriIterator == null || !uriIterator.hasNext()) {
             JsonNode jobDoc = null;
+            final Throwable streamingFailure = uris instanceof StreamingUriQueue ? ((StreamingUriQueue) uris).getFailure() : null;
             final String stepStatus;
             if(isStopped.get()) {
                 stepStatus = JobStatus.CANCELED_PREFIX + step;
             }
+            else if (streamingFailure != null) {
+                stepStatus = JobStatus.FAILED_PREFIX + step;
+            }
             else {
                 stepStatus = JobStatus.COMPLETED_PREFIX + step;
             }
 
             stepStatusListeners.forEach((StepStatusListener listener) -> {
                 listener.onStatusChange(runStepResponse.getJobId(), 100, stepStatus, 0, 0,
-                    (stepStatus.contains(JobStatus.COMPLETED_PREFIX) ? "provided file path returned 0 items" : "job was stopped"));
+                    (stepStatus.contains(JobStatus.COMPLETED_PREFIX) ? "provided file path returned 0 items" :
+                        streamingFailure != null ? "file collector failed" : "job was stopped"));
             });
             stepFinishedListeners.forEach((StepFinishedListener::onStepFinished));
             runStepResponse.setCounts(0,0,0,0,0);
             runStepResponse.withStatus(stepStatus);
+            if (streamingFailure != null) {
+                StringWriter errors = new StringWriter();
+                streamingFailure.printStackTrace(new PrintWriter(errors));
+                runStepResponse.withStepOutput(errors.toString());
+            }
+            if (manifest != null) {
+                runStepResponse.withSkippedFiles(manifest.getSkippedCount());
+            }
 
             try {
                 jobDoc = jobDocManager.postJobs(jobId, stepStatus, step, stepStatus.contains(JobStatus.COMPLETED_PREFIX) ? step : null, runStepResponse);
@@ -447,6 +566,9 @@ public class WriteStepRunner implements StepRunner {
             catch (Exception e) {
                 throw e;
             }
+            finally {
+                releaseClients();
+            }
             try {
                 return StepRunnerUtil.getResponse(jobDoc, step);
             }
@@ -457,11 +579,13 @@ public class WriteStepRunner implements StepRunner {
         }
 
         Vector<String> errorMessages = new Vector<>();
+        if (stagingClient == null) {
+            stagingClient = acquireClient(hubConfig.acquireStagingClient(destinationDatabase));
+        }
         dataMovementManager = stagingClient.newDataMovementManager();
 
         HashMap<String, JobTicket> ticketWrapper = new HashMap<>();
 
-        double uriSize = uris.size();
         Map<String,Object> fullResponse = new HashMap<>();
 
         ServerTransform serverTransform = new ServerTransform("ml:runIngest");
@@ -471,39 +595,61 @@ public class WriteStepRunner implements StepRunner {
         String optionString = jsonToString(options);
         serverTransform.addParameter("options", optionString);
 
+        // A WriteBatcher's batch size cannot change once started, so in adaptive mode it is sized for the upper
+        // limits and addDocument flushes whenever the controller's current batch size has been reached
+        adaptiveController = AdaptiveBatchController.fromOptions(options, batchSize, threadCount);
+        documentsSinceFlush.set(0);
+        flushPermitsByUri.clear();
+        final AdaptiveBatchController controller = adaptiveController;
+        if (controller != null) {
+            stepMetrics.enableBatchWindow();
+        }
+        final Span stepSpan = JaegerConfig.activeSpan();
+        final BatchSampler batchSampler = BatchSampler.fromOptions(options);
         writeBatcher = dataMovementManager.newWriteBatcher()
-            .withBatchSize(batchSize)
-            .withThreadCount(threadCount)
+            .withBatchSize(controller != null ? controller.getMaxBatchSize() : batchSize)
+            .withThreadCount(controller != null ? controller.getMaxThreadCount() : threadCount)
             .withJobId(runStepResponse.getJobId())
             .withTransform(serverTransform)
             .onBatchSuccess(batch ->{
-                //TODO: There is one additional item returned, it has to be investigated
-                stepMetrics.getSuccessfulEvents().addAndGet(batch.getItems().length-1);
+                final Span batchSpan = startBatchSpan(batchSampler, stepSpan, batch);
+                recordBatch(controller, stepMetrics, batch, false);
+                confirmFiles(batch, true);
+                stepMetrics.getSuccessfulEvents().addAndGet(documentCount(batch));
                 stepMetrics.getSuccessfulBatches().addAndGet(1);
                 logger.debug(String.format("Current SuccessfulEvents: %d - FailedEvents: %d", stepMetrics.getSuccessfulEventsCount(), stepMetrics.getFailedEventsCount()));
-                runStatusListener(uriSize, stepMetrics);
-                if (stepItemCompleteListeners.size() > 0) {
-                    Arrays.stream(batch.getItems()).forEach((WriteEvent e) -> {
-                        stepItemCompleteListeners.forEach((StepItemCompleteListener listener) -> {
-                            listener.processCompletion(runStepResponse.getJobId(), e.getTargetUri());
-                        });
+                reportProgress(uris, uriSize, stepMetrics);
+                if (!stepBatchCompleteListeners.isEmpty()) {
+                    JaegerConfig.traceChild("listeners", batchSpan, () -> {
+                        String[] targetUris = getTargetUris(batch);
+                        for (StepBatchCompleteListener listener : stepBatchCompleteListeners) {
+                            listener.processBatchCompletion(runStepResponse.getJobId(), targetUris, documentCount(batch), 0);
+                        }
+                        return null;
                     });
                 }
+                JaegerConfig.finish(batchSpan, null);
             })
             .onBatchFailure((batch, ex) -> {
-                stepMetrics.getFailedEvents().addAndGet(batch.getItems().length-1);
+                final Span batchSpan = startBatchSpan(batchSampler, stepSpan, batch);
+                recordBatch(controller, stepMetrics, batch, true);
+                confirmFiles(batch, false);
+                stepMetrics.getFailedEvents().addAndGet(documentCount(batch));
                 stepMetrics.getFailedBatches().addAndGet(1);
-                runStatusListener(uriSize, stepMetrics);
+                reportProgress(uris, uriSize, stepMetrics);
                 if (errorMessages.size() < MAX_ERROR_MESSAGES) {
                     errorMessages.add(ex.getLocalizedMessage());
                 }
-                if(stepItemFailureListeners.size() > 0) {
-                    Arrays.stream(batch.getItems()).forEach((WriteEvent e) -> {
-                        stepItemFailureListeners.forEach((StepItemFailureListener listener) -> {
-                            listener.processFailure(runStepResponse.getJobId(), e.getTargetUri());
-                        });
+                if (!stepBatchFailureListeners.isEmpty()) {
+                    JaegerConfig.traceChild("listeners", batchSpan, () -> {
+                        String[] targetUris = getTargetUris(batch);
+                        for (StepBatchFailureListener listener : stepBatchFailureListeners) {
+                            listener.processBatchFailure(runStepResponse.getJobId(), targetUris, documentCount(batch));
+                        }
+                        return null;
                     });
                 }
+                JaegerConfig.finish(batchSpan, ex);
                 if (stopOnFailure ) {
                     JobTicket jobTicket = ticketWrapper.get("jobTicket");
                     if (jobTicket != null) {
@@ -557,35 +703,74 @@ public class WriteStepRunner implements StepRunner {
                 format = Format.BINARY;
         }
         final Format fileFormat = format;
-        Iterator itr = uris.iterator();
-        if(!isStopped.get()){
-            JobTicket jobTicket = dataMovementManager.startJob(writeBatcher);
-            ticketWrapper.put("jobTicket", jobTicket);
-            while(itr.hasNext()) {
-                try {
-                    File file = new File((String) itr.next());
-                    addToBatcher(file, fileFormat);
+        Iterator itr = uriIterator;
+        final StepMetricsId metricsId = new StepMetricsId(flow.getName(), step, flow.getStep(step).getName(), runStepResponse.getJobId());
+        StepMetricsRegistries.register(metricsId, stepMetrics);
+        try {
+            if(!isStopped.get()){
+                JobTicket jobTicket = dataMovementManager.startJob(writeBatcher);
+                ticketWrapper.put("jobTicket", jobTicket);
+                if (readerThreadCount > 1) {
+                    readFilesInParallel(itr, fileFormat);
+                } else {
+                    while(itr.hasNext()) {
+                        try {
+                            File file = new File((String) itr.next());
+                            addToBatcher(file, fileFormat);
+                        }
+                        catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
                 }
-                catch (Exception e) {
-                    throw new RuntimeException(e);
+            }
+        } catch (RuntimeException e) {
+            try {
+                // Otherwise the documents already queued keep being written, and the batcher's threads are left running
+                if (ticketWrapper.get("jobTicket") != null) {
+                    dataMovementManager.stopJob(writeBatcher);
                 }
+            } finally {
+                StepMetricsRegistries.unregister(metricsId);
+                releaseClients();
             }
+            throw e;
         }
 
-        runningThread = new Thread(() -> {
+        // Job document writes made while finishing the step belong to the step's trace
+        final Runnable finishStep = () -> {
             try {
                 writeBatcher.flushAndWait();
             }
             catch (IllegalStateException e) {
                 logger.error("WriteBatcher has been stopped");
             }
+            if (controller != null) {
+                // Documents that were never written, such as those added after the batcher was stopped, still hold
+                // the permits their flushes took
+                for (String uri : flushPermitsByUri.keySet()) {
+                    Integer held = flushPermitsByUri.remove(uri);
+                    for (int i = 0; held != null && i < held; i++) {
+                        controller.release();
+                    }
+                }
+            }
+            stepMetrics.markFinished();
+            StepMetricsRegistries.unregister(metricsId);
+
+            boolean collectorFailed = false;
+            if (uris instanceof StreamingUriQueue && ((StreamingUriQueue) uris).getFailure() != null) {
+                StreamingUriQueue queue = (StreamingUriQueue) uris;
+                collectorFailed = true;
+                errorMessages.add(0, "File collector failed after finding " + queue.getCollectedCount() + " files: " + queue.getFailure().getMessage());
+            }
 
             String stepStatus;
             if (stepMetrics.getFailedEventsCount() > 0 && stopOnFailure) {
                 stepStatus = JobStatus.STOP_ON_ERROR_PREFIX + step;
             } else if (isStopped.get()){
                 stepStatus = JobStatus.CANCELED_PREFIX + step;
-            } else if (stepMetrics.getFailedEventsCount() > 0 && stepMetrics.getSuccessfulEventsCount() > 0) {
+            } else if ((stepMetrics.getFailedEventsCount() > 0 || collectorFailed) && stepMetrics.getSuccessfulEventsCount() > 0) {
                 stepStatus = JobStatus.COMPLETED_WITH_ERRORS_PREFIX + step;
             } else if (stepMetrics.getFailedEventsCount() == 0 && stepMetrics.getSuccessfulEventsCount() > 0)  {
                 stepStatus = JobStatus.COMPLETED_PREFIX + step ;
@@ -602,7 +787,18 @@ public class WriteStepRunner implements StepRunner {
             dataMovementManager.stopJob(writeBatcher);
 
             runStepResponse.setCounts(stepMetrics.getSuccessfulEventsCount() + stepMetrics.getFailedEventsCount(),stepMetrics.getSuccessfulEventsCount(), stepMetrics.getFailedEventsCount(), stepMetrics.getSuccessfulBatchesCount(), stepMetrics.getFailedBatchesCount());
+            if (controller != null) {
+                runStepResponse.withBatchSettings(controller.getBatchSize(), controller.getThreadCount());
+            } else {
+                runStepResponse.withBatchSettings(batchSize, threadCount);
+            }
+            runStepResponse.withMetrics(stepMetrics.summarize(runStepResponse.getJobId()));
             runStepResponse.withStatus(stepStatus);
+            if (manifest != null) {
+                // Only files whose documents were all written are recorded, so anything else is retried next time
+                manifest.save();
+                runStepResponse.withSkippedFiles(manifest.getSkippedCount());
+            }
             if (errorMessages.size() > 0) {
                 runStepResponse.withStepOutput(errorMessages);
             }
@@ -612,6 +808,7 @@ public class WriteStepRunner implements StepRunner {
             JsonNode jobDoc = null;
             try {
                 jobDoc = jobDocManager.postJobs(jobId, stepStatus, step, stepStatus.equalsIgnoreCase(JobStatus.COMPLETED_PREFIX + step) ? step : null, runStepResponse);
+                logger.debug("Step " + step + " of job " + jobId + " made " + jobDocManager.getRequestCount() + " requests to the jobs database");
             }
             catch (Exception e) {
                 logger.error(e.getMessage());
@@ -627,13 +824,93 @@ public class WriteStepRunner implements StepRunner {
                     logger.error(ex.getMessage());
                 }
             }
-        });
+        };
+        runningThread = new Thread(JaegerConfig.withActiveSpan(stepSpan, () -> {
+            try {
+                finishStep.run();
+            } finally {
+                releaseClients();
+            }
+        }));
 
         runningThread.start();
         return runStepResponse;
     }
 
-    private void processCsv(JacksonHandle jacksonHandle, File file) {
+    private DatabaseClient acquireClient(DatabaseClient client) {
+        synchronized (acquiredClients) {
+            acquiredClients.add(client);
+        }
+        return client;
+    }
+
+    /**
+     * Hands the clients acquired for this run back to the hub config once the step's final job document update has
+     * been sent.
+     */
+    private void releaseClients() {
+        synchronized (acquiredClients) {
+            for (DatabaseClient client : acquiredClients) {
+                if (client == stagingClient) {
+                    stagingClient = null;
+                }
+                hubConfig.releaseClient(client);
+            }
+            acquiredClients.clear();
+            jobDocManager = null;
+        }
+    }
+
+    /**
+     * Opens, splits and adds files to the WriteBatcher on a pool of reader threads. The pool's work queue is bounded
+     * and the calling thread reads a file itself whenever the queue is full, so files are only pulled from the
+     * collector as fast as the readers can keep up. Each file is read by a single thread, so the rows of a CSV file
+     * are still added in order.
+     */
+    private void readFilesInParallel(Iterator itr, Format fileFormat) {
+        AtomicReference<Exception> readerFailure = new AtomicReference<>();
+        AtomicInteger threadNumber = new AtomicInteger(0);
+        ThreadPoolExecutor readerPool = new ThreadPoolExecutor(readerThreadCount, readerThreadCount, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(readerThreadCount * 2),
+            runnable -> {
+                Thread thread = new Thread(runnable, "file-reader-" + flow.getName() + "-" + step + "-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            },
+            new ThreadPoolExecutor.CallerRunsPolicy());
+        try {
+            while (itr.hasNext() && readerFailure.get() == null && !isStopped.get()) {
+                File file = new File((String) itr.next());
+                readerPool.execute(() -> {
+                    if (readerFailure.get() != null) {
+                        return;
+                    }
+                    try {
+                        addToBatcher(file, fileFormat);
+                    } catch (Exception e) {
+                        readerFailure.compareAndSet(null, e);
+                    }
+                });
+            }
+        } finally {
+            readerPool.shutdown();
+            try {
+                readerPool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            } catch (InterruptedException e) {
+                readerPool.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (readerFailure.get() != null) {
+            throw new RuntimeException(readerFailure.get());
+        }
+    }
+
+    private synchronized void markCsvFileProcessed() {
+        ++csvFilesProcessed;
+    }
+
+    private void processCsv(JacksonHandle jacksonHandle, File file, FileProgress progress) {
         String uri = file.getParent();
         if(SystemUtils.OS_NAME.toLowerCase().contains("windows")){
             uri = "/" + FilenameUtils.separatorsToUnix(StringUtils.replaceOnce(uri, ":", ""));
@@ -650,15 +927,11 @@ public class WriteStepRunner implements StepRunner {
         node.put("file", file.getAbsolutePath());
         jacksonHandle.set(node);
         try {
-            writeBatcher.add(String.format(uri +"/%s." + ("xml".equalsIgnoreCase(outputFormat) ? "xml":"json"), UUID.randomUUID()), jacksonHandle);
+            addDocument(String.format(uri +"/%s." + ("xml".equalsIgnoreCase(outputFormat) ? "xml":"json"), UUID.randomUUID()), jacksonHandle, progress);
         }
         catch (IllegalStateException e) {
             logger.error("WriteBatcher has been stopped");
         }
-        if (!file.getAbsolutePath().equalsIgnoreCase(currentCsvFile)) {
-            currentCsvFile = file.getAbsolutePath();
-            ++csvFilesProcessed;
-        }
     }
 
     private void addToBatcher(File file, Format fileFormat) throws IOException {
@@ -667,6 +940,22 @@ public class WriteStepRunner implements StepRunner {
 
         // This docStream must not be closed, or use try-resource due to WriteBatcher needing the stream open
         FileInputStream docStream = new FileInputStream(file);
+        FileProgress progress = manifest != null ? new FileProgress(file.getAbsolutePath()) : null;
+        try {
+            addFileToBatcher(file, fileFormat, docStream, progress);
+        } catch (RuntimeException e) {
+            if (progress != null) {
+                progress.failed = true;
+            }
+            throw e;
+        } finally {
+            if (progress != null) {
+                documentConfirmed(progress);
+            }
+        }
+    }
+
+    private void addFileToBatcher(File file, Format fileFormat, FileInputStream docStream, FileProgress progress) {
         //note these ORs are for forward compatibility if we swap out the filecollector for another lib
         if (inputFileType.equalsIgnoreCase("csv") || inputFileType.equalsIgnoreCase("tsv") || inputFileType.equalsIgnoreCase("psv")) {
             CsvSchema schema = CsvSchema.emptySchema()
@@ -676,7 +965,8 @@ public class WriteStepRunner implements StepRunner {
             try {
                 if (!writeBatcher.isStopped()) {
                     Stream<JacksonHandle> contentStream = splitter.split(docStream);
-                    contentStream.forEach(jacksonHandle -> this.processCsv(jacksonHandle, file));
+                    markCsvFileProcessed();
+                    contentStream.forEach(jacksonHandle -> this.processCsv(jacksonHandle, file, progress));
                 }
             } catch (Exception e) {
                 IOUtils.closeQuietly(docStream);
@@ -693,7 +983,7 @@ public class WriteStepRunner implements StepRunner {
                         if (SystemUtils.OS_NAME.toLowerCase().contains("windows")) {
                             uri = "/" + FilenameUtils.separatorsToUnix(StringUtils.replaceOnce(uri, ":", ""));
                         }
-                        writeBatcher.add(generateAndEncodeURI(outputURIReplace(uri)), handle);
+                        addDocument(generateAndEncodeURI(outputURIReplace(uri)), handle, progress);
                     } catch (IllegalStateException e) {
                         logger.error("WriteBatcher has been stopped");
                     }
@@ -705,12 +995,165 @@ public class WriteStepRunner implements StepRunner {
         }
     }
 
-    private String generateAndEncodeURI(String path) throws  URISyntaxException {
+    private void addDocument(String uri, AbstractWriteHandle handle, FileProgress progress) {
+        if (progress != null) {
+            progress.outstanding.incrementAndGet();
+            pendingFilesByUri.put(uri, progress);
+        }
+        AdaptiveBatchController controller = adaptiveController;
+        boolean flush = controller != null && batchIsFull(controller);
+        if (flush) {
+            // Taken before the document is added, so the batch carrying it can't finish before the permit is
+            // recorded; see recordBatch
+            try {
+                controller.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting to write a batch", e);
+            }
+            flushPermitsByUri.merge(uri, 1, Integer::sum);
+        }
+        writeBatcher.add(uri, handle);
+        if (flush) {
+            writeBatcher.flushAsync();
+        }
+    }
+
+    /**
+     * Counts a document about to be added, across all reader threads.
+     *
+     * @return true if it completes a batch of the controller's current size
+     */
+    private boolean batchIsFull(AdaptiveBatchController controller) {
+        int batchSize = controller.getBatchSize();
+        return documentsSinceFlush.updateAndGet(count -> count + 1 >= batchSize ? 0 : count + 1) == 0;
+    }
+
+    /**
+     * Tracks the documents from one file that the WriteBatcher has not yet confirmed. The count starts at one for the
+     * file itself, which is released once the file has been read, so a file isn't committed to the manifest while
+     * its rows are still being added.
+     */
+    private static class FileProgress {
+        final String path;
+        final AtomicInteger outstanding = new AtomicInteger(1);
+        volatile boolean failed = false;
+
+        FileProgress(String path) {
+            this.path = path;
+        }
+    }
+
+    private void confirmFiles(WriteBatch batch, boolean succeeded) {
+        if (manifest == null) {
+            return;
+        }
+        for (WriteEvent event : batch.getItems()) {
+            FileProgress progress = event.getTargetUri() != null ? pendingFilesByUri.remove(event.getTargetUri()) : null;
+            if (progress != null) {
+                if (!succeeded) {
+                    progress.failed = true;
+                }
+                documentConfirmed(progress);
+            }
+        }
+    }
+
+    private void documentConfirmed(FileProgress progress) {
+        if (progress.outstanding.decrementAndGet() == 0 && !progress.failed) {
+            manifest.commit(progress.path);
+        }
+    }
+
+    /**
+     * @return the number of documents in the batch, leaving out the item that carries the batch's default metadata
+     */
+    private static int documentCount(WriteBatch batch) {
+        int count = 0;
+        for (WriteEvent event : batch.getItems()) {
+            if (event.getTargetUri() != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static String[] getTargetUris(WriteBatch batch) {
+        String[] targetUris = new String[documentCount(batch)];
+        int i = 0;
+        for (WriteEvent event : batch.getItems()) {
+            if (event.getTargetUri() != null) {
+                targetUris[i++] = event.getTargetUri();
+            }
+        }
+        return targetUris;
+    }
+
+    /**
+     * The WriteBatcher sends batches on its own threads and only reports them once they have returned, so a sampled
+     * batch's span is started afterwards, backdated to when the batch was created.
+     *
+     * @return the span, or null if the batch isn't sampled
+     */
+    private Span startBatchSpan(BatchSampler batchSampler, Span stepSpan, WriteBatch batch) {
+        if (!batchSampler.sample()) {
+            return null;
+        }
+        Tracer.SpanBuilder builder = JaegerConfig.buildChildSpan("batch", stepSpan)
+            .withTag("step", step)
+            .withTag("items", documentCount(batch));
+        if (batch.getTimestamp() != null) {
+            builder.withStartTimestamp(TimeUnit.MILLISECONDS.toMicros(batch.getTimestamp().getTimeInMillis()));
+        }
+        return builder.start();
+    }
+
+    /**
+     * Records a finished batch. Batches don't say whether a flush started them - the WriteBatcher also sends full
+     * batches on its own, and a flush may find that another thread's flush already took its documents - so each
+     * permit is tied to the document that triggered its flush, and is given back by whichever batch carried that
+     * document. That way each permit is released exactly once.
+     */
+    private void recordBatch(AdaptiveBatchController controller, StepMetrics stepMetrics, WriteBatch batch, boolean failed) {
+        if (controller != null && !flushPermitsByUri.isEmpty()) {
+            for (WriteEvent event : batch.getItems()) {
+                if (event.getTargetUri() != null && releaseFlushPermit(event.getTargetUri())) {
+                    controller.release();
+                }
+            }
+        }
+        // The WriteBatcher doesn't expose request or response sizes, so only latency and throughput are recorded
+        long latencyNanos = batch.getTimestamp() != null ?
+            TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - batch.getTimestamp().getTimeInMillis()) : 0;
+        int itemCount = documentCount(batch);
+        stepMetrics.recordBatch(latencyNanos, itemCount, failed ? itemCount : 0);
+        if (controller != null) {
+            controller.onBatchComplete(stepMetrics);
+        }
+    }
+
+    private boolean releaseFlushPermit(String uri) {
+        boolean[] released = {false};
+        flushPermitsByUri.computeIfPresent(uri, (key, held) -> {
+            released[0] = true;
+            return held > 1 ? held - 1 : null;
+        });
+        return released[0];
+    }
+
+    static String generateAndEncodeURI(String path) throws  URISyntaxException {
         URI uri = new URI(null, null, null, 0, path, null, null);
         return uri.toString();
     }
 
     private String outputURIReplace(String uri) {
+        return outputURIReplace(uri, outputURIReplacement);
+    }
+
+    /**
+     * @param outputURIReplacement comma-separated pairs of a regex and a replacement in single quotes
+     */
+    static String outputURIReplace(String uri, String outputURIReplacement) {
         if (StringUtils.isNotEmpty(outputURIReplacement)) {
             String[] replace = outputURIReplacement.split(",");
             // URI replace comes in pattern and replacement pairs.
@@ -736,6 +1179,21 @@ public class WriteStepRunner implements StepRunner {
         return uri;
     }
 
+    /**
+     * While a streaming collector is still walking the input directory the number of files is unknown, so progress
+     * is only reported once the walk has finished.
+     */
+    private void reportProgress(Collection<String> uris, double uriSize, StepMetrics stepMetrics) {
+        if (uris instanceof StreamingUriQueue) {
+            StreamingUriQueue queue = (StreamingUriQueue) uris;
+            if (queue.isComplete() && queue.getFailure() == null) {
+                runStatusListener(queue.getCollectedCount(), stepMetrics);
+            }
+        } else {
+            runStatusListener(uriSize, stepMetrics);
+        }
+    }
+
     //percentComplete for csv files is (csvFilesProcessed/ urisCount) * 100.0
     //The number of csv files would probably be less than that of regular files, so the step status listeners are updated more frequently
     //'uris' is backed by DiskQueue whose size changes as the Collection is iterated, so size is calculated before iteration
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2012-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.step.metrics;
+
+import com.marklogic.hub.step.impl.StepMetrics;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Registers an MBean for each running step, named
+ * com.marklogic.hub:type=StepMetrics,flow=...,step=...,job=..., and unregisters it once the step has finished.
+ */
+public class JmxStepMetricsRegistry implements StepMetricsRegistry {
+
+    public static final String DOMAIN = "com.marklogic.hub";
+
+    private final MBeanServer server;
+
+    public JmxStepMetricsRegistry() {
+        this(ManagementFactory.getPlatformMBeanServer());
+    }
+
+    public JmxStepMetricsRegistry(MBeanServer server) {
+        this.server = server;
+    }
+
+    @Override
+    public void register(StepMetricsId id, StepMetrics metrics) {
+        try {
+            server.registerMBean(new StepMetricsView(id, metrics), objectName(id));
+        } catch (JMException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void unregister(StepMetricsId id) {
+        try {
+            server.unregisterMBean(objectName(id));
+        } catch (InstanceNotFoundException e) {
+            // Never registered, such as when registration failed
+        } catch (JMException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    public static ObjectName objectName(StepMetricsId id) throws JMException {
+        return new ObjectName(DOMAIN + ":type=StepMetrics" +
+            ",flow=" + ObjectName.quote(String.valueOf(id.getFlowName())) +
+            ",step=" + ObjectName.quote(String.valueOf(id.getStep())) +
+            ",job=" + ObjectName.quote(String.valueOf(id.getJobId())));
+    }
+
+    private static class StepMetricsView implements StepMetricsMXBean {
+        private final StepMetricsId id;
+        private final StepMetrics metrics;
+
+        StepMetricsView(StepMetricsId id, StepMetrics metrics) {
+            this.id = id;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public String getFlowName() {
+            return id.getFlowName();
+        }
+
+        @Override
+        public String getStep() {
+            return id.getStep();
+        }
+
+        @Override
+        public String getStepName() {
+            return id.getStepName();
+        }
+
+        @Override
+        public String getJobId() {
+            return id.getJobId();
+        }
+
+        @Override
+        public long getSuccessfulEvents() {
+            return metrics.getSuccessfulEventsCount();
+        }
+
+        @Override
+        public long getFailedEvents() {
+            return metrics.getFailedEventsCount();
+        }
+
+        @Override
+        public long getBatchCount() {
+            return metrics.getRequestLatencyMicros().getCount();
+        }
+
+        @Override
+        public int getInFlightBatches() {
+            return metrics.getInFlightBatches();
+        }
+
+        @Override
+        public int getMaxInFlightBatches() {
+            return metrics.getMaxInFlightBatches();
+        }
+
+        @Override
+        public double getDocsPerSecond() {
+            return metrics.getDocsPerSecond();
+        }
+
+        @Override
+        public double getRequestLatencyP50Millis() {
+            return metrics.getRequestLatencyMicros().getValueAtPercentile(50) / 1000.0;
+        }
+
+        @Override
+        public double getRequestLatencyP99Millis() {
+            return metrics.getRequestLatencyMicros().getValueAtPercentile(99) / 1000.0;
+        }
+
+        @Override
+        public double getRequestLatencyMaxMillis() {
+            return metrics.getRequestLatencyMicros().getMax() / 1000.0;
+        }
+
+        @Override
+        public double getServerTimeP50Millis() {
+            return metrics.getServerTimeMicros().getValueAtPercentile(50) / 1000.0;
+        }
+
+        @Override
+        public double getServerTimeP99Millis() {
+            return metrics.getServerTimeMicros().getValueAtPercentile(99) / 1000.0;
+        }
+
+        @Override
+        public long getRequestBytesP50() {
+            return metrics.getRequestBytes().getValueAtPercentile(50);
+        }
+
+        @Override
+        public long getResponseBytesP50() {
+            return metrics.getResponseBytes().getValueAtPercentile(50);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2012-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.step.metrics;
+
+import com.marklogic.hub.step.impl.StepMetrics;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes step metrics in the Prometheus text exposition format, version 0.0.4. Latencies are exposed as summaries in
+ * seconds and payload sizes as summaries in bytes, each labelled with the flow and step they belong to.
+ *
+ * Job ids are left out of the labels, since every run would otherwise start new series; they are recorded in the
+ * step's {@link StepMetricsSummary} instead. A step therefore has one series, fed by the first of its runs in the
+ * given metrics - a running step comes before its last finished run in {@link RecentStepMetricsRegistry}.
+ */
+public class PrometheusFormat {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    private PrometheusFormat() {
+    }
+
+    public static String write(Map<StepMetricsId, StepMetrics> allRuns) {
+        Map<StepMetricsId, StepMetrics> metrics = firstRunOfEachStep(allRuns);
+        StringBuilder out = new StringBuilder();
+        summary(out, metrics, "dhf_step_request_latency_seconds", "Time taken by each batch request", Metric.REQUEST_LATENCY);
+        summary(out, metrics, "dhf_step_server_time_seconds", "Time the server reported spending on each batch", Metric.SERVER_TIME);
+        summary(out, metrics, "dhf_step_request_bytes", "Size of each batch request", Metric.REQUEST_BYTES);
+        summary(out, metrics, "dhf_step_response_bytes", "Size of each batch response", Metric.RESPONSE_BYTES);
+
+        header(out, "dhf_step_in_flight_batches", "Batches currently being processed", "gauge");
+        metrics.forEach((id, stepMetrics) -> sample(out, "dhf_step_in_flight_batches", labels(id, null), stepMetrics.getInFlightBatches()));
+        header(out, "dhf_step_docs_per_second", "Items processed per second since the step started", "gauge");
+        metrics.forEach((id, stepMetrics) -> sample(out, "dhf_step_docs_per_second", labels(id, null), stepMetrics.getDocsPerSecond()));
+        header(out, "dhf_step_successful_events_total", "Items processed successfully", "counter");
+        metrics.forEach((id, stepMetrics) -> sample(out, "dhf_step_successful_events_total", labels(id, null), stepMetrics.getSuccessfulEventsCount()));
+        header(out, "dhf_step_failed_events_total", "Items that failed", "counter");
+        metrics.forEach((id, stepMetrics) -> sample(out, "dhf_step_failed_events_total", labels(id, null), stepMetrics.getFailedEventsCount()));
+        return out.toString();
+    }
+
+    private static Map<StepMetricsId, StepMetrics> firstRunOfEachStep(Map<StepMetricsId, StepMetrics> allRuns) {
+        Map<StepMetricsId, StepMetrics> metrics = new LinkedHashMap<>();
+        Set<List<String>> steps = new HashSet<>();
+        allRuns.forEach((id, stepMetrics) -> {
+            if (steps.add(Arrays.asList(id.getFlowName(), id.getStep()))) {
+                metrics.put(id, stepMetrics);
+            }
+        });
+        return metrics;
+    }
+
+    private enum Metric {
+        REQUEST_LATENCY(1e6), SERVER_TIME(1e6), REQUEST_BYTES(1), RESPONSE_BYTES(1);
+
+        // Converts the recorded values to the exposed unit, such as microseconds to seconds
+        final double divisor;
+
+        Metric(double divisor) {
+            this.divisor = divisor;
+        }
+
+        Histogram of(StepMetrics metrics) {
+            switch (this) {
+                case REQUEST_LATENCY:
+                    return metrics.getRequestLatencyMicros();
+                case SERVER_TIME:
+                    return metrics.getServerTimeMicros();
+                case REQUEST_BYTES:
+                    return metrics.getRequestBytes();
+                default:
+                    return metrics.getResponseBytes();
+            }
+        }
+    }
+
+    private static void summary(StringBuilder out, Map<StepMetricsId, StepMetrics> metrics, String name, String help, Metric metric) {
+        header(out, name, help, "summary");
+        metrics.forEach((id, stepMetrics) -> {
+            Histogram histogram = metric.of(stepMetrics);
+            long count = histogram.getCount();
+            if (count > 0) {
+                for (double quantile : QUANTILES) {
+                    sample(out, name, labels(id, quantile), histogram.getValueAtPercentile(quantile * 100) / metric.divisor);
+                }
+            }
+            sample(out, name + "_sum", labels(id, null), histogram.getSum() / metric.divisor);
+            sample(out, name + "_count", labels(id, null), count);
+        });
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name).append(labels).append(' ');
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+
+    private static String labels(StepMetricsId id, Double quantile) {
+        StringBuilder labels = new StringBuilder("{");
+        labels.append("flow=\"").append(escape(id.getFlowName())).append("\",");
+        labels.append("step=\"").append(escape(id.getStep())).append("\",");
+        labels.append("step_name=\"").append(escape(id.getStepName())).append('"');
+        if (quantile != null) {
+            labels.append(",quantile=\"").append(quantile).append('"');
+        }
+        return labels.append('}').toString();
+    }
+
+    static String escape(String value) {
+        if (value == null) {
+            return "";
+        }
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
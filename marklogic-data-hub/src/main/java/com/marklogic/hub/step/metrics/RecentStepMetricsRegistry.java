@@ -0,0 +1,62 @@
+/*
+ * Copyright 2012-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.step.metrics;
+
+import com.marklogic.hub.step.impl.StepMetrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Keeps the metrics of running steps, plus those of the last finished run of each step of each flow, so that a
+ * scraper polling every few seconds still sees the final values of a step that finished between two polls.
+ */
+public class RecentStepMetricsRegistry implements StepMetricsRegistry {
+
+    private final Map<StepMetricsId, StepMetrics> running = new LinkedHashMap<>();
+    private final Map<StepMetricsId, StepMetrics> finished = new LinkedHashMap<>();
+
+    @Override
+    public synchronized void register(StepMetricsId id, StepMetrics metrics) {
+        running.put(id, metrics);
+    }
+
+    @Override
+    public synchronized void unregister(StepMetricsId id) {
+        StepMetrics metrics = running.remove(id);
+        if (metrics != null) {
+            // Replaces the previous finished run of the same step
+            finished.keySet().removeIf(other -> Objects.equals(other.getFlowName(), id.getFlowName()) && Objects.equals(other.getStep(), id.getStep()));
+            finished.put(id, metrics);
+        }
+    }
+
+    /**
+     * @return the metrics of running steps, followed by those of finished steps
+     */
+    public synchronized Map<StepMetricsId, StepMetrics> getMetrics() {
+        Map<StepMetricsId, StepMetrics> metrics = new LinkedHashMap<>(running);
+        finished.forEach(metrics::putIfAbsent);
+        return metrics;
+    }
+
+    public synchronized List<StepMetricsId> getRunning() {
+        return new ArrayList<>(running.keySet());
+    }
+}
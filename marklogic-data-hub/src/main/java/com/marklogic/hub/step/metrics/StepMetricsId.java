@@ -0,0 +1,78 @@
+/*
+ * Copyright 2012-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.step.metrics;
+
+import java.util.Objects;
+
+/**
+ * Identifies the metrics of one run of a step, and labels them in metrics registries.
+ */
+public class StepMetricsId {
+
+    private final String flowName;
+    private final String step;
+    private final String stepName;
+    private final String jobId;
+
+    public StepMetricsId(String flowName, String step, String stepName, String jobId) {
+        this.flowName = flowName;
+        this.step = step;
+        this.stepName = stepName;
+        this.jobId = jobId;
+    }
+
+    public String getFlowName() {
+        return flowName;
+    }
+
+    /**
+     * @return the number of the step in its flow
+     */
+    public String getStep() {
+        return step;
+    }
+
+    public String getStepName() {
+        return stepName;
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        StepMetricsId other = (StepMetricsId) o;
+        return Objects.equals(flowName, other.flowName) && Objects.equals(step, other.step) &&
+            Objects.equals(stepName, other.stepName) && Objects.equals(jobId, other.jobId);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(flowName, step, stepName, jobId);
+    }
+
+    @Override
+    public String toString() {
+        return flowName + " step " + step + " (" + stepName + ") of job " + jobId;
+    }
+}
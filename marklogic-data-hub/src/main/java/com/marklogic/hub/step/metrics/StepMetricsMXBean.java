@@ -0,0 +1,56 @@
+/*
+ * Copyright 2012-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.step.metrics;
+
+/**
+ * The JMX view of a running step's metrics. Latencies are in milliseconds and sizes in bytes.
+ */
+public interface StepMetricsMXBean {
+
+    String getFlowName();
+
+    String getStep();
+
+    String getStepName();
+
+    String getJobId();
+
+    long getSuccessfulEvents();
+
+    long getFailedEvents();
+
+    long getBatchCount();
+
+    int getInFlightBatches();
+
+    int getMaxInFlightBatches();
+
+    double getDocsPerSecond();
+
+    double getRequestLatencyP50Millis();
+
+    double getRequestLatencyP99Millis();
+
+    double getRequestLatencyMaxMillis();
+
+    double getServerTimeP50Millis();
+
+    double getServerTimeP99Millis();
+
+    long getRequestBytesP50();
+
+    long getResponseBytesP50();
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2012-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.step.metrics;
+
+import com.marklogic.hub.step.impl.StepMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The registries that step runners publish their metrics to. By default, metrics are published to JMX and kept in
+ * memory for {@link PrometheusFormat}. A registry that fails is logged and skipped, so it never fails a step.
+ */
+public class StepMetricsRegistries {
+
+    private static final RecentStepMetricsRegistry RECENT = new RecentStepMetricsRegistry();
+    private static final List<StepMetricsRegistry> registries = new CopyOnWriteArrayList<>();
+
+    private static final Logger logger = LoggerFactory.getLogger(StepMetricsRegistries.class);
+
+    static {
+        registries.add(new JmxStepMetricsRegistry());
+        registries.add(RECENT);
+    }
+
+    private StepMetricsRegistries() {
+    }
+
+    public static void add(StepMetricsRegistry registry) {
+        registries.add(registry);
+    }
+
+    public static void remove(StepMetricsRegistry registry) {
+        registries.remove(registry);
+    }
+
+    public static List<StepMetricsRegistry> getRegistries() {
+        return Collections.unmodifiableList(registries);
+    }
+
+    /**
+     * @return the registry holding the metrics of running steps and of the last run of each finished step
+     */
+    public static RecentStepMetricsRegistry getRecent() {
+        return RECENT;
+    }
+
+    public static void register(StepMetricsId id, StepMetrics metrics) {
+        for (StepMetricsRegistry registry : registries) {
+            try {
+                registry.register(id, metrics);
+            } catch (RuntimeException e) {
+                logger.warn("Unable to register the metrics of " + id + " with " + registry.getClass().getSimpleName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public static void unregister(StepMetricsId id) {
+        for (StepMetricsRegistry registry : registries) {
+            try {
+                registry.unregister(id);
+            } catch (RuntimeException e) {
+                logger.warn("Unable to unregister the metrics of " + id + " from " + registry.getClass().getSimpleName() + ": " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2012-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.step.metrics;
+
+import com.marklogic.hub.step.impl.StepMetrics;
+
+/**
+ * Somewhere to publish the metrics of running steps, such as JMX or a monitoring system. Add an implementation with
+ * {@link StepMetricsRegistries#add(StepMetricsRegistry)}; step runners register their metrics when a step starts and
+ * unregister them once it has finished.
+ */
+public interface StepMetricsRegistry {
+
+    /**
+     * @param id identifies the step run
+     * @param metrics the live metrics of the step run, updated as batches complete
+     */
+    void register(StepMetricsId id, StepMetrics metrics);
+
+    /**
+     * Called once the step run has finished; its metrics no longer change.
+     *
+     * @param id identifies the step run
+     */
+    void unregister(StepMetricsId id);
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2012-2019 MarkLogic Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marklogic.hub.step.metrics;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * A summary of how a step's batches performed, as recorded in its {@link com.marklogic.hub.step.RunStepResponse}.
+ * Distributions are left out when the step runner couldn't observe them, such as the server time of a write batch.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class StepMetricsSummary {
+
+    private String jobId;
+    private long batchCount;
+    private double docsPerSecond;
+    private int maxInFlightBatches;
+    private Distribution requestLatencyMillis;
+    private Distribution serverTimeMillis;
+    private Distribution requestBytes;
+    private Distribution responseBytes;
+    private Distribution batchDocsPerSecond;
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    public void setJobId(String jobId) {
+        this.jobId = jobId;
+    }
+
+    public long getBatchCount() {
+        return batchCount;
+    }
+
+    public void setBatchCount(long batchCount) {
+        this.batchCount = batchCount;
+    }
+
+    /**
+     * @return the items processed per second over the whole step
+     */
+    public double getDocsPerSecond() {
+        return docsPerSecond;
+    }
+
+    public void setDocsPerSecond(double docsPerSecond) {
+        this.docsPerSecond = docsPerSecond;
+    }
+
+    public int getMaxInFlightBatches() {
+        return maxInFlightBatches;
+    }
+
+    public void setMaxInFlightBatches(int maxInFlightBatches) {
+        this.maxInFlightBatches = maxInFlightBatches;
+    }
+
+    public Distribution getRequestLatencyMillis() {
+        return requestLatencyMillis;
+    }
+
+    public void setRequestLatencyMillis(Distribution requestLatencyMillis) {
+        this.requestLatencyMillis = requestLatencyMillis;
+    }
+
+    public Distribution getServerTimeMillis() {
+        return serverTimeMillis;
+    }
+
+    public void setServerTimeMillis(Distribution serverTimeMillis) {
+        this.serverTimeMillis = serverTimeMillis;
+    }
+
+    public Distribution getRequestBytes() {
+        return requestBytes;
+    }
+
+    public void setRequestBytes(Distribution requestBytes) {
+        this.requestBytes = requestBytes;
+    }
+
+    public Distribution getResponseBytes() {
+        return responseBytes;
+    }
+
+    public void setResponseBytes(Distribution responseBytes) {
+        this.responseBytes = responseBytes;
+    }
+
+    public Distribution getBatchDocsPerSecond() {
+        return batchDocsPerSecond;
+    }
+
+    public void setBatchDocsPerSecond(Distribution batchDocsPerSecond) {
+        this.batchDocsPerSecond = batchDocsPerSecond;
+    }
+
+    /**
+     * Percentiles of one histogram, in the unit named by the property that holds it.
+     */
+    public static class Distribution {
+        private long count;
+        private double mean;
+        private double p50;
+        private double p90;
+        private double p99;
+        private double max;
+
+        public Distribution() {
+        }
+
+        /**
+         * @param scale divides the recorded values, such as 1000 for microseconds to milliseconds
+         * @return the distribution, or null if nothing was recorded
+         */
+        public static Distribution of(Histogram histogram, double scale) {
+            if (histogram.getCount() == 0) {
+                return null;
+            }
+            Distribution distribution = new Distribution();
+            distribution.count = histogram.getCount();
+            distribution.mean = histogram.getMean() / scale;
+            distribution.p50 = histogram.getValueAtPercentile(50) / scale;
+            distribution.p90 = histogram.getValueAtPercentile(90) / scale;
+            distribution.p99 = histogram.getValueAtPercentile(99) / scale;
+            distribution.max = histogram.getMax() / scale;
+            return distribution;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public void setCount(long count) {
+            this.count = count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public void setMean(double mean) {
+            this.mean = mean;
+        }
+
+        public double getP50() {
+            return p50;
+        }
+
+        public void setP50(double p50) {
+            this.p50 = p50;
+        }
+
+        public double getP90() {
+            return p90;
+        }
+
+        public void setP90(double p90) {
+            this.p90 = p90;
+        }
+
+        public double getP99() {
+            return p99;
+        }
+
+        public void setP99(double p99) {
+            this.p99 = p99;
+        }
+
+        public double getMax() {
+            return max;
+        }
+
+        public void setMax(double max) {
+            this.max = max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("p50 %.1f, p90 %.1f, p99 %.1f, max %.1f", p50, p90, p99, max);
+        }
+    }
+}
@@ -48,6 +48,7 @@ public class MlcpRunner extends ProcessRunner {
     private String mlcpPath;
     private String mainClass;
     private DatabaseClient databaseClient;
+    private DatabaseClient jobDbClient;
     private String database = null;
 
     public MlcpRunner(String mlcpPath, String mainClass, HubConfig hubConfig, LegacyFlow flow, DatabaseClient databaseClient, JsonNode mlcpOptions, LegacyFlowStatusListener statusListener) {
@@ -55,7 +56,8 @@ public class MlcpRunner extends ProcessRunner {
 
         this.withHubconfig(hubConfig);
 
-        this.jobManager = LegacyJobManager.create(hubConfig.newJobDbClient());
+        this.jobDbClient = hubConfig.acquireJobDbClient();
+        this.jobManager = LegacyJobManager.create(jobDbClient);
         this.flowStatusListener = statusListener;
         this.flow = flow;
         this.mlcpOptions = mlcpOptions;
@@ -129,7 +131,11 @@ public class MlcpRunner extends ProcessRunner {
                 .withStatus(status)
                 .setCounts(successfulEvents.get(), failedEvents.get(), 0, 0)
                 .withEndTime(new Date());
-            jobManager.saveJob(job);
+            try {
+                jobManager.saveJob(job);
+            } finally {
+                hubConfig.releaseClient(jobDbClient);
+            }
         }
     }
 
@@ -0,0 +1,55 @@
+package com.marklogic.hub.util.metrics.tracer;
+
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides which batches of a step get a span of their own. A step can run many thousands of batches, so tracing only
+ * a fraction of them keeps tracing cheap enough to leave on in production; an unsampled batch costs a random number
+ * and no span.
+ *
+ * The rate is read from the "batchTraceSampleRate" run option, else from the dhf.batchTraceSampleRate system property,
+ * and defaults to 1, which traces every batch. No batch is sampled while tracing is off.
+ */
+public class BatchSampler {
+
+    public static final String OPTION = "batchTraceSampleRate";
+    public static final String PROPERTY = "dhf.batchTraceSampleRate";
+
+    private final double rate;
+
+    /**
+     * @param rate the fraction of batches to trace, between 0 and 1
+     */
+    public BatchSampler(double rate) {
+        if (rate < 0 || rate > 1 || Double.isNaN(rate)) {
+            throw new IllegalArgumentException(OPTION + " must be between 0 and 1");
+        }
+        this.rate = rate;
+    }
+
+    /**
+     * @param options the run options of a step; may be null
+     */
+    public static BatchSampler fromOptions(Map<String, Object> options) {
+        Object rate = options != null ? options.get(OPTION) : null;
+        if (rate == null) {
+            rate = System.getProperty(PROPERTY);
+        }
+        return new BatchSampler(rate != null ? Double.parseDouble(rate.toString()) : 1);
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    /**
+     * @return true if the next batch should be traced
+     */
+    public boolean sample() {
+        if (rate <= 0 || !JaegerConfig.enabled()) {
+            return false;
+        }
+        return rate >= 1 || ThreadLocalRandom.current().nextDouble() < rate;
+    }
+}
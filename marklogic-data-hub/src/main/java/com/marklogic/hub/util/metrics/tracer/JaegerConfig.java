@@ -1,5 +1,7 @@
 package com.marklogic.hub.util.metrics.tracer;
 
+import com.marklogic.client.DatabaseClientFactory;
+import com.marklogic.client.extra.okhttpclient.OkHttpClientConfigurator;
 import io.jaegertracing.Configuration;
 import io.jaegertracing.Configuration.ReporterConfiguration;
 import io.jaegertracing.Configuration.SamplerConfiguration;
@@ -8,12 +10,21 @@ import io.opentracing.Scope;
 import io.opentracing.Span;
 import io.opentracing.Tracer;
 import io.opentracing.Tracer.SpanBuilder;
+import io.opentracing.propagation.Format;
+import io.opentracing.propagation.TextMapAdapter;
+import io.opentracing.tag.Tags;
 import io.opentracing.util.GlobalTracer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
 public class JaegerConfig {
     private static final Logger logger = LoggerFactory.getLogger(JaegerConfig.class);
+    private static final AtomicBoolean headerPropagationInstalled = new AtomicBoolean(false);
 
     /**
      * Returns the currently configured tracer
@@ -68,6 +79,109 @@ public class JaegerConfig {
         return getTracer().buildSpan(operationName);
     }
 
+    /**
+     * Builds a span with the operation name, as a child of the given span
+     * @param operationName span operation name
+     * @param parentSpan parent span of the built span; if null, the active span is the parent
+     * @return a span builder
+     */
+    public static SpanBuilder buildChildSpan(String operationName, Span parentSpan) {
+        SpanBuilder builder = buildSpan(operationName);
+        return parentSpan != null ? builder.asChildOf(parentSpan) : builder;
+    }
+
+    /**
+     * Runs the work in a child span of the given span. Work without a parent span, or while tracing is off, runs
+     * without a span, so that work outside a trace - such as a background flush - doesn't start traces of its own.
+     * @param operationName span operation name
+     * @param parentSpan parent span, or null
+     * @param work the work to run
+     * @return the result of the work
+     */
+    public static <T> T traceChild(String operationName, Span parentSpan, Supplier<T> work) {
+        if (parentSpan == null || !enabled()) {
+            return work.get();
+        }
+        Span span = buildChildSpan(operationName, parentSpan).start();
+        Throwable error = null;
+        try (Scope ignored = activate(span)) {
+            return work.get();
+        } catch (RuntimeException | Error e) {
+            error = e;
+            throw e;
+        } finally {
+            finish(span, error);
+        }
+    }
+
+    /**
+     * Wraps work that runs on another thread, so that the span is active while it runs
+     * @param span the span to activate; if null, the work runs as it is
+     * @param work the work to run
+     * @return the wrapped work
+     */
+    public static Runnable withActiveSpan(Span span, Runnable work) {
+        if (span == null) {
+            return work;
+        }
+        return () -> {
+            try (Scope ignored = activate(span)) {
+                work.run();
+            }
+        };
+    }
+
+    /**
+     * Finishes a span, marking it as failed if there was an error
+     * @param span the span to finish; nothing is done if null
+     * @param error the error that ended the work of the span, or null
+     */
+    public static void finish(Span span, Throwable error) {
+        if (span == null) {
+            return;
+        }
+        if (error != null) {
+            Tags.ERROR.set(span, true);
+            Map<String, Object> fields = new HashMap<>();
+            fields.put("event", Tags.ERROR.getKey());
+            fields.put("error.object", error);
+            fields.put("message", String.valueOf(error.getMessage()));
+            span.log(fields);
+        }
+        span.finish();
+    }
+
+    /**
+     * Returns the headers that carry the span's context to another process, such as the uber-trace-id header
+     * @param span the span to propagate, or null
+     * @return the headers; empty when there is no span or tracing is off
+     */
+    public static Map<String, String> traceHeaders(Span span) {
+        Map<String, String> headers = new HashMap<>();
+        if (span != null && enabled()) {
+            getTracer().inject(span.context(), Format.Builtin.HTTP_HEADERS, new TextMapAdapter(headers));
+        }
+        return headers;
+    }
+
+    /**
+     * Adds the context of the active span to the headers of every request made by DatabaseClients created from now
+     * on, so that the server can tell which flow, step and batch a request belongs to. Called by {@link #init(String)}.
+     */
+    public static void installHeaderPropagation() {
+        if (headerPropagationInstalled.compareAndSet(false, true)) {
+            DatabaseClientFactory.addConfigurator((OkHttpClientConfigurator) builder -> builder.addInterceptor(chain -> {
+                Map<String, String> headers = traceHeaders(activeSpan());
+                if (headers.isEmpty()) {
+                    return chain.proceed(chain.request());
+                }
+                okhttp3.Request.Builder request = chain.request().newBuilder();
+                headers.forEach(request::header);
+                return chain.proceed(request.build());
+            }));
+        }
+    }
+
     /**
      * Builds a span with the current class as the operation name.
      * Usage: {@code JaegerConfig.buildFromMethod(new Object(){})}
@@ -95,15 +209,17 @@ public class JaegerConfig {
     }
 
     /**
-     * Initialize a tracer
+     * Initialize a tracer. Every flow is traced unless the JAEGER_SAMPLER_TYPE and JAEGER_SAMPLER_PARAM environment
+     * variables configure another sampler, such as a probabilistic sampler that traces 1% of flows.
      * @param service a service name
      * @return a tracer
      */
     public static Tracer init(String service) {
         if (!GlobalTracer.isRegistered()) {
-            SamplerConfiguration samplerConfig = SamplerConfiguration.fromEnv()
-                .withType(ConstSampler.TYPE)
-                .withParam(1);
+            SamplerConfiguration samplerConfig = SamplerConfiguration.fromEnv();
+            if (samplerConfig.getType() == null) {
+                samplerConfig.withType(ConstSampler.TYPE).withParam(1);
+            }
 
             ReporterConfiguration reporterConfig = ReporterConfiguration.fromEnv()
                 .withLogSpans(true);
@@ -113,6 +229,7 @@ public class JaegerConfig {
                 .withReporter(reporterConfig);
             GlobalTracer.registerIfAbsent(config.getTracer());
         }
+        installHeaderPropagation();
         return getTracer();
     }
 }
@@ -0,0 +1,44 @@
+package com.marklogic.hub.collector;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FrontCodedBlocksTest {
+
+    @Test
+    public void roundTripsAcrossBlocks() throws Exception {
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            values.add("/customer/2019/10/" + i + ".json");
+        }
+        values.add("");
+        values.add("/other/é€😀.json");
+        values.add("/other/é€😀.xml");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrontCodedBlocks.Writer writer = new FrontCodedBlocks.Writer(out, 16);
+        for (String value : values) {
+            writer.write(value);
+        }
+        writer.flushBlock();
+        assertEquals(63, writer.getBlocksWritten());
+        assertTrue(writer.getCompressionRatio() > 2, "Shared prefixes should compress well: " + writer.getCompressionRatio());
+
+        FrontCodedBlocks.Reader reader = new FrontCodedBlocks.Reader(new ByteArrayInputStream(out.toByteArray()));
+        for (String value : values) {
+            assertEquals(value, reader.next());
+        }
+        assertNull(reader.next());
+    }
+
+    @Test
+    public void invalidBlockSize() {
+        assertThrows(IllegalArgumentException.class, () -> new FrontCodedBlocks.Writer(new ByteArrayOutputStream(), 0));
+    }
+}
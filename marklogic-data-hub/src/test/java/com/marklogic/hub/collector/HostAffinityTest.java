@@ -0,0 +1,88 @@
+package com.marklogic.hub.collector;
+
+import com.marklogic.appdeployer.AppConfig;
+import com.marklogic.client.DatabaseClient;
+import com.marklogic.hub.DatabaseKind;
+import com.marklogic.hub.impl.HubConfigImpl;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HostAffinityTest {
+
+    private final Map<DatabaseClient, AtomicInteger> releases = new ConcurrentHashMap<>();
+
+    @Test
+    public void taggedUrisSplitBackIntoUriAndHost() {
+        String tagged = "/customer/1.json" + '\u0000' + 2;
+        assertEquals("/customer/1.json", HostAffinity.uriOf(tagged));
+        assertEquals(2, HostAffinity.hostIndexOf(tagged));
+    }
+
+    @Test
+    public void untaggedUrisAreReturnedAsTheyAre() {
+        assertEquals("/customer/1.json", HostAffinity.uriOf("/customer/1.json"));
+        assertEquals(-1, HostAffinity.hostIndexOf("/customer/1.json"));
+    }
+
+    @Test
+    public void perHostClientsAreCachedUntilShutdown() {
+        AppConfig appConfig = new AppConfig();
+        appConfig.setConfiguredDatabaseClientFactory(config -> newClient());
+        HubConfigImpl hubConfig = new HubConfigImpl();
+        hubConfig.setAppConfig(appConfig, true);
+        hubConfig.setPort(DatabaseKind.STAGING, 8010);
+        hubConfig.setAuthMethod(DatabaseKind.STAGING, "digest");
+        hubConfig.setMlUsername("admin");
+        hubConfig.setMlPassword("admin");
+
+        // Each batch sent to a host acquires a client for it and hands it back afterwards
+        DatabaseClient host1 = hubConfig.acquireStagingClient("host1", "data-hub-STAGING");
+        hubConfig.releaseClient(host1);
+        assertSame(host1, hubConfig.acquireStagingClient("host1", "data-hub-STAGING"));
+        DatabaseClient host2 = hubConfig.acquireStagingClient("host2", "data-hub-STAGING");
+        assertNotSame(host1, host2);
+        assertSame(host2, hubConfig.acquireStagingClient("host2", "data-hub-STAGING"));
+
+        assertEquals(2, hubConfig.getClientCache().size());
+        assertEquals(2, hubConfig.getClientCache().getCreatedClients());
+        assertEquals(1, hubConfig.getClientCache().getReferenceCount(host1));
+        assertEquals(2, hubConfig.getClientCache().getReferenceCount(host2));
+        assertEquals(0, releaseCount(host1));
+        assertEquals(0, releaseCount(host2));
+
+        hubConfig.shutdown();
+        assertEquals(1, releaseCount(host1));
+        assertEquals(1, releaseCount(host2));
+        assertEquals(0, hubConfig.getClientCache().size());
+    }
+
+    private DatabaseClient newClient() {
+        AtomicInteger count = new AtomicInteger();
+        DatabaseClient client = (DatabaseClient) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[]{DatabaseClient.class}, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "release":
+                        count.incrementAndGet();
+                        return null;
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            });
+        releases.put(client, count);
+        return client;
+    }
+
+    private int releaseCount(DatabaseClient client) {
+        return releases.get(client).get();
+    }
+}
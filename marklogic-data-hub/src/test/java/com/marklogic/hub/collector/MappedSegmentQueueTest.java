@@ -0,0 +1,129 @@
+package com.marklogic.hub.collector;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MappedSegmentQueueTest {
+
+    @Test
+    public void producerAndConsumerRunConcurrently() throws Exception {
+        // Small segments so that the queue has to roll and recycle many times
+        MappedSegmentQueue queue = new MappedSegmentQueue(null, 256);
+        int count = 50000;
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < count; i++) {
+                queue.offer("/uri/é€😀/" + i + ".json");
+            }
+            queue.complete();
+        });
+        producer.start();
+
+        int read = 0;
+        Iterator<String> iterator = queue.iterator();
+        while (iterator.hasNext()) {
+            assertEquals("/uri/é€😀/" + read + ".json", iterator.next());
+            read++;
+        }
+        producer.join();
+
+        assertEquals(count, read);
+        assertEquals(0, queue.size());
+        assertTrue(queue.getSegmentCount() < 10, "Drained segments should have been reused");
+        queue.close();
+    }
+
+    @Test
+    public void pollReturnsNullWhenCaughtUp() {
+        MappedSegmentQueue queue = new MappedSegmentQueue(null, 64);
+        try {
+            assertNull(queue.poll());
+            queue.offer("a");
+            queue.offer("b");
+            assertEquals(2, queue.size());
+            assertEquals("a", queue.poll());
+            assertEquals("b", queue.poll());
+            assertNull(queue.poll());
+
+            queue.complete();
+            assertNull(queue.take());
+            assertThrows(IllegalStateException.class, () -> queue.offer("c"));
+        } finally {
+            queue.close();
+        }
+    }
+
+    @Test
+    public void peekDoesNotRemove() {
+        MappedSegmentQueue queue = new MappedSegmentQueue(null, 16);
+        try {
+            assertNull(queue.peek());
+            queue.offer("first");
+            queue.offer("second");
+            assertEquals("first", queue.peek());
+            assertEquals("first", queue.peek());
+            assertEquals(2, queue.size());
+            assertEquals("first", queue.poll());
+            // "second" is in the next segment, which peek has to move to
+            assertEquals("second", queue.peek());
+            assertEquals("second", queue.poll());
+            assertNull(queue.peek());
+        } finally {
+            queue.close();
+        }
+    }
+
+    @Test
+    public void closeDeletesEverySegment() throws Exception {
+        File dir = Files.createTempDirectory("mapped-segment-queue").toFile();
+        try {
+            MappedSegmentQueue queue = new MappedSegmentQueue(dir, 64);
+            for (int i = 0; i < 100; i++) {
+                queue.offer("/uri/" + i + ".json");
+            }
+            // Draining the first segments releases the ones that can't be recycled
+            for (int i = 0; i < 50; i++) {
+                assertEquals("/uri/" + i + ".json", queue.poll());
+            }
+            assertEquals(queue.getSegmentCount(), dir.listFiles().length);
+
+            queue.close();
+            assertEquals(0, dir.listFiles().length);
+            assertNull(queue.poll());
+            assertThrows(IllegalStateException.class, () -> queue.offer("/uri/100.json"));
+        } finally {
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void elementLargerThanSegmentIsRejected() {
+        MappedSegmentQueue queue = new MappedSegmentQueue(null, 16);
+        try {
+            assertThrows(IllegalArgumentException.class, () -> queue.offer("this is longer than sixteen bytes"));
+        } finally {
+            queue.close();
+        }
+    }
+
+    @Test
+    public void streamingQueueCanSpillToDisk() throws Exception {
+        StreamingUriQueue queue = StreamingUriQueue.spillingToDisk(null);
+        for (int i = 0; i < 100; i++) {
+            // The producer never blocks, even though nothing is consuming yet
+            queue.add("/uri/" + i + ".json");
+        }
+        queue.complete();
+
+        List<String> results = new ArrayList<>();
+        queue.iterator().forEachRemaining(results::add);
+        assertEquals(100, results.size());
+        assertEquals(100, queue.getCollectedCount());
+    }
+}
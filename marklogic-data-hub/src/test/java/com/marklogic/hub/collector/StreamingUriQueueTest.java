@@ -0,0 +1,98 @@
+package com.marklogic.hub.collector;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StreamingUriQueueTest {
+
+    @Test
+    public void consumerReadsWhileProducerIsStillWriting() throws Exception {
+        StreamingUriQueue queue = new StreamingUriQueue(2);
+        int count = 1000;
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < count; i++) {
+                queue.add("/uri/" + i + ".json");
+            }
+            queue.complete();
+        });
+        producer.start();
+
+        List<String> results = new ArrayList<>();
+        Iterator<String> iterator = queue.iterator();
+        while (iterator.hasNext()) {
+            results.add(iterator.next());
+        }
+        producer.join();
+
+        assertEquals(count, results.size());
+        assertEquals("/uri/0.json", results.get(0));
+        assertEquals("/uri/999.json", results.get(count - 1));
+        assertTrue(queue.isComplete());
+        assertEquals(count, queue.getCollectedCount());
+    }
+
+    @Test
+    public void failureIsReportedAfterBufferedUrisAreDelivered() {
+        StreamingUriQueue queue = new StreamingUriQueue(10);
+        queue.add("/one.json");
+        queue.fail(new RuntimeException("collector failed"));
+
+        Iterator<String> iterator = queue.iterator();
+        assertTrue(iterator.hasNext());
+        assertEquals("/one.json", iterator.next());
+        assertFalse(iterator.hasNext());
+        assertEquals("collector failed", queue.getFailure().getMessage());
+    }
+
+    @Test
+    public void cancelReleasesBlockedProducer() throws Exception {
+        StreamingUriQueue queue = new StreamingUriQueue(1);
+        queue.add("/one.json");
+        Throwable[] thrown = new Throwable[1];
+        Thread producer = new Thread(() -> {
+            try {
+                queue.add("/two.json");
+            } catch (Throwable t) {
+                thrown[0] = t;
+            }
+        });
+        producer.start();
+        // Cancel only once the producer is blocked on the full buffer
+        long deadline = System.currentTimeMillis() + 5000;
+        while (producer.getState() != Thread.State.TIMED_WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(Thread.State.TIMED_WAITING, producer.getState());
+        queue.cancel();
+        producer.join(5000);
+
+        assertFalse(producer.isAlive());
+        assertTrue(thrown[0] instanceof CancellationException);
+        assertFalse(queue.iterator().hasNext());
+    }
+
+    @Test
+    public void addAfterCancelIsCancelled() throws Exception {
+        StreamingUriQueue queue = new StreamingUriQueue(1);
+        queue.cancel();
+        assertThrows(CancellationException.class, () -> queue.add("/one.json"));
+
+        StreamingUriQueue spilling = StreamingUriQueue.spillingToDisk(Files.createTempDirectory("uri-queue").toFile());
+        spilling.cancel();
+        assertThrows(CancellationException.class, () -> spilling.add("/one.json"));
+    }
+
+    @Test
+    public void onlyOneConsumerIsAllowed() {
+        StreamingUriQueue queue = new StreamingUriQueue(1);
+        queue.iterator();
+        assertThrows(IllegalStateException.class, queue::iterator);
+    }
+}
@@ -0,0 +1,33 @@
+package com.marklogic.hub.collector.impl;
+
+import com.marklogic.client.DatabaseClient;
+import com.marklogic.client.DatabaseClientFactory;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.client.RestTemplate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CollectorHttpClientPoolTest {
+
+    @Test
+    public void clientsAreSharedPerHostAndUser() {
+        DatabaseClient client = DatabaseClientFactory.newClient("localhost", 8010, new DatabaseClientFactory.DigestAuthContext("user", "password"));
+        DatabaseClient otherPort = DatabaseClientFactory.newClient("localhost", 8011, new DatabaseClientFactory.DigestAuthContext("user", "password"));
+        CollectorHttpClientPool pool = new CollectorHttpClientPool();
+        try {
+            RestTemplate template = pool.getRestTemplate(client, "user", "password");
+            assertSame(template, pool.getRestTemplate(client, "user", "password"));
+            assertNotSame(template, pool.getRestTemplate(client, "other-user", "password"));
+            assertNotSame(template, pool.getRestTemplate(otherPort, "user", "password"));
+            assertEquals(3, pool.size());
+
+            pool.close();
+            assertEquals(0, pool.size());
+            assertNotSame(template, pool.getRestTemplate(client, "user", "password"));
+        } finally {
+            pool.close();
+            client.release();
+            otherPort.release();
+        }
+    }
+}
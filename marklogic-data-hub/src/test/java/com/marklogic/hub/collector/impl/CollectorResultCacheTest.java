@@ -0,0 +1,128 @@
+package com.marklogic.hub.collector.impl;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CollectorResultCacheTest {
+
+    @Test
+    public void entryIsReusedUntilTheDatabaseChanges() throws Exception {
+        CollectorResultCache cache = new CollectorResultCache(Files.createTempDirectory("collector-cache"), CollectorResultCache.DEFAULT_MAX_BYTES);
+        List<String> uris = Arrays.asList("/customer/1.json", "/customer/2.json", "/customer/10.json");
+        try (CollectorResultCache.EntryWriter entry = cache.newEntry("key", "100")) {
+            uris.forEach(entry);
+            entry.commit();
+        }
+
+        List<String> cached = new ArrayList<>();
+        assertTrue(cache.read("key", "100", cached::add));
+        assertEquals(uris, cached);
+
+        assertFalse(cache.read("key", "101", cached::add), "A newer database timestamp should invalidate the entry");
+        assertFalse(cache.read("key", "100", cached::add), "The stale entry should have been deleted");
+    }
+
+    @Test
+    public void uncommittedEntryIsDiscarded() throws Exception {
+        Path directory = Files.createTempDirectory("collector-cache");
+        CollectorResultCache cache = new CollectorResultCache(directory, CollectorResultCache.DEFAULT_MAX_BYTES);
+        try (CollectorResultCache.EntryWriter entry = cache.newEntry("key", "100")) {
+            entry.accept("/customer/1.json");
+        }
+        assertFalse(cache.read("key", "100", uri -> fail("Nothing should have been cached")));
+        assertEquals(0, Files.list(directory).count());
+    }
+
+    @Test
+    public void truncatedEntryIsDiscardedBeforeStreaming() throws Exception {
+        Path directory = Files.createTempDirectory("collector-cache");
+        CollectorResultCache cache = new CollectorResultCache(directory, CollectorResultCache.DEFAULT_MAX_BYTES);
+        writeEntry(cache, "key", "100", 500);
+        Path file = directory.resolve("key.uris");
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length / 2));
+
+        assertFalse(cache.read("key", "100", uri -> fail("No URI should be streamed from a truncated entry")));
+        assertFalse(Files.exists(file));
+    }
+
+    @Test
+    public void corruptEntryIsDiscardedBeforeStreaming() throws Exception {
+        Path directory = Files.createTempDirectory("collector-cache");
+        CollectorResultCache cache = new CollectorResultCache(directory, CollectorResultCache.DEFAULT_MAX_BYTES);
+        writeEntry(cache, "key", "100", 500);
+        Path file = directory.resolve("key.uris");
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length / 2] ^= 0x5a;
+        Files.write(file, bytes);
+
+        assertFalse(cache.read("key", "100", uri -> fail("No URI should be streamed from a corrupt entry")));
+        assertFalse(Files.exists(file));
+
+        // The next collection replaces it
+        writeEntry(cache, "key", "100", 500);
+        List<String> cached = new ArrayList<>();
+        assertTrue(cache.read("key", "100", cached::add));
+        assertEquals(500, cached.size());
+    }
+
+    @Test
+    public void leastRecentlyUsedEntriesAreEvicted() throws Exception {
+        Path directory = Files.createTempDirectory("collector-cache");
+        // Room for one of the entries below
+        CollectorResultCache cache = new CollectorResultCache(directory, 100);
+        long now = System.currentTimeMillis();
+        String[] keys = {"first", "second", "third"};
+        for (int i = 0; i < keys.length; i++) {
+            try (CollectorResultCache.EntryWriter entry = cache.newEntry(keys[i], "1")) {
+                entry.accept("/a/uri/that/takes/up/about/forty/bytes/" + keys[i] + ".json");
+                entry.commit();
+            }
+            // File times may only have a one second resolution
+            Files.setLastModifiedTime(directory.resolve(keys[i] + ".uris"), FileTime.fromMillis(now - (keys.length - i) * 10000L));
+        }
+        cache.evict();
+        assertFalse(Files.exists(directory.resolve("first.uris")));
+        assertFalse(Files.exists(directory.resolve("second.uris")));
+        assertTrue(Files.exists(directory.resolve("third.uris")));
+    }
+
+    @Test
+    public void keyIgnoresOptionOrderButNotOptionValues() {
+        Map<String, Object> options = new LinkedHashMap<>();
+        options.put("sourceQuery", "cts.collectionQuery('customer')");
+        options.put("flow", "myFlow");
+        Map<String, Object> reordered = new HashMap<>();
+        reordered.put("flow", "myFlow");
+        reordered.put("sourceQuery", "cts.collectionQuery('customer')");
+
+        String key = CollectorResultCache.key("myFlow", "1", options, "123");
+        assertEquals(key, CollectorResultCache.key("myFlow", "1", reordered, "123"));
+        assertNotEquals(key, CollectorResultCache.key("myFlow", "2", options, "123"));
+        assertNotEquals(key, CollectorResultCache.key("myFlow", "1", options, "456"));
+
+        // Every option sent to the collector is part of the key
+        reordered.put("collectorThreadCount", 4);
+        assertNotEquals(key, CollectorResultCache.key("myFlow", "1", reordered, "123"));
+    }
+
+    private static void writeEntry(CollectorResultCache cache, String key, String timestamp, int uriCount) throws Exception {
+        try (CollectorResultCache.EntryWriter entry = cache.newEntry(key, timestamp)) {
+            for (int i = 0; i < uriCount; i++) {
+                entry.accept("/customer/" + i + ".json");
+            }
+            entry.commit();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.marklogic.hub.collector.impl;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IngestionManifestTest {
+
+    @Test
+    public void onlyCommittedFilesAreSkippedNextTime() throws Exception {
+        Path dir = Files.createTempDirectory("manifest-test");
+        Path committed = write(dir.resolve("committed.json"), "{}");
+        Path pending = write(dir.resolve("pending.json"), "{}");
+        Path manifestFile = dir.resolve("step.manifest");
+
+        IngestionManifest manifest = new IngestionManifest(manifestFile, false).load();
+        assertTrue(manifest.shouldIngest(committed, attributes(committed)));
+        assertTrue(manifest.shouldIngest(pending, attributes(pending)));
+        manifest.commit(committed.toString());
+        manifest.save();
+
+        IngestionManifest next = new IngestionManifest(manifestFile, false).load();
+        assertEquals(1, next.size());
+        assertFalse(next.shouldIngest(committed, attributes(committed)));
+        assertTrue(next.shouldIngest(pending, attributes(pending)));
+        assertEquals(1, next.getSkippedCount());
+    }
+
+    @Test
+    public void changedFileIsIngestedAgain() throws Exception {
+        Path dir = Files.createTempDirectory("manifest-test");
+        Path file = write(dir.resolve("file.json"), "{}");
+        Path manifestFile = dir.resolve("step.manifest");
+        IngestionManifest manifest = new IngestionManifest(manifestFile, false).load();
+        manifest.shouldIngest(file, attributes(file));
+        manifest.commit(file.toString());
+        manifest.save();
+
+        write(file, "{\"changed\":true}");
+        assertTrue(new IngestionManifest(manifestFile, false).load().shouldIngest(file, attributes(file)));
+    }
+
+    @Test
+    public void touchedFileIsSkippedWhenItsDigestMatches() throws Exception {
+        Path dir = Files.createTempDirectory("manifest-test");
+        Path file = write(dir.resolve("file.json"), "{}");
+        Path manifestFile = dir.resolve("step.manifest");
+        IngestionManifest manifest = new IngestionManifest(manifestFile, true).load();
+        manifest.shouldIngest(file, attributes(file));
+        manifest.commit(file.toString());
+        manifest.save();
+
+        Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 60000));
+        assertFalse(new IngestionManifest(manifestFile, true).load().shouldIngest(file, attributes(file)));
+        assertTrue(new IngestionManifest(manifestFile, false).load().shouldIngest(file, attributes(file)));
+    }
+
+    @Test
+    public void pathsWithTabsAndLineBreaksRoundTrip() throws Exception {
+        Path dir = Files.createTempDirectory("manifest-test");
+        Path file = write(dir.resolve("file.json"), "{}");
+        BasicFileAttributes attributes = attributes(file);
+        // Only the path is used as the key, so the attributes can come from another file
+        Path odd = dir.resolve("tab\there\nnewline\\backslash\r.json");
+        Path manifestFile = dir.resolve("step.manifest");
+
+        IngestionManifest manifest = new IngestionManifest(manifestFile, false).load();
+        manifest.shouldIngest(odd, attributes);
+        manifest.commit(odd.toString());
+        manifest.save();
+
+        IngestionManifest next = new IngestionManifest(manifestFile, false).load();
+        assertEquals(1, next.size());
+        assertFalse(next.shouldIngest(odd, attributes));
+
+        assertEquals("a\\tb\\nc\\\\d\\re", IngestionManifest.escape("a\tb\nc\\d\re"));
+        assertEquals("a\tb\nc\\d\re", IngestionManifest.unescape("a\\tb\\nc\\\\d\\re"));
+        assertEquals("C:\\data\\new", IngestionManifest.unescape(IngestionManifest.escape("C:\\data\\new")));
+    }
+
+    @Test
+    public void filesTheWalkNoLongerFindsArePruned() throws Exception {
+        Path dir = Files.createTempDirectory("manifest-test");
+        Path kept = write(dir.resolve("kept.json"), "{}");
+        Path removed = write(dir.resolve("removed.json"), "{}");
+        Path manifestFile = dir.resolve("step.manifest");
+        IngestionManifest manifest = new IngestionManifest(manifestFile, false).load();
+        for (Path file : new Path[]{kept, removed}) {
+            manifest.shouldIngest(file, attributes(file));
+            manifest.commit(file.toString());
+        }
+        manifest.save();
+        Files.delete(removed);
+
+        // A walk that didn't finish may not have reached every file, so nothing is pruned
+        IngestionManifest interrupted = new IngestionManifest(manifestFile, false).load();
+        interrupted.shouldIngest(kept, attributes(kept));
+        interrupted.save();
+        assertEquals(2, new IngestionManifest(manifestFile, false).load().size());
+
+        IngestionManifest completed = new IngestionManifest(manifestFile, false).load();
+        completed.shouldIngest(kept, attributes(kept));
+        completed.walkCompleted();
+        completed.save();
+        IngestionManifest next = new IngestionManifest(manifestFile, false).load();
+        assertEquals(1, next.size());
+        assertFalse(next.shouldIngest(kept, attributes(kept)));
+    }
+
+    @Test
+    public void manifestWithoutVersionLineIsIgnored() throws Exception {
+        Path dir = Files.createTempDirectory("manifest-test");
+        Path file = write(dir.resolve("file.json"), "{}");
+        Path manifestFile = dir.resolve("step.manifest");
+        Files.write(manifestFile, Collections.singletonList(file + "\t2\t0"), StandardCharsets.UTF_8);
+
+        IngestionManifest manifest = new IngestionManifest(manifestFile, false).load();
+        assertEquals(0, manifest.size());
+        assertTrue(manifest.shouldIngest(file, attributes(file)));
+    }
+
+    private static Path write(Path file, String content) throws Exception {
+        return Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static BasicFileAttributes attributes(Path file) throws Exception {
+        return Files.readAttributes(file, BasicFileAttributes.class);
+    }
+}
@@ -0,0 +1,46 @@
+package com.marklogic.hub.collector.impl;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ParallelFileWalkerTest {
+
+    @Test
+    public void findsMatchingFilesInNestedDirectories() throws Exception {
+        Path dir = Files.createTempDirectory("walker-test");
+        Files.createDirectories(dir.resolve("a/b"));
+        Files.createDirectories(dir.resolve("c"));
+        Files.write(dir.resolve("one.json"), new byte[0]);
+        Files.write(dir.resolve("a/two.JSON"), new byte[0]);
+        Files.write(dir.resolve("a/b/three.json"), new byte[0]);
+        Files.write(dir.resolve("c/four.xml"), new byte[0]);
+        Files.write(dir.resolve("c/noextension"), new byte[0]);
+
+        Set<String> found = ConcurrentHashMap.newKeySet();
+        new ParallelFileWalker(4, ParallelFileWalker.ExtensionMatcher.including("json")).walk(dir, null, found::add);
+        assertEquals(3, found.size());
+        assertTrue(found.contains(dir.toAbsolutePath().resolve("a/b/three.json").toString()));
+
+        found.clear();
+        new ParallelFileWalker(2, ParallelFileWalker.ExtensionMatcher.excluding("json")).walk(dir,
+            (path, attributes) -> !path.getFileName().toString().equals("four.xml"), found::add);
+        assertEquals(1, found.size());
+        assertTrue(found.contains(dir.toAbsolutePath().resolve("c/noextension").toString()));
+    }
+
+    @Test
+    public void extensionMatcher() {
+        ParallelFileWalker.ExtensionMatcher matcher = ParallelFileWalker.ExtensionMatcher.including("CSV", "tsv");
+        assertTrue(matcher.matches("data.csv"));
+        assertTrue(matcher.matches("data.v1.TSV"));
+        assertFalse(matcher.matches("data.csv.bak"));
+        assertFalse(matcher.matches("csv"));
+        assertTrue(ParallelFileWalker.ExtensionMatcher.excluding("xml").matches("image"));
+    }
+}
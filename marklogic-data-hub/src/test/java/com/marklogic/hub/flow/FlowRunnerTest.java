@@ -36,12 +36,15 @@ import org.apache.commons.io.FileUtils;
 import org.custommonkey.xmlunit.XMLUnit;
 import org.junit.jupiter.api.*;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 
 @ExtendWith(SpringExtension.class)
@@ -435,4 +438,106 @@ public class FlowRunnerTest extends HubTestBase {
         Assertions.assertTrue(JobStatus.FINISHED.toString().equalsIgnoreCase(resp.getJobStatus()));
         Assertions.assertTrue(JobStatus.FINISHED.toString().equalsIgnoreCase(resp1.getJobStatus()));
     }
+
+    @Test
+    public void testRunConcurrentJobs() throws InterruptedException {
+        List<String> steps = new ArrayList<>();
+        steps.add("2");
+        Map<String,String> stepDetails = new HashMap<>();
+        stepDetails.put("inputFileType","json");
+        Map<String,Object> stepConfig = new HashMap<>();
+        stepConfig.put("fileLocations", stepDetails);
+
+        Map<String,Object> opts = new HashMap<>();
+        opts.put("collections", Arrays.asList("concurrent-collection"));
+        Map<String,Object> opts1 = new HashMap<>();
+        opts1.put("collections", Arrays.asList("concurrent-collection1"));
+
+        fr.setMaxConcurrentJobs(2);
+        try {
+            RunFlowResponse resp = fr.runFlow("testFlow",steps, UUID.randomUUID().toString(), opts, stepConfig);
+            RunFlowResponse resp1 = fr.runFlow("testFlow",steps, UUID.randomUUID().toString(), opts1, stepConfig);
+            Assertions.assertTrue(fr.awaitCompletion(resp.getJobId(), 1, java.util.concurrent.TimeUnit.MINUTES));
+            fr.awaitCompletion();
+            Assertions.assertFalse(fr.isJobRunning());
+            Assertions.assertTrue(getDocCount(HubConfig.DEFAULT_STAGING_NAME, "concurrent-collection") == 1);
+            Assertions.assertTrue(getDocCount(HubConfig.DEFAULT_STAGING_NAME, "concurrent-collection1") == 1);
+            Assertions.assertTrue(JobStatus.FINISHED.toString().equalsIgnoreCase(resp.getJobStatus()));
+            Assertions.assertTrue(JobStatus.FINISHED.toString().equalsIgnoreCase(resp1.getJobStatus()));
+        } finally {
+            fr.setMaxConcurrentJobs(1);
+        }
+    }
+
+    @Test
+    public void testRunChainedSteps() {
+        List<String> steps = new ArrayList<>();
+        steps.add("1");
+        steps.add("6");
+        Map<String,Object> opts = new HashMap<>();
+        opts.put("chainSteps", true);
+        opts.put("overlapChainedSteps", true);
+
+        RunFlowResponse resp = fr.runFlow("testFlow", steps, UUID.randomUUID().toString(), opts);
+        fr.awaitCompletion();
+        Assertions.assertTrue(getDocCount(HubConfig.DEFAULT_STAGING_NAME, "xml-coll") == 1);
+        Assertions.assertTrue(getDocCount(HubConfig.DEFAULT_FINAL_NAME, "xml-map") == 1);
+        Assertions.assertTrue(JobStatus.FINISHED.toString().equalsIgnoreCase(resp.getJobStatus()));
+        Assertions.assertEquals(1, resp.getStepResponses().get("6").getSuccessfulEvents());
+    }
+
+    @Test
+    public void testRunFlowAsync() throws Exception {
+        List<String> steps = new ArrayList<>();
+        steps.add("1");
+        steps.add("6");
+        List<FlowProgress> progress = Collections.synchronizedList(new ArrayList<>());
+
+        RunFlowFuture future = fr.runFlowAsync("testFlow", steps, null, new HashMap<>(), new HashMap<>());
+        future.getProgress().subscribe(new Subscriber<FlowProgress>() {
+            @Override
+            public void onSubscribe(Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+            @Override
+            public void onNext(FlowProgress flowProgress) {
+                progress.add(flowProgress);
+            }
+            @Override
+            public void onError(Throwable t) {
+            }
+            @Override
+            public void onComplete() {
+            }
+        });
+        RunStepResponse ingestResp = future.getStepFuture("1").get(1, TimeUnit.MINUTES);
+        Assertions.assertTrue(ingestResp.isSuccess());
+        RunFlowResponse resp = future.get(1, TimeUnit.MINUTES);
+        Assertions.assertTrue(JobStatus.FINISHED.toString().equalsIgnoreCase(resp.getJobStatus()));
+        Assertions.assertTrue(future.getStepFuture("6").isDone());
+        Assertions.assertTrue(getDocCount(HubConfig.DEFAULT_FINAL_NAME, "xml-map") == 1);
+        Assertions.assertFalse(progress.isEmpty());
+        Assertions.assertEquals(JobStatus.FINISHED.toString(), progress.get(progress.size() - 1).getJobStatus());
+    }
+
+    @Test
+    public void testJobDocWriteBehind() {
+        List<String> steps = new ArrayList<>();
+        steps.add("1");
+        steps.add("6");
+        Map<String,Object> opts = new HashMap<>();
+        opts.put("jobDocWriteBehind", true);
+        opts.put("jobDocFlushInterval", 0);
+
+        RunFlowResponse resp = fr.runFlow("testFlow", steps, UUID.randomUUID().toString(), opts);
+        fr.awaitCompletion();
+        Assertions.assertTrue(JobStatus.FINISHED.toString().equalsIgnoreCase(resp.getJobStatus()));
+        Assertions.assertNotNull(resp.getStartTime());
+        Assertions.assertNotNull(resp.getEndTime());
+        Assertions.assertEquals("6", resp.getLastCompletedStep());
+        RunStepResponse stepResp = resp.getStepResponses().get("1");
+        Assertions.assertNotNull(stepResp.getStepStartTime());
+        Assertions.assertNotNull(stepResp.getStepEndTime());
+        Assertions.assertTrue(getDocCount(HubConfig.DEFAULT_FINAL_NAME, "xml-map") == 1);
+    }
 }
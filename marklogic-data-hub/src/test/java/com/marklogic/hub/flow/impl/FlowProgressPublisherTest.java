@@ -0,0 +1,132 @@
+package com.marklogic.hub.flow.impl;
+
+import com.marklogic.hub.flow.FlowProgress;
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FlowProgressPublisherTest {
+
+    @Test
+    public void deliversOnlyWhatIsRequested() {
+        FlowProgressPublisher publisher = new FlowProgressPublisher();
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        for (int i = 1; i <= 3; i++) {
+            publisher.publish(progress(i));
+        }
+        assertTrue(subscriber.received.isEmpty());
+
+        subscriber.subscription.request(2);
+        assertEquals(2, subscriber.received.size());
+        assertEquals(1, subscriber.received.get(0).getPercentComplete());
+
+        publisher.complete(null);
+        assertFalse(subscriber.completed, "Completion waits until the buffered change is requested");
+        subscriber.subscription.request(1);
+        assertEquals(3, subscriber.received.size());
+        assertTrue(subscriber.completed);
+        assertEquals(0, publisher.getSubscriberCount());
+    }
+
+    @Test
+    public void newSubscriberReceivesLatestChange() {
+        FlowProgressPublisher publisher = new FlowProgressPublisher();
+        publisher.publish(progress(10));
+        publisher.publish(progress(20));
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        subscriber.initialRequest = Long.MAX_VALUE;
+        publisher.subscribe(subscriber);
+        assertEquals(1, subscriber.received.size());
+        assertEquals(20, subscriber.received.get(0).getPercentComplete());
+
+        publisher.complete(null);
+        RecordingSubscriber late = new RecordingSubscriber();
+        late.initialRequest = 1;
+        publisher.subscribe(late);
+        assertEquals(20, late.received.get(0).getPercentComplete());
+        assertTrue(late.completed);
+    }
+
+    @Test
+    public void slowSubscriberDropsOldestChanges() {
+        FlowProgressPublisher publisher = new FlowProgressPublisher();
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        int published = FlowProgressPublisher.BUFFER_SIZE + 10;
+        for (int i = 1; i <= published; i++) {
+            publisher.publish(progress(i));
+        }
+        subscriber.subscription.request(Long.MAX_VALUE);
+        assertEquals(FlowProgressPublisher.BUFFER_SIZE, subscriber.received.size());
+        assertEquals(11, subscriber.received.get(0).getPercentComplete());
+        assertEquals(published, subscriber.received.get(subscriber.received.size() - 1).getPercentComplete());
+    }
+
+    @Test
+    public void failureAndCancellation() {
+        FlowProgressPublisher publisher = new FlowProgressPublisher();
+        RecordingSubscriber cancelled = new RecordingSubscriber();
+        RecordingSubscriber failed = new RecordingSubscriber();
+        failed.initialRequest = Long.MAX_VALUE;
+        publisher.subscribe(cancelled);
+        publisher.subscribe(failed);
+        cancelled.subscription.cancel();
+        publisher.publish(progress(50));
+        publisher.complete(new IllegalStateException("Flow runner failed"));
+
+        assertTrue(cancelled.received.isEmpty());
+        assertNull(cancelled.error);
+        assertEquals(1, failed.received.size());
+        assertEquals("Flow runner failed", failed.error.getMessage());
+    }
+
+    @Test
+    public void nonPositiveRequestIsAnError() {
+        FlowProgressPublisher publisher = new FlowProgressPublisher();
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(0);
+        assertTrue(subscriber.error instanceof IllegalArgumentException);
+    }
+
+    private static FlowProgress progress(int percentComplete) {
+        return new FlowProgress("job", null, "running", percentComplete, percentComplete, 0, "");
+    }
+
+    private static class RecordingSubscriber implements Subscriber<FlowProgress> {
+        Subscription subscription;
+        long initialRequest = 0;
+        final List<FlowProgress> received = new ArrayList<>();
+        boolean completed = false;
+        Throwable error;
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+            if (initialRequest > 0) {
+                subscription.request(initialRequest);
+            }
+        }
+
+        @Override
+        public void onNext(FlowProgress progress) {
+            received.add(progress);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.marklogic.hub.flow.impl;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.TextNode;
+import com.marklogic.hub.step.StepDefinition;
+import com.marklogic.hub.step.impl.Step;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StepGraphTest {
+
+    @Test
+    public void independentIngestionStepsHaveNoDependencies() {
+        FlowImpl flow = new FlowImpl();
+        flow.getSteps().put("1", ingestionStep("ingest-customers", "customer"));
+        flow.getSteps().put("2", ingestionStep("ingest-orders", "order"));
+        flow.getSteps().put("3", mappingStep("map-customers", "cts.collectionQuery('customer')"));
+
+        StepGraph graph = StepGraph.build(flow, Arrays.asList("1", "2", "3"), true);
+        assertTrue(graph.getDependencies("1").isEmpty());
+        assertTrue(graph.getDependencies("2").isEmpty());
+        assertEquals(Collections.singleton("1"), graph.getDependencies("3"), "The mapping reads what the first step ingests");
+    }
+
+    @Test
+    public void unknownSourceQueryDependsOnEveryEarlierStep() {
+        FlowImpl flow = new FlowImpl();
+        flow.getSteps().put("1", ingestionStep("ingest-customers", "customer"));
+        flow.getSteps().put("2", ingestionStep("ingest-orders", "order"));
+        flow.getSteps().put("3", mappingStep("map-customers", "cts.andQuery([])"));
+
+        StepGraph graph = StepGraph.build(flow, Arrays.asList("1", "2", "3"), true);
+        assertEquals(new HashSet<>(Arrays.asList("1", "2")), graph.getDependencies("3"));
+    }
+
+    @Test
+    public void withoutInferenceStepsRunInOrderUnlessTheyDeclareDependencies() {
+        FlowImpl flow = new FlowImpl();
+        flow.getSteps().put("1", ingestionStep("ingest-customers", "customer"));
+        flow.getSteps().put("2", ingestionStep("ingest-orders", "order"));
+        Step third = ingestionStep("ingest-products", "product");
+        third.setDependsOn(Collections.emptyList());
+        flow.getSteps().put("3", third);
+
+        assertTrue(StepGraph.declaresDependencies(flow, Arrays.asList("1", "2", "3")));
+        StepGraph graph = StepGraph.build(flow, Arrays.asList("1", "2", "3"), false);
+        assertEquals(Collections.singleton("1"), graph.getDependencies("2"));
+        assertTrue(graph.getDependencies("3").isEmpty());
+        assertTrue(graph.isReady("3", Collections.emptySet()));
+        assertFalse(graph.isReady("2", Collections.emptySet()));
+    }
+
+    @Test
+    public void stepsWritingTheSameCollectionsRunInOrder() {
+        FlowImpl flow = new FlowImpl();
+        flow.getSteps().put("1", ingestionStep("ingest-customers", "customer"));
+        flow.getSteps().put("2", ingestionStep("ingest-more-customers", "customer"));
+        Step otherDatabase = ingestionStep("ingest-customers-elsewhere", "customer");
+        otherDatabase.getOptions().put("targetDatabase", new TextNode("data-hub-FINAL"));
+        flow.getSteps().put("3", otherDatabase);
+
+        StepGraph graph = StepGraph.build(flow, Arrays.asList("1", "2", "3"), true);
+        assertEquals(Collections.singleton("1"), graph.getDependencies("2"), "Both write customer documents to staging");
+        assertTrue(graph.getDependencies("3").isEmpty(), "Writing to another database doesn't conflict");
+    }
+
+    @Test
+    public void masteringStepsMayWriteAnything() {
+        FlowImpl flow = new FlowImpl();
+        flow.getSteps().put("1", masteringStep("master-customers", "cts.collectionQuery('customer')"));
+        // Reads other collections of the mastering step's database, and writes to another database
+        Step mapping = mappingStep("map-orders", "cts.collectionQuery('order')");
+        mapping.getOptions().put("sourceDatabase", new TextNode("data-hub-FINAL"));
+        mapping.getOptions().put("targetDatabase", new TextNode("data-hub-STAGING"));
+        flow.getSteps().put("2", mapping);
+
+        StepGraph graph = StepGraph.build(flow, Arrays.asList("1", "2"), true);
+        assertEquals(Collections.singleton("1"), graph.getDependencies("2"));
+    }
+
+    @Test
+    public void cyclesAreRejected() {
+        FlowImpl flow = new FlowImpl();
+        Step first = ingestionStep("first", "a");
+        first.setDependsOn(Collections.singletonList("2"));
+        Step second = ingestionStep("second", "b");
+        second.setDependsOn(Collections.singletonList("1"));
+        flow.getSteps().put("1", first);
+        flow.getSteps().put("2", second);
+
+        assertThrows(IllegalArgumentException.class, () -> StepGraph.build(flow, Arrays.asList("1", "2"), false));
+    }
+
+    @Test
+    public void collectionsAreReadFromSimpleCollectionQueries() {
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), StepGraph.collectionsQueried("cts.collectionQuery(['a', \"b\"])"));
+        assertEquals(Collections.singleton("a"), StepGraph.collectionsQueried(" cts.collectionQuery('a') "));
+        assertNull(StepGraph.collectionsQueried("cts.collectionQuery(someVariable)"));
+        assertNull(StepGraph.collectionsQueried("cts.andQuery([cts.collectionQuery('a'), cts.wordQuery('b')])"));
+    }
+
+    private static Step ingestionStep(String name, String collection) {
+        Step step = new Step();
+        step.setName(name);
+        step.setStepDefinitionType(StepDefinition.StepDefinitionType.INGESTION);
+        Map<String, Object> options = new HashMap<>();
+        options.put("collections", JsonNodeFactory.instance.arrayNode().add(collection));
+        options.put("targetDatabase", new TextNode("data-hub-STAGING"));
+        step.setOptions(options);
+        return step;
+    }
+
+    private static Step masteringStep(String name, String sourceQuery) {
+        Step step = mappingStep(name, sourceQuery);
+        step.setStepDefinitionType(StepDefinition.StepDefinitionType.MASTERING);
+        step.getOptions().put("sourceDatabase", new TextNode("data-hub-FINAL"));
+        return step;
+    }
+
+    private static Step mappingStep(String name, String sourceQuery) {
+        Step step = new Step();
+        step.setName(name);
+        step.setStepDefinitionType(StepDefinition.StepDefinitionType.MAPPING);
+        Map<String, Object> options = new HashMap<>();
+        options.put("sourceQuery", new TextNode(sourceQuery));
+        options.put("sourceDatabase", new TextNode("data-hub-STAGING"));
+        options.put("targetDatabase", new TextNode("data-hub-FINAL"));
+        step.setOptions(options);
+        return step;
+    }
+}
@@ -0,0 +1,133 @@
+package com.marklogic.hub.impl;
+
+import com.marklogic.client.DatabaseClient;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DatabaseClientCacheTest {
+
+    private final Map<DatabaseClient, AtomicInteger> releases = new ConcurrentHashMap<>();
+    private final AtomicLong now = new AtomicLong();
+
+    @Test
+    public void sharesOneClientPerKey() {
+        DatabaseClientCache cache = new DatabaseClientCache(1000, now::get);
+        DatabaseClient staging = cache.acquire("staging", this::newClient);
+
+        assertSame(staging, cache.acquire("staging", this::newClient));
+        assertNotSame(staging, cache.acquire("final", this::newClient));
+        assertEquals(2, cache.size());
+        assertEquals(2, cache.getCreatedClients());
+        assertEquals(2, cache.getReferenceCount(staging));
+    }
+
+    @Test
+    public void releasesIdleClientsAfterTheTimeout() {
+        DatabaseClientCache cache = new DatabaseClientCache(1000, now::get);
+        DatabaseClient client = cache.acquire("staging", this::newClient);
+        cache.acquire("staging", this::newClient);
+
+        cache.release(client);
+        cache.release(client);
+        assertEquals(0, cache.getReferenceCount(client));
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(999));
+        assertEquals(0, cache.evictIdle());
+        assertEquals(0, releaseCount(client));
+
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+        assertEquals(1, cache.evictIdle());
+        assertEquals(1, releaseCount(client));
+        assertEquals(0, cache.size());
+        assertNotSame(client, cache.acquire("staging", this::newClient));
+    }
+
+    @Test
+    public void acquiringAgainKeepsAnIdleClient() {
+        DatabaseClientCache cache = new DatabaseClientCache(1000, now::get);
+        DatabaseClient client = cache.acquire("staging", this::newClient);
+        cache.release(client);
+
+        assertSame(client, cache.acquire("staging", this::newClient));
+        now.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        assertEquals(0, cache.evictIdle());
+        assertEquals(0, releaseCount(client));
+        assertEquals(1, cache.getCreatedClients());
+    }
+
+    @Test
+    public void zeroTimeoutReleasesOnLastRelease() {
+        DatabaseClientCache cache = new DatabaseClientCache(0, now::get);
+        DatabaseClient client = cache.acquire("staging", this::newClient);
+        cache.acquire("staging", this::newClient);
+
+        cache.release(client);
+        assertEquals(0, releaseCount(client));
+        cache.release(client);
+        assertEquals(1, releaseCount(client));
+        assertEquals(0, cache.size());
+
+        // The cache already released it, so a further release is ignored
+        cache.release(client);
+        assertEquals(1, releaseCount(client));
+    }
+
+    @Test
+    public void releasesClientsItDidNotCreate() {
+        DatabaseClientCache cache = new DatabaseClientCache(1000, now::get);
+        DatabaseClient other = newClient();
+
+        cache.release(other);
+        assertEquals(1, releaseCount(other));
+    }
+
+    @Test
+    public void clearReleasesClientsInUse() {
+        DatabaseClientCache cache = new DatabaseClientCache(1000, now::get);
+        DatabaseClient staging = cache.acquire("staging", this::newClient);
+        DatabaseClient jobs = cache.acquire("jobs", this::newClient);
+
+        cache.clear();
+        assertEquals(1, releaseCount(staging));
+        assertEquals(1, releaseCount(jobs));
+        assertEquals(0, cache.size());
+        assertEquals(2, cache.getEvictedClients());
+
+        // Holders handing their clients back after the clear don't release them a second time
+        cache.release(staging);
+        cache.release(jobs);
+        assertEquals(1, releaseCount(staging));
+        assertEquals(1, releaseCount(jobs));
+    }
+
+    private DatabaseClient newClient() {
+        AtomicInteger count = new AtomicInteger();
+        DatabaseClient client = (DatabaseClient) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[]{DatabaseClient.class}, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "release":
+                        count.incrementAndGet();
+                        return null;
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            });
+        releases.put(client, count);
+        return client;
+    }
+
+    private int releaseCount(DatabaseClient client) {
+        return releases.get(client).get();
+    }
+}
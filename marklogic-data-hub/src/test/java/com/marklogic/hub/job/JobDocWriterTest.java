@@ -0,0 +1,105 @@
+package com.marklogic.hub.job;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class JobDocWriterTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final List<List<ObjectNode>> requests = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> flowNames = Collections.synchronizedList(new ArrayList<>());
+
+    private final JobDocWriter.Sender sender = (jobId, flowName, updates) -> {
+        requests.add(updates);
+        flowNames.add(flowName);
+        return mapper.createObjectNode().put("jobId", jobId);
+    };
+
+    @Test
+    public void coalescesUpdatesUntilFlushed() {
+        JobDocWriter writer = new JobDocWriter();
+        writer.register("job1", 0);
+        writer.submit("job1", "myFlow", null, null, sender);
+        writer.submit("job1", null, "start:1", update("running step 1"), sender);
+        writer.submit("job1", null, "job", update("running"), sender);
+        writer.submit("job1", null, "job", update("finished"), sender);
+        assertTrue(requests.isEmpty(), "Nothing is sent until the job is flushed");
+
+        JsonNode jobDoc = writer.flush("job1");
+        assertEquals("job1", jobDoc.get("jobId").asText());
+        assertEquals(1, requests.size());
+        assertEquals("myFlow", flowNames.get(0));
+        List<ObjectNode> sent = requests.get(0);
+        assertEquals(2, sent.size());
+        assertEquals("running step 1", sent.get(0).get("status").asText());
+        assertEquals("finished", sent.get(1).get("status").asText(), "The newer job status replaces the older one");
+
+        assertEquals(3, writer.getSubmittedUpdates());
+        assertEquals(1, writer.getCoalescedUpdates());
+        assertEquals(1, writer.getRequests());
+        assertNull(writer.flush("job1"), "Nothing is left to send");
+    }
+
+    @Test
+    public void flushesAfterInterval() throws InterruptedException {
+        JobDocWriter writer = new JobDocWriter();
+        writer.register("job2", 50);
+        writer.submit("job2", null, "start:1", update("running step 1"), sender);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (requests.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, requests.size());
+        assertNull(writer.unregister("job2"));
+        assertFalse(writer.isRegistered("job2"));
+    }
+
+    @Test
+    public void failedUpdatesAreQueuedAgain() {
+        JobDocWriter writer = new JobDocWriter();
+        writer.register("job5", 0);
+        writer.submit("job5", "myFlow", null, null, (jobId, flowName, updates) -> {
+            throw new RuntimeException("jobs database unavailable");
+        });
+        writer.submit("job5", null, "start:1", update("running step 1"), (jobId, flowName, updates) -> {
+            throw new RuntimeException("jobs database unavailable");
+        });
+        writer.submit("job5", null, "job", update("running"), (jobId, flowName, updates) -> {
+            throw new RuntimeException("jobs database unavailable");
+        });
+        assertThrows(RuntimeException.class, () -> writer.flush("job5"));
+
+        writer.submit("job5", null, "job", update("finished"), sender);
+        writer.submit("job5", null, "end:1", update("completed step 1"), sender);
+        writer.flush("job5");
+        assertEquals(1, requests.size());
+        assertEquals("myFlow", flowNames.get(0), "The flow name is kept so that the job document can still be created");
+        List<ObjectNode> sent = requests.get(0);
+        assertEquals(3, sent.size());
+        assertEquals("running step 1", sent.get(0).get("status").asText());
+        assertEquals("finished", sent.get(1).get("status").asText(), "The newer job status replaces the failed one");
+        assertEquals("completed step 1", sent.get(2).get("status").asText());
+    }
+
+    @Test
+    public void registrationIsPerJob() {
+        JobDocWriter writer = new JobDocWriter();
+        writer.register("job3", 0);
+        assertTrue(writer.isRegistered("job3"));
+        assertFalse(writer.isRegistered("job4"));
+        assertFalse(writer.isRegistered(null));
+        assertThrows(IllegalArgumentException.class, () -> writer.register("job4", -1));
+    }
+
+    private ObjectNode update(String status) {
+        return mapper.createObjectNode().put("status", status);
+    }
+}
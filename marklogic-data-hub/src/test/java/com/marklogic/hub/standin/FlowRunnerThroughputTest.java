@@ -0,0 +1,83 @@
+package com.marklogic.hub.standin;
+
+import com.marklogic.hub.HubConfig;
+import com.marklogic.hub.job.JobStatus;
+import com.marklogic.hub.step.RunStepResponse;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs a flow against the MarkLogic stand-in, so it needs no MarkLogic. The defaults keep it quick enough for every
+ * build; pass larger values with -Pstandin.documents=100000 and the like to the testThroughput task for numbers
+ * worth comparing.
+ */
+public class FlowRunnerThroughputTest {
+
+    private static final int DOCUMENTS = Integer.getInteger("standin.documents", 500);
+    private static final int BATCH_SIZE = Integer.getInteger("standin.batchSize", 50);
+    private static final int THREAD_COUNT = Integer.getInteger("standin.threadCount", 4);
+    private static final long LATENCY_MILLIS = Long.getLong("standin.latencyMillis", 1);
+    private static final long PER_ITEM_LATENCY_MICROS = Long.getLong("standin.perItemLatencyMicros", 0);
+
+    private MarkLogicStandIn standIn;
+    private ThroughputHarness harness;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        standIn = new MarkLogicStandIn()
+            .withLatency(LATENCY_MILLIS * 1000, PER_ITEM_LATENCY_MICROS, TimeUnit.MICROSECONDS)
+            .start();
+        harness = new ThroughputHarness(standIn)
+            .withBatchSize(BATCH_SIZE)
+            .withThreadCount(THREAD_COUNT);
+    }
+
+    @AfterEach
+    public void teardown() throws Exception {
+        harness.close();
+        standIn.close();
+    }
+
+    @Test
+    public void ingestAndMap() throws Exception {
+        ThroughputHarness.ThroughputReport report = harness.start().run(DOCUMENTS);
+
+        assertEquals(JobStatus.FINISHED.toString(), report.getJobStatus());
+        assertEquals(2 * DOCUMENTS, report.getSuccessfulEvents());
+        assertEquals(0, report.getFailedEvents());
+        assertEquals(DOCUMENTS, standIn.getDocuments(HubConfig.DEFAULT_STAGING_NAME).size());
+        assertEquals(DOCUMENTS, standIn.getDocuments(HubConfig.DEFAULT_FINAL_NAME).size());
+        assertTrue(report.getDocumentsPerSecond() > 0);
+        assertTrue(standIn.getRequestCount(MarkLogicStandIn.RUN_FLOW) >= DOCUMENTS / BATCH_SIZE);
+    }
+
+    @Test
+    public void failedItemsAreCounted() throws Exception {
+        standIn.withItemFailureRate(0.1);
+        ThroughputHarness.ThroughputReport report = harness.start().run(DOCUMENTS);
+
+        assertEquals(JobStatus.FINISHED_WITH_ERRORS.toString(), report.getJobStatus());
+        RunStepResponse mapping = report.getSteps().get("2");
+        assertEquals(standIn.getFailedItems(), mapping.getFailedEvents());
+        assertEquals(DOCUMENTS, mapping.getSuccessfulEvents() + mapping.getFailedEvents());
+        assertEquals(mapping.getSuccessfulEvents(), standIn.getDocuments(HubConfig.DEFAULT_FINAL_NAME).size());
+    }
+
+    @Test
+    public void failedBatchesAreCounted() throws Exception {
+        standIn.withRequestFailureRate(0.2);
+        ThroughputHarness.ThroughputReport report = harness.start().run(DOCUMENTS);
+
+        assertEquals(JobStatus.FINISHED_WITH_ERRORS.toString(), report.getJobStatus());
+        assertTrue(standIn.getFailedRequests() > 0);
+        RunStepResponse ingest = report.getSteps().get("1");
+        assertEquals(DOCUMENTS, ingest.getSuccessfulEvents() + ingest.getFailedEvents());
+        assertEquals(ingest.getSuccessfulEvents(), standIn.getDocuments(HubConfig.DEFAULT_STAGING_NAME).size());
+    }
+}
@@ -0,0 +1,691 @@
+package com.marklogic.hub.standin;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An in-process stand-in for the MarkLogic REST endpoints that a flow run calls, so that the client side of a flow
+ * can be run and measured without a MarkLogic cluster.
+ *
+ * It answers:
+ * <ul>
+ *     <li>/v1/internal/forestinfo, with a configurable number of forests on the host the client connected to</li>
+ *     <li>/v1/internal/hubcollector5, with the URIs in the requested database, split across forests by hash</li>
+ *     <li>the ml:runFlow resource, which reports every URI in the batch as processed and adds it to the target
+ *     database</li>
+ *     <li>bulk writes to /v1/documents, as sent by a WriteBatcher with the ml:runIngest transform</li>
+ *     <li>the ml:jobs resource, which keeps job documents in memory and updates them as the real endpoint does</li>
+ * </ul>
+ *
+ * Documents are only tracked by URI. Every request can be delayed by a fixed latency plus a latency per item, and a
+ * fraction of batch requests can fail outright, or of the items in ml:runFlow batches can be reported as failed.
+ * Failures are spread evenly rather than drawn at random, so that a run with a failure rate always has failures. Job
+ * document requests are delayed but never fail, since a flow can't finish without them.
+ */
+public class MarkLogicStandIn implements AutoCloseable {
+
+    public static final String FORESTINFO = "/v1/internal/forestinfo";
+    public static final String COLLECTOR = "/v1/internal/hubcollector5";
+    public static final String RUN_FLOW = "/v1/resources/ml:runFlow";
+    public static final String DOCUMENTS = "/v1/documents";
+    public static final String JOBS = "/v1/resources/ml:jobs";
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final Logger logger = LoggerFactory.getLogger(MarkLogicStandIn.class);
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    private int forestCount = 3;
+    private long latencyMicros = 0;
+    private long perItemLatencyMicros = 0;
+    private double requestFailureRate = 0;
+    private double itemFailureRate = 0;
+
+    private final Map<String, NavigableSet<String>> databases = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> databaseTimestamps = new ConcurrentHashMap<>();
+    private final Map<String, ObjectNode> jobs = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> requests = new ConcurrentHashMap<>();
+    private final AtomicLong batchRequests = new AtomicLong();
+    private final AtomicLong batchItems = new AtomicLong();
+    private final AtomicLong failedRequests = new AtomicLong();
+    private final AtomicLong failedItems = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    /**
+     * @param forestCount the number of forests in every database; collecting by forest needs more than one
+     */
+    public MarkLogicStandIn withForestCount(int forestCount) {
+        if (forestCount < 1) {
+            throw new IllegalArgumentException("forestCount must be at least 1");
+        }
+        this.forestCount = forestCount;
+        return this;
+    }
+
+    /**
+     * @param latency added to every request
+     * @param perItemLatency added for every URI or document in a batch, and every URI collected
+     */
+    public MarkLogicStandIn withLatency(long latency, long perItemLatency, TimeUnit unit) {
+        this.latencyMicros = unit.toMicros(latency);
+        this.perItemLatencyMicros = unit.toMicros(perItemLatency);
+        return this;
+    }
+
+    /**
+     * @param requestFailureRate the fraction of ml:runFlow and document write requests that fail with a 500 error
+     */
+    public MarkLogicStandIn withRequestFailureRate(double requestFailureRate) {
+        this.requestFailureRate = requestFailureRate;
+        return this;
+    }
+
+    /**
+     * @param itemFailureRate the fraction of URIs in ml:runFlow batches that are reported as failed
+     */
+    public MarkLogicStandIn withItemFailureRate(double itemFailureRate) {
+        this.itemFailureRate = itemFailureRate;
+        return this;
+    }
+
+    /**
+     * Starts listening on an ephemeral port of the loopback interface.
+     */
+    public MarkLogicStandIn start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        AtomicInteger threadNumber = new AtomicInteger();
+        executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "marklogic-stand-in-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+        logger.info("MarkLogic stand-in listening on port " + getPort());
+        return this;
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Adds documents to a database, such as the source documents of a mapping step.
+     */
+    public void addDocuments(String database, Collection<String> uris) {
+        database(database).addAll(uris);
+        databaseTimestamps.computeIfAbsent(database, name -> new AtomicLong()).incrementAndGet();
+    }
+
+    /**
+     * @return the URIs of the documents written to the database, in order
+     */
+    public NavigableSet<String> getDocuments(String database) {
+        return Collections.unmodifiableNavigableSet(database(database));
+    }
+
+    public JsonNode getJobDocument(String jobId) {
+        return jobs.get(jobId);
+    }
+
+    /**
+     * @param path one of the endpoint paths, such as {@link #RUN_FLOW}
+     */
+    public long getRequestCount(String path) {
+        AtomicLong count = requests.get(path);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * @return the number of requests made to each endpoint
+     */
+    public Map<String, Long> getRequestCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        requests.forEach((path, count) -> counts.put(path, count.get()));
+        return counts;
+    }
+
+    public long getFailedRequests() {
+        return failedRequests.get();
+    }
+
+    public long getFailedItems() {
+        return failedItems.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    private NavigableSet<String> database(String name) {
+        return databases.computeIfAbsent(name, key -> new ConcurrentSkipListSet<>());
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            Map<String, List<String>> params = parseParameters(exchange.getRequestURI().getRawQuery());
+            byte[] body = readFully(exchange.getRequestBody());
+            bytesReceived.addAndGet(body.length);
+            requests.computeIfAbsent(path, key -> new AtomicLong()).incrementAndGet();
+
+            switch (path) {
+                case FORESTINFO:
+                    delay(0);
+                    sendJson(exchange, 200, forestInfo(exchange, first(params, "database")));
+                    break;
+                case COLLECTOR:
+                    collect(exchange, params);
+                    break;
+                case RUN_FLOW:
+                    runFlow(exchange, params, body);
+                    break;
+                case DOCUMENTS:
+                    writeDocuments(exchange, params, body);
+                    break;
+                case JOBS:
+                    delay(0);
+                    if ("GET".equals(exchange.getRequestMethod())) {
+                        getJobs(exchange, params);
+                    } else {
+                        postJobs(exchange, params, body);
+                    }
+                    break;
+                default:
+                    sendError(exchange, 404, "Not Found", "RESTAPI-NOSUCHENDPOINT", "The stand-in does not implement " + path);
+            }
+        } catch (Exception e) {
+            logger.error("Stand-in request failed: " + e.getMessage(), e);
+            sendError(exchange, 500, "Internal Server Error", "RESTAPI-SRVEXERR", String.valueOf(e.getMessage()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private ArrayNode forestInfo(HttpExchange exchange, String database) {
+        // The host the client connected to, so that the batchers keep using the same client
+        String host = exchange.getRequestHeaders().getFirst("Host");
+        host = host != null && host.contains(":") ? host.substring(0, host.lastIndexOf(':')) : host;
+        ArrayNode forests = mapper.createArrayNode();
+        for (int i = 0; i < forestCount; i++) {
+            ObjectNode forest = forests.addObject();
+            forest.put("id", String.valueOf(1000 + i));
+            forest.put("name", database + "-" + (i + 1));
+            forest.put("database", database);
+            forest.put("host", host);
+            forest.put("updatesAllowed", "all");
+        }
+        return forests;
+    }
+
+    private void collect(HttpExchange exchange, Map<String, List<String>> params) throws IOException {
+        String database = first(params, "database");
+        NavigableSet<String> uris = database(database);
+        if ("true".equals(first(params, "fingerprint-only"))) {
+            delay(0);
+            long timestamp = databaseTimestamps.computeIfAbsent(database, name -> new AtomicLong()).get();
+            sendText(exchange, timestamp + "\n" + database + ":" + first(params, "step") + ":" + first(params, "options") + "\n");
+            return;
+        }
+
+        String forestId = first(params, "forest-id");
+        int forest = forestId != null ? Integer.parseInt(forestId) - 1000 : -1;
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(200, 0);
+        long count = 0;
+        try (OutputStream out = new CountingOutputStream(exchange.getResponseBody(), bytesSent)) {
+            for (String uri : uris) {
+                if (forest < 0 || Math.floorMod(uri.hashCode(), forestCount) == forest) {
+                    out.write(uri.getBytes(StandardCharsets.UTF_8));
+                    out.write('\n');
+                    count++;
+                }
+            }
+        }
+        delay(count);
+    }
+
+    private void runFlow(HttpExchange exchange, Map<String, List<String>> params, byte[] body) throws IOException {
+        JsonNode request = body.length > 0 ? mapper.readTree(body) : mapper.createObjectNode();
+        JsonNode uris = request.path("uris");
+        long started = System.nanoTime();
+        delay(uris.size());
+        if (injectRequestFailure()) {
+            sendError(exchange, 500, "Internal Server Error", "RESTAPI-SRVEXERR", "Injected ml:runFlow failure");
+            return;
+        }
+
+        boolean countsOnly = "counts".equals(first(params, "response-mode"));
+        ObjectNode result = mapper.createObjectNode();
+        result.put("jobId", first(params, "job-id"));
+        result.put("totalCount", uris.size());
+        ArrayNode completed = mapper.createArrayNode();
+        ArrayNode failed = mapper.createArrayNode();
+        ArrayNode errors = mapper.createArrayNode();
+        List<String> written = new ArrayList<>(uris.size());
+        for (JsonNode uri : uris) {
+            if (isNthOf(batchItems.incrementAndGet(), itemFailureRate)) {
+                failed.add(uri.asText());
+                ObjectNode error = errors.addObject();
+                error.put("uri", uri.asText());
+                error.put("message", "Injected item failure");
+                failedItems.incrementAndGet();
+            } else {
+                completed.add(uri.asText());
+                written.add(uri.asText());
+            }
+        }
+        addDocuments(first(params, "target-database"), written);
+        result.put("errorCount", failed.size());
+        if (!countsOnly) {
+            result.set("completedItems", completed);
+        }
+        result.set("failedItems", failed);
+        result.set("errors", errors);
+        result.put("serverElapsedMillis", (System.nanoTime() - started) / 1e6);
+        sendMultipart(exchange, Collections.singletonList(result));
+    }
+
+    /**
+     * Bulk writes are multipart bodies with a content part, and optionally a metadata part, per document; the
+     * document URI is the filename of its parts.
+     */
+    private void writeDocuments(HttpExchange exchange, Map<String, List<String>> params, byte[] body) throws IOException {
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        if (!"POST".equals(exchange.getRequestMethod()) || contentType == null || !contentType.startsWith("multipart/")) {
+            sendError(exchange, 400, "Bad Request", "RESTAPI-INVALIDREQ", "The stand-in only implements bulk document writes");
+            return;
+        }
+        List<String> uris = documentUris(body, boundaryOf(contentType));
+        delay(uris.size());
+        if (injectRequestFailure()) {
+            sendError(exchange, 500, "Internal Server Error", "RESTAPI-SRVEXERR", "Injected document write failure");
+            return;
+        }
+        addDocuments(first(params, "database"), uris);
+
+        ObjectNode result = mapper.createObjectNode();
+        ArrayNode documents = result.putArray("documents");
+        for (String uri : uris) {
+            ObjectNode document = documents.addObject();
+            document.put("uri", uri);
+            document.put("mime-type", "application/json");
+            document.putArray("category").add("metadata").add("content");
+        }
+        sendJson(exchange, 200, result);
+    }
+
+    private void getJobs(HttpExchange exchange, Map<String, List<String>> params) throws IOException {
+        String jobId = first(params, "jobid");
+        String flowName = first(params, "flow-name");
+        if (jobId != null) {
+            ObjectNode jobDoc = jobs.get(jobId);
+            if (jobDoc == null) {
+                sendNoContent(exchange);
+            } else {
+                synchronized (jobDoc) {
+                    sendMultipart(exchange, Collections.singletonList(jobDoc.deepCopy()));
+                }
+            }
+            return;
+        }
+        ArrayNode matches = mapper.createArrayNode();
+        for (ObjectNode jobDoc : jobs.values()) {
+            synchronized (jobDoc) {
+                if (flowName == null || flowName.equals(jobDoc.path("job").path("flow").asText())) {
+                    matches.add(jobDoc.deepCopy());
+                }
+            }
+        }
+        sendMultipart(exchange, Collections.singletonList(matches));
+    }
+
+    /**
+     * Creates and updates job documents the way the ml:jobs endpoint does, either from the request parameters or
+     * from a body of queued updates.
+     */
+    private void postJobs(HttpExchange exchange, Map<String, List<String>> params, byte[] body) throws IOException {
+        JsonNode request = body.length > 0 ? mapper.readTree(body) : mapper.createObjectNode();
+        ObjectNode jobDoc;
+        if (request.has("updates")) {
+            String jobId = request.path("jobid").asText();
+            jobDoc = jobs.computeIfAbsent(jobId, id -> newJob(id, request.path("flow-name").asText(null)));
+            synchronized (jobDoc) {
+                for (JsonNode update : request.get("updates")) {
+                    applyUpdate(jobDoc, (ObjectNode) update.deepCopy(), update.has("time") ? update.get("time").asText() : now());
+                }
+            }
+        } else {
+            String jobId = first(params, "jobid");
+            jobDoc = jobs.get(jobId);
+            if (jobDoc == null) {
+                String flowName = first(params, "flow-name");
+                if (jobId == null || flowName == null) {
+                    sendError(exchange, 400, "Bad Request", "RESTAPI-SRVEXERR", "Incorrect options");
+                    return;
+                }
+                jobs.putIfAbsent(jobId, newJob(jobId, flowName));
+                sendNoContent(exchange);
+                return;
+            }
+            synchronized (jobDoc) {
+                ObjectNode update = mapper.createObjectNode();
+                update.put("status", first(params, "status"));
+                update.put("step", first(params, "step"));
+                update.put("lastCompleted", first(params, "lastCompleted"));
+                if (first(params, "stepResponse") != null) {
+                    update.set("stepResponse", mapper.readTree(first(params, "stepResponse")));
+                }
+                if (first(params, "timeline") != null) {
+                    update.set("timeline", mapper.readTree(first(params, "timeline")));
+                }
+                String step = first(params, "step");
+                update.put("phase", step != null && jobDoc.path("job").path("stepResponses").has(step) ? "end" : "start");
+                applyUpdate(jobDoc, update, now());
+            }
+        }
+        synchronized (jobDoc) {
+            sendMultipart(exchange, Collections.singletonList(jobDoc.deepCopy()));
+        }
+    }
+
+    private static ObjectNode newJob(String jobId, String flowName) {
+        ObjectNode jobDoc = mapper.createObjectNode();
+        ObjectNode job = jobDoc.putObject("job");
+        job.put("jobId", jobId);
+        job.put("flow", flowName);
+        job.put("user", "stand-in");
+        job.put("lastAttemptedStep", 0);
+        job.put("lastCompletedStep", 0);
+        job.put("jobStatus", "started");
+        job.put("timeStarted", now());
+        job.put("timeEnded", "N/A");
+        job.putObject("stepResponses");
+        return jobDoc;
+    }
+
+    private static void applyUpdate(ObjectNode jobDoc, ObjectNode update, String time) {
+        ObjectNode job = (ObjectNode) jobDoc.get("job");
+        String status = update.path("status").asText(null);
+        String step = update.path("step").asText(null);
+        job.put("jobStatus", status);
+        if (update.hasNonNull("timeline")) {
+            job.set("timeline", update.get("timeline"));
+        }
+        if ("finished".equals(status) || "finished_with_errors".equals(status) || "failed".equals(status) ||
+            "canceled".equals(status) || "stop-on-error".equals(status)) {
+            job.put("timeEnded", time);
+            return;
+        }
+        job.put("lastAttemptedStep", step);
+        if (update.hasNonNull("lastCompleted")) {
+            job.put("lastCompletedStep", update.get("lastCompleted").asText());
+        }
+        ObjectNode stepResponses = (ObjectNode) job.get("stepResponses");
+        if ("start".equals(update.path("phase").asText())) {
+            ObjectNode stepResponse = stepResponses.putObject(step);
+            stepResponse.put("stepStartTime", time);
+            stepResponse.put("status", "running step " + step);
+        } else {
+            String startTime = stepResponses.path(step).path("stepStartTime").asText(time);
+            ObjectNode stepResponse = update.hasNonNull("stepResponse") ? (ObjectNode) update.get("stepResponse") : mapper.createObjectNode();
+            stepResponse.put("stepStartTime", startTime);
+            stepResponse.put("stepEndTime", time);
+            stepResponses.set(step, stepResponse);
+        }
+    }
+
+    private boolean injectRequestFailure() {
+        if (isNthOf(batchRequests.incrementAndGet(), requestFailureRate)) {
+            failedRequests.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true for a {@code rate} fraction of the counts, evenly spaced; a rate of 0.25 is true for every fourth
+     */
+    static boolean isNthOf(long count, double rate) {
+        return rate > 0 && Math.floor(count * rate) > Math.floor((count - 1) * rate);
+    }
+
+    private void delay(long items) {
+        long micros = latencyMicros + items * perItemLatencyMicros;
+        if (micros > 0) {
+            long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(micros);
+            long remaining;
+            while ((remaining = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(remaining);
+            }
+        }
+    }
+
+    private void sendJson(HttpExchange exchange, int status, JsonNode json) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        send(exchange, status, mapper.writeValueAsBytes(json));
+    }
+
+    private void sendText(HttpExchange exchange, String text) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        send(exchange, 200, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Resource extensions return their results as a multipart body with a part per result.
+     */
+    private void sendMultipart(HttpExchange exchange, List<? extends JsonNode> parts) throws IOException {
+        String boundary = "ML_BOUNDARY_" + UUID.randomUUID().toString().replace("-", "");
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (JsonNode part : parts) {
+            byte[] content = mapper.writeValueAsBytes(part);
+            body.write(("--" + boundary + "\r\n" +
+                "Content-Type: application/json\r\n" +
+                "Content-Length: " + content.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            body.write(content);
+            body.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+        }
+        body.write(("--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        exchange.getResponseHeaders().set("Content-Type", "multipart/mixed; boundary=" + boundary);
+        send(exchange, 200, body.toByteArray());
+    }
+
+    private void sendNoContent(HttpExchange exchange) throws IOException {
+        exchange.sendResponseHeaders(204, -1);
+    }
+
+    private void sendError(HttpExchange exchange, int status, String statusText, String messageCode, String message) throws IOException {
+        ObjectNode error = mapper.createObjectNode();
+        ObjectNode errorResponse = error.putObject("errorResponse");
+        errorResponse.put("statusCode", status);
+        errorResponse.put("status", statusText);
+        errorResponse.put("messageCode", messageCode);
+        errorResponse.put("message", message);
+        sendJson(exchange, status, error);
+    }
+
+    private void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+        bytesSent.addAndGet(body.length);
+    }
+
+    static String boundaryOf(String contentType) {
+        for (String parameter : contentType.split(";")) {
+            parameter = parameter.trim();
+            if (parameter.startsWith("boundary=")) {
+                return unquote(parameter.substring("boundary=".length()));
+            }
+        }
+        throw new IllegalArgumentException("No boundary in " + contentType);
+    }
+
+    /**
+     * @return the URI of each document with a content part, in the order they were sent
+     */
+    static List<String> documentUris(byte[] body, String boundary) {
+        // ISO-8859-1 maps every byte to a char, so binary content doesn't get in the way of finding the headers
+        String text = new String(body, StandardCharsets.ISO_8859_1);
+        String delimiter = "--" + boundary;
+        List<String> uris = new ArrayList<>();
+        int start = text.indexOf(delimiter);
+        while (start >= 0) {
+            int headersStart = start + delimiter.length();
+            if (text.startsWith("--", headersStart)) {
+                break;
+            }
+            int headersEnd = text.indexOf("\r\n\r\n", headersStart);
+            if (headersEnd < 0) {
+                break;
+            }
+            String disposition = null;
+            for (String header : text.substring(headersStart, headersEnd).split("\r\n")) {
+                if (header.toLowerCase().startsWith("content-disposition:")) {
+                    disposition = header.substring("content-disposition:".length()).trim();
+                }
+            }
+            if (disposition != null && !disposition.contains("category=metadata")) {
+                String uri = dispositionParameter(disposition, "filename");
+                if (uri != null) {
+                    uris.add(new String(uri.getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8));
+                }
+            }
+            start = text.indexOf(delimiter, headersEnd);
+        }
+        return uris;
+    }
+
+    private static String dispositionParameter(String disposition, String name) {
+        for (String parameter : disposition.split(";")) {
+            parameter = parameter.trim();
+            if (parameter.startsWith(name + "=")) {
+                return unquote(parameter.substring(name.length() + 1));
+            }
+        }
+        return null;
+    }
+
+    private static String unquote(String value) {
+        return value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"") ? value.substring(1, value.length() - 1) : value;
+    }
+
+    /**
+     * Resource extension parameters are prefixed with "rs:" and transform parameters with "trans:"; both prefixes
+     * are dropped, as the endpoints see them.
+     */
+    static Map<String, List<String>> parseParameters(String rawQuery) {
+        Map<String, List<String>> params = new LinkedHashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return params;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            String name = decode(equals < 0 ? pair : pair.substring(0, equals));
+            String value = equals < 0 ? "" : decode(pair.substring(equals + 1));
+            if (name.startsWith("rs:")) {
+                name = name.substring(3);
+            } else if (name.startsWith("trans:")) {
+                name = name.substring(6);
+            }
+            params.computeIfAbsent(name, key -> new ArrayList<>()).add(value);
+        }
+        return params;
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String first(Map<String, List<String>> params, String name) {
+        List<String> values = params.get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    private static String now() {
+        return Instant.now().toString();
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static class CountingOutputStream extends java.io.FilterOutputStream {
+        private final AtomicLong count;
+
+        CountingOutputStream(OutputStream out, AtomicLong count) {
+            super(out);
+            this.count = count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count.incrementAndGet();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count.addAndGet(len);
+        }
+    }
+}
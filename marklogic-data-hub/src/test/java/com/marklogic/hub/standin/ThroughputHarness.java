@@ -0,0 +1,354 @@
+package com.marklogic.hub.standin;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.marklogic.hub.ApplicationConfig;
+import com.marklogic.hub.HubConfig;
+import com.marklogic.hub.flow.RunFlowResponse;
+import com.marklogic.hub.flow.impl.FlowRunnerImpl;
+import com.marklogic.hub.impl.HubConfigImpl;
+import com.marklogic.hub.step.RunStepResponse;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs an ingestion and mapping flow end to end through {@link FlowRunnerImpl} against a {@link MarkLogicStandIn},
+ * and reports how fast the client side got through it and what it cost the JVM.
+ *
+ * The harness starts its own Spring context and project, so that the hub configuration it points at the stand-in
+ * isn't shared with tests that expect a real MarkLogic. Everything the flow run does in this JVM is measured,
+ * including the stand-in itself, so the numbers are for comparing changes to the client rather than for sizing a
+ * cluster.
+ */
+public class ThroughputHarness implements AutoCloseable {
+
+    public static final String FLOW_NAME = "throughputFlow";
+    public static final String INGEST_COLLECTION = "throughput-ingest";
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final Logger logger = LoggerFactory.getLogger(ThroughputHarness.class);
+
+    private final MarkLogicStandIn standIn;
+    private final Path projectDir;
+    private ConfigurableApplicationContext context;
+    private HubConfigImpl hubConfig;
+    private FlowRunnerImpl flowRunner;
+
+    private int batchSize = 100;
+    private int threadCount = 4;
+    private long timeoutSeconds = 300;
+
+    public ThroughputHarness(MarkLogicStandIn standIn) throws IOException {
+        this.standIn = standIn;
+        this.projectDir = Files.createTempDirectory("throughput-harness");
+    }
+
+    public ThroughputHarness withBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    public ThroughputHarness withThreadCount(int threadCount) {
+        this.threadCount = threadCount;
+        return this;
+    }
+
+    public ThroughputHarness withTimeout(long timeout, TimeUnit unit) {
+        this.timeoutSeconds = unit.toSeconds(timeout);
+        return this;
+    }
+
+    /**
+     * Starts the Spring context and creates a project whose app servers are all the stand-in.
+     */
+    public ThroughputHarness start() {
+        SpringApplication app = new SpringApplication(ApplicationConfig.class);
+        app.setWebApplicationType(WebApplicationType.NONE);
+        context = app.run();
+        hubConfig = context.getBean(HubConfigImpl.class);
+        flowRunner = context.getBean(FlowRunnerImpl.class);
+
+        hubConfig.createProject(projectDir.toString());
+        String port = String.valueOf(standIn.getPort());
+        Properties properties = new Properties();
+        properties.setProperty("mlHost", "localhost");
+        properties.setProperty("mlUsername", "stand-in");
+        properties.setProperty("mlPassword", "stand-in");
+        for (String server : new String[]{"Staging", "Final", "Job"}) {
+            properties.setProperty("ml" + server + "Port", port);
+            properties.setProperty("ml" + server + "Auth", "basic");
+        }
+        hubConfig.refreshProject(properties, false);
+        return this;
+    }
+
+    /**
+     * Ingests the given number of generated JSON files into staging, then maps them into final.
+     */
+    public ThroughputReport run(int documents) throws IOException, InterruptedException {
+        Path inputDir = writeInputFiles(documents);
+        writeFlow(inputDir);
+
+        GcListener gcListener = new GcListener();
+        List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+        long gcCountBefore = 0, gcTimeBefore = 0;
+        for (GarbageCollectorMXBean collector : collectors) {
+            gcCountBefore += Math.max(0, collector.getCollectionCount());
+            gcTimeBefore += Math.max(0, collector.getCollectionTime());
+        }
+        long heapBefore = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        gcListener.register(collectors);
+
+        long started = System.nanoTime();
+        String jobId;
+        try {
+            jobId = flowRunner.runFlow(FLOW_NAME).getJobId();
+            if (!flowRunner.awaitCompletion(jobId, timeoutSeconds, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("Job " + jobId + " didn't finish within " + timeoutSeconds + " seconds");
+            }
+        } finally {
+            gcListener.unregister(collectors);
+        }
+        long elapsedNanos = System.nanoTime() - started;
+
+        long heapAfter = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        long gcCount = -gcCountBefore, gcTime = -gcTimeBefore;
+        for (GarbageCollectorMXBean collector : collectors) {
+            gcCount += Math.max(0, collector.getCollectionCount());
+            gcTime += Math.max(0, collector.getCollectionTime());
+        }
+
+        RunFlowResponse response = flowRunner.getJobResponseById(jobId);
+        Map<String, RunStepResponse> steps = response.getStepResponses() != null ? response.getStepResponses() : new LinkedHashMap<>();
+        // Heap use only goes down when a collection frees memory, so what was allocated is the growth plus what was freed
+        long allocatedBytes = Math.max(0, heapAfter - heapBefore + gcListener.freedBytes.get());
+        ThroughputReport report = new ThroughputReport(response.getJobStatus(), documents, steps, elapsedNanos,
+            allocatedBytes, gcCount, gcTime, standIn.getRequestCounts());
+        logger.info(report.toString());
+        return report;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (context != null) {
+            context.close();
+        }
+        FileUtils.deleteDirectory(projectDir.toFile());
+    }
+
+    private Path writeInputFiles(int documents) throws IOException {
+        Path inputDir = projectDir.resolve("input");
+        FileUtils.deleteDirectory(inputDir.toFile());
+        Files.createDirectories(inputDir);
+        Random random = new Random(documents);
+        for (int i = 0; i < documents; i++) {
+            ObjectNode customer = mapper.createObjectNode();
+            customer.put("customerId", i);
+            customer.put("name", "Customer " + Long.toString(random.nextLong() & Long.MAX_VALUE, 36));
+            customer.put("email", "customer" + i + "@example.org");
+            customer.put("since", 2000 + random.nextInt(20) + "-0" + (1 + random.nextInt(9)) + "-1" + random.nextInt(10));
+            customer.put("balance", random.nextInt(1000000) / 100.0);
+            Files.write(inputDir.resolve("customer-" + i + ".json"), mapper.writeValueAsBytes(customer));
+        }
+        return inputDir;
+    }
+
+    private void writeFlow(Path inputDir) throws IOException {
+        ObjectNode flow = mapper.createObjectNode();
+        flow.put("name", FLOW_NAME);
+        flow.put("batchSize", batchSize);
+        flow.put("threadCount", threadCount);
+        flow.put("stopOnError", false);
+        flow.putObject("options");
+        ObjectNode steps = flow.putObject("steps");
+
+        ObjectNode ingest = steps.putObject("1");
+        ingest.put("name", "throughputIngest");
+        ObjectNode ingestOptions = ingest.putObject("options");
+        ingestOptions.putArray("collections").add(INGEST_COLLECTION);
+        ingestOptions.put("outputFormat", "json");
+        ingestOptions.put("targetDatabase", HubConfig.DEFAULT_STAGING_NAME);
+        ingest.put("stepDefinitionName", "default-ingestion");
+        ingest.put("stepDefinitionType", "INGESTION");
+        ObjectNode fileLocations = ingest.putObject("fileLocations");
+        fileLocations.put("inputFilePath", inputDir.toAbsolutePath().toString());
+        fileLocations.put("inputFileType", "json");
+        fileLocations.put("outputURIReplacement", "");
+
+        ObjectNode mapping = steps.putObject("2");
+        mapping.put("name", "throughputMapping");
+        ObjectNode mappingOptions = mapping.putObject("options");
+        mappingOptions.put("sourceQuery", "cts.collectionQuery([\"" + INGEST_COLLECTION + "\"])");
+        mappingOptions.put("sourceDatabase", HubConfig.DEFAULT_STAGING_NAME);
+        mappingOptions.put("targetDatabase", HubConfig.DEFAULT_FINAL_NAME);
+        mappingOptions.putArray("collections").add("throughput-mapping");
+        mapping.put("stepDefinitionName", "entity-services-mapping");
+        mapping.put("stepDefinitionType", "MAPPING");
+
+        Files.write(hubConfig.getFlowsDir().resolve(FLOW_NAME + ".flow.json"),
+            mapper.writerWithDefaultPrettyPrinter().writeValueAsString(flow).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Adds up the memory that each garbage collection freed, across all heap pools.
+     */
+    private static class GcListener implements NotificationListener {
+        final AtomicLong freedBytes = new AtomicLong();
+
+        void register(List<GarbageCollectorMXBean> collectors) {
+            for (GarbageCollectorMXBean collector : collectors) {
+                if (collector instanceof NotificationEmitter) {
+                    ((NotificationEmitter) collector).addNotificationListener(this, null, null);
+                }
+            }
+        }
+
+        void unregister(List<GarbageCollectorMXBean> collectors) {
+            for (GarbageCollectorMXBean collector : collectors) {
+                if (collector instanceof NotificationEmitter) {
+                    try {
+                        ((NotificationEmitter) collector).removeNotificationListener(this);
+                    } catch (Exception e) {
+                        logger.debug("Unable to remove GC listener: " + e.getMessage());
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void handleNotification(Notification notification, Object handback) {
+            if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                return;
+            }
+            GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+            long freed = 0;
+            for (Map.Entry<String, MemoryUsage> before : info.getGcInfo().getMemoryUsageBeforeGc().entrySet()) {
+                MemoryUsage after = info.getGcInfo().getMemoryUsageAfterGc().get(before.getKey());
+                if (after != null) {
+                    freed += before.getValue().getUsed() - after.getUsed();
+                }
+            }
+            if (freed > 0) {
+                freedBytes.addAndGet(freed);
+            }
+        }
+    }
+
+    /**
+     * What one run of the flow processed and cost.
+     */
+    public static class ThroughputReport {
+        private final String jobStatus;
+        private final int documents;
+        private final Map<String, RunStepResponse> steps;
+        private final long elapsedNanos;
+        private final long allocatedBytes;
+        private final long gcCount;
+        private final long gcMillis;
+        private final Map<String, Long> requestCounts;
+
+        ThroughputReport(String jobStatus, int documents, Map<String, RunStepResponse> steps, long elapsedNanos,
+                         long allocatedBytes, long gcCount, long gcMillis, Map<String, Long> requestCounts) {
+            this.jobStatus = jobStatus;
+            this.documents = documents;
+            this.steps = steps;
+            this.elapsedNanos = elapsedNanos;
+            this.allocatedBytes = allocatedBytes;
+            this.gcCount = gcCount;
+            this.gcMillis = gcMillis;
+            this.requestCounts = requestCounts;
+        }
+
+        public String getJobStatus() {
+            return jobStatus;
+        }
+
+        public Map<String, RunStepResponse> getSteps() {
+            return steps;
+        }
+
+        /**
+         * @return the documents that every step processed successfully, added up
+         */
+        public long getSuccessfulEvents() {
+            return steps.values().stream().mapToLong(RunStepResponse::getSuccessfulEvents).sum();
+        }
+
+        public long getFailedEvents() {
+            return steps.values().stream().mapToLong(RunStepResponse::getFailedEvents).sum();
+        }
+
+        public double getElapsedSeconds() {
+            return elapsedNanos / 1e9;
+        }
+
+        public double getDocumentsPerSecond() {
+            return getSuccessfulEvents() / getElapsedSeconds();
+        }
+
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        public double getAllocatedMegabytesPerSecond() {
+            return allocatedBytes / (1024.0 * 1024.0) / getElapsedSeconds();
+        }
+
+        /**
+         * @return the bytes allocated per document that a step processed successfully
+         */
+        public long getAllocatedBytesPerDocument() {
+            long events = getSuccessfulEvents();
+            return events == 0 ? 0 : allocatedBytes / events;
+        }
+
+        public long getGcCount() {
+            return gcCount;
+        }
+
+        public long getGcMillis() {
+            return gcMillis;
+        }
+
+        public Map<String, Long> getRequestCounts() {
+            return requestCounts;
+        }
+
+        @Override
+        public String toString() {
+            List<String> stepCounts = new ArrayList<>();
+            steps.forEach((step, response) -> stepCounts.add(step + ": " + response.getSuccessfulEvents() + " ok, " +
+                response.getFailedEvents() + " failed"));
+            return String.format("Flow run of %d documents %s in %.2fs: %.0f docs/sec; allocated %.1f MB (%.1f MB/sec, %d bytes/doc); " +
+                    "%d GCs taking %dms (%.1f%% of the run); steps %s; requests %s",
+                documents, jobStatus, getElapsedSeconds(), getDocumentsPerSecond(), allocatedBytes / (1024.0 * 1024.0),
+                getAllocatedMegabytesPerSecond(), getAllocatedBytesPerDocument(), gcCount, gcMillis,
+                gcMillis / 10.0 / getElapsedSeconds(), stepCounts, requestCounts);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.marklogic.hub.step.impl;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AdaptiveBatchControllerTest {
+
+    @Test
+    public void disabledByDefault() {
+        assertNull(AdaptiveBatchController.fromOptions(new HashMap<>(), 100, 4));
+        assertNull(AdaptiveBatchController.fromOptions(null, 100, 4));
+    }
+
+    @Test
+    public void readsTargetLatencyFromOptions() {
+        Map<String, Object> options = new HashMap<>();
+        options.put("adaptiveBatching", true);
+        options.put("targetBatchLatencyMillis", "500");
+        AdaptiveBatchController controller = AdaptiveBatchController.fromOptions(options, 100, 4);
+        assertNotNull(controller);
+        assertEquals(400, controller.getMaxBatchSize());
+        assertEquals(8, controller.getMaxThreadCount());
+
+        // 250ms is well under the 500ms target, so both grow
+        controller.adjust(250, 0);
+        assertEquals(125, controller.getBatchSize());
+        assertEquals(5, controller.getThreadCount());
+    }
+
+    @Test
+    public void growsWithinLimitsWhenFast() {
+        AdaptiveBatchController controller = new AdaptiveBatchController(100, 4, 2000);
+        for (int i = 0; i < 20; i++) {
+            controller.adjust(100, 0);
+        }
+        assertEquals(400, controller.getBatchSize());
+        assertEquals(8, controller.getThreadCount());
+    }
+
+    @Test
+    public void backsOffOnErrors() {
+        AdaptiveBatchController controller = new AdaptiveBatchController(100, 4, 2000);
+        controller.adjust(100, 0.5);
+        assertEquals(50, controller.getBatchSize());
+        assertEquals(2, controller.getThreadCount());
+
+        for (int i = 0; i < 20; i++) {
+            controller.adjust(100, 0.5);
+        }
+        assertEquals(10, controller.getBatchSize());
+        assertEquals(1, controller.getThreadCount());
+    }
+
+    @Test
+    public void shrinksBatchesWhenSlow() {
+        AdaptiveBatchController controller = new AdaptiveBatchController(100, 4, 2000);
+        controller.adjust(5000, 0);
+        assertEquals(50, controller.getBatchSize());
+        assertEquals(2, controller.getThreadCount());
+    }
+
+    @Test
+    public void adjustsOnlyOnceWindowIsFull() {
+        AdaptiveBatchController controller = new AdaptiveBatchController(100, 4, 2000);
+        StepMetrics metrics = new StepMetrics();
+        metrics.enableBatchWindow();
+        for (int i = 0; i < AdaptiveBatchController.WINDOW_SIZE - 1; i++) {
+            metrics.recordBatch(1_000_000, 100, 0);
+            controller.onBatchComplete(metrics);
+        }
+        assertEquals(100, controller.getBatchSize());
+
+        metrics.recordBatch(1_000_000, 100, 0);
+        controller.onBatchComplete(metrics);
+        assertEquals(125, controller.getBatchSize());
+        assertEquals(0, metrics.getWindowBatchCount());
+    }
+
+    @Test
+    public void windowIsOnlyKeptWhenEnabled() {
+        StepMetrics metrics = new StepMetrics();
+        metrics.recordBatch(1_000_000, 100, 0);
+        assertEquals(0, metrics.getWindowBatchCount());
+        assertEquals(1, metrics.getRequestLatencyMicros().getCount());
+
+        metrics.enableBatchWindow();
+        metrics.recordBatch(1_000_000, 100, 0);
+        assertEquals(1, metrics.getWindowBatchCount());
+    }
+}
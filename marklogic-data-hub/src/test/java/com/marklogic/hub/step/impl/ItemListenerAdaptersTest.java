@@ -0,0 +1,26 @@
+package com.marklogic.hub.step.impl;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class ItemListenerAdaptersTest {
+
+    @Test
+    public void itemListenersAreCalledForEachItemInTheBatch() {
+        List<String> completed = new ArrayList<>();
+        List<String> failed = new ArrayList<>();
+
+        ItemListenerAdapters.forItemComplete((jobId, itemId) -> completed.add(jobId + ":" + itemId))
+            .processBatchCompletion("job", new String[]{"/a.json", "/b.json"}, 2, 1);
+        ItemListenerAdapters.forItemFailure((jobId, itemId) -> failed.add(jobId + ":" + itemId))
+            .processBatchFailure("job", new String[]{"/c.json"}, 1);
+
+        assertEquals(Arrays.asList("job:/a.json", "job:/b.json"), completed);
+        assertEquals(Arrays.asList("job:/c.json"), failed);
+    }
+}
@@ -0,0 +1,58 @@
+package com.marklogic.hub.step.impl;
+
+import com.marklogic.hub.step.ResponseHolder;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RunFlowResponseReaderTest {
+
+    private static final String RESPONSE = "{\"jobId\":\"job-1\",\"totalCount\":3,\"errorCount\":1," +
+        "\"completedItems\":[\"/a.json\",\"/b.json\"],\"failedItems\":[\"/c.json\"]," +
+        "\"errors\":[{\"message\":\"boom\",\"uri\":\"/c.json\"}]," +
+        "\"documents\":[{\"uri\":\"/a.json\",\"value\":{}}],\"performanceMetrics\":{\"nested\":[1,2]}}";
+
+    @Test
+    public void readsEverythingWhenAsked() throws Exception {
+        ResponseHolder holder = read(RESPONSE, true, true);
+        assertEquals("job-1", holder.jobId);
+        assertEquals(3, holder.totalCount);
+        assertEquals(1, holder.errorCount);
+        assertEquals(2, holder.completedItems.size());
+        assertEquals("/c.json", holder.failedItems.get(0));
+        assertEquals("boom", holder.errors.get(0).get("message").asText());
+        assertEquals("/a.json", holder.documents.get(0).get("uri").asText());
+    }
+
+    @Test
+    public void skipsItemsThatAreNotNeeded() throws Exception {
+        ResponseHolder holder = read(RESPONSE, false, false);
+        assertEquals(3, holder.totalCount);
+        assertEquals(1, holder.errorCount);
+        assertNull(holder.completedItems);
+        assertNull(holder.documents);
+        assertEquals(1, holder.failedItems.size());
+        assertEquals(1, holder.errors.size());
+    }
+
+    @Test
+    public void countsOnlyResponse() throws Exception {
+        ResponseHolder holder = read("{\"jobId\":\"job-1\",\"totalCount\":2,\"errorCount\":0,\"failedItems\":[],\"errors\":[]}", false, false);
+        assertEquals(2, holder.totalCount);
+        assertNull(holder.completedItems);
+        assertTrue(holder.failedItems.isEmpty());
+    }
+
+    @Test
+    public void emptyBody() throws Exception {
+        ResponseHolder holder = read("", true, true);
+        assertEquals(0, holder.totalCount);
+    }
+
+    private static ResponseHolder read(String json, boolean includeCompletedItems, boolean includeDocuments) throws Exception {
+        return RunFlowResponseReader.read(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), includeCompletedItems, includeDocuments);
+    }
+}
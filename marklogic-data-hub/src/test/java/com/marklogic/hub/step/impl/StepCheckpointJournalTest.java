@@ -0,0 +1,51 @@
+package com.marklogic.hub.step.impl;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StepCheckpointJournalTest {
+
+    @Test
+    public void completedUrisAreSkippedOnResume() throws Exception {
+        Path dir = Files.createTempDirectory("checkpoint-test");
+        Path file = dir.resolve("job-1").resolve("myFlow-2.journal");
+
+        StepCheckpointJournal journal = new StepCheckpointJournal(file);
+        journal.recordCompleted(Arrays.asList("/one.json", "/two.json"));
+        journal.recordFailed(new String[]{"/three.json"});
+        journal.close();
+
+        // A later run appends to the same journal
+        journal = new StepCheckpointJournal(file);
+        journal.recordCompleted(Arrays.asList("/three.json", "/one.json"));
+        journal.recordFailed(new String[]{"/four.json"});
+        journal.close();
+
+        StepCheckpointJournal.CompletedUris completed = new StepCheckpointJournal(file).loadCompleted();
+        assertEquals(3, completed.size());
+        assertTrue(completed.contains("/one.json"));
+        assertTrue(completed.contains("/two.json"));
+        assertTrue(completed.contains("/three.json"));
+        assertFalse(completed.contains("/four.json"));
+        assertFalse(completed.contains("/five.json"));
+
+        new StepCheckpointJournal(file).delete();
+        assertFalse(Files.exists(file));
+        assertFalse(Files.exists(file.getParent()));
+        Files.deleteIfExists(dir);
+    }
+
+    @Test
+    public void missingJournalHasNothingCompleted() throws Exception {
+        Path dir = Files.createTempDirectory("checkpoint-test");
+        StepCheckpointJournal journal = new StepCheckpointJournal(dir.resolve("missing.journal"));
+        assertFalse(journal.exists());
+        assertEquals(0, journal.loadCompleted().size());
+        Files.deleteIfExists(dir);
+    }
+}
@@ -0,0 +1,72 @@
+package com.marklogic.hub.step.metrics;
+
+import com.marklogic.hub.step.impl.StepMetrics;
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PrometheusFormatTest {
+
+    @Test
+    public void writeStepMetrics() {
+        StepMetrics metrics = new StepMetrics();
+        metrics.batchStarted();
+        metrics.recordBatch(2_000_000, 10, 1);
+        metrics.recordServerTime(1_000_000);
+        metrics.recordPayload(300, 2000);
+        metrics.getSuccessfulEvents().addAndGet(9);
+        metrics.getFailedEvents().addAndGet(1);
+
+        Map<StepMetricsId, StepMetrics> all = new LinkedHashMap<>();
+        all.put(new StepMetricsId("my\"Flow", "1", "myStep", "job1"), metrics);
+        String text = PrometheusFormat.write(all);
+
+        String labels = "{flow=\"my\\\"Flow\",step=\"1\",step_name=\"myStep\"";
+        assertTrue(text.contains("# TYPE dhf_step_request_latency_seconds summary\n"), text);
+        assertTrue(text.contains("dhf_step_request_latency_seconds" + labels + ",quantile=\"0.5\"} 0.002\n"), text);
+        assertTrue(text.contains("dhf_step_request_latency_seconds_count" + labels + "} 1\n"), text);
+        assertTrue(text.contains("dhf_step_server_time_seconds_sum" + labels + "} 0.001\n"), text);
+        assertTrue(text.contains("dhf_step_request_bytes_sum" + labels + "} 300\n"), text);
+        assertTrue(text.contains("dhf_step_response_bytes_sum" + labels + "} 2000\n"), text);
+        assertTrue(text.contains("dhf_step_in_flight_batches" + labels + "} 1\n"), text);
+        assertTrue(text.contains("dhf_step_successful_events_total" + labels + "} 9\n"), text);
+        assertTrue(text.contains("dhf_step_failed_events_total" + labels + "} 1\n"), text);
+        assertFalse(text.contains("job1"), "Job ids would start new series on every run");
+    }
+
+    @Test
+    public void eachStepIsWrittenOnce() {
+        StepMetrics running = new StepMetrics();
+        running.getSuccessfulEvents().addAndGet(5);
+        StepMetrics finished = new StepMetrics();
+        finished.getSuccessfulEvents().addAndGet(100);
+
+        Map<StepMetricsId, StepMetrics> all = new LinkedHashMap<>();
+        all.put(new StepMetricsId("myFlow", "1", "myStep", "job2"), running);
+        all.put(new StepMetricsId("myFlow", "1", "myStep", "job1"), finished);
+        String text = PrometheusFormat.write(all);
+
+        String labels = "{flow=\"myFlow\",step=\"1\",step_name=\"myStep\"}";
+        assertTrue(text.contains("dhf_step_successful_events_total" + labels + " 5\n"), text);
+        assertFalse(text.contains("dhf_step_successful_events_total" + labels + " 100\n"), text);
+    }
+
+    @Test
+    public void recentRegistryKeepsLastFinishedRun() {
+        RecentStepMetricsRegistry registry = new RecentStepMetricsRegistry();
+        StepMetricsId first = new StepMetricsId("myFlow", "1", "myStep", "job1");
+        StepMetricsId second = new StepMetricsId("myFlow", "1", "myStep", "job2");
+        registry.register(first, new StepMetrics());
+        registry.unregister(first);
+        registry.register(second, new StepMetrics());
+        assertEquals(2, registry.getMetrics().size(), "The running step and the last finished run are both kept");
+
+        registry.unregister(second);
+        assertEquals(1, registry.getMetrics().size());
+        assertTrue(registry.getMetrics().containsKey(second));
+        assertTrue(registry.getRunning().isEmpty());
+    }
+}
@@ -0,0 +1,46 @@
+package com.marklogic.hub.util.metrics.tracer;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BatchSamplerTest {
+
+    @Test
+    public void rateFromOptions() {
+        Map<String, Object> options = new HashMap<>();
+        assertEquals(1.0, BatchSampler.fromOptions(null).getRate(), 0);
+        options.put(BatchSampler.OPTION, "0.01");
+        assertEquals(0.01, BatchSampler.fromOptions(options).getRate(), 0);
+        options.put(BatchSampler.OPTION, 0.5);
+        assertEquals(0.5, BatchSampler.fromOptions(options).getRate(), 0);
+    }
+
+    @Test
+    public void rateFromSystemProperty() {
+        System.setProperty(BatchSampler.PROPERTY, "0.25");
+        try {
+            assertEquals(0.25, BatchSampler.fromOptions(new HashMap<>()).getRate(), 0);
+            Map<String, Object> options = new HashMap<>();
+            options.put(BatchSampler.OPTION, "1");
+            assertEquals(1.0, BatchSampler.fromOptions(options).getRate(), 0, "The run option takes precedence");
+        } finally {
+            System.clearProperty(BatchSampler.PROPERTY);
+        }
+    }
+
+    @Test
+    public void invalidRate() {
+        assertThrows(IllegalArgumentException.class, () -> new BatchSampler(1.5));
+        assertThrows(IllegalArgumentException.class, () -> new BatchSampler(-0.1));
+    }
+
+    @Test
+    public void nothingIsSampledWhileTracingIsOff() {
+        assertFalse(JaegerConfig.enabled());
+        assertFalse(new BatchSampler(1).sample());
+    }
+}
@@ -64,6 +64,9 @@ class RunFlowTask extends HubTask {
     @Input
     public String jobId
 
+    @Input
+    public Boolean resume
+
     @TaskAction
     void runFlow() {
 
@@ -120,6 +123,11 @@ class RunFlowTask extends HubTask {
                 Boolean.parseBoolean(project.property("failHard")) : false
         }
 
+        if (resume == null) {
+            resume = project.hasProperty("resume") ?
+                Boolean.parseBoolean(project.property("resume")) : false
+        }
+
         if (steps == null) {
             steps = project.hasProperty("steps") ?
                 project.property("steps").toString().trim().tokenize(",") : null
@@ -155,6 +163,14 @@ class RunFlowTask extends HubTask {
                 });
         }
 
+        if (Boolean.TRUE.equals(resume)) {
+            if (jobId == null) {
+                throw new IllegalArgumentException("A jobId is required when resuming a flow")
+            }
+            runFlowString.append("\n\tresuming job: " + jobId)
+            options.put("resume", true)
+        }
+
         Map<String, Object> stepConfig = new HashMap<>()
 
         if(batchSize != null){
@@ -54,7 +54,7 @@ public class FlowRunnerChecker {
 
             Map<String, RunStepResponse> stepResponseByKey = rfr.getStepResponses();
             if (stepResponseByKey != null) {
-                RunStepResponse stepJob = stepResponseByKey.get(flowRunner.getRunningStepKey());
+                RunStepResponse stepJob = stepResponseByKey.get(flowRunner.getRunningStepKey(jobId));
                 if (stepJob != null) {
                     latestJob.status = StringUtils.isNotEmpty(stepJob.getStatus()) && !JobStatus.isJobDone(latestJob.status) ? stepJob.getStatus() : latestJob.status;
                     if (stepJob.getStepOutput() != null) {
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2012-2019 MarkLogic Corporation
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.marklogic.hub.web.web;
+
+import com.marklogic.hub.step.metrics.PrometheusFormat;
+import com.marklogic.hub.step.metrics.StepMetricsRegistries;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+/**
+ * Exposes the metrics of running steps, and of the last run of each finished step, for Prometheus to scrape.
+ */
+@Controller
+@RequestMapping("/api/metrics")
+public class MetricsController {
+
+    @RequestMapping(method = RequestMethod.GET)
+    public ResponseEntity<String> getMetrics() {
+        String body = PrometheusFormat.write(StepMetricsRegistries.getRecent().getMetrics());
+        return ResponseEntity.ok()
+            .header(HttpHeaders.CONTENT_TYPE, PrometheusFormat.CONTENT_TYPE)
+            .body(body);
+    }
+}